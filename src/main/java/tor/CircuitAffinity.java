@@ -0,0 +1,303 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.LruMap;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Opens streams on circuits that have been used before, as tor does with dirty circuits:
+ * <ul>
+ * <li>a destination goes back to the circuit whose exit last connected to it</li>
+ * <li>otherwise to the most recently used circuit whose exit's policy accepts the port</li>
+ * <li>otherwise a new circuit is taken from the source (e.g. a CircuitPool)</li>
+ * </ul>
+ * Circuits stop being reused MAX_DIRTINESS_MILLIS after their first stream.  When an exit refuses a destination with
+ * REASON_EXITPOLICY (its policy summary in the consensus can be stale, and it may reject the address rather than the
+ * port) that is remembered for REJECT_MILLIS, and the exit isn't offered that destination again.
+ */
+public class CircuitAffinity {
+    final static Logger log = LogManager.getLogger();
+
+    // tor's MaxCircuitDirtiness
+    public static long MAX_DIRTINESS_MILLIS = 10 * 60 * 1000;
+    public static long REJECT_MILLIS = 60 * 60 * 1000;
+    // destinations remembered, each way
+    public static int DEFAULT_CAPACITY = 1024;
+    // new circuits taken for one stream before giving up on finding an exit that hasn't refused the destination
+    public static int MAX_NEW_CIRCUITS = 3;
+
+    /**
+     * Where new circuits come from
+     */
+    public interface CircuitSource {
+        /**
+         * @param port Port the exit must accept
+         * @return READY circuit
+         */
+        TorCircuit get(int port) throws IOException;
+    }
+
+    private final CircuitSource source;
+    // destination -> circuit whose exit last connected to it
+    private final LruMap<String, TorCircuit> connected;
+    // destination -> exit identity -> when the refusal is forgotten
+    private final LruMap<String, HashMap<String, Long>> rejected;
+    // circuits in use -> time of first use, oldest first
+    private final LinkedHashMap<TorCircuit, Long> circuits = new LinkedHashMap<>();
+
+    // statistics
+    private long hits = 0, warm = 0, cold = 0, rejections = 0;
+
+    public CircuitAffinity(final CircuitPool pool) {
+        this(pool::take, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param source   Supplies a circuit when no circuit in use will do
+     * @param capacity Destinations remembered
+     */
+    public CircuitAffinity(CircuitSource source, int capacity) {
+        this.source = source;
+        connected = new LruMap<>(capacity);
+        rejected = new LruMap<>(capacity);
+    }
+
+    /**
+     * Opens a stream on the circuit chosen for the destination, taking a new one from the source if none will do
+     *
+     * @param host Hostname/ip
+     * @param port Port
+     * @param list A listener for stream events
+     * @return TorStream object
+     * @throws IOException if no circuit could be found
+     */
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list) throws IOException {
+        return choose(host, port, null).createStream(host, port, wrap(host, port, list));
+    }
+
+    /**
+     * Reopens a stream whose BEGIN failed on another circuit (see TorStream.retryOn()), first noting the refusal if
+     * the exit's policy rejected it
+     *
+     * @param failed Stream whose BEGIN failed
+     * @param list   A listener for the new stream's events
+     * @return the new stream
+     */
+    public TorStream retry(TorStream failed, TorStream.TorStreamListener list) throws IOException {
+        if (failed.isBeginFailed() && failed.getEndReason() == TorCircuit.REASON_EXITPOLICY)
+            rejected(failed.host, failed.port, failed.circ);
+        return failed.retryOn(choose(failed.host, failed.port, failed.circ), wrap(failed.host, failed.port, list));
+    }
+
+    /**
+     * @return circuit in use that the destination would go to, or null if a new one would be needed
+     */
+    public synchronized TorCircuit select(String host, int port) {
+        return select(host, port, null);
+    }
+
+    /**
+     * Starts reusing a circuit built elsewhere
+     */
+    public synchronized void add(TorCircuit circ) {
+        if (!circuits.containsKey(circ))
+            circuits.put(circ, System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the circuit's exit has refused the destination recently
+     */
+    public synchronized boolean isRejected(TorCircuit circ, String host, int port) {
+        HashMap<String, Long> exits = rejected.get(key(host, port));
+        String exit = exitOf(circ);
+        if (exits == null || exit == null)
+            return false;
+        Long until = exits.get(exit);
+        if (until == null)
+            return false;
+        if (until > System.currentTimeMillis())
+            return true;
+        exits.remove(exit);
+        return false;
+    }
+
+    private TorCircuit choose(String host, int port, TorCircuit avoid) throws IOException {
+        TorCircuit circ = select(host, port, avoid);
+        if (circ != null)
+            return circ;
+        for (int i = 0; i < MAX_NEW_CIRCUITS; i++) {
+            circ = source.get(port);
+            add(circ); // usable for other destinations even if its exit refused this one
+            if (circ != avoid && !isRejected(circ, host, port)) {
+                synchronized (this) {
+                    cold++;
+                }
+                return circ;
+            }
+        }
+        throw new TorCircuitException("No circuit with an exit that hasn't refused " + key(host, port));
+    }
+
+    private synchronized TorCircuit select(String host, int port, TorCircuit avoid) {
+        prune();
+        TorCircuit circ = connected.get(key(host, port));
+        if (circ != null && circ != avoid && circuits.containsKey(circ)) {
+            hits++;
+            return circ;
+        }
+
+        TorCircuit best = null;
+        for (TorCircuit c : circuits.keySet()) // newest last, so it has longest left to live
+            if (c != avoid && c.conflux == null && exitAccepts(c, port) && !isRejected(c, host, port))
+                best = c;
+        if (best != null)
+            warm++;
+        return best;
+    }
+
+    // drops circuits that have been destroyed or used for too long
+    private void prune() {
+        long oldest = System.currentTimeMillis() - MAX_DIRTINESS_MILLIS;
+        for (Iterator<Map.Entry<TorCircuit, Long>> it = circuits.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<TorCircuit, Long> e = it.next();
+            if (e.getKey().state != TorCircuit.STATES.READY || e.getValue() < oldest)
+                it.remove();
+        }
+    }
+
+    private synchronized void connected(String host, int port, TorCircuit circ) {
+        connected.put(key(host, port), circ);
+    }
+
+    private synchronized void rejected(String host, int port, TorCircuit circ) {
+        String exit = exitOf(circ);
+        if (exit == null)
+            return;
+        String key = key(host, port);
+        HashMap<String, Long> exits = rejected.get(key);
+        if (exits == null) {
+            exits = new HashMap<>();
+            rejected.put(key, exits);
+        }
+        if (exits.put(exit, System.currentTimeMillis() + REJECT_MILLIS) == null) {
+            rejections++;
+            log.debug("Exit {} refused {}", exit, key);
+        }
+        if (connected.get(key) == circ)
+            connected.remove(key);
+    }
+
+    // notes where streams connected, and which exits refused them
+    private TorStream.TorStreamListener wrap(final String host, final int port, final TorStream.TorStreamListener list) {
+        return new TorStream.TorStreamListener() {
+            @Override
+            public void dataArrived(TorStream s) {
+                if (list != null)
+                    list.dataArrived(s);
+            }
+
+            @Override
+            public void connected(TorStream s) {
+                CircuitAffinity.this.connected(host, port, s.circ);
+                if (list != null)
+                    list.connected(s);
+            }
+
+            @Override
+            public void disconnected(TorStream s) {
+                if (s.isBeginFailed() && s.getEndReason() == TorCircuit.REASON_EXITPOLICY)
+                    rejected(host, port, s.circ);
+                if (list != null)
+                    list.disconnected(s);
+            }
+
+            @Override
+            public void failure(TorStream s) {
+                if (list != null)
+                    list.failure(s);
+            }
+        };
+    }
+
+    private static boolean exitAccepts(TorCircuit circ, int port) {
+        TorHop exit = circ.getLastHop();
+        return exit != null && exit.router != null && Boolean.TRUE.equals(exit.router.acceptsIPv4ExitPort(port));
+    }
+
+    private static String exitOf(TorCircuit circ) {
+        TorHop exit = circ.getLastHop();
+        return exit == null || exit.router == null ? null : exit.router.identityhash;
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * @return streams sent back to the circuit that last connected to their destination
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return streams put on a circuit in use that hadn't been to their destination
+     */
+    public synchronized long getWarm() {
+        return warm;
+    }
+
+    /**
+     * @return streams which needed a new circuit
+     */
+    public synchronized long getCold() {
+        return cold;
+    }
+
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public synchronized int getCircuitCount() {
+        prune();
+        return circuits.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitAffinity{" +
+                "circuits=" + circuits.size() +
+                ", destinations=" + connected.size() +
+                ", hits=" + hits +
+                ", warm=" + warm +
+                ", cold=" + cold +
+                ", rejections=" + rejections +
+                '}';
+    }
+}
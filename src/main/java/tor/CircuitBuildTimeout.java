@@ -0,0 +1,313 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Learns how long circuit builds take and picks a timeout beyond which a build should be abandoned.  This follows
+ * tor's circuit build timeout (see path-spec.txt section 2.4): build times are fitted to a Pareto distribution and the
+ * timeout is the point at which QUANTILE_CUTOFF of builds would have completed.
+ * <p/>
+ * Until MIN_CIRCUITS_TO_OBSERVE builds have been seen the timeout is DEFAULT_TIMEOUT_MILLIS.  The histogram is saved
+ * to "circuit-build-times" in the current directory (like cached-consensus) so it survives restarts.
+ */
+public class CircuitBuildTimeout {
+    final static Logger log = LogManager.getLogger();
+
+    // the constants below are tor's defaults (CBT_* in circuitstats.h)
+    public static int NCIRCUITS_TO_OBSERVE = 1000;
+    public static int MIN_CIRCUITS_TO_OBSERVE = 100;
+    public static int BIN_WIDTH = 10;
+    public static int NUM_XM_MODES = 10;
+    public static double QUANTILE_CUTOFF = 0.8;
+    public static long DEFAULT_TIMEOUT_MILLIS = 60000;
+    public static long MIN_TIMEOUT_MILLIS = 10;
+    public static int RECENT_CIRCUITS = 20;
+    public static int MAX_RECENT_TIMEOUT_COUNT = 18;
+    // save the histogram after this many new observations
+    public static int SAVE_INTERVAL = 10;
+
+    private static final int ABANDONED = -1;
+    private static CircuitBuildTimeout defaultTimeout = null;
+
+    File stateFile;
+
+    // circular buffer of build times, ABANDONED for builds that timed out, 0 for unused
+    private int buildTimes[] = new int[NCIRCUITS_TO_OBSERVE];
+    private int buildIdx = 0;
+    private int totalBuilds = 0;
+
+    // circular record of whether each recent build timed out
+    private boolean recentTimeouts[] = new boolean[RECENT_CIRCUITS];
+    private int recentIdx = 0;
+
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private double xm = 0, alpha = 0;
+    private int unsaved = 0;
+
+    /**
+     * @param stateFile where the histogram is persisted, or null for none
+     */
+    public CircuitBuildTimeout(File stateFile) {
+        this.stateFile = stateFile;
+        if (stateFile != null && stateFile.exists() && stateFile.canRead()) {
+            try {
+                load(stateFile);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to load circuit build times from " + stateFile + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the estimator shared by all circuits, loaded from "circuit-build-times" if present
+     */
+    public static synchronized CircuitBuildTimeout getDefault() {
+        if (defaultTimeout == null)
+            defaultTimeout = new CircuitBuildTimeout(new File(".").canWrite() ? new File("circuit-build-times") : null);
+        return defaultTimeout;
+    }
+
+    /**
+     * @return current timeout for a full circuit build
+     */
+    public synchronized long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Records a successful build
+     *
+     * @param millis Time from the CREATE cell to the final hop's EXTENDED
+     */
+    public synchronized void addBuildTime(long millis) {
+        add((int) Math.max(1, Math.min(millis, Integer.MAX_VALUE)), false);
+    }
+
+    /**
+     * Records a build which was abandoned because it exceeded getTimeoutMillis()
+     */
+    public synchronized void addTimeout() {
+        add(ABANDONED, true);
+    }
+
+    private void add(int value, boolean timedOut) {
+        buildTimes[buildIdx] = value;
+        buildIdx = (buildIdx + 1) % buildTimes.length;
+        if (totalBuilds < buildTimes.length)
+            totalBuilds++;
+
+        recentTimeouts[recentIdx] = timedOut;
+        recentIdx = (recentIdx + 1) % recentTimeouts.length;
+
+        if (networkChanged())
+            return;
+
+        recompute();
+
+        if (++unsaved >= SAVE_INTERVAL)
+            save();
+    }
+
+    /**
+     * If nearly all recent circuits timed out then the network has probably changed under us (e.g. new link), so the
+     * history is no longer useful.  Start again with the default timeout.
+     */
+    private boolean networkChanged() {
+        if (totalBuilds < MIN_CIRCUITS_TO_OBSERVE)
+            return false;
+
+        int count = 0;
+        for (boolean t : recentTimeouts)
+            if (t)
+                count++;
+        if (count < MAX_RECENT_TIMEOUT_COUNT)
+            return false;
+
+        log.warn("{} of the last {} circuits timed out - resetting circuit build timeout", count, RECENT_CIRCUITS);
+        reset();
+        return true;
+    }
+
+    public synchronized void reset() {
+        buildTimes = new int[NCIRCUITS_TO_OBSERVE];
+        buildIdx = 0;
+        totalBuilds = 0;
+        recentTimeouts = new boolean[RECENT_CIRCUITS];
+        timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        xm = alpha = 0;
+    }
+
+    /**
+     * Fits the Pareto parameters Xm (from the histogram modes) and alpha (maximum likelihood, treating abandoned
+     * builds as censored at the largest observed time) and derives the timeout from them.
+     */
+    private void recompute() {
+        if (totalBuilds < MIN_CIRCUITS_TO_OBSERVE)
+            return;
+
+        xm = computeXm();
+        if (xm <= 0)
+            return;
+
+        int n = 0, abandoned = 0, maxTime = 0;
+        double a = 0;
+        for (int t : buildTimes) {
+            if (t == 0)
+                continue;
+            n++;
+            if (t == ABANDONED) {
+                abandoned++;
+                continue;
+            }
+            maxTime = Math.max(maxTime, t);
+            a += Math.log(Math.max(t, xm));
+        }
+        if (maxTime == 0)
+            return; // nothing but timeouts, keep what we have
+
+        a += abandoned * Math.log(Math.max(maxTime, xm));
+        a -= n * Math.log(xm);
+        n -= abandoned;
+
+        if (a <= 0 || n <= 0) {
+            timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, (long) xm);
+            return;
+        }
+
+        alpha = n / a;
+        timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, (long) (xm / Math.pow(1 - QUANTILE_CUTOFF, 1 / alpha)));
+        log.trace("Circuit build timeout now {}ms (Xm={} alpha={})", timeoutMillis, xm, alpha);
+    }
+
+    private double computeXm() {
+        TreeMap<Integer, Integer> histogram = getHistogram();
+        ArrayList<Map.Entry<Integer, Integer>> bins = new ArrayList<>(histogram.entrySet());
+        if (bins.isEmpty())
+            return 0;
+
+        // most popular bins first
+        Collections.sort(bins, new Comparator<Map.Entry<Integer, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Integer, Integer> a, Map.Entry<Integer, Integer> b) {
+                return b.getValue() - a.getValue();
+            }
+        });
+
+        long weighted = 0, count = 0;
+        for (int i = 0; i < Math.min(NUM_XM_MODES, bins.size()); i++) {
+            Map.Entry<Integer, Integer> bin = bins.get(i);
+            weighted += (long) (bin.getKey() * BIN_WIDTH + BIN_WIDTH / 2) * bin.getValue();
+            count += bin.getValue();
+        }
+        return weighted / (double) count;
+    }
+
+    // bin number -> number of successful builds in that bin
+    private TreeMap<Integer, Integer> getHistogram() {
+        TreeMap<Integer, Integer> histogram = new TreeMap<>();
+        for (int t : buildTimes) {
+            if (t <= 0)
+                continue;
+            int bin = t / BIN_WIDTH;
+            Integer cur = histogram.get(bin);
+            histogram.put(bin, cur == null ? 1 : cur + 1);
+        }
+        return histogram;
+    }
+
+    /**
+     * Saves the histogram in the same form as tor's state file:
+     * "CircuitBuildAbandonedCount n" and one "CircuitBuildTimeBin binMidpointMillis count" line per bin.
+     */
+    public synchronized void save() {
+        unsaved = 0;
+        if (stateFile == null)
+            return;
+
+        int abandoned = 0;
+        for (int t : buildTimes)
+            if (t == ABANDONED)
+                abandoned++;
+
+        try (PrintWriter out = new PrintWriter(stateFile)) {
+            out.println("CircuitBuildAbandonedCount " + abandoned);
+            for (Map.Entry<Integer, Integer> bin : getHistogram().entrySet())
+                out.println("CircuitBuildTimeBin " + (bin.getKey() * BIN_WIDTH + BIN_WIDTH / 2) + " " + bin.getValue());
+        } catch (IOException e) {
+            log.warn("Unable to save circuit build times: " + e);
+        }
+    }
+
+    private void load(File f) throws IOException {
+        ArrayList<Integer> loaded = new ArrayList<>();
+        try (BufferedReader rdr = new BufferedReader(new FileReader(f))) {
+            String ln;
+            while ((ln = rdr.readLine()) != null) {
+                String sp[] = ln.split(" ");
+                if (sp[0].equals("CircuitBuildAbandonedCount") && sp.length == 2) {
+                    for (int i = Integer.parseInt(sp[1]); i > 0; i--)
+                        loaded.add(ABANDONED);
+                } else if (sp[0].equals("CircuitBuildTimeBin") && sp.length == 3) {
+                    int ms = Integer.parseInt(sp[1]);
+                    for (int i = Integer.parseInt(sp[2]); i > 0; i--)
+                        loaded.add(ms);
+                }
+            }
+        }
+
+        // shuffle so that the oldest entries overwritten first aren't all from the same bin
+        Collections.shuffle(loaded, TorCrypto.rnd);
+        for (int t : loaded.subList(Math.max(0, loaded.size() - buildTimes.length), loaded.size())) {
+            buildTimes[buildIdx] = t;
+            buildIdx = (buildIdx + 1) % buildTimes.length;
+            if (totalBuilds < buildTimes.length)
+                totalBuilds++;
+        }
+        recompute();
+        log.debug("Loaded {} circuit build times, timeout {}ms", totalBuilds, timeoutMillis);
+    }
+
+    public synchronized int getObservationCount() {
+        return totalBuilds;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBuildTimeout{" +
+                "timeoutMillis=" + timeoutMillis +
+                ", observations=" + totalBuilds +
+                ", xm=" + String.format("%.1f", xm) +
+                ", alpha=" + String.format("%.3f", alpha) +
+                '}';
+    }
+}
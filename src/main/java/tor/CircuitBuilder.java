@@ -0,0 +1,135 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+
+/**
+ * Builds three hop circuits (the socket's first hop, a random middle and a random exit for a port) the same way the
+ * examples do by hand with create() and extend().
+ * <p/>
+ * Each build is timed and fed to a CircuitBuildTimeout.  Builds that take longer than the learned timeout are
+ * abandoned and retried on a new path, up to maxAttempts times.
+ */
+public class CircuitBuilder {
+    final static Logger log = LogManager.getLogger();
+
+    // If you're having speed issues, try adding "Fast" to the lists of flags below.
+    public String middleFlags = "Running,Valid,Fast";
+    public String exitFlags = "Exit,Running,Valid,Fast";
+    public int maxAttempts = 3;
+
+    TorSocket sock;
+    CircuitBuildTimeout timeout;
+
+    public CircuitBuilder(TorSocket sock) {
+        this(sock, CircuitBuildTimeout.getDefault());
+    }
+
+    public CircuitBuilder(TorSocket sock, CircuitBuildTimeout timeout) {
+        this.sock = sock;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Builds a circuit, blocking until it is READY
+     *
+     * @param exitPort Port the exit must accept (or 0 to ignore exit policies)
+     * @return READY circuit
+     * @throws IOException if every attempt failed or timed out
+     */
+    public TorCircuit build(int exitPort) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            OnionRouter middle = chooseMiddle();
+            OnionRouter exit = chooseExit(exitPort);
+            try {
+                return build(middle, exit);
+            } catch (IOException e) {
+                log.debug("Circuit build attempt {} failed: {}", attempt, e.getMessage());
+                lastError = e;
+            }
+        }
+        throw new TorCircuitException("Circuit build failed after " + maxAttempts + " attempts: " + lastError.getMessage());
+    }
+
+    /**
+     * Builds a circuit through the given routers, abandoning it if it takes longer than the learned timeout
+     *
+     * @param path Routers after the socket's first hop
+     * @return READY circuit
+     * @throws IOException if the build failed or timed out, the circuit is destroyed
+     */
+    public TorCircuit build(OnionRouter... path) throws IOException {
+        // keys are fetched before the clock starts so that descriptor downloads don't count against the build
+        for (OnionRouter r : path)
+            r.getOnionKey();
+
+        long limit = timeout.getTimeoutMillis();
+        TorCircuit circ = sock.createCircuit(false);
+        long start = System.currentTimeMillis();
+        try {
+            circ.create();
+            circ.waitForState(TorCircuit.STATES.READY, false, limit);
+            for (OnionRouter r : path) {
+                circ.extend(r);
+                circ.waitForState(TorCircuit.STATES.READY, false, Math.max(1, limit - (System.currentTimeMillis() - start)));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (System.currentTimeMillis() - start >= limit)
+                timeout.addTimeout();
+            circ.destroy();
+            throw e;
+        }
+
+        timeout.addBuildTime(System.currentTimeMillis() - start);
+        circ.setBlocking(true);
+        return circ;
+    }
+
+    /**
+     * @return random middle with middleFlags
+     */
+    public OnionRouter chooseMiddle() {
+        return Consensus.getConsensus().getRandomORWithFlag(middleFlags);
+    }
+
+    /**
+     * @param exitPort Port the exit must accept (or 0 to ignore exit policies)
+     * @return random exit with exitFlags
+     */
+    public OnionRouter chooseExit(int exitPort) {
+        return Consensus.getConsensus().getRandomORWithFlag(exitFlags, exitPort);
+    }
+
+    /**
+     * Destroys a circuit that is being given up on, logging rather than throwing if that fails
+     */
+    static void destroyQuietly(TorCircuit circ) {
+        try {
+            circ.destroy();
+        } catch (IOException e) {
+            log.debug("Failed to destroy circuit " + circ.circId + ": " + e);
+        }
+    }
+}
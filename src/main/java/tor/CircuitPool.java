@@ -0,0 +1,319 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a stock of READY circuits for each predicted exit port (see PredictedPorts) so that callers don't have to
+ * wait for create/extend round trips before opening a stream.  Circuits are rebuilt in the background as they are
+ * taken from the pool or destroyed.
+ * <p/>
+ * Usage:
+ * <pre>
+ *     CircuitPool pool = new CircuitPool(sock, 2);
+ *     pool.start();
+ *     TorCircuit circ = pool.take(80);
+ *     TorStream stream = circ.createStream("ghowen.me", 80, null);
+ * </pre>
+ */
+public class CircuitPool {
+    final static Logger log = LogManager.getLogger();
+
+    // how often the pool is checked for destroyed circuits and newly predicted ports
+    public static long REPLENISH_INTERVAL_MILLIS = 1000;
+
+    TorSocket sock;
+    CircuitBuilder builder;
+    int circuitsPerPort;
+
+    // ready circuits, by exit port
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<TorCircuit>> ready = new ConcurrentHashMap<>();
+    // builds in progress, by exit port
+    private final ConcurrentHashMap<Integer, AtomicInteger> building = new ConcurrentHashMap<>();
+
+    private final ExecutorService buildExecutor;
+    private final ScheduledExecutorService replenishTimer;
+    private volatile boolean stopped = false;
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong buildFailures = new AtomicLong();
+    private final AtomicLong totalBuildMillis = new AtomicLong();
+    private volatile long lastBuildMillis = 0;
+
+    /**
+     * Creates a pool which builds circuits one at a time
+     *
+     * @param sock            Socket (i.e. guard) to build circuits on
+     * @param circuitsPerPort Number of READY circuits to keep for each predicted port
+     */
+    public CircuitPool(TorSocket sock, int circuitsPerPort) {
+        this(sock, new CircuitBuilder(sock), circuitsPerPort, 1);
+    }
+
+    /**
+     * @param sock            Socket (i.e. guard) to build circuits on
+     * @param builder         Used to build each circuit
+     * @param circuitsPerPort Number of READY circuits to keep for each predicted port
+     * @param buildThreads    Maximum number of concurrent background builds
+     */
+    public CircuitPool(TorSocket sock, CircuitBuilder builder, int circuitsPerPort, int buildThreads) {
+        this.sock = sock;
+        this.builder = builder;
+        this.circuitsPerPort = circuitsPerPort;
+
+        ThreadFactory daemon = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CircuitPool");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        buildExecutor = Executors.newFixedThreadPool(buildThreads, daemon);
+        replenishTimer = Executors.newSingleThreadScheduledExecutor(daemon);
+    }
+
+    /**
+     * Starts background building for the predicted ports
+     */
+    public void start() {
+        replenishTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                replenish();
+            }
+        }, 0, REPLENISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops building and destroys the READY circuits still held.  Circuits already taken are left alone, and a build
+     * that finishes afterwards is destroyed rather than pooled.
+     */
+    public void shutdown() {
+        stopped = true;
+        replenishTimer.shutdownNow();
+        buildExecutor.shutdownNow();
+        for (ConcurrentLinkedQueue<TorCircuit> queue : ready.values())
+            drain(queue);
+    }
+
+    private static void drain(ConcurrentLinkedQueue<TorCircuit> queue) {
+        TorCircuit circ;
+        while ((circ = queue.poll()) != null) {
+            if (circ.state == TorCircuit.STATES.READY)
+                CircuitBuilder.destroyQuietly(circ);
+        }
+    }
+
+    /**
+     * Hands out a READY circuit whose exit accepts port.  If none is ready one is built in the calling thread.
+     *
+     * @param port Exit port the circuit will be used for
+     * @return READY circuit, no longer owned by the pool
+     * @throws IOException if a circuit had to be built and the build failed
+     */
+    public TorCircuit take(int port) throws IOException {
+        sock.predictedPorts.record(port);
+
+        ConcurrentLinkedQueue<TorCircuit> queue = getQueue(port);
+        TorCircuit circ;
+        while ((circ = queue.poll()) != null) {
+            if (circ.state == TorCircuit.STATES.READY) {
+                hits.incrementAndGet();
+                refill(port);
+                return circ;
+            }
+        }
+
+        misses.incrementAndGet();
+        refill(port);
+        return timedBuild(port);
+    }
+
+    /**
+     * Gives the pool a READY circuit built elsewhere, e.g. the loser of a CircuitRacer race
+     *
+     * @param port Exit port the circuit's exit accepts
+     * @param circ Circuit
+     * @return true if the pool took it, false if it isn't READY or the pool already holds enough for port
+     */
+    public boolean offer(int port, TorCircuit circ) {
+        ConcurrentLinkedQueue<TorCircuit> queue = getQueue(port);
+        if (stopped || circ.state != TorCircuit.STATES.READY || queue.size() >= circuitsPerPort)
+            return false;
+        queue.add(circ);
+        if (stopped && queue.remove(circ))
+            return false; // shut down while it was being added
+        return true;
+    }
+
+    /**
+     * Drops destroyed circuits and starts builds for any predicted port that is short of circuits
+     */
+    public void replenish() {
+        for (ConcurrentLinkedQueue<TorCircuit> queue : ready.values()) {
+            for (Iterator<TorCircuit> it = queue.iterator(); it.hasNext(); ) {
+                if (it.next().state != TorCircuit.STATES.READY)
+                    it.remove();
+            }
+        }
+
+        for (int port : sock.predictedPorts.getPredicted())
+            refill(port);
+    }
+
+    private void refill(final int port) {
+        if (stopped)
+            return;
+        final AtomicInteger inProgress = getBuilding(port);
+        while (true) {
+            int current = inProgress.get();
+            if (getQueue(port).size() + current >= circuitsPerPort)
+                return;
+            if (inProgress.compareAndSet(current, current + 1))
+                break;
+        }
+
+        try {
+            buildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ConcurrentLinkedQueue<TorCircuit> queue = getQueue(port);
+                        queue.add(timedBuild(port));
+                        if (stopped) // shut down during the build, possibly after the queue was drained
+                            drain(queue);
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Background circuit build for port " + port + " failed: " + e);
+                    } finally {
+                        inProgress.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.decrementAndGet(); // shut down since stopped was checked
+        }
+    }
+
+    private TorCircuit timedBuild(int port) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            TorCircuit circ = builder.build(port);
+            lastBuildMillis = System.currentTimeMillis() - start;
+            totalBuildMillis.addAndGet(lastBuildMillis);
+            builds.incrementAndGet();
+            return circ;
+        } catch (IOException | RuntimeException e) {
+            buildFailures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private ConcurrentLinkedQueue<TorCircuit> getQueue(int port) {
+        ConcurrentLinkedQueue<TorCircuit> queue = ready.get(port);
+        if (queue == null) {
+            ready.putIfAbsent(port, new ConcurrentLinkedQueue<TorCircuit>());
+            queue = ready.get(port);
+        }
+        return queue;
+    }
+
+    private AtomicInteger getBuilding(int port) {
+        AtomicInteger count = building.get(port);
+        if (count == null) {
+            building.putIfAbsent(port, new AtomicInteger());
+            count = building.get(port);
+        }
+        return count;
+    }
+
+    /**
+     * @return number of READY circuits held for port
+     */
+    public int getReadyCount(int port) {
+        return getQueue(port).size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return fraction of take() calls served from the pool
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : hits.get() / (double) total;
+    }
+
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+    public long getBuildFailures() {
+        return buildFailures.get();
+    }
+
+    /**
+     * @return mean time taken by successful builds, in milliseconds
+     */
+    public double getAverageBuildMillis() {
+        long n = builds.get();
+        return n == 0 ? 0 : totalBuildMillis.get() / (double) n;
+    }
+
+    public long getLastBuildMillis() {
+        return lastBuildMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitPool{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", hitRate=" + String.format("%.2f", getHitRate()) +
+                ", builds=" + builds +
+                ", buildFailures=" + buildFailures +
+                ", avgBuildMillis=" + String.format("%.1f", getAverageBuildMillis()) +
+                ", lastBuildMillis=" + lastBuildMillis +
+                '}';
+    }
+}
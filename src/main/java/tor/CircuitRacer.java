@@ -0,0 +1,264 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.Futures;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Builds several circuits at once, spread over the guard links, and hands back whichever reaches READY first.  The
+ * time to get a circuit is then the fastest of the candidates rather than a draw from the build time distribution,
+ * which cuts off its long tail at the cost of the extra handshakes.
+ * <p/>
+ * Losers are donated to a CircuitPool if one is set (those still building are left to finish), otherwise they are
+ * destroyed as soon as there is a winner.  Every build that completes is fed to the CircuitBuildTimeout; builds
+ * abandoned because another won are not counted as timeouts.
+ */
+public class CircuitRacer {
+    final static Logger log = LogManager.getLogger();
+
+    private final List<TorSocket> guards;
+    private final CircuitBuildTimeout timeout;
+    private final CircuitBuilder paths;
+    private final int candidates;
+    private volatile CircuitPool pool;
+    private final AtomicInteger nextGuard = new AtomicInteger();
+
+    // statistics
+    private final AtomicLong races = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong donated = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong totalWinMillis = new AtomicLong();
+    private volatile long lastWinMillis = 0;
+
+    /**
+     * @param candidates Circuits built for each race
+     * @param guards     Links to build them on, used in turn
+     */
+    public CircuitRacer(int candidates, TorSocket... guards) {
+        this(Arrays.asList(guards), CircuitBuildTimeout.getDefault(), candidates);
+    }
+
+    /**
+     * @param guards     Links to build on, used in turn
+     * @param timeout    Learns build times, and limits each candidate's build
+     * @param candidates Circuits built for each race
+     */
+    public CircuitRacer(List<TorSocket> guards, CircuitBuildTimeout timeout, int candidates) {
+        if (guards.isEmpty() || candidates < 1)
+            throw new IllegalArgumentException("Need at least one guard and one candidate");
+        this.guards = new ArrayList<>(guards);
+        this.timeout = timeout;
+        this.candidates = candidates;
+        paths = new CircuitBuilder(this.guards.get(0), timeout);
+    }
+
+    /**
+     * @return builder whose flags (and path choice) the candidates' paths follow
+     */
+    public CircuitBuilder getPathBuilder() {
+        return paths;
+    }
+
+    /**
+     * @param pool Where losing circuits go, or null to destroy them
+     */
+    public void setPool(CircuitPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Races circuits, blocking until one is READY
+     *
+     * @param exitPort Port the exits must accept (or 0 to ignore exit policies)
+     * @return READY circuit
+     * @throws IOException if every candidate failed or timed out
+     */
+    public TorCircuit race(int exitPort) throws IOException {
+        try {
+            return raceAsync(exitPort).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TorCircuitException("Interrupted waiting for circuit race");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new TorCircuitException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Chooses the paths and starts the builds.  Onion keys are fetched in the calling thread first so that
+     * descriptor downloads don't count against the builds.
+     *
+     * @param exitPort Port the exits must accept (or 0 to ignore exit policies)
+     * @return future completed with the first circuit to reach READY, or failed once every candidate has failed
+     */
+    public CompletableFuture<TorCircuit> raceAsync(final int exitPort) {
+        final CompletableFuture<TorCircuit> winner = new CompletableFuture<>();
+        final List<TorCircuit> circs = new ArrayList<>();
+        final List<OnionRouter[]> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < candidates; i++) {
+                TorSocket guard = guards.get(Math.abs(nextGuard.getAndIncrement() % guards.size()));
+                OnionRouter path[] = choosePath(guard, exitPort);
+                for (OnionRouter r : path)
+                    r.getOnionKey();
+                circs.add(guard.createCircuit(false));
+                paths.add(path);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (TorCircuit c : circs)
+                c.closed(); // nothing sent yet
+            return Futures.failed(e);
+        }
+
+        races.incrementAndGet();
+        final long limit = timeout.getTimeoutMillis();
+        final long start = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(candidates);
+        final AtomicReference<Throwable> lastError = new AtomicReference<>();
+
+        for (int i = 0; i < candidates; i++) {
+            TorCircuit circ = circs.get(i);
+            circ.setBuildTimeout(limit);
+            circ.buildAsync(paths.get(i)).whenComplete((c, e) -> {
+                long millis = System.currentTimeMillis() - start;
+                if (e == null) {
+                    built.incrementAndGet();
+                    timeout.addBuildTime(millis);
+                    c.setBlocking(true);
+                    if (winner.complete(c)) {
+                        lastWinMillis = millis;
+                        totalWinMillis.addAndGet(millis);
+                        log.debug("Circuit {} won race after {}ms", c.circId, millis);
+                    } else {
+                        lost(exitPort, c);
+                    }
+                } else if (!winner.isDone()) {
+                    if (millis >= limit)
+                        timeout.addTimeout();
+                    lastError.set(e);
+                }
+                if (remaining.decrementAndGet() == 0 && !winner.isDone()) {
+                    failures.incrementAndGet();
+                    Throwable t = lastError.get();
+                    winner.completeExceptionally(new TorCircuitException("All " + candidates + " raced builds failed: "
+                            + (t == null ? "unknown" : t.getMessage())));
+                }
+            });
+        }
+
+        winner.thenAccept(w -> {
+            if (pool != null)
+                return;
+            for (TorCircuit c : circs)
+                if (c != w && c.state != TorCircuit.STATES.READY && !c.isDestroyed())
+                    lost(exitPort, c);
+        });
+        return winner;
+    }
+
+    /**
+     * Chooses the routers after the guard for one candidate.  Override to build over other paths.
+     *
+     * @param guard    Link the candidate will be built on
+     * @param exitPort Port the exit must accept (or 0 to ignore exit policies)
+     * @return middle and exit
+     */
+    protected OnionRouter[] choosePath(TorSocket guard, int exitPort) throws IOException {
+        return new OnionRouter[]{paths.chooseMiddle(), paths.chooseExit(exitPort)};
+    }
+
+    private void lost(int exitPort, TorCircuit circ) {
+        CircuitPool p = pool;
+        if (p != null && p.offer(exitPort, circ)) {
+            donated.incrementAndGet();
+            return;
+        }
+        abandoned.incrementAndGet();
+        CircuitBuilder.destroyQuietly(circ);
+    }
+
+    public long getRaces() {
+        return races.get();
+    }
+
+    /**
+     * @return races in which no candidate reached READY
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return candidates which reached READY, winners or not
+     */
+    public long getBuilt() {
+        return built.get();
+    }
+
+    public long getDonated() {
+        return donated.get();
+    }
+
+    /**
+     * @return losers destroyed, built or not
+     */
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    public double getAverageWinMillis() {
+        long n = races.get() - failures.get();
+        return n <= 0 ? 0 : totalWinMillis.get() / (double) n;
+    }
+
+    public long getLastWinMillis() {
+        return lastWinMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitRacer{" +
+                "candidates=" + candidates +
+                ", guards=" + guards.size() +
+                ", races=" + races +
+                ", failures=" + failures +
+                ", built=" + built +
+                ", donated=" + donated +
+                ", abandoned=" + abandoned +
+                ", avgWinMillis=" + String.format("%.1f", getAverageWinMillis()) +
+                '}';
+    }
+}
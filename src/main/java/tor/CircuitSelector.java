@@ -0,0 +1,115 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands new streams to whichever of a set of built circuits is predicted to complete them first, using each
+ * circuit's passively measured RTT, connect time and throughput (see CircuitStats) and what is already queued on it.
+ * Circuits that haven't been measured yet are chosen first, so that every circuit gets measured without sending
+ * probes.
+ */
+public class CircuitSelector {
+    private final List<TorCircuit> circuits = new CopyOnWriteArrayList<>();
+
+    public CircuitSelector(TorCircuit... circuits) {
+        for (TorCircuit c : circuits)
+            add(c);
+    }
+
+    public void add(TorCircuit circ) {
+        circuits.add(circ);
+    }
+
+    public void remove(TorCircuit circ) {
+        circuits.remove(circ);
+    }
+
+    /**
+     * @return the circuits, dropping any which have been destroyed
+     */
+    public List<TorCircuit> getCircuits() {
+        for (TorCircuit c : circuits)
+            if (c.isDestroyed())
+                circuits.remove(c);
+        return new ArrayList<>(circuits);
+    }
+
+    /**
+     * @param expectedBytes Data the stream is expected to receive
+     * @return READY circuit with the lowest predicted completion time, or null if there is none
+     */
+    public TorCircuit select(long expectedBytes) {
+        return select(getCircuits(), expectedBytes);
+    }
+
+    /**
+     * Opens a stream on the circuit predicted to complete it first
+     *
+     * @param host          Hostname/ip
+     * @param port          Port
+     * @param list          A listener for stream events
+     * @param expectedBytes Data the stream is expected to receive
+     * @return TorStream object
+     * @throws TorCircuitException if no circuit is READY
+     */
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list, long expectedBytes) throws IOException {
+        TorCircuit circ = select(expectedBytes);
+        if (circ == null)
+            throw new TorCircuitException("No circuit ready");
+        return circ.createStream(host, port, list);
+    }
+
+    /**
+     * @param circuits      Candidates
+     * @param expectedBytes Data the stream is expected to receive
+     * @return READY circuit with the lowest predicted completion time, or null if there is none
+     */
+    public static TorCircuit select(Collection<TorCircuit> circuits, long expectedBytes) {
+        TorCircuit best = null;
+        double bestMillis = Double.MAX_VALUE;
+        for (TorCircuit c : circuits) {
+            if (c.state != TorCircuit.STATES.READY || c.conflux != null)
+                continue;
+            if (!c.getStats().isMeasured() && c.streams.isEmpty())
+                return c; // try it out
+            double millis = c.predictCompletionMillis(expectedBytes);
+            if (millis < bestMillis) {
+                best = c;
+                bestMillis = millis;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CircuitSelector{");
+        for (TorCircuit c : circuits)
+            sb.append("\n  ").append(c.circId).append(": ").append(c.getStats());
+        return sb.append('}').toString();
+    }
+}
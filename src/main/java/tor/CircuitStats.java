@@ -0,0 +1,175 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+/**
+ * Rolling performance estimates for one circuit, taken passively from the traffic it carries:
+ * <ul>
+ * <li>circuit RTT, from each DATA cell a SENDME acknowledges to that SENDME</li>
+ * <li>connect time, from BEGIN to CONNECTED (a round trip plus the exit's connection to the destination)</li>
+ * <li>delivered throughput, measured while data is arriving so an idle circuit keeps its last estimate</li>
+ * </ul>
+ * Averages are smoothed as TCP does (RFC 6298).  Thread safe.
+ */
+public class CircuitStats {
+    // weight of a new sample in the smoothed averages
+    public static double ALPHA = 0.125;
+    public static double BETA = 0.25;
+    // throughput samples cover at least this long, and a gap longer than IDLE_MILLIS starts a new busy period
+    public static long THROUGHPUT_SAMPLE_MILLIS = 250;
+    public static long IDLE_MILLIS = 1000;
+    // assumed before anything has been measured
+    public static double DEFAULT_RTT_MILLIS = 500;
+
+    private double rtt = 0, rttVar = 0, minRtt = 0;
+    private double connect = 0;
+    private long rttSamples = 0, connectSamples = 0;
+    private double throughput = 0; // bytes per second
+    private long bytesReceived = 0, bytesSent = 0;
+    private long busyStart = 0, busyBytes = 0, lastArrival = 0;
+
+    /**
+     * Records the time between sending a DATA cell and the SENDME acknowledging it
+     */
+    public synchronized void rttSample(double millis) {
+        if (rttSamples++ == 0) {
+            rtt = millis;
+            rttVar = millis / 2;
+        } else {
+            rttVar = (1 - BETA) * rttVar + BETA * Math.abs(rtt - millis);
+            rtt = (1 - ALPHA) * rtt + ALPHA * millis;
+        }
+        if (minRtt == 0 || millis < minRtt)
+            minRtt = millis;
+    }
+
+    /**
+     * Records the time between sending BEGIN and receiving CONNECTED
+     */
+    public synchronized void connectSample(double millis) {
+        connect = connectSamples++ == 0 ? millis : (1 - ALPHA) * connect + ALPHA * millis;
+    }
+
+    /**
+     * Records stream data arriving on the circuit
+     */
+    public synchronized void received(int bytes) {
+        long now = System.nanoTime();
+        bytesReceived += bytes;
+        if (busyStart == 0 || now - lastArrival > IDLE_MILLIS * 1000000) {
+            busyStart = now;
+            busyBytes = 0;
+        }
+        busyBytes += bytes;
+        lastArrival = now;
+
+        long elapsed = now - busyStart;
+        if (elapsed >= THROUGHPUT_SAMPLE_MILLIS * 1000000) {
+            double rate = busyBytes * 1e9 / elapsed;
+            throughput = throughput == 0 ? rate : (1 - ALPHA) * throughput + ALPHA * rate;
+            busyStart = now;
+            busyBytes = 0;
+        }
+    }
+
+    public synchronized void sent(int bytes) {
+        bytesSent += bytes;
+    }
+
+    /**
+     * Predicts how long a new stream on the circuit would take to connect and receive some data, behind the data
+     * already queued on it.  Without a throughput measurement the rate is estimated as a window of cells per RTT.
+     *
+     * @param bytes       Data the stream is expected to receive
+     * @param queuedBytes Data already waiting to be sent on the circuit
+     * @param windowCells Cells the circuit may have in flight
+     * @return predicted milliseconds to completion
+     */
+    public synchronized double predictCompletionMillis(long bytes, long queuedBytes, int windowCells) {
+        double roundTrip = rttSamples > 0 ? rtt : connectSamples > 0 ? connect : DEFAULT_RTT_MILLIS;
+        double setup = connectSamples > 0 ? connect : roundTrip;
+        double rate = throughput > 0 ? throughput : windowCells * 498.0 / (roundTrip / 1000);
+        return setup + (bytes + queuedBytes) * 1000.0 / rate;
+    }
+
+    /**
+     * @return smoothed circuit RTT in milliseconds, 0 before the first SENDME
+     */
+    public synchronized double getRttMillis() {
+        return rtt;
+    }
+
+    public synchronized double getRttVarMillis() {
+        return rttVar;
+    }
+
+    public synchronized double getMinRttMillis() {
+        return minRtt;
+    }
+
+    /**
+     * @return smoothed BEGIN to CONNECTED time in milliseconds, 0 before the first stream connects
+     */
+    public synchronized double getConnectMillis() {
+        return connect;
+    }
+
+    public synchronized long getRttSamples() {
+        return rttSamples;
+    }
+
+    public synchronized long getConnectSamples() {
+        return connectSamples;
+    }
+
+    /**
+     * @return smoothed delivered throughput in bytes per second, 0 until enough data has arrived
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return true once there is an RTT or connect time measurement
+     */
+    public synchronized boolean isMeasured() {
+        return rttSamples > 0 || connectSamples > 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitStats{" +
+                "rtt=" + String.format("%.1f", rtt) +
+                ", rttVar=" + String.format("%.1f", rttVar) +
+                ", minRtt=" + String.format("%.1f", minRtt) +
+                ", connect=" + String.format("%.1f", connect) +
+                ", throughputKBps=" + String.format("%.1f", throughput / 1024) +
+                ", received=" + bytesReceived +
+                ", sent=" + bytesSent +
+                '}';
+    }
+}
@@ -0,0 +1,369 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a stock of two hop circuits (the socket's first hop and a middle) READY in the background.  Only the exit
+ * depends on the port, so take() just extends a stub to a suitable exit: one handshake round trip instead of three,
+ * for any port, where CircuitPool needs a stock per predicted port.
+ * <p/>
+ * The stock follows demand: by Little's law, covering takes that arrive at rate R while a stub takes T to build needs
+ * R*T stubs.  R is the larger of the last interval's take rate and its moving average, so a burst raises the stock
+ * straight away and it drains back to minStubs once demand stops.
+ * <p/>
+ * Usage:
+ * <pre>
+ *     CircuitStubPool stubs = new CircuitStubPool(sock, 1, 8);
+ *     stubs.start();
+ *     TorCircuit circ = stubs.take(443);
+ * </pre>
+ */
+public class CircuitStubPool {
+    final static Logger log = LogManager.getLogger();
+
+    public static long REPLENISH_INTERVAL_MILLIS = 1000;
+    // weight of the latest interval in the moving average of demand
+    public static double DEMAND_ALPHA = 0.25;
+    // stubs unused for this long are torn down and replaced
+    public static long MAX_STUB_AGE_MILLIS = 30 * 60 * 1000;
+
+    TorSocket sock;
+    CircuitBuildTimeout timeout;
+    private final CircuitBuilder paths;
+    int minStubs, maxStubs;
+
+    private final ConcurrentLinkedQueue<Stub> stubs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger building = new AtomicInteger();
+
+    private final ExecutorService buildExecutor;
+    private final ScheduledExecutorService replenishTimer;
+
+    // demand, in takes per second
+    private final AtomicLong takesThisInterval = new AtomicLong();
+    private volatile long intervalStart = System.currentTimeMillis();
+    private volatile double demand = 0, lastDemand = 0;
+    private volatile double stubBuildMillis = 0;
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stubBuilds = new AtomicLong();
+    private final AtomicLong stubFailures = new AtomicLong();
+    private final AtomicLong extendFailures = new AtomicLong();
+    private final AtomicLong extends_ = new AtomicLong();
+    private final AtomicLong totalExtendMillis = new AtomicLong();
+
+    private static class Stub {
+        final TorCircuit circ;
+        final long built = System.currentTimeMillis();
+
+        Stub(TorCircuit circ) {
+            this.circ = circ;
+        }
+    }
+
+    /**
+     * @param sock     Socket (i.e. guard) to build stubs on
+     * @param minStubs Stubs kept even without demand
+     * @param maxStubs Most stubs kept however high demand is
+     */
+    public CircuitStubPool(TorSocket sock, int minStubs, int maxStubs) {
+        this(sock, CircuitBuildTimeout.getDefault(), minStubs, maxStubs, 2);
+    }
+
+    /**
+     * @param sock         Socket (i.e. guard) to build stubs on
+     * @param timeout      Limits each build and extension
+     * @param minStubs     Stubs kept even without demand
+     * @param maxStubs     Most stubs kept however high demand is
+     * @param buildThreads Maximum number of concurrent background builds
+     */
+    public CircuitStubPool(TorSocket sock, CircuitBuildTimeout timeout, int minStubs, int maxStubs, int buildThreads) {
+        this.sock = sock;
+        this.timeout = timeout;
+        this.minStubs = minStubs;
+        this.maxStubs = Math.max(minStubs, maxStubs);
+        paths = new CircuitBuilder(sock, timeout);
+
+        ThreadFactory daemon = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CircuitStubPool");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        buildExecutor = Executors.newFixedThreadPool(buildThreads, daemon);
+        replenishTimer = Executors.newSingleThreadScheduledExecutor(daemon);
+    }
+
+    /**
+     * Starts background building
+     */
+    public void start() {
+        replenishTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                replenish();
+            }
+        }, 0, REPLENISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        replenishTimer.shutdownNow();
+        buildExecutor.shutdownNow();
+        Stub s;
+        while ((s = stubs.poll()) != null)
+            CircuitBuilder.destroyQuietly(s.circ);
+    }
+
+    /**
+     * Extends a stub to an exit accepting port.  If no stub is ready one is built in the calling thread.
+     *
+     * @param port Exit port the circuit will be used for (or 0 to ignore exit policies)
+     * @return READY three hop circuit, not owned by the pool
+     * @throws IOException if the extension (or build) failed
+     */
+    public TorCircuit take(int port) throws IOException {
+        takesThisInterval.incrementAndGet();
+        Stub s;
+        while ((s = stubs.poll()) != null) {
+            if (s.circ.state != TorCircuit.STATES.READY) {
+                CircuitBuilder.destroyQuietly(s.circ);
+                continue;
+            }
+            hits.incrementAndGet();
+            refill();
+            try {
+                return extend(s.circ, port);
+            } catch (IOException e) {
+                log.debug("Extending stub {} failed: {}", s.circ.circId, e.getMessage());
+                extendFailures.incrementAndGet(); // try the next stub
+            }
+        }
+
+        misses.incrementAndGet();
+        refill();
+        return extend(buildStub(), port);
+    }
+
+    /**
+     * Updates the demand estimate, drops dead or old stubs and starts builds until the stock reaches its target
+     */
+    public void replenish() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - intervalStart;
+        if (elapsed > 0) {
+            lastDemand = takesThisInterval.getAndSet(0) * 1000.0 / elapsed;
+            demand = DEMAND_ALPHA * lastDemand + (1 - DEMAND_ALPHA) * demand;
+            intervalStart = now;
+        }
+
+        for (Iterator<Stub> it = stubs.iterator(); it.hasNext(); ) {
+            Stub s = it.next();
+            if (s.circ.state != TorCircuit.STATES.READY || now - s.built > MAX_STUB_AGE_MILLIS) {
+                it.remove();
+                CircuitBuilder.destroyQuietly(s.circ);
+            }
+        }
+
+        // demand has fallen: let the surplus go
+        int target = getTargetStubs();
+        while (stubs.size() > target) {
+            Stub s = stubs.poll();
+            if (s == null)
+                break;
+            CircuitBuilder.destroyQuietly(s.circ);
+        }
+        refill();
+    }
+
+    /**
+     * @return stubs the pool is aiming to keep READY
+     */
+    public int getTargetStubs() {
+        double rate = Math.max(demand, lastDemand);
+        double seconds = (stubBuildMillis > 0 ? stubBuildMillis : timeout.getTimeoutMillis() / 2.0) / 1000;
+        int target = (int) Math.ceil(rate * seconds);
+        return Math.max(minStubs, Math.min(maxStubs, target));
+    }
+
+    private void refill() {
+        while (true) {
+            int current = building.get();
+            if (stubs.size() + current >= getTargetStubs())
+                return;
+            if (building.compareAndSet(current, current + 1))
+                break;
+        }
+
+        buildExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stubs.add(new Stub(buildStub()));
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Background stub build failed: " + e);
+                } finally {
+                    building.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private TorCircuit buildStub() throws IOException {
+        OnionRouter middle = chooseMiddle();
+        middle.getOnionKey();
+
+        long limit = timeout.getTimeoutMillis();
+        TorCircuit circ = sock.createCircuit(false);
+        long start = System.currentTimeMillis();
+        try {
+            circ.create();
+            circ.waitForState(TorCircuit.STATES.READY, false, limit);
+            circ.extend(middle);
+            circ.waitForState(TorCircuit.STATES.READY, false, Math.max(1, limit - (System.currentTimeMillis() - start)));
+        } catch (IOException | RuntimeException e) {
+            stubFailures.incrementAndGet();
+            CircuitBuilder.destroyQuietly(circ);
+            throw e;
+        }
+
+        long millis = System.currentTimeMillis() - start;
+        stubBuildMillis = stubBuilds.getAndIncrement() == 0 ? millis : (1 - DEMAND_ALPHA) * stubBuildMillis + DEMAND_ALPHA * millis;
+        return circ;
+    }
+
+    private TorCircuit extend(TorCircuit circ, int port) throws IOException {
+        OnionRouter middle = circ.getLastHop().router;
+        OnionRouter exit = null;
+        for (int i = 0; i < 10 && (exit == null || exit == middle || exit == sock.firstHop); i++)
+            exit = chooseExit(port);
+        if (exit == middle || exit == sock.firstHop)
+            throw new TorCircuitException("No exit for port " + port + " distinct from the stub's hops");
+
+        long start = System.currentTimeMillis();
+        try {
+            exit.getOnionKey();
+            circ.extend(exit);
+            circ.waitForState(TorCircuit.STATES.READY, false, timeout.getTimeoutMillis());
+        } catch (IOException | RuntimeException e) {
+            CircuitBuilder.destroyQuietly(circ);
+            throw e;
+        }
+        extends_.incrementAndGet();
+        totalExtendMillis.addAndGet(System.currentTimeMillis() - start);
+        circ.setBlocking(true);
+        return circ;
+    }
+
+    /**
+     * @return middle for a new stub.  Override to build over other routers.
+     */
+    protected OnionRouter chooseMiddle() throws IOException {
+        return paths.chooseMiddle();
+    }
+
+    /**
+     * @param port Port the exit must accept (or 0 to ignore exit policies)
+     * @return exit to extend a stub to.  Override to build over other routers.
+     */
+    protected OnionRouter chooseExit(int port) throws IOException {
+        return paths.chooseExit(port);
+    }
+
+    /**
+     * @return builder whose flags (and path choice) stubs and their exits follow
+     */
+    public CircuitBuilder getPathBuilder() {
+        return paths;
+    }
+
+    /**
+     * @return number of READY stubs held
+     */
+    public int getStubCount() {
+        return stubs.size();
+    }
+
+    /**
+     * @return takes per second, as a moving average
+     */
+    public double getDemand() {
+        return demand;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStubBuilds() {
+        return stubBuilds.get();
+    }
+
+    public long getStubFailures() {
+        return stubFailures.get();
+    }
+
+    public long getExtendFailures() {
+        return extendFailures.get();
+    }
+
+    /**
+     * @return average time to extend a stub to its exit
+     */
+    public double getAverageExtendMillis() {
+        long n = extends_.get();
+        return n == 0 ? 0 : totalExtendMillis.get() / (double) n;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitStubPool{" +
+                "stubs=" + stubs.size() +
+                ", target=" + getTargetStubs() +
+                ", demand=" + String.format("%.2f", demand) +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", stubBuilds=" + stubBuilds +
+                ", stubBuildMillis=" + String.format("%.1f", stubBuildMillis) +
+                ", avgExtendMillis=" + String.format("%.1f", getAverageExtendMillis()) +
+                ", extendFailures=" + extendFailures +
+                '}';
+    }
+}
@@ -0,0 +1,468 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.Futures;
+import tor.util.IdAllocator;
+import tor.util.TorCircuitException;
+import tor.util.UniqueQueue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Conflux (proposal 329): several circuits to the same exit linked into one set, with streams multiplexed across
+ * them.  Each stream cell (BEGIN, CONNECTED, DATA, END) carries an implicit sequence number; the sender picks a leg
+ * per cell and a SWITCH cell tells the other end how far the sequence has moved on when it changes leg.  The
+ * receiver puts cells back in order before handing them to the streams.
+ * <p/>
+ * Legs must have negotiated congestion control, which gives the RTT estimates and windows the scheduler uses.  Relays
+ * only offer that through the ntor v3 handshake, which isn't implemented (see TorSocket.negotiateSendmeInc()), so for
+ * now no circuit over a real link can be a leg and the constructor refuses them; sets can only be made over links
+ * which agree congestion control some other way, such as the stand-in relay used by the tests.  There is no
+ * retransmission, so losing a leg closes the set and its streams.
+ */
+public class ConfluxSet {
+    final static Logger log = LogManager.getLogger();
+
+    public enum Policy {
+        LOWEST_RTT,  // fastest leg with room in its window - minimises latency
+        MOST_WINDOW  // leg with the most room - spreads bulk transfers
+    }
+
+    public static Policy DEFAULT_POLICY = Policy.LOWEST_RTT;
+    // out of order cells held before we give up on the set
+    public static int MAX_OUT_OF_ORDER = 4096;
+    public static long LINK_TIMEOUT_MILLIS = 30000;
+
+    static class Leg {
+        final TorCircuit circ;
+        long lastSeqSent = 0, lastSeqRecv = 0;
+        long linkSentNanos;
+        double linkRttMillis = 0;
+        boolean linked = false;
+
+        Leg(TorCircuit circ) {
+            this.circ = circ;
+        }
+
+        // smoothed RTT once SENDMEs have come back, the LINK round trip until then
+        double rttMillis() {
+            CongestionControl cc = circ.getCongestionControl();
+            return cc != null && cc.getRttMillis() > 0 ? cc.getRttMillis() : linkRttMillis;
+        }
+
+        int freeWindow() {
+            CongestionControl cc = circ.getCongestionControl();
+            return cc.getCwnd() - cc.getInflight();
+        }
+    }
+
+    // a sequenced cell that arrived ahead of its turn, its data a slice of the decrypted cell
+    private static class Held {
+        final TorCircuit circ;
+        final int cmdId, streamId, fromHop;
+        final byte cell[];
+        final int off, len;
+
+        Held(TorCircuit circ, int cmdId, int streamId, int fromHop, byte cell[], int off, int len) {
+            this.circ = circ;
+            this.cmdId = cmdId;
+            this.streamId = streamId;
+            this.fromHop = fromHop;
+            this.cell = cell;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+    final byte nonce[] = new byte[32];
+    final List<Leg> legs = new CopyOnWriteArrayList<>();
+    final IdAllocator streamIds = new IdAllocator(1, 0xFFFF);
+    final ConcurrentSkipListMap<Integer, TorStream> streams = new ConcurrentSkipListMap<>();
+    private final UniqueQueue<TorStream> streamsSending = new UniqueQueue<>();
+    private final TreeMap<Long, Held> outOfOrder = new TreeMap<>();
+    private final CompletableFuture<ConfluxSet> linkedFuture = new CompletableFuture<>();
+    private Policy policy = DEFAULT_POLICY;
+    private long seqSent = 0, seqDelivered = 0;
+    private long switches = 0, reordered = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param circuits READY circuits with congestion control, all ending at the same exit
+     * @throws TorCircuitException if a circuit can't be a leg, which for now includes every circuit over a real link
+     */
+    public ConfluxSet(TorCircuit... circuits) throws TorCircuitException {
+        if (circuits.length < 1)
+            throw new TorCircuitException("Conflux set needs at least one circuit");
+        String exit = null;
+        for (TorCircuit circ : circuits) {
+            if (circ.isDestroyed() || circ.getLastHop() == null)
+                throw new TorCircuitException("Conflux leg " + circ.circId + " isn't built");
+            if (!circ.usesCongestionControl())
+                throw new TorCircuitException("Conflux leg " + circ.circId + " has no congestion control, which needs ntor v3 with real relays");
+            if (circ.conflux != null || !circ.streams.isEmpty())
+                throw new TorCircuitException("Circuit " + circ.circId + " is already in use");
+            String id = circ.getLastHop().router.identityhash;
+            if (exit != null && !exit.equalsIgnoreCase(id))
+                throw new TorCircuitException("Conflux legs must share an exit");
+            exit = id;
+        }
+
+        TorCrypto.rnd.nextBytes(nonce);
+        for (TorCircuit circ : circuits) {
+            circ.conflux = this;
+            legs.add(new Leg(circ));
+        }
+    }
+
+    /**
+     * Sends LINK on every leg.  The future completes once each has been LINKED, timing how long that took.
+     *
+     * @param timeoutMillis Timeout, 0 for none
+     * @return future completed with this set
+     */
+    public CompletableFuture<ConfluxSet> linkAsync(long timeoutMillis) {
+        try {
+            for (Leg leg : legs) {
+                ByteBuffer buf = ByteBuffer.allocate(1 + nonce.length + 8 + 8 + 1);
+                buf.put((byte) 1); // version
+                buf.put(nonce);
+                buf.putLong(0); // last sequence numbers sent and received - only used when relinking
+                buf.putLong(0);
+                buf.put((byte) policy.ordinal());
+                synchronized (this) {
+                    leg.linkSentNanos = System.nanoTime();
+                }
+                leg.circ.send(buf.array(), TorCircuit.RELAY_CONFLUX_LINK, false, (short) 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+        return Futures.withTimeout(linkedFuture, timeoutMillis, "Timed out linking conflux set");
+    }
+
+    /**
+     * Blocking linkAsync()
+     */
+    public void link() throws IOException {
+        try {
+            linkAsync(LINK_TIMEOUT_MILLIS).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted linking conflux set");
+        } catch (ExecutionException e) {
+            close();
+            throw new TorCircuitException("Conflux set failed to link: " + e.getCause());
+        }
+    }
+
+    synchronized void linked(TorCircuit circ) throws IOException {
+        Leg leg = legFor(circ);
+        if (leg == null || leg.linked)
+            return;
+        leg.linked = true;
+        leg.linkRttMillis = (System.nanoTime() - leg.linkSentNanos) / 1e6;
+        circ.send(null, TorCircuit.RELAY_CONFLUX_LINKED_ACK, false, (short) 0);
+        log.debug("Conflux leg " + circ.circId + " linked, RTT " + String.format("%.1f", leg.linkRttMillis) + "ms");
+
+        for (Leg l : legs)
+            if (!l.linked)
+                return;
+        linkedFuture.complete(this);
+    }
+
+    /**
+     * Opens a stream over the set.  It has one ID across every leg, and its cells go over whichever leg the
+     * scheduler picks.
+     *
+     * @param host Hostname/ip
+     * @param port Port
+     * @param list A listener for stream events
+     * @return TorStream object
+     */
+    public synchronized TorStream createStream(String host, int port, TorStream.TorStreamListener list) throws IOException {
+        if (closed)
+            throw new TorCircuitException("Conflux set is closed");
+
+        int stid = streamIds.allocate();
+        if (stid == -1)
+            throw new TorCircuitException("No free stream IDs on conflux set");
+        Leg leg = pickLeg();
+        TorStream st = new TorStream(stid, (leg != null ? leg : legs.get(0)).circ, list);
+        st.conflux = this;
+        // register before sending so a quick CONNECTED isn't dropped
+        streams.put(stid, st);
+        for (Leg l : legs)
+            l.circ.streams.put(stid, st);
+
+        legs.get(0).circ.sock.predictedPorts.record(port);
+        st.beginSentNanos = System.nanoTime();
+        sendSequenced(leg != null ? leg : legs.get(0), TorCircuit.beginPayload(host, port), TorCircuit.RELAY_BEGIN, stid);
+        return st;
+    }
+
+    /**
+     * @return true for the relay commands carried in the set's sequence
+     */
+    static boolean isSequenced(int cmdId) {
+        switch (cmdId) {
+            case TorCircuit.RELAY_BEGIN:
+            case TorCircuit.RELAY_CONNECTED:
+            case TorCircuit.RELAY_DATA:
+            case TorCircuit.RELAY_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // choose a leg for the next cell, null if none has room
+    private Leg pickLeg() {
+        Leg best = null;
+        for (Leg leg : legs) {
+            synchronized (leg.circ) {
+                if (!leg.linked || leg.circ.isDestroyed() || !leg.circ.canPackage())
+                    continue;
+            }
+            if (best == null)
+                best = leg;
+            else if (policy == Policy.MOST_WINDOW || leg.rttMillis() == best.rttMillis()) {
+                if (leg.freeWindow() > best.freeWindow())
+                    best = leg;
+            } else if (leg.rttMillis() < best.rttMillis())
+                best = leg;
+        }
+        return best;
+    }
+
+    private void sendSequenced(Leg leg, byte payload[], int cmdId, int streamId) throws IOException {
+        synchronized (leg.circ) {
+            if (leg.lastSeqSent != seqSent) {
+                ByteBuffer sw = ByteBuffer.allocate(4);
+                sw.putInt((int) (seqSent - leg.lastSeqSent));
+                leg.circ.send(sw.array(), TorCircuit.RELAY_CONFLUX_SWITCH, false, (short) 0);
+                switches++;
+            }
+            leg.circ.send(payload, cmdId, false, (short) streamId);
+            leg.lastSeqSent = ++seqSent;
+        }
+    }
+
+    synchronized void streamReady(TorStream st) throws IOException {
+        streamsSending.add(st);
+        flush();
+    }
+
+    /**
+     * Outbound scheduler for the set.  Like TorCircuit.flushStreams(), but each cell goes to the leg chosen by the
+     * policy; when no leg has room everything waits for the next SENDME on any of them.
+     */
+    synchronized void flush() throws IOException {
+        while (!closed && !streamsSending.isEmpty()) {
+            Leg leg = pickLeg();
+            if (leg == null)
+                return;
+
+            TorStream st = streamsSending.poll();
+            if (st.xoffReceived)
+                continue; // requeued by its XON
+
+            byte data[] = st.pollPending();
+            if (data != null) {
+                sendSequenced(leg, data, TorCircuit.RELAY_DATA, st.streamId);
+                st.cellsSent++;
+                st.bytesSent += data.length;
+            }
+
+            if (st.hasPending())
+                streamsSending.add(st);
+            else if (st.endQueued)
+                sendEnd(st, leg);
+        }
+    }
+
+    synchronized void endStream(TorStream st) throws IOException {
+        if (st.hasPending() && !closed) {
+            st.endQueued = true;
+            streamsSending.add(st);
+            flush();
+            return;
+        }
+        Leg leg = pickLeg();
+        sendEnd(st, leg != null ? leg : firstLiveLeg());
+    }
+
+    private void sendEnd(TorStream st, Leg leg) throws IOException {
+        removeStream(st);
+        // END is sequenced, so it can't overtake the stream's data
+        if (!closed && leg != null)
+            sendSequenced(leg, new byte[]{6}, TorCircuit.RELAY_END, st.streamId);
+    }
+
+    private Leg firstLiveLeg() {
+        for (Leg leg : legs)
+            if (!leg.circ.isDestroyed())
+                return leg;
+        return null;
+    }
+
+    synchronized void removeStream(TorStream st) {
+        streamsSending.remove(st);
+        st.discardPending();
+        if (streams.remove(st.streamId, st)) {
+            for (Leg leg : legs)
+                leg.circ.streams.remove(st.streamId, st);
+            streamIds.free(st.streamId);
+        }
+    }
+
+    /**
+     * Handles a SWITCH: the next cell on this leg is further along the sequence than the last one
+     */
+    synchronized void switched(TorCircuit circ, byte payload[]) {
+        Leg leg = legFor(circ);
+        if (leg != null && payload.length >= 4)
+            leg.lastSeqRecv += ByteBuffer.wrap(payload).getInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Takes a sequenced cell from a leg, acting on it and any cells it was holding up once they're in order
+     */
+    synchronized boolean received(TorCircuit circ, int cmdId, int streamId, int fromHop, byte cell[], int off, int len) throws IOException {
+        Leg leg = legFor(circ);
+        if (leg == null || closed)
+            return false;
+
+        long seq = ++leg.lastSeqRecv;
+        if (seq <= seqDelivered) {
+            log.warn("Conflux cell " + seq + " already delivered - closing set");
+            close();
+            return false;
+        }
+        if (seq != seqDelivered + 1) {
+            outOfOrder.put(seq, new Held(circ, cmdId, streamId, fromHop, cell, off, len));
+            reordered++;
+            if (outOfOrder.size() > MAX_OUT_OF_ORDER) {
+                log.warn("Conflux set holding " + outOfOrder.size() + " cells out of order - closing set");
+                close();
+            }
+            return true;
+        }
+
+        seqDelivered++;
+        boolean handled = circ.dispatchRelayCell(cmdId, streamId, fromHop, cell, off, len);
+        Held next;
+        while (!outOfOrder.isEmpty() && (next = outOfOrder.remove(seqDelivered + 1)) != null) {
+            seqDelivered++;
+            next.circ.dispatchRelayCell(next.cmdId, next.streamId, next.fromHop, next.cell, next.off, next.len);
+        }
+        return handled;
+    }
+
+    private Leg legFor(TorCircuit circ) {
+        for (Leg leg : legs)
+            if (leg.circ == circ)
+                return leg;
+        return null;
+    }
+
+    /**
+     * A leg has been destroyed.  Cells in flight on it can't be recovered, so the rest of the set goes too.
+     */
+    synchronized void legClosed(TorCircuit circ) {
+        if (closed)
+            return;
+        log.info("Conflux leg " + circ.circId + " closed - closing set");
+        close();
+    }
+
+    /**
+     * Closes the set, destroying every leg and disconnecting its streams
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        linkedFuture.completeExceptionally(new TorCircuitException("Conflux set closed"));
+        for (TorStream st : streams.values()) {
+            st.discardPending();
+            st.notifyDisconnect();
+        }
+        for (TorStream st : new ArrayList<>(streams.values()))
+            removeStream(st);
+        streamsSending.clear();
+        outOfOrder.clear();
+        for (Leg leg : legs) {
+            try {
+                leg.circ.destroy();
+            } catch (IOException | RuntimeException e) {
+                log.debug("Failed to destroy conflux leg " + leg.circ.circId + ": " + e);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public List<TorCircuit> getLegs() {
+        List<TorCircuit> l = new ArrayList<>();
+        for (Leg leg : legs)
+            l.add(leg.circ);
+        return l;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return number of times the sending side moved to a different leg
+     */
+    public synchronized long getSwitches() {
+        return switches;
+    }
+
+    /**
+     * @return number of received cells that arrived ahead of their turn
+     */
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("ConfluxSet{legs=[");
+        for (Leg leg : legs)
+            sb.append(leg.circ.circId).append(String.format(":%.1fms ", leg.rttMillis()));
+        return sb.append("], sent=").append(seqSent).append(", delivered=").append(seqDelivered)
+                .append(", switches=").append(switches).append(", reordered=").append(reordered).append('}').toString();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sender side of TOR Vegas congestion control (proposal 324) for one circuit.  Replaces the fixed circuit package
+ * window: DATA cells may be sent while fewer than cwnd are unacknowledged, and every SENDME (one per SENDME_INC cells)
+ * gives an RTT sample which is used to grow or shrink cwnd according to the estimated queue along the path.
+ * <p/>
+ * A hop uses it if TorSocket.negotiateSendmeInc() agrees an increment when the hop is added.  Relays only offer it
+ * through the ntor v3 handshake, which isn't implemented, so for now that is only the case over links which override
+ * it, such as the stand-in relay used by the tests; other circuits keep fixed windows.
+ * <p/>
+ * The constants are tor's consensus defaults for exit circuits.  Not thread safe - callers synchronise.
+ */
+public class CongestionControl {
+    public static int SENDME_INC = 31;
+    public static int CWND_INIT = 124;
+    public static int CWND_MIN = 124;
+    public static int CWND_MAX = Integer.MAX_VALUE;
+    public static int CWND_INC = 31;
+    // slow start grows by SENDME_INC per SENDME up to this, then more slowly (RFC 3742)
+    public static int SS_CAP = 600;
+    public static int SS_MAX = 5000;
+    // queue thresholds, in cells
+    public static int VEGAS_ALPHA = 186;
+    public static int VEGAS_BETA = 248;
+    public static int VEGAS_GAMMA = 186;
+    public static int VEGAS_DELTA = 310;
+    // maximum number of RTT samples averaged
+    public static int EWMA_MAX = 10;
+
+    // whether congestion control is used with hops that support it
+    public static boolean ENABLED = true;
+
+    final int sendmeInc;
+    int cwnd = CWND_INIT;
+    int inflight = 0;
+    boolean slowStart = true;
+    long minRttMicros = 0, ewmaRttMicros = 0;
+    private long cellsSent = 0;
+    private boolean cwndFull = false;
+    private int acksUntilUpdate = 0;
+    // send time of every SENDME_INC'th cell, oldest first
+    private ArrayDeque<Long> sendTimes = new ArrayDeque<>();
+
+    public CongestionControl(int sendmeInc) {
+        this.sendmeInc = sendmeInc;
+    }
+
+    /**
+     * @return true if the congestion window allows another DATA cell
+     */
+    public boolean canSend() {
+        return inflight < cwnd;
+    }
+
+    /**
+     * Records a DATA cell sent
+     *
+     * @return true if this cell will be acknowledged by a SENDME, i.e. its digest should be remembered
+     */
+    public boolean dataSent() {
+        inflight++;
+        if (inflight + sendmeInc >= cwnd)
+            cwndFull = true;
+        if (++cellsSent % sendmeInc != 0)
+            return false;
+        sendTimes.add(System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Handles a SENDME acknowledging sendmeInc cells and updates cwnd
+     */
+    public void sendmeReceived() {
+        Long sent = sendTimes.poll();
+        inflight = Math.max(0, inflight - sendmeInc);
+        if (sent == null)
+            return;
+
+        long rtt = Math.max(1, (System.nanoTime() - sent) / 1000);
+        int n = Math.max(2, Math.min(EWMA_MAX, cwnd / sendmeInc));
+        ewmaRttMicros = ewmaRttMicros == 0 ? rtt : (2 * rtt + (n - 1) * ewmaRttMicros) / (n + 1);
+        if (minRttMicros == 0 || ewmaRttMicros < minRttMicros)
+            minRttMicros = ewmaRttMicros;
+
+        // cwnd is adjusted every SENDME in slow start, then once per cwnd of acknowledgements
+        if (!slowStart && --acksUntilUpdate > 0)
+            return;
+
+        long bdp = cwnd * minRttMicros / ewmaRttMicros;
+        long queue = cwnd - bdp;
+        long next = cwnd;
+
+        if (slowStart) {
+            if (queue < VEGAS_GAMMA) {
+                if (cwndFull)
+                    next += cwnd <= SS_CAP ? CWND_INC : Math.max(1, CWND_INC * (SS_CAP / 2) / cwnd);
+            } else {
+                next = bdp + VEGAS_GAMMA;
+                slowStart = false;
+            }
+            if (next >= SS_MAX) {
+                next = SS_MAX;
+                slowStart = false;
+            }
+        } else {
+            if (queue > VEGAS_DELTA)
+                next = bdp + VEGAS_DELTA - CWND_INC;
+            else if (queue > VEGAS_BETA)
+                next -= CWND_INC;
+            else if (queue < VEGAS_ALPHA && cwndFull)
+                next += CWND_INC;
+        }
+
+        cwnd = (int) Math.max(CWND_MIN, Math.min(CWND_MAX, next));
+        cwndFull = inflight + sendmeInc >= cwnd;
+        acksUntilUpdate = Math.max(1, (cwnd + sendmeInc / 2) / sendmeInc);
+    }
+
+    public int getCwnd() {
+        return cwnd;
+    }
+
+    public int getInflight() {
+        return inflight;
+    }
+
+    public boolean inSlowStart() {
+        return slowStart;
+    }
+
+    /**
+     * @return smoothed RTT in milliseconds, 0 before the first SENDME
+     */
+    public double getRttMillis() {
+        return ewmaRttMicros / 1000.0;
+    }
+
+    public double getMinRttMillis() {
+        return minRttMicros / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "CongestionControl{" +
+                "cwnd=" + cwnd +
+                ", inflight=" + inflight +
+                ", slowStart=" + slowStart +
+                ", rtt=" + String.format("%.1f", getRttMillis()) +
+                ", minRtt=" + String.format("%.1f", getMinRttMillis()) +
+                '}';
+    }
+}
@@ -21,9 +21,11 @@ package tor;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import tor.util.AliasSampler;
 import tor.util.TorDocumentParser;
 
 import java.io.*;
@@ -32,7 +34,9 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.InflaterInputStream;
 
 public class Consensus {
@@ -41,11 +45,19 @@ public class Consensus {
     // The maximum number of connection tries to directory caches before falling back to authorities
     // TODO: we could do this much better with a setter method - on the class or object?
     public static int MAX_TRIES = 10;
+    // connect and read timeout for each directory download
+    public static int DIRECTORY_TIMEOUT_MILLIS = 10000;
     private static Consensus consensus = null;
     /**
      * A map containing the parsed consensus (String is identity as a hex string)
      */
     public TreeMap<String, OnionRouter> routers = new TreeMap<>();
+    /**
+     * The consensus footer's bandwidth-weights (e.g. "Wgg" -> 5875), out of bandwidthWeightScale.  Empty if the
+     * consensus had none, in which case routers are weighted by bandwidth alone.
+     */
+    public TreeMap<String, Integer> bandwidthWeights = new TreeMap<>();
+    public int bandwidthWeightScale = 10000;
     /**
      * Whether to use only the directory authorities to fetch the consensus and router descriptors?
      * Otherwise, will fetch from any directory node.
@@ -66,7 +78,65 @@ public class Consensus {
             "maatuska orport=80 v3ident=49015F787433103580E3B66A1707A00E60F2D15B 171.25.193.9:443 BD6A 8292 55CB 08E6 6FBE 7D37 4836 3586 E46B 3810",
             "Faravahar orport=443 v3ident=EFCBE720AB3A82B99F9E953CD5BF50F7EEFC7B97 154.35.32.5:80 CF6D 0AAF B385 BE71 B8E1 11FC 5CFF 4B47 9237 33BC"
     };
+    // flag sets whose weighted tables are built as the consensus loads: those CircuitBuilder, GuardManager and
+    // directory fetches ask for by default
+    static final String PREBUILT_FLAGS[] = {"Running,Valid,Fast", "Exit,Running,Valid,Fast", "Guard,Running,Valid,Fast",
+            "V2Dir,Running,Valid,Fast"};
+    // a bit for each flag seen in the consensus (up to 64), so that a set of flags is a long
+    private final HashMap<String, Integer> flagBits = new HashMap<>();
+    // weighted tables for each set of flags and position asked for, few enough to scan; replaced, never changed
+    private volatile WeightedRouters samplers[] = new WeightedRouters[0];
+    // comma separated flag lists as passed to getRandomORWithFlag(String), split once
+    private final ConcurrentHashMap<String, String[]> splitFlags = new ConcurrentHashMap<>();
+
+    /**
+     * Where in a circuit a router is being chosen for, which decides which bandwidth-weights apply
+     */
+    public enum Position {
+        GUARD('g'), MIDDLE('m'), EXIT('e'), DIRECTORY('b');
 
+        final char weightChar;
+
+        Position(char c) {
+            weightChar = c;
+        }
+
+        /**
+         * @return the position implied by the flags being asked for - Guard, then Exit, then V2Dir, else middle
+         */
+        public static Position forFlags(String[] flags) {
+            if (ArrayUtils.contains(flags, "Guard"))
+                return GUARD;
+            if (ArrayUtils.contains(flags, "Exit"))
+                return EXIT;
+            if (ArrayUtils.contains(flags, "V2Dir"))
+                return DIRECTORY;
+            return MIDDLE;
+        }
+    }
+
+    /**
+     * Routers with some set of flags and an alias table over their weights for a position
+     */
+    private static class WeightedRouters {
+        final Position position;
+        final long flagMask;
+        final boolean excludeBadExits;
+        final OnionRouter ors[];
+        final AliasSampler sampler;
+
+        WeightedRouters(Position position, long flagMask, boolean excludeBadExits, OnionRouter ors[], double weights[]) {
+            this.position = position;
+            this.flagMask = flagMask;
+            this.excludeBadExits = excludeBadExits;
+            this.ors = ors;
+            this.sampler = new AliasSampler(weights);
+        }
+
+        OnionRouter next() {
+            return ors[sampler.sample(TorCrypto.rnd.nextLong())];
+        }
+    }
 
     /**
      * Private constructor to stop instantiation outside of this class.
@@ -147,10 +217,13 @@ public class Consensus {
 
                 log.trace("Connecting to " + directoryType + " " + dir.name);
                 try {
-                    return connectToDirectory(dir.ip, dir.dirport, path);
+                    InputStream in = connectToDirectory(dir.ip, dir.dirport, path);
+                    RouterHealth.getDefault().succeeded(dir);
+                    return in;
                 } catch (IOException e) {
                     log.warn("Failed to get " + path + " from " + directoryType + " "
                             + dir.ip + ":" + String.valueOf(dir.dirport));
+                    RouterHealth.getDefault().failed(dir);
                     continue;
                 }
             }
@@ -166,15 +239,16 @@ public class Consensus {
         int tries;
         for (tries = 0; tries < authTriesLimit; tries++) {
 
-            int i = TorCrypto.rnd.nextInt(authorities.length);
-            String auth = authorities[i];
-            String sp[] = auth.split(" ");
+            String sp[] = getRandomAuthority().split(" ");
             String ipp[] = sp[3].split(":");
             log.trace("Connecting to " + directoryType + " " + sp[0]);
             try {
-                return connectToDirectory(ipp[0], ipp[1], path);
+                InputStream in = connectToDirectory(ipp[0], ipp[1], path);
+                RouterHealth.getDefault().succeeded(sp[3]);
+                return in;
             } catch (IOException e) {
                 log.warn("Failed to get " + path + " from " + directoryType + " " + sp[0]);
+                RouterHealth.getDefault().failed(sp[3]);
                 continue;
             }
         }
@@ -182,6 +256,17 @@ public class Consensus {
         throw new RuntimeException("Can't get " + path + " after " + String.valueOf(MAX_TRIES) + " tries.");
     }
 
+    // a random authority which isn't backing off after a failure, if there is one (authorities are keyed by address)
+    private String getRandomAuthority() {
+        int start = TorCrypto.rnd.nextInt(authorities.length);
+        for (int i = 0; i < authorities.length; i++) {
+            String auth = authorities[(start + i) % authorities.length];
+            if (RouterHealth.getDefault().isUsable(auth.split(" ")[3]))
+                return auth;
+        }
+        return authorities[start];
+    }
+
     private InputStream connectToDirectory(InetAddress address, int port, String path) throws IOException {
         return connectToDirectory(address.getHostAddress(), String.valueOf(port), path);
     }
@@ -194,8 +279,8 @@ public class Consensus {
             try {
                 URL zurl = new URL("http://" + address + ":" + port + path + ".z");
                 log.debug("Downloading (from directory server): " + zurl.toString());
-                return new InflaterInputStream(zurl.openStream());
-            } catch (SocketException e) {
+                return new InflaterInputStream(open(zurl));
+            } catch (SocketException | SocketTimeoutException e) {
                 log.warn("Failed to connect: " + e);
                 throw e;
             } catch (IOException e) {
@@ -205,12 +290,20 @@ public class Consensus {
         }
 
         log.debug("Downloading: " + url.toString());
-        InputStream in = url.openStream();
+        InputStream in = open(url);
         if (path.endsWith(".z"))
             return new InflaterInputStream(in);
         return in;
     }
 
+    // so that an unreachable directory costs seconds rather than the OS connect timeout
+    private static InputStream open(URL url) throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(DIRECTORY_TIMEOUT_MILLIS);
+        conn.setReadTimeout(DIRECTORY_TIMEOUT_MILLIS);
+        return conn.getInputStream();
+    }
+
     /**
      * Fetch all router descriptors and add the keys to the OnionRouter objects
      * This saves directory fetches if you're doing a lot of route building
@@ -246,6 +339,9 @@ public class Consensus {
 
     private boolean fetchConsensus(boolean forceDownload) {
         routers = new TreeMap<>(); // erase old one
+        bandwidthWeights = new TreeMap<>();
+        flagBits.clear();
+        samplers = new WeightedRouters[0];
 
         try {
             File cachedConsensus = new File("cached-consensus");
@@ -279,47 +375,14 @@ public class Consensus {
                     cachedConsensusWriter = new PrintWriter(cachedConsensus);
             }
 
-            // now go ahead and parse the consensus
-            String ln = null;
-            OnionRouter cur = null; // set after each router line to refer to current router
-            while ((ln = consensusReader.readLine()) != null) {
-                if (cachedConsensusWriter != null) // if getting new consensus then save to disk!
-                    cachedConsensusWriter.println(ln);
-
-                if (ln.startsWith("valid-until")) {
-                    int idx = ln.indexOf(" ");
-                    consensusValidUntil = df.parse(ln.substring(idx + 1) + " GMT");
-                }
-
-                if (ln.startsWith("r")) { // router line
-                    String dat[] = ln.split(" ");
-                    if (dat.length < 8)
-                        continue;
-
-                    String identityhex = Hex.encodeHexString(Base64.decodeBase64(dat[2]));
-                    cur = new OnionRouter(dat[1], identityhex, dat[6], Integer.parseInt(dat[7]), Integer.parseInt(dat[8]));
-
-                    routers.put(identityhex, cur);
-                } else if (ln.startsWith("s") && cur != null) {  // flags line
-                    for (String s : ln.split(" "))
-                        if (!s.equals("s"))
-                            cur.flags.add(s);
-                } else if (ln.startsWith("p") && cur != null) {  // exit policy line
-                    // "p" SP ("accept" / "reject") SP PortList NL
-                    String[] lineSplit = ln.split(" ");
-
-                    // tolerate extra junk at the end of the line
-                    if (lineSplit.length >= 3)
-                        cur.consensusIPv4ExitPortSummary = lineSplit[1] + " " + lineSplit[2];
-                }
-            }
+            parse(consensusReader, cachedConsensusWriter);
         } catch (MalformedURLException e) {
             return false;
         } catch (UnknownHostException e) {
             return false;
         } catch (IOException e) {
             return false;
-        } catch (ParseException e) {
+        } catch (ParseException | NumberFormatException e) {
             e.printStackTrace();
             return false;
         }
@@ -327,6 +390,86 @@ public class Consensus {
         return true;
     }
 
+    /**
+     * Parses a consensus into this object and builds the weighted tables for PREBUILT_FLAGS
+     *
+     * @param consensusReader       Consensus document, or what is left of it
+     * @param cachedConsensusWriter Where to copy the lines read, or null
+     */
+    void parse(BufferedReader consensusReader, PrintWriter cachedConsensusWriter) throws IOException, ParseException {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss zzz");
+        String ln = null;
+        OnionRouter cur = null; // set after each router line to refer to current router
+        while ((ln = consensusReader.readLine()) != null) {
+            if (cachedConsensusWriter != null) // if getting new consensus then save to disk!
+                cachedConsensusWriter.println(ln);
+
+            if (ln.startsWith("valid-until")) {
+                int idx = ln.indexOf(" ");
+                consensusValidUntil = df.parse(ln.substring(idx + 1) + " GMT");
+            }
+
+            if (ln.startsWith("r ")) { // router line
+                String dat[] = ln.split(" ");
+                if (dat.length < 8)
+                    continue;
+
+                String identityhex = Hex.encodeHexString(Base64.decodeBase64(dat[2]));
+                cur = new OnionRouter(dat[1], identityhex, dat[6], Integer.parseInt(dat[7]), Integer.parseInt(dat[8]));
+
+                routers.put(identityhex, cur);
+            } else if (ln.startsWith("s ") && cur != null) {  // flags line
+                for (String s : ln.split(" "))
+                    if (!s.equals("s")) {
+                        cur.flags.add(s);
+                        if (!flagBits.containsKey(s) && flagBits.size() < 64)
+                            flagBits.put(s, flagBits.size());
+                    }
+            } else if (ln.startsWith("w ") && cur != null) {  // bandwidth line
+                // "w" SP "Bandwidth=" INT [SP "Measured=" INT] [SP "Unmeasured=1"] NL
+                for (String kv : ln.split(" "))
+                    if (kv.startsWith("Bandwidth="))
+                        cur.bandwidth = Long.parseLong(kv.substring(10));
+            } else if (ln.startsWith("bandwidth-weights ")) {  // footer
+                // "bandwidth-weights" [SP Weight "=" Int] ... NL
+                for (String kv : ln.split(" ")) {
+                    int eq = kv.indexOf('=');
+                    if (eq > 0)
+                        bandwidthWeights.put(kv.substring(0, eq), Integer.parseInt(kv.substring(eq + 1)));
+                }
+            } else if (ln.startsWith("params ")) {
+                for (String kv : ln.split(" "))
+                    if (kv.startsWith("bwweightscale="))
+                        bandwidthWeightScale = Integer.parseInt(kv.substring(14));
+            } else if (ln.startsWith("p ") && cur != null) {  // exit policy line
+                // "p" SP ("accept" / "reject") SP PortList NL
+                String[] lineSplit = ln.split(" ");
+
+                // tolerate extra junk at the end of the line
+                if (lineSplit.length >= 3)
+                    cur.consensusIPv4ExitPortSummary = lineSplit[1] + " " + lineSplit[2];
+            }
+        }
+
+        for (String flags : PREBUILT_FLAGS) {
+            String split[] = flags.split(",");
+            try {
+                getSampler(Position.forFlags(split), split, true);
+            } catch (RuntimeException e) {
+                log.debug("No weighted table for " + flags + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return a consensus parsed from a document, without fetching anything or replacing the shared one
+     */
+    static Consensus parse(BufferedReader consensusReader) throws IOException, ParseException {
+        Consensus c = new Consensus();
+        c.parse(consensusReader, null);
+        return c;
+    }
+
     public OnionRouter getRouterByName(String nm) {
         for (OnionRouter r : routers.values())
             if (r.name.equals(nm))
@@ -393,7 +536,19 @@ public class Consensus {
      * @return a random router with the specified flag(s)
      */
     public OnionRouter getRandomORWithFlag(String flag) {
-        return getRandomORWithFlag(flag.split(","), 0, true);
+        return getRandomORWithFlag(splitFlags(flag), 0, true);
+    }
+
+    /**
+     * Return a (cryptographically) random router with the supplied flag(s) and the specified exitPort, excluding bad
+     * exits.
+     *
+     * @param flag     the desired flag(s) (case-sensitive). Multiple flags should be supplied in a comma-separated list.
+     * @param exitPort the desired exit port in the router's exit policy (or 0 to ignore exit policies)
+     * @return a random router with the specified flag(s)
+     */
+    public OnionRouter getRandomORWithFlag(String flag, int exitPort) {
+        return getRandomORWithFlag(splitFlags(flag), exitPort, true);
     }
 
     /**
@@ -420,7 +575,9 @@ public class Consensus {
     }
 
     /**
-     * Return the routers with all of the supplied flags and the specified exitPort, optionally excluding bad exits.
+     * Return a (cryptographically) random router with all of the supplied flags and the specified exitPort,
+     * optionally excluding bad exits.  Routers are chosen in proportion to their consensus bandwidth, scaled by the
+     * bandwidth-weights for the position the flags imply (see Position.forFlags), as tor does.
      * See https://consensus-health.torproject.org for a list of known flags.
      *
      * @param flags           the desired flags (case-sensitive)
@@ -429,21 +586,123 @@ public class Consensus {
      * @return a random router with the specified flags
      */
     public OnionRouter getRandomORWithFlag(String[] flags, int exitPort, Boolean excludeBadExits) {
+        return getWeightedRouter(Position.forFlags(flags), flags, exitPort, excludeBadExits);
+    }
+
+    /**
+     * Return a (cryptographically) random router with all of the supplied flags and the specified exitPort, chosen
+     * in proportion to its bandwidth weight for a position in the circuit.  The weighted table for each set of flags
+     * is built once per consensus (as it loads, for PREBUILT_FLAGS) and found again without allocating, so each
+     * choice takes constant time.
+     *
+     * @param position        where the router will be used
+     * @param flags           the desired flags (case-sensitive)
+     * @param exitPort        the desired exit port in the router's exit policy (or 0 to ignore exit policies)
+     * @param excludeBadExits exclude routers with the BadExit flags
+     * @return a random router with the specified flags
+     */
+    public OnionRouter getWeightedRouter(Position position, String[] flags, int exitPort, boolean excludeBadExits) {
+        WeightedRouters wr = getSampler(position, flags, excludeBadExits);
+        RouterHealth health = RouterHealth.getDefault();
+        OnionRouter or = wr.next();
+
+        // keep drawing until we find one that isn't backing off after a failure and accepts the desired exitPort
+        // (acceptsIPv4ExitPort ignores exitPort 0)
+        int draws = 1;
+        while (!health.isUsable(or) || !or.acceptsIPv4ExitPort(exitPort)) {
+            if (draws++ > 10 * wr.ors.length)
+                return getAnyAccepting(wr.ors, exitPort); // the ones that do may have no weight
+            or = wr.next();
+        }
+
+        return or;
+    }
+
+    /**
+     * The weight a router gets when choosing one for a position: its bandwidth scaled by the bandwidth-weight for
+     * its Guard/Exit flags in that position (dir-spec 3.8.3).  BadExits count as non-exits.
+     *
+     * @return the weight, or its bandwidth if the consensus had no bandwidth-weights
+     */
+    public double getBandwidthWeight(Position position, OnionRouter r) {
+        if (bandwidthWeights.isEmpty())
+            return r.bandwidth;
+        boolean guard = r.flags.contains("Guard");
+        boolean exit = r.flags.contains("Exit") && !r.flags.contains("BadExit");
+        char cls = guard && exit ? 'd' : guard ? 'g' : exit ? 'e' : 'm';
+        Integer w = bandwidthWeights.get("W" + position.weightChar + cls);
+        // there are no weights for exits in the guard position, and none means never
+        return w == null ? 0 : (double) r.bandwidth * w / bandwidthWeightScale;
+    }
+
+    // prefers routers that aren't backing off, but if they all are one of them is better than none
+    private OnionRouter getAnyAccepting(OnionRouter ors[], int exitPort) {
+        RouterHealth health = RouterHealth.getDefault();
+        int start = TorCrypto.rnd.nextInt(ors.length);
+        OnionRouter backedOff = null;
+        for (int i = 0; i < ors.length; i++) {
+            OnionRouter or = ors[(start + i) % ors.length];
+            if (or.acceptsIPv4ExitPort(exitPort)) {
+                if (health.isUsable(or))
+                    return or;
+                if (backedOff == null)
+                    backedOff = or;
+            }
+        }
+        if (backedOff != null)
+            return backedOff;
+        throw new RuntimeException("no router accepts exit port " + exitPort);
+    }
+
+    // scans the tables built so far, which allocates nothing, and builds one the first time a set of flags is asked for
+    private WeightedRouters getSampler(Position position, String[] flags, boolean excludeBadExits) {
+        long mask = flagMask(flags);
+        for (WeightedRouters wr : samplers)
+            if (wr.flagMask == mask && wr.position == position && wr.excludeBadExits == excludeBadExits)
+                return wr;
+        return buildSampler(position, flags, mask, excludeBadExits);
+    }
+
+    private synchronized WeightedRouters buildSampler(Position position, String[] flags, long mask, boolean excludeBadExits) {
+        for (WeightedRouters wr : samplers)
+            if (wr.flagMask == mask && wr.position == position && wr.excludeBadExits == excludeBadExits)
+                return wr;
         TreeMap<String, OnionRouter> map = getORsWithFlag(flags, excludeBadExits);
+        if (map.isEmpty())
+            throw new RuntimeException("no routers with flags " + StringUtils.join(flags, ","));
         OnionRouter ors[] = map.values().toArray(new OnionRouter[map.size()]);
-        boolean acceptsExitPort = false;
-        int idx = TorCrypto.rnd.nextInt(ors.length);
-
-        // ignore exitPort 0
-        if (exitPort != 0) {
-            // iterate through the routers until we find one that accepts the desired exitPort
-            do {
-                idx = TorCrypto.rnd.nextInt(ors.length);
-                acceptsExitPort = ors[idx].acceptsIPv4ExitPort(exitPort);
-            } while (!acceptsExitPort);
+        double weights[] = new double[ors.length];
+        for (int i = 0; i < ors.length; i++)
+            weights[i] = getBandwidthWeight(position, ors[i]);
+        WeightedRouters wr = new WeightedRouters(position, mask, excludeBadExits, ors, weights);
+        if (wr.sampler.getTotalWeight() == 0)
+            log.debug("No bandwidth weights for {} {} - choosing uniformly", position, StringUtils.join(flags, ","));
+        WeightedRouters grown[] = Arrays.copyOf(samplers, samplers.length + 1);
+        grown[samplers.length] = wr;
+        samplers = grown;
+        return wr;
+    }
+
+    // the flags as a set of flagBits; any flag without a bit is in no router's flags, so nothing is left to choose from
+    private long flagMask(String[] flags) {
+        long mask = 0;
+        for (String f : flags) {
+            Integer bit = flagBits.get(f);
+            if (bit == null)
+                throw new RuntimeException("no routers with flags " + StringUtils.join(flags, ","));
+            mask |= 1L << bit;
         }
+        return mask;
+    }
 
-        return ors[idx];
+    // splits a comma separated list of flags the first time it is seen
+    private String[] splitFlags(String flag) {
+        String split[] = splitFlags.get(flag);
+        if (split == null) {
+            split = flag.split(",");
+            splitFlags.put(flag, split);
+        }
+        return split;
     }
 
     /**
@@ -0,0 +1,410 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.TorCircuitException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps a small, persistent set of guards and learns how well each performs, so that a new TorSocket goes to a
+ * known-good guard straight away rather than to a random one each run.  For each guard it records:
+ * <ul>
+ * <li>link connect time and how often connecting fails</li>
+ * <li>how many circuits built through it, and how many builds failed</li>
+ * <li>delivered throughput of its circuits (see CircuitStats)</li>
+ * </ul>
+ * connect() tries guards that haven't been measured yet first, so each is measured a few times, then the usable guard
+ * expected to fetch EXPECTED_BYTES soonest, allowing for the chance of a failed connect or build.  A guard that has
+ * failed to connect counts as measured, so it is ranked on that rather than tried out again ahead of the others once
+ * its backoff ends.  Guards backing off in RouterHealth or no longer listed as Running Guards are passed over, and the set is topped up from the
+ * consensus when fewer than NUM_GUARDS remain.  The set and statistics are saved to "guards" in the current
+ * directory (like circuit-build-times).
+ */
+public class GuardManager {
+    final static Logger log = LogManager.getLogger();
+
+    // as tor's primary guards
+    public static int NUM_GUARDS = 3;
+    public String guardFlags = "Guard,Running,Valid,Fast";
+    // the fetch guards are ranked by, and what is assumed of guards not yet measured
+    public static long EXPECTED_BYTES = 1 << 20;
+    public static double DEFAULT_CONNECT_MILLIS = 1000;
+    public static double DEFAULT_THROUGHPUT = 256 * 1024;
+    // connection attempts to a guard before it is ranked, so that one unlucky sample doesn't rule it out
+    public static int MIN_CONNECTS = 2;
+    // weight of a new sample in the smoothed averages
+    public static double ALPHA = 0.25;
+    // save after this many new observations
+    public static int SAVE_INTERVAL = 10;
+
+    private static GuardManager defaultManager;
+
+    private final File stateFile;
+    private final RouterHealth health;
+    // fingerprint -> guard, in the order they were added
+    private final LinkedHashMap<String, Guard> guards = new LinkedHashMap<>();
+    private int unsaved = 0;
+
+    /**
+     * One guard and what has been learned about it
+     */
+    public class Guard {
+        final String fingerprint;
+        String name;
+        long added = System.currentTimeMillis();
+        long connects = 0, connectFailures = 0;
+        double connectMillis = 0;
+        long circuits = 0, circuitFailures = 0;
+        double throughput = 0;
+
+        Guard(String fingerprint, String name) {
+            this.fingerprint = fingerprint;
+            this.name = name;
+        }
+
+        /**
+         * Records a circuit through this guard being closed
+         *
+         * @param buildFailed true if a CREATE or EXTEND on it failed
+         * @param built       true if it got beyond the guard
+         * @param stats       its measured performance
+         */
+        void circuitClosed(boolean buildFailed, boolean built, CircuitStats stats) {
+            synchronized (GuardManager.this) {
+                if (buildFailed)
+                    circuitFailures++;
+                else if (built)
+                    circuits++;
+                else
+                    return;
+                double rate = stats.getThroughput();
+                if (rate > 0)
+                    throughput = throughput == 0 ? rate : (1 - ALPHA) * throughput + ALPHA * rate;
+                observed();
+            }
+        }
+
+        /**
+         * @return true once there have been MIN_CONNECTS attempts to connect to it, or any of them failed
+         */
+        public boolean isMeasured() {
+            synchronized (GuardManager.this) {
+                return connects + connectFailures >= MIN_CONNECTS || connectFailures > 0;
+            }
+        }
+
+        /**
+         * @return predicted milliseconds to connect and fetch EXPECTED_BYTES, divided by the chance of connecting and
+         * building a circuit (with one of each, successful, assumed so that a failure doesn't rule a guard out)
+         */
+        public double getExpectedMillis() {
+            synchronized (GuardManager.this) {
+                double millis = (connects > 0 ? connectMillis : DEFAULT_CONNECT_MILLIS)
+                        + EXPECTED_BYTES * 1000.0 / (throughput > 0 ? throughput : DEFAULT_THROUGHPUT);
+                double success = (connects + 1.0) / (connects + connectFailures + 1.0)
+                        * (circuits + 1.0) / (circuits + circuitFailures + 1.0);
+                return millis / success;
+            }
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            synchronized (GuardManager.this) {
+                return "Guard{" +
+                        name +
+                        ", connects=" + connects +
+                        ", connectFailures=" + connectFailures +
+                        ", connectMillis=" + String.format("%.1f", connectMillis) +
+                        ", circuits=" + circuits +
+                        ", circuitFailures=" + circuitFailures +
+                        ", throughputKBps=" + String.format("%.1f", throughput / 1024) +
+                        ", expectedMillis=" + String.format("%.0f", getExpectedMillis()) +
+                        '}';
+            }
+        }
+    }
+
+    /**
+     * @param stateFile where the guards are persisted, or null for none
+     */
+    public GuardManager(File stateFile) {
+        this(stateFile, RouterHealth.getDefault());
+    }
+
+    /**
+     * @param stateFile where the guards are persisted, or null for none
+     * @param health    where connect failures are reported and backoffs looked up
+     */
+    public GuardManager(File stateFile, RouterHealth health) {
+        this.stateFile = stateFile;
+        this.health = health;
+        if (stateFile != null && stateFile.exists() && stateFile.canRead()) {
+            try {
+                load(stateFile);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to load guards from " + stateFile + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the manager shared by all sockets, loaded from "guards" if present
+     */
+    public static synchronized GuardManager getDefault() {
+        if (defaultManager == null)
+            defaultManager = new GuardManager(new File(".").canWrite() ? new File("guards") : null);
+        return defaultManager;
+    }
+
+    /**
+     * Connects to the best usable guard, trying the others in turn if it fails
+     *
+     * @return connected socket
+     * @throws IOException if no guard could be connected to
+     */
+    public TorSocket connect() throws IOException {
+        IOException lastError = null;
+        List<Guard> tried = new ArrayList<>();
+        for (int attempt = 0; attempt < 2 * NUM_GUARDS; attempt++) {
+            Guard g = choose(tried);
+            if (g == null)
+                break;
+            tried.add(g);
+            try {
+                return connect(g);
+            } catch (IOException e) {
+                log.info("Couldn't connect to guard " + g.name + ": " + e);
+                lastError = e;
+            }
+        }
+        throw new TorCircuitException("No guard could be connected to" + (lastError == null ? "" : ": " + lastError.getMessage()));
+    }
+
+    /**
+     * @param exclude Guards not to choose
+     * @return guard that connect() would try next, or null if there is none
+     */
+    public synchronized Guard choose(List<Guard> exclude) {
+        Guard best = null;
+        for (Guard g : getUsable()) {
+            if (exclude.contains(g))
+                continue;
+            if (!g.isMeasured())
+                return g; // try it out
+            if (best == null || g.getExpectedMillis() < best.getExpectedMillis())
+                best = g;
+        }
+        return best;
+    }
+
+    /**
+     * @return guards that are listed, and not backing off, topped up to NUM_GUARDS from the consensus if need be
+     */
+    public synchronized List<Guard> getUsable() {
+        List<Guard> usable = usable();
+        for (int tries = 0; usable.size() < NUM_GUARDS && tries < 2 * NUM_GUARDS; tries++) {
+            OnionRouter r;
+            try {
+                r = sampleGuard();
+            } catch (IOException | RuntimeException e) {
+                log.debug("Unable to sample a new guard: " + e);
+                break;
+            }
+            if (r == null || guards.containsKey(r.identityhash))
+                continue;
+            add(r);
+            usable = usable();
+        }
+        return usable;
+    }
+
+    private List<Guard> usable() {
+        List<Guard> usable = new ArrayList<>();
+        for (Guard g : guards.values()) {
+            OnionRouter r = lookup(g.fingerprint);
+            if (r != null && health.isUsable(r))
+                usable.add(g);
+        }
+        return usable;
+    }
+
+    /**
+     * Adds a guard to the set
+     */
+    public synchronized Guard add(OnionRouter r) {
+        Guard g = guards.get(r.identityhash);
+        if (g == null) {
+            g = new Guard(r.identityhash, r.name);
+            guards.put(r.identityhash, g);
+            log.info("New guard " + r.name);
+            observed();
+        }
+        return g;
+    }
+
+    /**
+     * @return every guard in the set, listed or not
+     */
+    public synchronized List<Guard> getGuards() {
+        return Collections.unmodifiableList(new ArrayList<>(guards.values()));
+    }
+
+    private TorSocket connect(Guard g) throws IOException {
+        OnionRouter r = lookup(g.fingerprint);
+        long start = System.currentTimeMillis();
+        TorSocket sock;
+        try {
+            sock = open(r);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                g.connectFailures++;
+                observed();
+            }
+            health.failed(r);
+            throw e;
+        }
+        long millis = System.currentTimeMillis() - start;
+        synchronized (this) {
+            g.connectMillis = g.connects++ == 0 ? millis : (1 - ALPHA) * g.connectMillis + ALPHA * millis;
+            observed();
+        }
+        sock.guard = g;
+        return sock;
+    }
+
+    /**
+     * Opens a link to a guard.  Override to connect some other way.
+     */
+    protected TorSocket open(OnionRouter guard) throws IOException {
+        return new TorSocket(guard);
+    }
+
+    /**
+     * @return the router with this fingerprint, or null if it is no longer a Running Guard.  Override to use routers
+     * outside the consensus.
+     */
+    protected OnionRouter lookup(String fingerprint) {
+        OnionRouter r = Consensus.getConsensus().routers.get(fingerprint);
+        return r != null && r.flags.contains("Guard") && r.flags.contains("Running") ? r : null;
+    }
+
+    /**
+     * @return a new guard for the set.  Override to use routers outside the consensus.
+     */
+    protected OnionRouter sampleGuard() throws IOException {
+        return Consensus.getConsensus().getRandomORWithFlag(guardFlags);
+    }
+
+    private void observed() {
+        if (++unsaved >= SAVE_INTERVAL)
+            save();
+    }
+
+    /**
+     * Saves the guards, one "Guard fingerprint name key=value ..." line each
+     */
+    public synchronized void save() {
+        unsaved = 0;
+        if (stateFile == null)
+            return;
+
+        try (PrintWriter out = new PrintWriter(stateFile)) {
+            for (Guard g : guards.values())
+                out.println("Guard " + g.fingerprint + " " + g.name +
+                        " added=" + g.added +
+                        " connects=" + g.connects +
+                        " connectFailures=" + g.connectFailures +
+                        " connectMillis=" + g.connectMillis +
+                        " circuits=" + g.circuits +
+                        " circuitFailures=" + g.circuitFailures +
+                        " throughput=" + g.throughput);
+        } catch (IOException e) {
+            log.warn("Unable to save guards: " + e);
+        }
+    }
+
+    private void load(File f) throws IOException {
+        try (BufferedReader rdr = new BufferedReader(new FileReader(f))) {
+            String ln;
+            while ((ln = rdr.readLine()) != null) {
+                String sp[] = ln.split(" ");
+                if (!sp[0].equals("Guard") || sp.length < 3)
+                    continue;
+                Guard g = new Guard(sp[1], sp[2]);
+                for (int i = 3; i < sp.length; i++) {
+                    String kv[] = sp[i].split("=", 2);
+                    if (kv.length != 2)
+                        continue;
+                    switch (kv[0]) {
+                        case "added":
+                            g.added = Long.parseLong(kv[1]);
+                            break;
+                        case "connects":
+                            g.connects = Long.parseLong(kv[1]);
+                            break;
+                        case "connectFailures":
+                            g.connectFailures = Long.parseLong(kv[1]);
+                            break;
+                        case "connectMillis":
+                            g.connectMillis = Double.parseDouble(kv[1]);
+                            break;
+                        case "circuits":
+                            g.circuits = Long.parseLong(kv[1]);
+                            break;
+                        case "circuitFailures":
+                            g.circuitFailures = Long.parseLong(kv[1]);
+                            break;
+                        case "throughput":
+                            g.throughput = Double.parseDouble(kv[1]);
+                            break;
+                    }
+                }
+                guards.put(g.fingerprint, g);
+            }
+        }
+        log.debug("Loaded {} guards", guards.size());
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("GuardManager{");
+        for (Guard g : guards.values())
+            sb.append("\n  ").append(g);
+        return sb.append('}').toString();
+    }
+}
@@ -21,11 +21,11 @@ package tor;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
+import tor.util.HttpResponse;
 import tor.util.TorDocumentParser;
 
 import java.io.IOException;
@@ -103,58 +103,19 @@ public class HiddenService {
             circ.create();
             circ.extend(ors[0]);
 
-            final int replica = i < 3 ? 0 : 1;
-
-            // asynchronous call
-            TorStream st = circ.createDirStream(new TorStream.TorStreamListener() {
-                @Override
-                public void dataArrived(TorStream s) {
-                }
-
-                @Override
-                public void connected(TorStream s) {
-                    try {
-                        s.sendHTTPGETRequest("/tor/rendezvous2/" + new Base32().encodeAsString(HiddenService.getDescId(onion, (byte) replica)), "dirreq");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void disconnected(TorStream s) {
-                    synchronized (onion) {
-                        onion.notify();
-                    }
-                }
-
-                @Override
-                public void failure(TorStream s) {
-                    synchronized (onion) {
-                        onion.notify();
-                    }
-                }
-            });
-
-            // wait for notification from the above listener that data is here! (that remote side ended connection - data could be blank
-            synchronized (onion) {
-                try {
-                    onion.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            int replica = i < 3 ? 0 : 1;
+
+            TorHttpClient http = new TorHttpClient(circ);
+            try {
+                HttpResponse resp = http.getDirectory("/tor/rendezvous2/" + new Base32().encodeAsString(HiddenService.getDescId(onion, (byte) replica)));
+                // HTTP success code
+                if (resp.getStatus() == 200)
+                    return new String(resp.readBody(), "UTF-8");
+            } catch (IOException e) {
+                log.debug("Directory request failed: {}", e.getMessage());
+            } finally {
+                circ.destroy();
             }
-
-            // get HTTP response and body
-            String data = IOUtils.toString(st.getInputStream());
-            circ.destroy();
-
-            // HTTP success code
-            if (data.length() < 1 || !data.split(" ")[1].equals("200")) {
-                continue;
-            }
-
-            int dataIndex = data.indexOf("\r\n\r\n");
-            return data.substring(dataIndex);
         }
 
         log.warn("Not found hs descriptor!");
@@ -36,6 +36,8 @@ public class OnionRouter {
     public String consensusIPv4ExitPortSummary = null;
     public String[] descriptorIPv4ExitPolicy = null;
     public String[] parsedIPv4ExitPortList = null;
+    // consensus "w Bandwidth=" weight (roughly kilobytes per second), 0 if the consensus didn't give one
+    public long bandwidth = 0;
     String name;
     InetAddress ip;
     int orport;
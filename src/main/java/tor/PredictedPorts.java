@@ -0,0 +1,66 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which exit ports streams have recently been opened to, so circuits can be built for them in advance.
+ * Works like tor's predicted ports: a port stays predicted for RELEVANCE_MILLIS after it was last used, and port 80
+ * is predicted from startup.
+ */
+public class PredictedPorts {
+    // same as tor's PREDICTED_CIRCS_RELEVANCE_TIME
+    public static long RELEVANCE_MILLIS = 60 * 60 * 1000L;
+
+    // port -> last time a stream was opened to it
+    private final ConcurrentHashMap<Integer, Long> lastUsed = new ConcurrentHashMap<>();
+
+    public PredictedPorts() {
+        record(80);
+    }
+
+    /**
+     * Called whenever a stream is opened to a port.
+     *
+     * @param port Exit port
+     */
+    public void record(int port) {
+        if (port > 0 && port <= 65535)
+            lastUsed.put(port, System.currentTimeMillis());
+    }
+
+    /**
+     * @return ports used within the last RELEVANCE_MILLIS, stale entries are dropped
+     */
+    public List<Integer> getPredicted() {
+        long cutoff = System.currentTimeMillis() - RELEVANCE_MILLIS;
+        ArrayList<Integer> ports = new ArrayList<>();
+        for (Map.Entry<Integer, Long> e : lastUsed.entrySet()) {
+            if (e.getValue() < cutoff)
+                lastUsed.remove(e.getKey(), e.getValue());
+            else
+                ports.add(e.getKey());
+        }
+        return ports;
+    }
+}
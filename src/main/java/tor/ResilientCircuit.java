@@ -0,0 +1,390 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.Futures;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A circuit which repairs itself.  If a relay truncates it, it is extended again from the hops that are left; if it
+ * is destroyed (or re-extending fails) a new circuit is built.  Streams on the lost circuit are either disconnected
+ * or moved onto the repaired one, according to the stream policy - a moved stream is opened again to the same host
+ * and carries on as the same TorStream object.  Streams opened while a repair is under way wait for it.
+ * <p/>
+ * Built on a fixed path, the same routers are used again.  Built for an exit port, routers are replaced with random
+ * ones - override replacement() to choose differently.
+ */
+public class ResilientCircuit {
+    final static Logger log = LogManager.getLogger();
+
+    public enum StreamPolicy {
+        DISCONNECT,           // streams end with the circuit, as they would without repair
+        RETRY_IDLE,           // reopen streams which haven't sent or received any data yet - safe for any protocol
+        RETRY_UNACKNOWLEDGED  // also reopen streams which have received nothing and none of whose data the exit
+                              // acknowledged, sending the data again - only for requests that are safe to repeat
+    }
+
+    // repairs attempted in a row before giving up and disconnecting the waiting streams
+    public static int MAX_REPAIR_ATTEMPTS = 3;
+
+    private final CircuitBuilder builder;
+    private final int exitPort; // -1 for a fixed path
+    private OnionRouter path[]; // routers after the socket's first hop
+    private StreamPolicy policy = StreamPolicy.RETRY_IDLE;
+    private volatile TorCircuit circ;
+    private volatile boolean closed = false;
+    // guarded by this
+    private boolean repairing = false;
+    private final ArrayList<TorStream> waiting = new ArrayList<>();
+    private long repairs = 0, rebuilds = 0, failedRepairs = 0, streamsRetried = 0, streamsLost = 0;
+
+    /**
+     * Builds a circuit through the given routers, blocking until it is READY
+     *
+     * @param builder Builder (and so socket and timeout) for this and any replacement circuit
+     * @param path    Routers after the socket's first hop
+     */
+    public ResilientCircuit(CircuitBuilder builder, OnionRouter... path) throws IOException {
+        this.builder = builder;
+        this.exitPort = -1;
+        this.path = path.clone();
+        attach(builder.build(this.path));
+    }
+
+    /**
+     * Builds a circuit through a random middle and an exit accepting exitPort, blocking until it is READY
+     *
+     * @param builder  Builder (and so socket and timeout) for this and any replacement circuit
+     * @param exitPort Port the exit must accept
+     */
+    public ResilientCircuit(CircuitBuilder builder, int exitPort) throws IOException {
+        this.builder = builder;
+        this.exitPort = exitPort;
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= builder.maxAttempts; attempt++) {
+            path = new OnionRouter[]{replacement(0, null), replacement(1, null)};
+            try {
+                attach(builder.build(path));
+                return;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw new TorCircuitException("Circuit build failed after " + builder.maxAttempts + " attempts: " + lastError.getMessage());
+    }
+
+    private void attach(TorCircuit c) {
+        circ = c;
+        c.resilient = this;
+    }
+
+    /**
+     * Chooses a router for a position in a path being repaired
+     *
+     * @param position Position after the first hop, the last being the exit
+     * @param previous Router which was there, or null for a new path
+     * @return router to use
+     */
+    protected OnionRouter replacement(int position, OnionRouter previous) {
+        if (exitPort < 0)
+            return previous;
+        Consensus con = Consensus.getConsensus();
+        boolean exit = path == null || position == path.length - 1;
+        OnionRouter r;
+        do { // avoid the router that was lost, if there's any choice
+            r = exit ? con.getRandomORWithFlag(builder.exitFlags, exitPort)
+                    : con.getRandomORWithFlag(builder.middleFlags);
+        } while (r == previous && con.routers.size() > 2);
+        return r;
+    }
+
+    /**
+     * Opens a stream on the circuit, or once it is repaired if a repair is under way
+     *
+     * @param host Hostname/ip
+     * @param port Port
+     * @param list A listener for stream events
+     * @return TorStream object, which may move to a repaired circuit
+     */
+    public synchronized TorStream createStream(String host, int port, TorStream.TorStreamListener list) throws IOException {
+        if (closed)
+            throw new TorCircuitException("Resilient circuit closed");
+
+        TorStream st;
+        if (repairing || circ.isDestroyed()) {
+            st = new TorStream(0, circ, list);
+            st.host = host;
+            st.port = port;
+            waiting.add(st);
+        } else {
+            st = circ.createStream(host, port, list);
+        }
+        if (policy == StreamPolicy.RETRY_UNACKNOWLEDGED)
+            st.replay = new ArrayList<>();
+        return st;
+    }
+
+    private boolean retriable(TorCircuit lost, TorStream st) {
+        if (st.state == TorStream.STATES.DESTROYED || st.host == null || st.cellsReceived > 0)
+            return false;
+        switch (policy) {
+            case RETRY_IDLE:
+                return st.cellsSent == 0;
+            case RETRY_UNACKNOWLEDGED:
+                return st.cellsSent == 0 || lost.unacknowledged(st);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called by the circuit when it has lost its exit.  Takes the streams it can retry and starts the repair.
+     *
+     * @param lost          Circuit
+     * @param streams       Streams on the circuit
+     * @param survivingHops Hops which can still be used, 0 if the circuit was destroyed
+     * @return streams taken over, the circuit disconnects the rest
+     */
+    synchronized Collection<TorStream> circuitLost(TorCircuit lost, Collection<TorStream> streams, int survivingHops) {
+        if (closed || lost != circ)
+            return Collections.emptyList();
+
+        List<TorStream> kept = new ArrayList<>();
+        for (TorStream st : streams) {
+            if (!retriable(lost, st)) {
+                if (st.state != TorStream.STATES.DESTROYED)
+                    streamsLost++;
+                continue;
+            }
+            synchronized (lost) { // data sent before has to go again, first
+                if (st.replay != null && !st.replay.isEmpty()) {
+                    st.requeueFirst(st.replay);
+                    st.replay = new ArrayList<>();
+                }
+            }
+            kept.add(st);
+        }
+        waiting.addAll(kept);
+        streamsRetried += kept.size();
+
+        log.info("Circuit " + lost.circId + " lost with " + survivingHops + " hops left, repairing - " + kept.size()
+                + " of " + streams.size() + " streams will be retried");
+        repairing = true;
+        repair(lost, survivingHops, 1);
+        return kept;
+    }
+
+    // chooses routers off the receive thread (they may need descriptors) then re-extends or rebuilds
+    private void repair(final TorCircuit lost, final int survivingHops, final int attempt) {
+        final boolean extend = survivingHops > 0 && attempt == 1 && !lost.isDestroyed();
+        CompletableFuture.supplyAsync(() -> {
+            OnionRouter next[] = path.clone();
+            // the hop after the last survivor is the one that failed
+            for (int i = extend ? survivingHops - 1 : 0; i < next.length; i++)
+                if (!extend || i == survivingHops - 1)
+                    next[i] = replacement(i, path[i]);
+            try {
+                for (OnionRouter r : next)
+                    r.getOnionKey();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return next;
+        }).thenCompose(next -> {
+            CompletableFuture<TorCircuit> f = extend ? reextend(lost, next, survivingHops) : rebuild(lost, next);
+            return f.thenApply(c -> {
+                repaired(c, next, !extend);
+                return c;
+            });
+        }).whenComplete((c, e) -> {
+            if (e != null)
+                repairFailed(lost, attempt, e);
+        });
+    }
+
+    private CompletableFuture<TorCircuit> reextend(TorCircuit truncated, OnionRouter next[], int survivingHops) {
+        CompletableFuture<TorCircuit> f = CompletableFuture.completedFuture(truncated);
+        for (int i = survivingHops - 1; i < next.length; i++) {
+            final OnionRouter r = next[i];
+            f = f.thenCompose(c -> c.extendAsync(r));
+        }
+        return Futures.withTimeout(f, builder.timeout.getTimeoutMillis(), "Timed out re-extending circuit");
+    }
+
+    private CompletableFuture<TorCircuit> rebuild(TorCircuit old, OnionRouter next[]) {
+        discard(old);
+        final TorCircuit c = builder.sock.createCircuit(false);
+        CompletableFuture<TorCircuit> f = Futures.withTimeout(c.buildAsync(next), builder.timeout.getTimeoutMillis(),
+                "Timed out rebuilding circuit");
+        f.whenComplete((v, e) -> {
+            if (e != null)
+                discard(c);
+        });
+        return f;
+    }
+
+    // destroys a circuit we've given up on without it being reported as lost
+    private void discard(TorCircuit c) {
+        c.resilient = null;
+        try {
+            c.destroy();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Failed to destroy circuit " + c.circId + ": " + e);
+        }
+    }
+
+    private synchronized void repaired(TorCircuit c, OnionRouter next[], boolean rebuilt) throws CompletionException {
+        if (closed) {
+            discard(c);
+            return;
+        }
+        if (c.isDestroyed())
+            throw new CompletionException(new TorCircuitException("Repaired circuit lost again"));
+
+        path = next;
+        attach(c);
+        c.setBlocking(true);
+        repairing = false;
+        repairs++;
+        if (rebuilt)
+            rebuilds++;
+        log.info("Circuit " + (rebuilt ? "rebuilt" : "re-extended") + " as " + c.circId + ", reattaching "
+                + waiting.size() + " streams");
+
+        for (TorStream st : waiting) {
+            if (st.state == TorStream.STATES.DESTROYED)
+                continue;
+            try {
+                c.reattachStream(st);
+            } catch (IOException | RuntimeException e) {
+                log.debug("Failed to reattach stream: " + e);
+                st.discardPending();
+                st.notifyDisconnect();
+            }
+        }
+        waiting.clear();
+    }
+
+    private synchronized void repairFailed(TorCircuit lost, int attempt, Throwable e) {
+        if (closed)
+            return;
+        failedRepairs++;
+        if (attempt < MAX_REPAIR_ATTEMPTS) {
+            log.info("Circuit repair attempt " + attempt + " failed, building a new circuit: " + e);
+            repair(lost, 0, attempt + 1);
+            return;
+        }
+
+        log.warn("Giving up repairing circuit after " + attempt + " attempts: " + e);
+        closed = true;
+        repairing = false;
+        for (TorStream st : waiting) {
+            st.discardPending();
+            st.notifyDisconnect();
+        }
+        streamsLost += waiting.size();
+        waiting.clear();
+    }
+
+    /**
+     * Destroys the circuit without repairing it, disconnecting any streams waiting for a repair
+     */
+    public void close() throws IOException {
+        List<TorStream> orphans;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            orphans = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (TorStream st : orphans) {
+            st.discardPending();
+            st.notifyDisconnect();
+        }
+        circ.resilient = null;
+        circ.destroy();
+    }
+
+    /**
+     * @return the current circuit - replaced after a rebuild
+     */
+    public TorCircuit getCircuit() {
+        return circ;
+    }
+
+    public synchronized void setStreamPolicy(StreamPolicy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized boolean isRepairing() {
+        return repairing;
+    }
+
+    /**
+     * @return true once closed, or after repairs have failed MAX_REPAIR_ATTEMPTS times in a row
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized long getRepairs() {
+        return repairs;
+    }
+
+    public synchronized long getRebuilds() {
+        return rebuilds;
+    }
+
+    public synchronized long getFailedRepairs() {
+        return failedRepairs;
+    }
+
+    public synchronized long getStreamsRetried() {
+        return streamsRetried;
+    }
+
+    public synchronized long getStreamsLost() {
+        return streamsLost;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResilientCircuit{" +
+                "circ=" + circ.circId +
+                ", policy=" + policy +
+                ", repairing=" + repairing +
+                ", repairs=" + repairs +
+                ", rebuilds=" + rebuilds +
+                ", failedRepairs=" + failedRepairs +
+                ", streamsRetried=" + streamsRetried +
+                ", streamsLost=" + streamsLost +
+                '}';
+    }
+}
@@ -0,0 +1,178 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which routers (and directory servers) have failed recently, so that path and directory selection can
+ * pass over them.  Each consecutive failure doubles how long a router is avoided, from INITIAL_BACKOFF_MILLIS up to
+ * MAX_BACKOFF_MILLIS; a success clears it.
+ * <p/>
+ * Failures are reported as they happen: a link that can't be opened, a CREATE or EXTEND refused or timed out, a
+ * directory download that fails.  Lookups are a single hash table read.
+ */
+public class RouterHealth {
+    final static Logger log = LogManager.getLogger();
+
+    public static long INITIAL_BACKOFF_MILLIS = 2000;
+    public static long MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    private static RouterHealth defaultHealth;
+
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * What is known about one router
+     */
+    public static class Record {
+        private int failures = 0; // consecutive
+        private long totalFailures = 0;
+        private long lastSuccess = 0, lastFailure = 0;
+        private long backoffUntil = 0;
+
+        synchronized void failed(long now) {
+            failures++;
+            totalFailures++;
+            lastFailure = now;
+            long backoff = INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 30);
+            backoffUntil = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+        }
+
+        synchronized void succeeded(long now) {
+            failures = 0;
+            lastSuccess = now;
+            backoffUntil = 0;
+        }
+
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        public synchronized long getTotalFailures() {
+            return totalFailures;
+        }
+
+        /**
+         * @return time of the last success, 0 for never
+         */
+        public synchronized long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        public synchronized long getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * @return time until which the router is avoided, 0 if it isn't
+         */
+        public synchronized long getBackoffUntil() {
+            return backoffUntil;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Record{" +
+                    "failures=" + failures +
+                    ", totalFailures=" + totalFailures +
+                    ", lastSuccess=" + lastSuccess +
+                    ", backoffUntil=" + backoffUntil +
+                    '}';
+        }
+    }
+
+    /**
+     * @return the table consulted by Consensus and fed by TorSocket and TorCircuit
+     */
+    public static synchronized RouterHealth getDefault() {
+        if (defaultHealth == null)
+            defaultHealth = new RouterHealth();
+        return defaultHealth;
+    }
+
+    public void failed(OnionRouter r) {
+        if (r != null)
+            failed(r.identityhash);
+    }
+
+    /**
+     * @param key Router identity, or for servers which aren't routers (e.g. authorities) their address
+     */
+    public void failed(String key) {
+        Record rec = records.computeIfAbsent(key, k -> new Record());
+        rec.failed(System.currentTimeMillis());
+        log.debug("Router {} failed, avoiding it until {}", key, rec.getBackoffUntil());
+    }
+
+    public void succeeded(OnionRouter r) {
+        if (r != null)
+            succeeded(r.identityhash);
+    }
+
+    public void succeeded(String key) {
+        records.computeIfAbsent(key, k -> new Record()).succeeded(System.currentTimeMillis());
+    }
+
+    /**
+     * @return false while the router is being avoided after a failure
+     */
+    public boolean isUsable(OnionRouter r) {
+        return isUsable(r.identityhash);
+    }
+
+    public boolean isUsable(String key) {
+        Record rec = records.get(key);
+        return rec == null || rec.getBackoffUntil() <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return what is known about a router, or null if it has never been reported
+     */
+    public Record get(OnionRouter r) {
+        return records.get(r.identityhash);
+    }
+
+    /**
+     * @return number of routers currently being avoided
+     */
+    public int getBackedOffCount() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (Record rec : records.values())
+            if (rec.getBackoffUntil() > now)
+                n++;
+        return n;
+    }
+
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "RouterHealth{" +
+                "known=" + records.size() +
+                ", backedOff=" + getBackedOffCount() +
+                '}';
+    }
+}
@@ -22,16 +22,30 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bouncycastle.util.encoders.Hex;
+import tor.util.Futures;
+import tor.util.IdAllocator;
 import tor.util.TorCircuitException;
+import tor.util.UniqueQueue;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.LinkedList;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TorCircuit {
 
@@ -48,6 +62,12 @@ public class TorCircuit {
     public static final int RELAY_RESOLVE = 11;
     public static final int RELAY_RESOLVED = 12;
     public static final int RELAY_BEGIN_DIR = 13;
+    public static final int RELAY_CONFLUX_LINK = 19;
+    public static final int RELAY_CONFLUX_LINKED = 20;
+    public static final int RELAY_CONFLUX_LINKED_ACK = 21;
+    public static final int RELAY_CONFLUX_SWITCH = 22;
+    public static final int RELAY_XOFF = 43;
+    public static final int RELAY_XON = 44;
     public static final int RELAY_COMMAND_ESTABLISH_INTRO = 32;
     public static final int RELAY_COMMAND_ESTABLISH_RENDEZVOUS = 33;
     public static final int RELAY_COMMAND_INTRODUCE1 = 34;
@@ -58,7 +78,6 @@ public class TorCircuit {
     public static final int RELAY_COMMAND_RENDEZVOUS_ESTABLISHED = 39;
     public static final int RELAY_COMMAND_INTRODUCE_ACK = 40;
     final static Logger log = LogManager.getLogger();
-    public static short streamId_counter = 1;
     public static String[] DESTROY_ERRORS = {"NONE", "PROTOCOL", "INTERNAL", "REQUESTED", "HIBERNATING",
             "RESOURCELIMIT", "CONNECTFAILED", "OR_IDENTITY", "OR_CONN_CLOSED",
             "FINISHED", "TIMEOUT", "DESTROYED", "NOSUCHSERVICE"};
@@ -67,10 +86,17 @@ public class TorCircuit {
             "REASON_NOROUTE", "REASON_HIBERNATING", "REASON_INTERNAL",
             "REASON_RESOURCELIMIT", "REASON_CONNRESET", "REASON_TORPROTOCOL",
             "REASON_NOTDIRECTORY"};
-    private static int circId_counter = 1;
+    public static final int REASON_EXITPOLICY = 4;
+    // command, recognized, stream ID, digest, length
+    public static final int RELAY_HEADER_LEN = 1 + 2 + 2 + 4 + 2;
+    private static final byte ZERO_DIGEST[] = new byte[4];
     // temp vars for created/extended
     public BigInteger temp_x;
     public OnionRouter temp_r;
+    private volatile OnionRouter reportedFailure;
+    private volatile boolean anyBuildFailed = false;
+    // spare buffer for decrypting cells, used on the receive thread
+    private byte[] decryptBuffer;
     public STATES state = STATES.NONE;
     public byte[] rendezvousCookie = new byte[20];
     /**
@@ -80,16 +106,33 @@ public class TorCircuit {
      * @return Successfully handled
      */
     public long receiveWindow = 1000;
-    public long sendWindow = 1000;
+    public long sendWindow = CIRCUIT_WINDOW_START;
+    // DATA cells we may package before the next circuit SENDME
+    public final static int CIRCUIT_WINDOW_START = 1000;
+    public final static int CIRCUIT_WINDOW_INCREMENT = 100;
+    // sender side congestion control with the last hop, or null for fixed windows
+    CongestionControl cc = null;
+    // DATA cells sent to and received from the last hop, for SENDME timing, and sent cells acknowledged by SENDMEs
+    long dataCellsSent = 0, dataCellsReceived = 0, dataCellsAcked = 0;
+    // digests of sent cells which the last hop's SENDMEs must echo back (authenticated SENDMEs), and when they were sent
+    ArrayDeque<byte[]> sendmeDigests = new ArrayDeque<>();
+    ArrayDeque<Long> sendmeTimes = new ArrayDeque<>();
+    // RTT and throughput, measured from our own traffic
+    final CircuitStats stats = new CircuitStats();
+    // set this circuit is a leg of, if any
+    ConfluxSet conflux = null;
+    // repairs this circuit and takes over its streams if it is lost, if set
+    volatile ResilientCircuit resilient = null;
     long circId = 0;
     boolean blocking = false;
-    // list of active streams for this circuit
-    TreeMap<Integer, TorStream> streams = new TreeMap<>();
-    // streams with packets to send
-    /**
-     *
-     */
-    //UniqueQueue <TorStream> streamsSending = new UniqueQueue<TorStream>();
+    // list of active streams for this circuit - listeners may remove streams while we iterate
+    ConcurrentSkipListMap<Integer, TorStream> streams = new ConcurrentSkipListMap<>();
+    // stream IDs in use on this circuit, freed on RELAY_END
+    IdAllocator streamIds = new IdAllocator(1, 0xFFFF);
+    // RESOLVE requests waiting for their RESOLVED, by the stream ID they were sent with
+    ConcurrentHashMap<Integer, CompletableFuture<List<TorResolver.Answer>>> resolving = new ConcurrentHashMap<>();
+    // streams with packets to send, served round-robin by flushStreams() - guarded by this
+    UniqueQueue<TorStream> streamsSending = new UniqueQueue<TorStream>();
 
     TorSocket sock;
     /**
@@ -105,13 +148,16 @@ public class TorCircuit {
     // this circuit hop
     private LinkedList<OnionRouter> circuitToBuild = new LinkedList<>();
     private ArrayList<TorHop> hops = new ArrayList<>();
+    private AtomicBoolean released = new AtomicBoolean(false);
     private Object stateNotify = new Object();
+    private long stateChanges = 0;
+    // futures waiting for a state, completed by setState (i.e. from handleCell on the socket's receive thread)
+    private EnumMap<STATES, ArrayList<CompletableFuture<TorCircuit>>> stateFutures = new EnumMap<>(STATES.class);
+    // timeout for blocking builds, 0 for none
+    long buildTimeoutMillis = CircuitBuildTimeout.getDefault().getTimeoutMillis();
 
     public TorCircuit(TorSocket sock) {
-        circId = circId_counter++;
-        // in proto version 4 or higher, the MSB bit of the circId must be one for the initiator (aka, us).
-        if (sock.PROTOCOL_VERSION >= 4)
-            circId |= 0x80000000;
+        circId = sock.allocateCircuitId();
         this.sock = sock;
     }
 
@@ -126,30 +172,119 @@ public class TorCircuit {
 
     public void setState(STATES newState) {
         log.trace("[Circ {}] New Circuit state {} (oldState {})", circId, newState, state);
+        ArrayList<CompletableFuture<TorCircuit>> completed;
+        ArrayList<CompletableFuture<TorCircuit>> failed = new ArrayList<>();
         synchronized (stateNotify) {
             state = newState;
+            stateChanges++;
             stateNotify.notifyAll();
+
+            completed = stateFutures.remove(newState);
+            if (newState == STATES.DESTROYED) {
+                for (ArrayList<CompletableFuture<TorCircuit>> l : stateFutures.values())
+                    failed.addAll(l);
+                stateFutures.clear();
+            }
+        }
+
+        // complete outside the lock as dependent stages run in this thread
+        if (completed != null)
+            for (CompletableFuture<TorCircuit> f : completed)
+                f.complete(this);
+        for (CompletableFuture<TorCircuit> f : failed)
+            f.completeExceptionally(new TorCircuitException("Circuit destroyed"));
+    }
+
+    /**
+     * Returns a future completed when the circuit next enters (or is already in) a state.  Completion happens on the
+     * socket's receive thread, so dependent stages must not block - use the *Async stage variants for slow work.
+     *
+     * @param desired State to wait for
+     * @return future completed with this circuit, or exceptionally if the circuit is destroyed first
+     */
+    public CompletableFuture<TorCircuit> stateFuture(STATES desired) {
+        CompletableFuture<TorCircuit> f = new CompletableFuture<>();
+        synchronized (stateNotify) {
+            if (state == desired) {
+                f.complete(this);
+                return f;
+            }
+            if (state == STATES.DESTROYED) {
+                f.completeExceptionally(new TorCircuitException("Circuit destroyed"));
+                return f;
+            }
+            ArrayList<CompletableFuture<TorCircuit>> l = stateFutures.get(desired);
+            if (l == null)
+                stateFutures.put(desired, l = new ArrayList<>());
+            l.add(f);
         }
+        return f;
+    }
+
+    /**
+     * Adds the build timeout to a future waiting for the circuit, destroying the circuit if the future times out or
+     * is cancelled by the caller.
+     */
+    private CompletableFuture<TorCircuit> buildFuture(CompletableFuture<TorCircuit> f, String what) {
+        Futures.withTimeout(f, buildTimeoutMillis, "Timed out waiting for " + what);
+        f.whenComplete((c, e) -> {
+            if (e != null && state != STATES.DESTROYED) {
+                buildFailed();
+                try {
+                    destroy();
+                } catch (IOException e1) {
+                    log.debug("Failed to destroy abandoned circuit " + circId + ": " + e1);
+                }
+            }
+        });
+        return f;
     }
 
     public void waitForState(STATES desired, boolean waitIfAlready) throws IOException {
-        if (!waitIfAlready && state.equals(desired))
-            return;
-        while (true) {
-            synchronized (stateNotify) {
+        waitForState(desired, waitIfAlready, 0);
+    }
+
+    /**
+     * Waits for the circuit to reach a state
+     *
+     * @param desired       State to wait for
+     * @param waitIfAlready If true and already in desired state, waits for the circuit to enter it again
+     * @param timeoutMillis Give up after this long (0 waits forever)
+     * @throws TorCircuitException if the circuit is destroyed or the timeout expires
+     */
+    public void waitForState(STATES desired, boolean waitIfAlready, long timeoutMillis) throws IOException {
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        synchronized (stateNotify) {
+            long changesSeen = stateChanges;
+            while (state != desired || (waitIfAlready && stateChanges == changesSeen)) {
+                if (state == STATES.DESTROYED)
+                    throw new TorCircuitException("Waiting for unreachable state - circuit destroyed");
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (desired == STATES.READY)
+                        buildFailed();
+                    throw new TorCircuitException("Timed out waiting for circuit state " + desired + " (state " + state + ")");
+                }
                 try {
-                    stateNotify.wait();
-                    if (state == STATES.DESTROYED && desired != STATES.DESTROYED)
-                        log.exit("Waiting for unreachable state - circuit destroyed");
+                    stateNotify.wait(remaining);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    throw new InterruptedIOException("Interrupted waiting for circuit state " + desired);
                 }
             }
-            if (state.equals(desired))
-                return;
         }
     }
 
+    /**
+     * Sets how long blocking create/extend/createRoute calls wait before giving up.  Defaults to the learned
+     * CircuitBuildTimeout.
+     *
+     * @param buildTimeoutMillis Timeout, or 0 to wait forever
+     */
+    public void setBuildTimeout(long buildTimeoutMillis) {
+        this.buildTimeoutMillis = buildTimeoutMillis;
+    }
+
     /**
      * Utility function to create routes
      *
@@ -169,13 +304,103 @@ public class TorCircuit {
         create(sock.firstHop); // must go to first hop first
 
         if (blocking)
-            waitForState(STATES.READY, false);
+            waitForState(STATES.READY, false, buildTimeoutMillis);
     }
 
     public void create() throws IOException {
         create(sock.firstHop);
     }
 
+    /**
+     * Non-blocking createRoute().  The onion keys of the routers should already be known (e.g. via
+     * Consensus.fetchAllDescriptors()), otherwise descriptors are fetched in the calling thread.
+     *
+     * @param hopList Comma separated list on onion router names
+     * @return future completed when the whole route is READY
+     */
+    public CompletableFuture<TorCircuit> createRouteAsync(String hopList) {
+        if (state == STATES.DESTROYED)
+            return Futures.failed(new TorCircuitException("Trying to use destroyed circuit"));
+
+        try {
+            for (String s : hopList.split(","))
+                circuitToBuild.add(Consensus.getConsensus().getRouterByName(s));
+        } catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+        return createAsync(sock.firstHop);
+    }
+
+    public CompletableFuture<TorCircuit> createAsync() {
+        return createAsync(sock.firstHop);
+    }
+
+    /**
+     * Non-blocking create(), regardless of setBlocking()
+     *
+     * @param r Hop
+     * @return future completed when the circuit is READY (or, with createRouteAsync, the whole route is built)
+     */
+    public CompletableFuture<TorCircuit> createAsync(OnionRouter r) {
+        if (state == STATES.DESTROYED)
+            return Futures.failed(new TorCircuitException("Trying to use destroyed circuit"));
+
+        try {
+            byte payload[] = createPayload(r);
+            setState(STATES.CREATING);
+            CompletableFuture<TorCircuit> f = stateFuture(STATES.READY);
+            sock.sendCell(circId, Cell.CREATE, payload);
+            return buildFuture(f, "CREATED from " + r);
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    /**
+     * Non-blocking extend(), regardless of setBlocking().  The onion key of nextHop should already be known, as the
+     * descriptor is otherwise fetched in the calling thread - which, when chained on another build future, is the
+     * socket's receive thread.
+     *
+     * @param nextHop Hop to extend to
+     * @return future completed when the circuit is READY again
+     */
+    public CompletableFuture<TorCircuit> extendAsync(OnionRouter nextHop) {
+        if (state == STATES.DESTROYED)
+            return Futures.failed(new TorCircuitException("Trying to use destroyed circuit"));
+
+        try {
+            byte extend[] = extendPayload(nextHop);
+            setState(STATES.EXTENDING);
+            CompletableFuture<TorCircuit> f = stateFuture(STATES.READY);
+            send(extend, RELAY_EXTEND, true, (short) 0);
+            return buildFuture(f, "EXTENDED from " + nextHop);
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    /**
+     * Creates to the socket's first hop then extends through path, without blocking once it returns.  Onion keys
+     * that aren't known yet are fetched first, in the calling thread, so that the extends sent from the receive
+     * thread as each hop answers never wait on a descriptor download.
+     *
+     * @param path Routers to extend to, in order
+     * @return future completed when the full circuit is READY
+     */
+    public CompletableFuture<TorCircuit> buildAsync(final OnionRouter... path) {
+        try {
+            for (OnionRouter r : path)
+                r.getOnionKey();
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+
+        CompletableFuture<TorCircuit> f = createAsync();
+        for (final OnionRouter r : path)
+            f = f.thenCompose(c -> c.extendAsync(r));
+        return buildFuture(f, "circuit build");
+    }
+
     /**
      * Sends a create cell to specified hop (usually first hop that we're already connected to)
      *
@@ -191,7 +416,7 @@ public class TorCircuit {
         sock.sendCell(circId, Cell.CREATE, createPayload(r));
 
         if (blocking)
-            waitForState(STATES.READY, true);
+            waitForState(STATES.READY, false, buildTimeoutMillis);
     }
 
     /**
@@ -208,13 +433,84 @@ public class TorCircuit {
         TorCrypto.rnd.nextBytes(privkey);
         temp_x = TorCrypto.byteToBN(privkey);
         temp_r = r;
+        reportedFailure = null;
 
-        // generate pub key
+        // generate pub key, padded to DH_LEN so the onionskin is always the same size
         BigInteger pubKey = TorCrypto.DH_G.modPow(temp_x, TorCrypto.DH_P);
-        byte pubKeyByte[] = TorCrypto.BNtoByte(pubKey);
+        byte gx[] = TorCrypto.BNtoByte(pubKey);
+        byte pubKeyByte[] = new byte[TorCrypto.DH_LEN];
+        System.arraycopy(gx, 0, pubKeyByte, TorCrypto.DH_LEN - gx.length, gx.length);
         return TorCrypto.hybridEncrypt(pubKeyByte, r.getOnionKey());
     }
 
+    /**
+     * Resets flow control for a new last hop: SENDMEs are exchanged with it from now on, using congestion control if
+     * the hop has it
+     */
+    private synchronized void lastHopAdded(TorHop hop) {
+        cc = hop.sendmeInc > 0 ? new CongestionControl(hop.sendmeInc) : null;
+        sendWindow = CIRCUIT_WINDOW_START;
+        receiveWindow = 1000;
+        dataCellsSent = dataCellsReceived = dataCellsAcked = 0;
+        sendmeDigests.clear();
+        sendmeTimes.clear();
+        if (cc != null)
+            log.debug("Congestion control with " + hop.router);
+    }
+
+    /**
+     * @return true if the last hop uses congestion control, in which case there are no stream windows
+     */
+    public boolean usesCongestionControl() {
+        return cc != null;
+    }
+
+    /**
+     * @return congestion control state, or null if the circuit uses fixed windows
+     */
+    public CongestionControl getCongestionControl() {
+        return cc;
+    }
+
+    // cells between circuit SENDMEs
+    private int sendmeIncrement() {
+        return cc != null ? cc.sendmeInc : CIRCUIT_WINDOW_INCREMENT;
+    }
+
+    public long getCircId() {
+        return circId;
+    }
+
+    /**
+     * @return RTT and throughput estimates for this circuit
+     */
+    public CircuitStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Predicts how long a new stream would take to connect and receive some data, given what is queued here
+     *
+     * @param bytes Data the stream is expected to receive
+     * @return predicted milliseconds
+     */
+    public double predictCompletionMillis(long bytes) {
+        int window = cc != null ? cc.getCwnd() : CIRCUIT_WINDOW_START;
+        return stats.predictCompletionMillis(bytes, getQueuedCells() * 498L, window);
+    }
+
+    boolean canPackage() {
+        return cc != null ? cc.canSend() : sendWindow > 0;
+    }
+
+    private static byte[] currentDigest(MessageDigest md) {
+        try {
+            return ((MessageDigest) md.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Builds a relay cell payload (not including cell header, only relay header)
      *
@@ -311,6 +607,27 @@ public class TorCircuit {
         // without the fix to getLastHop() which returns null when hops.size() == 0
         //TorHop lastHop = getLastHop();
 
+        byte extend[] = extendPayload(nextHop);
+
+        // set state before sending, otherwise a quick EXTENDED could be overwritten
+        setState(STATES.EXTENDING);
+
+        send(extend, RELAY_EXTEND, true, (short) 0);
+        //byte []payload = encrypt(buildRelay(lastHop, RELAY_EXTEND, (short)0, extend));
+        //sock.sendCell(circId, Cell.RELAY_EARLY, payload);
+
+        if (blocking)
+            waitForState(STATES.READY, false, buildTimeoutMillis);
+    }
+
+    /**
+     * Builds extend cell payload (address, port, create handshake and identity of the next hop)
+     *
+     * @param nextHop Hop to extend to
+     * @return Payload
+     * @throws IOException
+     */
+    private byte[] extendPayload(OnionRouter nextHop) throws IOException {
         byte create[] = createPayload(nextHop);
         byte extend[] = new byte[4 + 2 + create.length + TorCrypto.HASH_LEN];
         ByteBuffer buf = ByteBuffer.wrap(extend);
@@ -318,15 +635,20 @@ public class TorCircuit {
         buf.putShort((short) nextHop.orport);
         buf.put(create);
         buf.put(Hex.decode(nextHop.identityhash));
+        return extend;
+    }
 
-        send(extend, RELAY_EXTEND, true, (short) 0);
-        //byte []payload = encrypt(buildRelay(lastHop, RELAY_EXTEND, (short)0, extend));
-        //sock.sendCell(circId, Cell.RELAY_EARLY, payload);
-
-        setState(STATES.EXTENDING);
-
-        if (blocking)
-            waitForState(STATES.READY, false);
+    /**
+     * Reports the router being created or extended to as failed, if there is one: its CREATE or EXTEND was refused or
+     * timed out.  Reported once per attempt.
+     */
+    private void buildFailed() {
+        OnionRouter r = temp_r;
+        if ((state != STATES.CREATING && state != STATES.EXTENDING) || r == null || r == reportedFailure)
+            return;
+        reportedFailure = r;
+        anyBuildFailed = true;
+        RouterHealth.getDefault().failed(r);
     }
 
     /**
@@ -335,6 +657,13 @@ public class TorCircuit {
      * @param in Cell payload (e.g. handshake data)
      */
     private void handleCreated(byte in[]) throws TorCircuitException {
+        BigInteger x = temp_x;
+        OnionRouter r = temp_r;
+        if (x == null || r == null) {
+            log.debug("Late CREATED/EXTENDED for closed circuit " + circId + " ignored");
+            return;
+        }
+
         // other side's public key
         byte y_bytes[] = Arrays.copyOfRange(in, 0, TorCrypto.DH_LEN);
 
@@ -342,29 +671,234 @@ public class TorCircuit {
         byte kh[] = Arrays.copyOfRange(in, TorCrypto.DH_LEN, TorCrypto.DH_LEN + TorCrypto.HASH_LEN);
 
         //calculate g^xy shared secret
-        BigInteger secret = TorCrypto.byteToBN(y_bytes).modPow(temp_x, TorCrypto.DH_P);
+        BigInteger secret = TorCrypto.byteToBN(y_bytes).modPow(x, TorCrypto.DH_P);
 
         // derive key data data
-        byte kdf[] = TorCrypto.torKDF(TorCrypto.BNtoByte(secret), 3 * TorCrypto.HASH_LEN + 2 * TorCrypto.KEY_LEN);
+        byte kdf[] = TorCrypto.torKDF(TorCrypto.BNtoByte(secret, TorCrypto.DH_LEN), 3 * TorCrypto.HASH_LEN + 2 * TorCrypto.KEY_LEN);
 
         // ad hop
-        hops.add(new TorHop(kdf, kh, temp_r));
+        TorHop hop = new TorHop(kdf, kh, r);
+        if (CongestionControl.ENABLED)
+            hop.sendmeInc = sock.negotiateSendmeInc(r);
+        hops.add(hop);
+        lastHopAdded(hop);
+        RouterHealth.getDefault().succeeded(r);
 
         if (circuitToBuild.isEmpty())
             setState(STATES.READY);
     }
 
+    private int allocateStreamId() throws TorCircuitException {
+        int stid = streamIds.allocate();
+        if (stid == -1)
+            throw new TorCircuitException("No free stream IDs on circuit " + circId);
+        return stid;
+    }
+
+    /**
+     * Forgets a stream that has ended, making its ID available again
+     *
+     * @param st Ended stream
+     */
+    void removeStream(TorStream st) {
+        if (st.conflux != null) { // registered on every leg
+            st.conflux.removeStream(st);
+            return;
+        }
+        synchronized (this) {
+            streamsSending.remove(st);
+            st.discardPending();
+            if (streams.remove(st.streamId, st))
+                streamIds.free(st.streamId);
+        }
+    }
+
+    /**
+     * Ends a stream we've closed.  If it still has parked data the END cell is sent by the scheduler after it.
+     *
+     * @param st Stream being destroyed
+     */
+    synchronized void endStream(TorStream st) throws IOException {
+        if (st.hasPending() && state != STATES.DESTROYED && streams.get(st.streamId) == st) {
+            st.endQueued = true;
+            streamsSending.add(st);
+            flushStreams();
+            return;
+        }
+        sendEnd(st);
+    }
+
+    private void sendEnd(TorStream st) throws IOException {
+        boolean attached = streams.get(st.streamId) == st; // not if already ended, or taken off a lost circuit
+        removeStream(st);
+        if (attached && state != STATES.DESTROYED)
+            send(new byte[]{6}, RELAY_END, false, (short) st.streamId);
+    }
+
+    /**
+     * Queues a stream which has data parked, and sends whatever the windows allow
+     *
+     * @param st Stream
+     */
+    synchronized void streamReady(TorStream st) throws IOException {
+        if (streams.get(st.streamId) != st)
+            return; // detached, e.g. waiting for the circuit to be repaired
+        streamsSending.add(st);
+        flushStreams();
+    }
+
+    /**
+     * Outbound scheduler.  Sends parked DATA cells round-robin across streams, one cell per stream per turn, while
+     * both the circuit's and the stream's package windows are open.  A stream whose own window has closed leaves the
+     * queue until its SENDME arrives; when the circuit window closes everything stays parked until the circuit SENDME.
+     */
+    synchronized void flushStreams() throws IOException {
+        while (canPackage() && !streamsSending.isEmpty() && state != STATES.DESTROYED) {
+            TorStream st = streamsSending.poll();
+            if ((cc == null && st.packageWindow <= 0) || st.xoffReceived)
+                continue; // requeued by its SENDME or XON
+            boolean connecting = st.state == TorStream.STATES.CONNECTING;
+            if (connecting && !st.optimistic)
+                continue; // requeued by CONNECTED
+
+            byte data[] = st.pollPending();
+            if (data != null) {
+                send(data, RELAY_DATA, false, (short) st.streamId);
+                if (cc == null)
+                    st.packageWindow--;
+                st.cellsSent++;
+                st.bytesSent += data.length;
+                recordForReplay(st, data);
+                if (connecting)
+                    st.unconfirmed.add(data);
+                else if (!st.unconfirmed.isEmpty())
+                    st.unconfirmed.clear();
+            }
+
+            if (st.hasPending())
+                streamsSending.add(st);
+            else if (st.endQueued)
+                sendEnd(st);
+        }
+    }
+
+    // keeps what a replayable stream sends until the exit has acknowledged any of it - after that it can't be retried
+    private void recordForReplay(TorStream st, byte data[]) {
+        if (st.replay == null)
+            return;
+        if (st.replay.isEmpty())
+            st.replayFrom = dataCellsSent;
+        if (st.cellsReceived > 0 || dataCellsAcked >= st.replayFrom)
+            st.replay = null;
+        else
+            st.replay.add(data);
+    }
+
+    /**
+     * @return true if none of the DATA cells the stream sent on this circuit has been acknowledged
+     */
+    synchronized boolean unacknowledged(TorStream st) {
+        return st.replay != null && (st.replay.isEmpty() || dataCellsAcked < st.replayFrom);
+    }
+
+    // handles a SENDME from the exit, reopening a package window - false if it failed authentication
+    private synchronized boolean handleSendme(TorStream stream, int streamId, byte payload[]) throws IOException {
+        if (streamId == 0) {
+            // authenticated (v1) SENDMEs carry the digest of the cell they acknowledge
+            byte expected[] = sendmeDigests.poll();
+            Long sentAt = sendmeTimes.poll();
+            if (sentAt != null)
+                stats.rttSample((System.nanoTime() - sentAt) / 1e6);
+            if (payload.length >= 3 && payload[0] == 1) {
+                int len = ((payload[1] & 0xff) << 8) | (payload[2] & 0xff);
+                byte got[] = Arrays.copyOfRange(payload, 3, Math.min(payload.length, 3 + len));
+                if (expected == null || !Arrays.equals(expected, got)) {
+                    log.warn("SENDME on circuit " + circId + " doesn't match a cell we sent - destroying circuit");
+                    return false;
+                }
+            }
+            if (cc != null)
+                cc.sendmeReceived();
+            else
+                sendWindow += CIRCUIT_WINDOW_INCREMENT;
+            dataCellsAcked += sendmeIncrement();
+        } else if (stream != null && stream.conflux == null) {
+            stream.packageWindow += TorStream.STREAM_WINDOW_INCREMENT;
+            streamsSending.add(stream);
+        }
+        log.trace("RELAY_SENDME circ " + circId + " Stream " + streamId + " cur window " + (cc != null ? cc : sendWindow));
+        flushStreams();
+        return true;
+    }
+
+    /**
+     * Sends an authenticated circuit SENDME acknowledging the cell just received
+     *
+     * @param fromHop Hop the DATA cells came from
+     */
+    private void sendCircuitSendme(int fromHop) throws IOException {
+        byte digest[] = currentDigest(hops.get(fromHop).db_md);
+        ByteBuffer buf = ByteBuffer.allocate(3 + digest.length);
+        buf.put((byte) 1); // version
+        buf.putShort((short) digest.length);
+        buf.put(digest);
+        send(buf.array(), RELAY_SENDME, false, (short) 0);
+        receiveWindow += sendmeIncrement();
+    }
+
+    /**
+     * Handles RELAY_END for a stream
+     */
+    void streamEnded(TorStream stream, byte payload[]) {
+        int reason = payload.length > 0 ? payload[0] & 0xff : 0;
+        if (reason != 6)
+            log.info("Remote stream closed with error code " + (reason < STREAM_ERRORS.length ? STREAM_ERRORS[reason] : reason));
+        if (stream != null) {
+            stream.endReason = reason;
+            if (stream.state == TorStream.STATES.CONNECTING)
+                beginFailed(stream);
+            stream.notifyDisconnect();
+            removeStream(stream);
+        }
+    }
+
+    // the exit wouldn't connect the stream: keep what it sent and parked, which the exit has dropped, for retryOn()
+    private synchronized void beginFailed(TorStream st) {
+        st.beginFailed = true;
+        streamsSending.remove(st);
+        st.unconfirmed.addAll(st.drainPending());
+    }
+
+    // XOFF/XON from the exit pause and resume one of our streams (used instead of stream SENDMEs with congestion control)
+    private synchronized void handleXoff(TorStream stream, boolean off) throws IOException {
+        stream.xoffReceived = off;
+        if (!off && stream.conflux == null) { // conflux streams are scheduled by their set
+            streamsSending.add(stream);
+            flushStreams();
+        }
+    }
+
+    /**
+     * @return total DATA cells parked on this circuit's streams
+     */
+    public int getQueuedCells() {
+        int n = 0;
+        for (TorStream st : streams.values())
+            n += st.getQueuedCells();
+        return n;
+    }
+
     public TorStream createDirStream(TorStream.TorStreamListener list) throws IOException {
         if (state == STATES.DESTROYED) {
             log.error("Trying to use destroyed circuit");
             throw new RuntimeException("Trying to use destroyed circuit");
         }
 
-        //TODO: allocate stream and circuit IDS properly
-        int stid = streamId_counter++;
-        send(null, RELAY_BEGIN_DIR, false, (short) stid);
+        int stid = allocateStreamId();
+        // register before sending so a quick CONNECTED isn't dropped
         TorStream st = new TorStream(stid, this, list);
         streams.put(stid, st);
+        send(null, RELAY_BEGIN_DIR, false, (short) stid);
         return st;
     }
 
@@ -382,17 +916,108 @@ public class TorCircuit {
             throw new RuntimeException("Trying to use destroyed circuit");
         }
 
+        byte b[] = beginPayload(host, port);
+        sock.predictedPorts.record(port);
+
+        int stid = allocateStreamId();
+        // register before sending so a quick CONNECTED isn't dropped
+        TorStream st = new TorStream(stid, this, list);
+        st.host = host;
+        st.port = port;
+        streams.put(stid, st);
+        st.beginSentNanos = System.nanoTime();
+        send(b, RELAY_BEGIN, false, (short) stid);
+        return st;
+    }
+
+    /**
+     * Moves a stream from a lost circuit onto this one: it gets a new ID and is opened again to the same host, then
+     * its parked data (led by any data being replayed) follows
+     *
+     * @param st Stream taken from a lost circuit
+     */
+    void reattachStream(TorStream st) throws IOException {
+        int stid = allocateStreamId();
+        synchronized (this) {
+            st.circ = this;
+            st.streamId = stid;
+            st.packageWindow = TorStream.STREAM_WINDOW_START;
+            st.xoffReceived = false;
+            st.recvWindow = 500;
+            st.xoffSent = false;
+            st.unconfirmed.clear(); // the replay covers it
+            streams.put(stid, st);
+            st.beginSentNanos = System.nanoTime();
+            send(beginPayload(st.host, st.port), RELAY_BEGIN, false, (short) stid);
+        }
+        if (st.hasPending())
+            streamReady(st);
+    }
+
+    /**
+     * Asks the exit to look up a hostname with RELAY_RESOLVE, without opening a stream.  See TorResolver for a
+     * caching front end.
+     *
+     * @param host Hostname (or in-addr.arpa name for a reverse lookup)
+     * @return future completed with the exit's answers, or failed if the circuit goes first
+     */
+    public CompletableFuture<List<TorResolver.Answer>> resolveAsync(String host) {
+        final CompletableFuture<List<TorResolver.Answer>> f = new CompletableFuture<>();
+        if (state == STATES.DESTROYED)
+            return Futures.failed(new TorCircuitException("Trying to use destroyed circuit"));
+        try {
+            final int stid = allocateStreamId();
+            resolving.put(stid, f);
+            f.whenComplete((a, e) -> {
+                if (resolving.remove(stid, f))
+                    streamIds.free(stid);
+            });
+            send(ArrayUtils.add(host.getBytes("UTF-8"), (byte) 0), RELAY_RESOLVE, false, (short) stid);
+        } catch (IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    static byte[] beginPayload(String host, int port) throws IOException {
         byte b[] = new byte[100];
         ByteBuffer buf = ByteBuffer.wrap(b);
         buf.put((host + ":" + port).getBytes("UTF-8"));
         buf.put((byte) 0); // null terminator
         buf.putInt(0);
-        //TODO: allocate stream and circuit IDS properly
-        int stid = streamId_counter++;
-        send(b, RELAY_BEGIN, false, (short) stid);
-        TorStream st = new TorStream(stid, this, list);
-        streams.put(stid, st);
-        return st;
+        return b;
+    }
+
+    /**
+     * Creates a stream and returns a future completed once the remote side has CONNECTED.  Cancelling the future or
+     * letting it time out destroys the stream.
+     *
+     * @param host          Hostname/ip
+     * @param port          Port
+     * @param list          A listener for stream events (may be null)
+     * @param timeoutMillis Timeout for the connection, 0 for none
+     * @return future completed with the READY stream
+     */
+    public CompletableFuture<TorStream> createStreamAsync(String host, int port, TorStream.TorStreamListener list, long timeoutMillis) {
+        final TorStream st;
+        try {
+            st = createStream(host, port, list);
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+
+        CompletableFuture<TorStream> f = Futures.withTimeout(st.stateFuture(TorStream.STATES.READY), timeoutMillis,
+                "Timed out connecting to " + host + ":" + port);
+        f.whenComplete((s, e) -> {
+            if (e != null) {
+                try {
+                    st.destroy();
+                } catch (IOException | RuntimeException e1) {
+                    log.debug("Failed to destroy abandoned stream: " + e1);
+                }
+            }
+        });
+        return f;
     }
 
     // must be synchronised due to hash calculation - out of sync = bad
@@ -402,10 +1027,20 @@ public class TorCircuit {
             throw new RuntimeException("Trying to use destroyed circuit");
         }
 
-        if (relaytype == RELAY_DATA)
+        TorHop lastHop = hops.get(hops.size() - 1);
+        byte relcell[] = buildRelay(lastHop, relaytype, stream, payload);
+
+        if (relaytype == RELAY_DATA) {
             sendWindow--;
+            dataCellsSent++;
+            // remember the digest of each cell the next SENDME will acknowledge
+            if (cc != null ? cc.dataSent() : dataCellsSent % CIRCUIT_WINDOW_INCREMENT == 0) {
+                sendmeDigests.add(currentDigest(lastHop.df_md));
+                sendmeTimes.add(System.nanoTime());
+            }
+            stats.sent(payload.length);
+        }
 
-        byte relcell[] = buildRelay(hops.get(hops.size() - 1), relaytype, stream, payload);
         sock.sendCell(circId, early ? Cell.RELAY_EARLY : Cell.RELAY, encrypt(relcell));
         sentPackets++;
         sentBytes += relcell.length;
@@ -416,18 +1051,108 @@ public class TorCircuit {
         rendezvousSetup(rendezvousCookie);
     }
 
+    /**
+     * Non-blocking rendezvousSetup()
+     *
+     * @return future completed once RENDEZVOUS_ESTABLISHED
+     */
+    public CompletableFuture<TorCircuit> rendezvousSetupAsync() {
+        if (state == STATES.DESTROYED)
+            return Futures.failed(new TorCircuitException("Trying to use destroyed circuit"));
+
+        TorCrypto.rnd.nextBytes(rendezvousCookie);
+        try {
+            setState(STATES.RENDEZVOUS_WAIT);
+            CompletableFuture<TorCircuit> f = stateFuture(STATES.RENDEZVOUS_ESTABLISHED);
+            send(rendezvousCookie, RELAY_COMMAND_ESTABLISH_RENDEZVOUS, false, (short) 0);
+            return buildFuture(f, "RENDEZVOUS_ESTABLISHED");
+        } catch (IOException | RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
     public void rendezvousSetup(byte[] cookie) throws IOException {
         rendezvousCookie = ArrayUtils.clone(cookie);
 
-        send(rendezvousCookie, RELAY_COMMAND_ESTABLISH_RENDEZVOUS, false, (short) 0);
         setState(STATES.RENDEZVOUS_WAIT);
+        send(rendezvousCookie, RELAY_COMMAND_ESTABLISH_RENDEZVOUS, false, (short) 0);
 
         if (blocking)
-            waitForState(STATES.RENDEZVOUS_ESTABLISHED, false);
+            waitForState(STATES.RENDEZVOUS_ESTABLISHED, false, buildTimeoutMillis);
     }
 
     public void destroy() throws IOException {
+        if (released.get())
+            return;
         sock.sendCell(circId, Cell.DESTROY, null);
+        closed();
+    }
+
+    /**
+     * Called once the circuit is finished with, either end having destroyed it or the link having gone.  Marks it
+     * DESTROYED, disconnects its streams and drops the hops (keys, digests) and pending build state, then removes it
+     * from the socket so that nothing keeps a dead circuit reachable.
+     */
+    void closed() {
+        if (!released.compareAndSet(false, true))
+            return;
+
+        setState(STATES.DESTROYED);
+        List<TorStream> lost;
+        synchronized (this) {
+            lost = detachStreams();
+        }
+        orphanStreams(lost, 0);
+        for (CompletableFuture<List<TorResolver.Answer>> f : resolving.values())
+            f.completeExceptionally(new TorCircuitException("Circuit " + circId + " destroyed before RESOLVED"));
+        if (conflux != null)
+            conflux.legClosed(this);
+
+        boolean built;
+        synchronized (this) { // send() is synchronized and uses hops
+            streamsSending.clear();
+            built = hops.size() > 1;
+            hops = new ArrayList<>();
+        }
+        if (sock.guard != null)
+            sock.guard.circuitClosed(anyBuildFailed, built, getStats());
+        circuitToBuild.clear();
+        temp_x = null;
+        temp_r = null;
+
+        sock.circuitDestroyed(this);
+    }
+
+    // takes every stream off the circuit, so that a stream woken by losing it can't send to a gone exit - hold this
+    private List<TorStream> detachStreams() {
+        List<TorStream> lost = new ArrayList<>(streams.values());
+        streams.clear();
+        streamsSending.clear();
+        return lost;
+    }
+
+    /**
+     * Deals with the streams taken off the circuit once its exit is gone.  Streams are disconnected, apart from those
+     * a resilient circuit can retry, which it takes over.  Streams keep any unread data for their readers.
+     *
+     * @param lost          Streams detached from the circuit
+     * @param survivingHops Hops still usable, for the repair
+     */
+    private void orphanStreams(List<TorStream> lost, int survivingHops) {
+        ResilientCircuit res = resilient;
+        Collection<TorStream> kept = res != null ? res.circuitLost(this, lost, survivingHops)
+                : Collections.<TorStream>emptyList();
+        for (TorStream s : lost) {
+            if (!kept.contains(s)) {
+                s.discardPending();
+                s.notifyDisconnect();
+            }
+            streamIds.free(s.streamId);
+        }
+    }
+
+    public boolean isDestroyed() {
+        return state == STATES.DESTROYED;
     }
 
     /**
@@ -443,18 +1168,19 @@ public class TorCircuit {
         return buf;
     }
 
+    // hashes a relay cell as relayCellRemoveDigest() would leave it, without copying it
+    private static void updateWithoutDigest(MessageDigest md, byte[] relayCell) {
+        md.update(relayCell, 0, 5);
+        md.update(ZERO_DIGEST);
+        md.update(relayCell, 9, relayCell.length - 9);
+    }
+
     public boolean handleCell(Cell c) throws IOException {
         boolean handled = false;
 
-        if (receiveWindow < 900) {
-            //System.out.println("sent SENDME (CIRCUIT): " + receiveWindow);
-            send(null, RELAY_SENDME, false, (short) 0);
-            receiveWindow += 100;
-        }
-
         if (state == STATES.DESTROYED) {
-            log.error("Trying to use destroyed circuit");
-            throw new RuntimeException("Trying to use destroyed circuit");
+            log.debug("Cell for destroyed circuit " + circId + " ignored");
+            return false;
         }
 
         if (c.cmdId == Cell.CREATED) // create
@@ -476,26 +1202,34 @@ public class TorCircuit {
             // cell decrypt logic - decrypt from each hop in turn checking recognised and digest until success
             // remember, we can receive cells from intermediate hops, so it's an iterative decrypt and check if successful
             // for each hop.
+            // each layer is decrypted from one buffer into the other, the cell and decryptBuffer trading places, so
+            // that the cell is neither copied nor reallocated per hop
             int cellFromHop = -1;
+            ArrayList<TorHop> hops = this.hops; // may be swapped out by closed()
+            if (decryptBuffer == null || decryptBuffer.length != c.payload.length)
+                decryptBuffer = new byte[c.payload.length];
             for (int di = 0; di < hops.size(); di++) {  // loop through circuit hops
                 TorHop hop = hops.get(di);
-                c.payload = hop.decrypt(c.payload); // decrypt for this hop
+                byte ciphertext[] = c.payload;
+                hop.decrypt(ciphertext, decryptBuffer); // decrypt for this hop
+                c.payload = decryptBuffer;
+                decryptBuffer = ciphertext;
 
                 if (c.payload[1] == 0 && c.payload[2] == 0) { // are recognised bytes set to zero?
-                    byte nodgrl[] = relayCellRemoveDigest(c.payload); // remove digest from cell
-                    byte hash[] = Arrays.copyOfRange(c.payload, 5, 9); // put digest from cell into hash
                     byte[] digest;
 
                     try {  // calculate the digest that we thing it should be
                         // must clone here to stop clobbering original
-                        digest = ((MessageDigest) hop.db_md.clone()).digest(nodgrl);
+                        MessageDigest md = (MessageDigest) hop.db_md.clone();
+                        updateWithoutDigest(md, c.payload);
+                        digest = md.digest();
                     } catch (CloneNotSupportedException e) {
                         throw new RuntimeException(e);
                     }
 
                     // compare our calculations with digest in cell - if right, we've decrypted correctly
-                    if (Arrays.equals(hash, Arrays.copyOfRange(digest, 0, 4))) {
-                        hop.db_md.update(nodgrl); // update digest for hop for future cells
+                    if (c.payload[5] == digest[0] && c.payload[6] == digest[1] && c.payload[7] == digest[2] && c.payload[8] == digest[3]) {
+                        updateWithoutDigest(hop.db_md, c.payload); // update digest for hop for future cells
                         cellFromHop = di;  // hop number this cell is from
                         break;
                     }
@@ -515,22 +1249,23 @@ public class TorCircuit {
                 log.warn("invalid relay cell");
                 return false;
             }
-            int streamid = buf.getShort();
+            int streamid = buf.getShort() & 0xFFFF;
 
             int digest = buf.getInt();
             int length = buf.getShort();
-            byte data[] = Arrays.copyOfRange(c.payload, 1 + 2 + 2 + 4 + 2, 1 + 2 + 2 + 4 + 2 + length);
+            if (length < 0 || length > c.payload.length - RELAY_HEADER_LEN) {
+                log.warn("invalid relay cell length " + length);
+                return false;
+            }
 
-            // now pass cell off to handler function below
-            handled = handleRelayCell(cmd, streamid, cellFromHop, data);
+            // now pass cell off to handler function below - the data stays in the decrypted cell, which is ours
+            handled = handleRelayCell(cmd, streamid, cellFromHop, c.payload, RELAY_HEADER_LEN, length);
 
         } else if (c.cmdId == Cell.DESTROY) {
             log.info("Circuit destroyed " + circId);
             log.info("Reason: " + DESTROY_ERRORS[c.payload[0]]);
-            for (TorStream s : streams.values()) {
-                s.notifyDisconnect();
-            }
-            setState(STATES.DESTROYED);
+            buildFailed();
+            closed();
             handled = true;
         }
 
@@ -548,10 +1283,55 @@ public class TorCircuit {
      * @throws IOException
      */
     public boolean handleRelayCell(int cmdId, int streamId, int fromHop, byte[] payload) throws IOException {
+        return handleRelayCell(cmdId, streamId, fromHop, payload, 0, payload.length);
+    }
+
+    /**
+     * Handles a decrypted relay cell whose data is a slice of a larger buffer (normally the cell itself), which the
+     * circuit may keep
+     */
+    boolean handleRelayCell(int cmdId, int streamId, int fromHop, byte[] cell, int off, int len) throws IOException {
+        // flow control counts cells as they arrive on this circuit, even if a conflux set delivers them later
+        if (cmdId == RELAY_DATA) {
+            stats.received(len);
+            if (state == STATES.READY)
+                receiveWindow--;
+            if (++dataCellsReceived % sendmeIncrement() == 0)
+                sendCircuitSendme(fromHop);
+        }
+        if (conflux != null && ConfluxSet.isSequenced(cmdId))
+            return conflux.received(this, cmdId, streamId, fromHop, cell, off, len);
+        return dispatchRelayCell(cmdId, streamId, fromHop, cell, off, len);
+    }
+
+    /**
+     * Acts on a relay cell, in order
+     */
+    boolean dispatchRelayCell(int cmdId, int streamId, int fromHop, byte[] cell, int off, int len) throws IOException {
         TorStream stream = streams.get(new Integer(streamId));
 
+        if (cmdId == RELAY_DATA) { // the stream keeps the slice, so the reader's copy is the only one
+            if (stream == null) {
+                log.info("invalid stream id " + streamId);
+                return false;
+            }
+            stream._putRecved(cell, off, len);
+            return true;
+        }
+        byte payload[] = off == 0 && len == cell.length ? cell : Arrays.copyOfRange(cell, off, off + len);
+
         log.trace("Got RELAY cell with streamId{} cmdID {}", streamId, cmdId);
 
+        if (cmdId == RELAY_RESOLVED) { // answers a RESOLVE rather than a stream
+            CompletableFuture<List<TorResolver.Answer>> f = resolving.get(streamId);
+            if (f == null) {
+                log.info("RESOLVED for unknown request " + streamId);
+                return false;
+            }
+            f.complete(TorResolver.parseResolved(payload));
+            return true;
+        }
+
         if (streamId > 0 && stream == null) {
             log.info("invalid stream id " + streamId);
             return false;
@@ -580,14 +1360,23 @@ public class TorCircuit {
                 break;
 
             case RELAY_TRUNCATED:
-                log.error("TRUNCATED CELL RECEIVED - Cannot handle yet! " + DESTROY_ERRORS[payload[0]]);
-                for (int hi = hops.size() - 1; hi > fromHop; hi--) {
-                    log.info("removing hop " + hi + " from circ");
-                    hops.remove(hi);
+                int reason = payload.length > 0 && payload[0] >= 0 && payload[0] < DESTROY_ERRORS.length ? payload[0] : 0;
+                log.warn("Circuit " + circId + " truncated after hop " + fromHop + ": " + DESTROY_ERRORS[reason]);
+                if (fromHop == hops.size() - 1)
+                    buildFailed(); // the hop couldn't extend to the next
+                if (resilient == null || conflux != null) {
+                    destroy(); // nothing to repair it
+                    break;
                 }
-
-                throw new RuntimeException("see err above");
-                //break;
+                List<TorStream> lost;
+                synchronized (this) { // send() uses hops, and nothing more may go to the streams' old exit
+                    for (int hi = hops.size() - 1; hi > fromHop; hi--)
+                        hops.remove(hi);
+                    lost = detachStreams();
+                    lastHopAdded(hops.get(fromHop));
+                }
+                orphanStreams(lost, fromHop + 1);
+                break;
 
             case RELAY_EXTENDED: // extended
                 handleCreated(payload);
@@ -598,32 +1387,50 @@ public class TorCircuit {
                     extend(circuitToBuild.removeFirst());
                     setBlocking(block);
                 } else {
+                    // handleCreated() has already set READY - setting it again here could wake a caller waiting
+                    // on a further extend() it has since started
                     log.info("Circuit build complete");
-                    setState(STATES.READY);
                 }
                 break;
             case RELAY_CONNECTED:
+                if (stream != null && stream.beginSentNanos != 0) {
+                    stats.connectSample((System.nanoTime() - stream.beginSentNanos) / 1e6);
+                    stream.beginSentNanos = 0;
+                }
                 if (stream != null)
+                    parseConnected(stream, payload);
+                if (stream != null && stream.state != TorStream.STATES.READY) { // already READY if reattached
+                    synchronized (this) {
+                        stream.unconfirmed.clear();
+                    }
                     stream.notifyConnect();
+                    if (stream.conflux == null && !stream.optimistic && stream.hasPending())
+                        streamReady(stream); // held until now
+                }
                 break;
             case RELAY_SENDME:
-                if (streamId == 0)
-                    sendWindow += 100;
-                log.trace("RELAY_SENDME circ " + circId + " Stream " + streamId + " cur window " + sendWindow);
+                if (!handleSendme(stream, streamId, payload))
+                    destroy();
+                else if (conflux != null) // the set schedules across all legs
+                    conflux.flush();
                 break;
-            case RELAY_DATA:
-                if (state == STATES.READY)
-                    receiveWindow--;
+            case RELAY_XOFF:
+            case RELAY_XON:
                 if (stream != null)
-                    stream._putRecved(payload);
+                    handleXoff(stream, cmdId == RELAY_XOFF);
+                if (stream != null && stream.conflux != null && cmdId == RELAY_XON)
+                    stream.conflux.streamReady(stream);
+                break;
+            case RELAY_CONFLUX_LINKED:
+                if (conflux != null)
+                    conflux.linked(this);
+                break;
+            case RELAY_CONFLUX_SWITCH:
+                if (conflux != null)
+                    conflux.switched(this, payload);
                 break;
             case RELAY_END:
-                if (payload[0] != 6)
-                    log.info("Remote stream closed with error code " + STREAM_ERRORS[payload[0]]);
-                if (stream != null) {
-                    stream.notifyDisconnect();
-                    streams.remove(new Integer(streamId));
-                }
+                streamEnded(stream, payload);
                 break;
             default:
                 log.warn("unknown relay cell cmd " + cmdId);
@@ -633,6 +1440,30 @@ public class TorCircuit {
 
     }
 
+    /**
+     * Notes the address and TTL a CONNECTED cell carries: IPv4 address and TTL, or four zero bytes, type 6, IPv6
+     * address and TTL.  Empty for BEGIN_DIR.
+     */
+    private static void parseConnected(TorStream stream, byte payload[]) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            byte addr[];
+            if (buf.remaining() >= 8 && buf.getInt(0) != 0) {
+                addr = new byte[4];
+            } else if (buf.remaining() >= 25 && payload[4] == 6) {
+                buf.position(5);
+                addr = new byte[16];
+            } else {
+                return;
+            }
+            buf.get(addr);
+            stream.connectedTtl = buf.getInt() & 0xFFFFFFFFL;
+            stream.connectedAddress = InetAddress.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            // can't happen with a 4 or 16 byte address
+        }
+    }
+
     public enum STATES {NONE, CREATING, EXTENDING, READY, DESTROYED, RENDEZVOUS_WAIT, RENDEZVOUS_ESTABLISHED, RENDEZVOUS_COMPLETE, INTRODUCED}
 
 }
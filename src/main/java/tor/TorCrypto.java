@@ -68,6 +68,18 @@ public class TorCrypto {
         return intmp2;
     }
 
+    /**
+     * Converts a BigInteger to len unsigned big endian bytes, zero padded at the front (e.g. g^xy as DH_LEN bytes)
+     */
+    public static byte[] BNtoByte(BigInteger in, int len) {
+        byte bytes[] = BNtoByte(in);
+        if (bytes.length >= len)
+            return bytes;
+        byte padded[] = new byte[len];
+        System.arraycopy(bytes, 0, padded, len - bytes.length, bytes.length);
+        return padded;
+    }
+
     // add zero sign byte so always positive
 
     /**
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.Logger;
 import tor.util.TorCircuitException;
 
 import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
@@ -39,6 +40,8 @@ public class TorHop {
     public MessageDigest df_md, db_md;
     Cipher encf, encb;
     OnionRouter router;
+    // cells per circuit SENDME if congestion control was negotiated with this hop, 0 for fixed windows
+    int sendmeInc = 0;
 
     /**
      * Creates TorHop object taking derived key data and calculating keys
@@ -97,4 +100,15 @@ public class TorHop {
         return encb.update(in);
     }
 
+    /**
+     * Removes this hop's layer from in, writing to out (the cipher would copy in first if they were the same array)
+     */
+    protected void decrypt(byte[] in, byte[] out) {
+        try {
+            encb.update(in, 0, in.length, out, 0);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 }
@@ -0,0 +1,128 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.HttpConnection;
+import tor.util.HttpResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 client for one circuit, which keeps its streams to each host open as HttpConnections and sends further
+ * requests on them rather than opening a stream (and waiting for a BEGIN round trip) per request.  A request goes on
+ * the host's connection with the fewest outstanding; once all have MAX_PIPELINE in flight another is opened, up to
+ * MAX_CONNECTIONS_PER_HOST, after which requests queue on the existing ones.
+ * <p/>
+ * Directory requests go over BEGIN_DIR streams to the circuit's last hop.  Thread safe.
+ */
+public class TorHttpClient implements Closeable {
+    final static Logger log = LogManager.getLogger();
+
+    // requests in flight on each connection before another is opened
+    public static int MAX_PIPELINE = 4;
+    public static int MAX_CONNECTIONS_PER_HOST = 4;
+    // idle connections unused for this long are closed rather than reused, as the server may have given up on them
+    public static long MAX_IDLE_MILLIS = 60 * 1000;
+
+    private final TorCircuit circ;
+    // open connections by host:port ("" for the directory), guarded by this
+    private final HashMap<String, ArrayList<HttpConnection>> pool = new HashMap<>();
+    private int streamsOpened = 0;
+
+    public TorHttpClient(TorCircuit circ) {
+        this.circ = circ;
+    }
+
+    public HttpResponse get(String host, int port, String path) throws IOException {
+        return request(host, port, "GET", path, null, null);
+    }
+
+    /**
+     * Sends a request on a pooled connection to host, without waiting for the response
+     *
+     * @param headers extra headers, or null
+     * @param body    request body, or null
+     */
+    public HttpResponse request(String host, int port, String method, String path, Map<String, String> headers,
+                                byte body[]) throws IOException {
+        return acquire(host + ":" + port, host, port).request(method, path, headers, body);
+    }
+
+    /**
+     * Fetches a document from the last hop's directory port, e.g. /tor/server/authority
+     */
+    public HttpResponse getDirectory(String path) throws IOException {
+        return acquire("", circ.getLastHop().router.ip.getHostAddress(), -1).request("GET", path, null, null);
+    }
+
+    // picks the connection for a request, opening one if they're all busy (port -1 for BEGIN_DIR)
+    private synchronized HttpConnection acquire(String key, String host, int port) throws IOException {
+        ArrayList<HttpConnection> conns = pool.get(key);
+        if (conns == null)
+            pool.put(key, conns = new ArrayList<>());
+
+        long now = System.currentTimeMillis();
+        HttpConnection best = null;
+        for (Iterator<HttpConnection> it = conns.iterator(); it.hasNext(); ) {
+            HttpConnection c = it.next();
+            if (c.isOpen() && c.getOutstanding() == 0 && now - c.getLastUsed() > MAX_IDLE_MILLIS)
+                c.close();
+            if (!c.isOpen()) {
+                it.remove();
+                continue;
+            }
+            if (best == null || c.getOutstanding() < best.getOutstanding())
+                best = c;
+        }
+
+        if (best == null || (best.getOutstanding() >= MAX_PIPELINE && conns.size() < MAX_CONNECTIONS_PER_HOST)) {
+            TorStream st = port < 0 ? circ.createDirStream(null) : circ.createStream(host, port, null);
+            best = new HttpConnection(st, host);
+            conns.add(best);
+            streamsOpened++;
+            log.debug("Opened HTTP connection {} to {}", conns.size(), key.isEmpty() ? "directory" : key);
+        }
+        return best;
+    }
+
+    /**
+     * @return streams opened for requests so far
+     */
+    public synchronized int getStreamsOpened() {
+        return streamsOpened;
+    }
+
+    /**
+     * Closes every connection; responses not yet read fail
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (ArrayList<HttpConnection> conns : pool.values())
+            for (HttpConnection c : conns)
+                c.close();
+        pool.clear();
+    }
+}
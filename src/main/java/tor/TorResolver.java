@@ -0,0 +1,377 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.Futures;
+import tor.util.LruMap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Resolves hostnames through exits with RELAY_RESOLVE instead of local DNS, which would leak the names being
+ * visited.  Answers are cached until their TTL runs out, least recently used first when the cache is full, and
+ * concurrent lookups of one name share a single RESOLVE.  Addresses exits report in CONNECTED cells can be added with
+ * learn(), so that connecting to a host again can skip the lookup.  Thread safe.
+ */
+public class TorResolver {
+    final static Logger log = LogManager.getLogger();
+
+    // RESOLVED answer types
+    public static final int TYPE_HOSTNAME = 0x00;
+    public static final int TYPE_IPV4 = 0x04;
+    public static final int TYPE_IPV6 = 0x06;
+    public static final int TYPE_ERROR_TRANSIENT = 0xF0;
+    public static final int TYPE_ERROR_NONTRANSIENT = 0xF1;
+
+    // exit supplied TTLs are clamped to this range
+    public static long MIN_TTL_SECONDS = 60;
+    public static long MAX_TTL_SECONDS = 30 * 60;
+    public static int DEFAULT_CAPACITY = 1024;
+    public static long TIMEOUT_MILLIS = 15000;
+
+    /**
+     * One answer from a RESOLVED cell
+     */
+    public static class Answer {
+        public final int type;
+        // set for address answers
+        public final InetAddress address;
+        // set for hostname (reverse lookup) answers
+        public final String hostname;
+        public final long ttlSeconds;
+
+        Answer(int type, InetAddress address, String hostname, long ttlSeconds) {
+            this.type = type;
+            this.address = address;
+            this.hostname = hostname;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public boolean isError() {
+            return type == TYPE_ERROR_TRANSIENT || type == TYPE_ERROR_NONTRANSIENT;
+        }
+
+        @Override
+        public String toString() {
+            return (address != null ? address.getHostAddress() : hostname != null ? hostname : "error " + type)
+                    + " ttl " + ttlSeconds;
+        }
+    }
+
+    private static class CacheEntry {
+        final InetAddress addresses[];
+        final long expires;
+
+        CacheEntry(InetAddress addresses[], long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    private final Supplier<TorCircuit> circuits;
+    private final LruMap<String, CacheEntry> cache; // guarded by itself
+    private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>> inflight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(), lookups = new AtomicLong(), coalesced = new AtomicLong();
+
+    /**
+     * @param circ Circuit to send lookups on
+     */
+    public TorResolver(final TorCircuit circ) {
+        this(() -> circ, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param circuits Gives the circuit to send each lookup on, e.g. ResilientCircuit::getCircuit
+     * @param capacity Most names to cache
+     */
+    public TorResolver(Supplier<TorCircuit> circuits, int capacity) {
+        this.circuits = circuits;
+        cache = new LruMap<>(capacity);
+    }
+
+    /**
+     * Looks up a hostname, from the cache if possible.  IP address literals are returned as they are.
+     *
+     * @param host Hostname
+     * @return future completed with the host's addresses, or failed with UnknownHostException if the exit couldn't
+     * resolve it (or another exception if the lookup itself failed)
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(final String host) {
+        InetAddress literal[] = parseLiteral(host);
+        if (literal != null)
+            return CompletableFuture.completedFuture(literal);
+
+        final String key = host.toLowerCase(Locale.ROOT);
+        InetAddress cached[] = getCachedAll(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<InetAddress[]> f = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> pending = inflight.putIfAbsent(key, f);
+        if (pending != null) { // someone is already asking
+            coalesced.incrementAndGet();
+            return pending.thenApply(a -> a); // a copy, so one caller can't cancel it for the others
+        }
+
+        lookups.incrementAndGet();
+        final CompletableFuture<InetAddress[]> result = f;
+        CompletableFuture<List<Answer>> answers;
+        TorCircuit circ = circuits.get();
+        if (circ == null)
+            answers = Futures.failed(new IOException("No circuit to resolve " + host + " on"));
+        else
+            answers = Futures.withTimeout(circ.resolveAsync(key), TIMEOUT_MILLIS, "Timed out resolving " + host);
+        answers.whenComplete((a, e) -> {
+            inflight.remove(key, result);
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                result.complete(store(key, a));
+            } catch (UnknownHostException e1) {
+                result.completeExceptionally(e1);
+            }
+        });
+        return f.thenApply(a -> a);
+    }
+
+    /**
+     * Looks up a hostname, blocking until it is resolved
+     *
+     * @param host Hostname
+     * @return the host's addresses
+     * @throws UnknownHostException if the exit couldn't resolve it
+     */
+    public InetAddress[] resolve(String host) throws IOException {
+        try {
+            return resolveAsync(host).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted resolving " + host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to resolve " + host + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * @return the host's first address, blocking until it is resolved
+     */
+    public InetAddress resolveOne(String host) throws IOException {
+        return resolve(host)[0];
+    }
+
+    /**
+     * @return the host's first cached address, or null if it isn't cached (or has expired)
+     */
+    public InetAddress getCached(String host) {
+        InetAddress a[] = getCachedAll(host);
+        return a != null ? a[0] : null;
+    }
+
+    /**
+     * @return the host's cached addresses, or null if it isn't cached (or has expired)
+     */
+    public InetAddress[] getCachedAll(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        synchronized (cache) {
+            CacheEntry e = cache.get(key);
+            if (e == null)
+                return null;
+            if (e.expires <= System.currentTimeMillis()) {
+                cache.remove(key);
+                return null;
+            }
+            return e.addresses.clone();
+        }
+    }
+
+    /**
+     * @return seconds until the host's cache entry expires, 0 if it isn't cached
+     */
+    public long getRemainingTtl(String host) {
+        synchronized (cache) {
+            CacheEntry e = cache.get(host.toLowerCase(Locale.ROOT));
+            return e == null ? 0 : Math.max(0, (e.expires - System.currentTimeMillis()) / 1000);
+        }
+    }
+
+    /**
+     * Caches addresses for a host
+     *
+     * @param ttlSeconds How long they are good for (clamped to MIN_TTL_SECONDS...MAX_TTL_SECONDS)
+     */
+    public void put(String host, InetAddress addresses[], long ttlSeconds) {
+        if (addresses.length == 0 || parseLiteral(host) != null)
+            return;
+        long ttl = Math.min(MAX_TTL_SECONDS, Math.max(MIN_TTL_SECONDS, ttlSeconds));
+        synchronized (cache) {
+            cache.put(host.toLowerCase(Locale.ROOT), new CacheEntry(addresses.clone(), System.currentTimeMillis() + ttl * 1000));
+        }
+    }
+
+    /**
+     * Caches the address the exit reported when a stream to a hostname connected
+     *
+     * @param st A stream which has connected
+     */
+    public void learn(TorStream st) {
+        InetAddress addr = st.getConnectedAddress();
+        if (addr != null && st.host != null)
+            put(st.host, new InetAddress[]{addr}, st.getConnectedTtl());
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return RESOLVE cells sent
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return lookups which waited for one already in progress
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // keeps the address answers, or explains why there weren't any
+    private InetAddress[] store(String host, List<Answer> answers) throws UnknownHostException {
+        ArrayList<InetAddress> addrs = new ArrayList<>();
+        long ttl = MAX_TTL_SECONDS;
+        boolean transientError = false;
+        for (Answer a : answers) {
+            if (a.address != null) {
+                addrs.add(a.address);
+                ttl = Math.min(ttl, a.ttlSeconds);
+            } else if (a.type == TYPE_ERROR_TRANSIENT) {
+                transientError = true;
+            }
+        }
+        if (addrs.isEmpty())
+            throw new UnknownHostException(host + (transientError ? " (temporary failure at exit)" : ""));
+
+        InetAddress result[] = addrs.toArray(new InetAddress[addrs.size()]);
+        put(host, result, ttl);
+        log.debug("Resolved {} to {} (ttl {})", host, addrs, ttl);
+        return result;
+    }
+
+    /**
+     * Parses the payload of a RELAY_RESOLVED cell: a list of type, length, value and TTL
+     *
+     * @return answers, in the order given
+     */
+    static List<Answer> parseResolved(byte payload[]) {
+        ArrayList<Answer> answers = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        while (buf.remaining() >= 2) {
+            int type = buf.get() & 0xff;
+            int len = buf.get() & 0xff;
+            if (buf.remaining() < len + 4)
+                break;
+            byte value[] = new byte[len];
+            buf.get(value);
+            long ttl = buf.getInt() & 0xFFFFFFFFL;
+            InetAddress addr = null;
+            String hostname = null;
+            try {
+                if ((type == TYPE_IPV4 && len == 4) || (type == TYPE_IPV6 && len == 16))
+                    addr = InetAddress.getByAddress(value);
+                else if (type == TYPE_HOSTNAME)
+                    hostname = new String(value, "UTF-8");
+            } catch (UnknownHostException | UnsupportedEncodingException e) {
+                continue;
+            }
+            answers.add(new Answer(type, addr, hostname, ttl));
+        }
+        return Collections.unmodifiableList(answers);
+    }
+
+    // addresses for an IPv4 or bracketless IPv6 literal, without a DNS lookup, or null for a hostname
+    private static InetAddress[] parseLiteral(String host) {
+        try {
+            if (host.indexOf(':') >= 0) // getByName() doesn't look up IPv6 literals, but would a malformed one
+                return host.matches("[0-9a-fA-F:.]+") ? new InetAddress[]{InetAddress.getByName(host)} : null;
+            String parts[] = host.split("\\.", -1);
+            if (parts.length != 4)
+                return null;
+            byte addr[] = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                if (parts[i].isEmpty() || parts[i].length() > 3)
+                    return null;
+                int v = Integer.parseInt(parts[i]);
+                if (v > 255)
+                    return null;
+                addr[i] = (byte) v;
+            }
+            return new InetAddress[]{InetAddress.getByAddress(addr)};
+        } catch (NumberFormatException | UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TorResolver{" +
+                "cached=" + size() +
+                ", hits=" + hits +
+                ", lookups=" + lookups +
+                ", coalesced=" + coalesced +
+                '}';
+    }
+}
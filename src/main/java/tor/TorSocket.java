@@ -22,6 +22,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import sun.misc.IOUtils;
+import tor.util.IdAllocator;
 import tor.util.TrustAllManager;
 
 import javax.net.ssl.SSLContext;
@@ -41,7 +42,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class TorSocket {
     final static Logger log = LogManager.getLogger();
@@ -54,8 +55,16 @@ public class TorSocket {
     OutputStream out;
     InputStream in;
     OnionRouter firstHop; // e.g. hop connected to
-    // circuits for this socket
-    TreeMap<Long, TorCircuit> circuits = new TreeMap<>();
+    // statistics for firstHop, if connected through GuardManager
+    volatile GuardManager.Guard guard;
+    // circuits for this socket - built from several threads (e.g. CircuitPool) while the receive thread looks them up
+    ConcurrentSkipListMap<Long, TorCircuit> circuits = new ConcurrentSkipListMap<>();
+    // circuit IDs in use on this link, freed when a circuit is destroyed
+    IdAllocator circIds = new IdAllocator(1, 0xFFFF);
+    // exit ports recently used by streams on this socket's circuits
+    public final PredictedPorts predictedPorts = new PredictedPorts();
+    // thread handling incoming cells - it must never block waiting for a SENDME
+    volatile Thread receiveThread;
 
     ;
     HashMap<String, X509Certificate> remoteCerts = new HashMap<>();
@@ -90,7 +99,12 @@ public class TorSocket {
         }
 
         // connect
-        sslsocket = (SSLSocket) sc.getSocketFactory().createSocket(firstHop.ip, firstHop.orport);
+        try {
+            sslsocket = (SSLSocket) sc.getSocketFactory().createSocket(firstHop.ip, firstHop.orport);
+        } catch (IOException e) {
+            RouterHealth.getDefault().failed(firstHop);
+            throw e;
+        }
 
         out = sslsocket.getOutputStream();
         in = sslsocket.getInputStream();
@@ -125,6 +139,7 @@ public class TorSocket {
             }
         }
 
+        RouterHealth.getDefault().succeeded(firstHop);
         log.info("Tor connection established - socket ready");
     }
 
@@ -140,7 +155,7 @@ public class TorSocket {
         sendCell(new Cell(circid, cmd, payload));
     }
 
-    public void sendCell(Cell c)
+    public synchronized void sendCell(Cell c)
             throws IOException {
 
         log.trace("Sending {}", c);
@@ -238,6 +253,7 @@ public class TorSocket {
      * Main loop.  Handles incoming cells and sends any data waiting to be send down circuits/streams
      */
     public void receiveHandlerLoop() {
+        receiveThread = Thread.currentThread();
         while (true) {
             // receive a cell
             Cell c = null;
@@ -254,17 +270,61 @@ public class TorSocket {
                         recvCerts(c);
                         continue;
                 }
-                TorCircuit circ = circuits.get(new Long(c.circId));
-                if (circ == null || !circ.handleCell(c))
-                    log.info("Received unhandled cell {}", c);
+                handleCircuitCell(c);
 
             } catch (IOException e) {
-                e.printStackTrace();
+                log.error("Connection to " + firstHop + " lost: " + e);
+                closeAllCircuits();
                 return;
             }
         }
     }
 
+    /**
+     * @return true if called from the thread handling incoming cells (e.g. in a TorStreamListener)
+     */
+    public boolean isReceiveThread() {
+        return Thread.currentThread() == receiveThread;
+    }
+
+    /**
+     * Decides whether a hop uses congestion control, as its CREATED or EXTENDED arrives.  Relays only offer congestion
+     * control through the ntor v3 handshake, which isn't implemented, so over a real link every hop gets fixed
+     * windows; a link whose relays are known to use it (such as a stand-in) overrides this.
+     *
+     * @param r Router the handshake completed with
+     * @return SENDME increment agreed for congestion control, or 0 for fixed windows
+     */
+    protected int negotiateSendmeInc(OnionRouter r) {
+        return 0;
+    }
+
+    /**
+     * Passes a received cell to the circuit it belongs to
+     *
+     * @param c Cell
+     */
+    protected void handleCircuitCell(Cell c) throws IOException {
+        TorCircuit circ = circuits.get(new Long(c.circId));
+        if (circ == null || !circ.handleCell(c))
+            log.info("Received unhandled cell {}", c);
+    }
+
+    /**
+     * Marks every circuit on this link destroyed, e.g. because the connection has gone
+     */
+    protected void closeAllCircuits() {
+        for (TorCircuit circ : circuits.values())
+            circ.closed();
+    }
+
+    /**
+     * @return number of circuits on this link which haven't been destroyed
+     */
+    public int getCircuitCount() {
+        return circuits.size();
+    }
+
     /**
      * Creates a circuit
      *
@@ -291,6 +351,33 @@ public class TorSocket {
         return circ;
     }
 
+    /**
+     * Allocates an unused circuit ID for this link
+     *
+     * @return circuit ID, with the MSB set for link protocol 4 or higher
+     */
+    long allocateCircuitId() {
+        int id = circIds.allocate();
+        if (id == -1)
+            throw new RuntimeException("No free circuit IDs on link to " + firstHop);
+
+        long circId = id;
+        // in proto version 4 or higher, the MSB bit of the circId must be one for the initiator (aka, us).
+        if (PROTOCOL_VERSION >= 4)
+            circId |= 0x80000000;
+        return circId;
+    }
+
+    /**
+     * Called once a circuit is destroyed (by us or the remote side).  Its ID becomes available for reuse.
+     *
+     * @param circ Destroyed circuit
+     */
+    void circuitDestroyed(TorCircuit circ) {
+        if (circuits.remove(circ.circId, circ))
+            circIds.free((int) (circ.circId & 0x7FFFFFFF));
+    }
+
     //LinkedBlockingQueue<Cell> sendQueue = new LinkedBlockingQueue<Cell>();
     enum STATES {
         INITIALISING, READY
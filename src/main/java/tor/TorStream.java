@@ -19,12 +19,23 @@
 
 package tor;
 
-import tor.util.ByteFifo;
 import tor.util.TorInputStream;
+import tor.util.SegmentFifo;
 import tor.util.TorOutputStream;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class TorStream {
 
@@ -36,11 +47,140 @@ public class TorStream {
     ;
     STATES state = STATES.CONNECTING;
 
-    public ByteFifo recvBuffer = new ByteFifo(16384);
+    // bytes buffered for the reader before stream SENDMEs are held back (with fixed windows), so that at most this
+    // plus a window's worth is ever held
+    public static int RECV_BUFFER_BYTES = 256 * 1024;
+    public SegmentFifo recvBuffer = new SegmentFifo(RECV_BUFFER_BYTES); // guarded by this
     TorStreamListener listener;
+    // futures waiting for a state, completed by setState
+    private EnumMap<STATES, ArrayList<CompletableFuture<TorStream>>> stateFutures = new EnumMap<>(STATES.class);
 
-    int recvWindow = 500;
+    int recvWindow = 500; // guarded by this
     final static int recvWindowIncrement = 50;
+    // bytes buffered before a waiting reader is woken (guarded by this)
+    int wakeReaderAt = 1;
+    // stream SENDMEs held back while the reader is behind
+    long sendmesHeld = 0;
+
+    // largest RELAY_DATA payload
+    public final static int MAX_DATA_LEN = 509 - TorCircuit.RELAY_HEADER_LEN;
+    // DATA cells we may package before the exit's next stream SENDME
+    public final static int STREAM_WINDOW_START = 500;
+    public final static int STREAM_WINDOW_INCREMENT = 50;
+    // send() blocks once this many cells are parked waiting for a window (except on the socket's receive thread)
+    public static int MAX_QUEUED_CELLS = 256;
+    // most moved per channel read or write by transferTo() and transferFrom()
+    public static int TRANSFER_BATCH_BYTES = 256 * 1024;
+    // transferTo() waits up to this long for a quarter of a batch to arrive before writing what it has
+    public static long TRANSFER_LINGER_MILLIS = 10;
+    int packageWindow = STREAM_WINDOW_START; // guarded by circ
+    // DATA payloads waiting for the circuit's scheduler, guarded by itself
+    final ArrayDeque<byte[]> sendQueue = new ArrayDeque<>();
+    boolean endQueued = false; // guarded by circ
+    // set when a non-blocking send() couldn't take everything, so wakeup is run once the queue drains (guarded by
+    // sendQueue)
+    boolean sendBlocked = false;
+    // run when the stream may have become readable or writable, see setWakeup()
+    volatile Runnable wakeup;
+
+    // with congestion control there are no stream windows - instead the exit is asked to pause (XOFF) when this much
+    // is waiting to be read, and to resume (XON) once it has drained to XON_BYTES
+    public static int XOFF_BYTES = 256 * 1024;
+    public static int XON_BYTES = 64 * 1024;
+    boolean xoffSent = false;
+    boolean xoffReceived = false; // guarded by circ
+    // set this stream is multiplexed over, or null if it only uses circ
+    ConfluxSet conflux = null;
+
+    // send DATA straight after BEGIN, without waiting for CONNECTED (exits hold it until they have connected)
+    public static boolean OPTIMISTIC_DATA = true;
+    boolean optimistic = OPTIMISTIC_DATA;
+    // DATA payloads sent before CONNECTED, so they can be sent again elsewhere if the BEGIN fails (guarded by circ)
+    ArrayList<byte[]> unconfirmed = new ArrayList<>();
+    // set if the exit ended the stream before it connected, and the reason it gave
+    volatile boolean beginFailed = false;
+    volatile int endReason = 0;
+
+    // where the stream was opened to, so it can be opened again on another circuit
+    String host;
+    int port;
+    // the address the exit connected to and how long it may be cached, from CONNECTED (null if it didn't say)
+    volatile InetAddress connectedAddress = null;
+    volatile long connectedTtl = 0;
+    // when BEGIN was sent, for timing CONNECTED - 0 once connected
+    volatile long beginSentNanos = 0;
+    // DATA cells sent and received, for deciding whether the stream can be retried elsewhere
+    long cellsSent = 0, cellsReceived = 0;
+    long bytesSent = 0; // in those cells
+    // if the stream may be replayed: DATA payloads sent on the circuit, kept until any is acknowledged (guarded by
+    // circ), and the circuit's DATA cell count at the first of them
+    ArrayList<byte[]> replay = null;
+    long replayFrom;
+
+    /**
+     * @return the address the exit resolved the stream's host to, from CONNECTED, or null if it didn't say
+     */
+    public InetAddress getConnectedAddress() {
+        return connectedAddress;
+    }
+
+    /**
+     * @return seconds the exit says getConnectedAddress() may be cached for
+     */
+    public long getConnectedTtl() {
+        return connectedTtl;
+    }
+
+    /**
+     * Sets whether data sent before CONNECTED goes straight after the BEGIN (the default, see OPTIMISTIC_DATA) or
+     * waits for CONNECTED.  Streams on conflux sets always send optimistically.
+     */
+    public void setOptimisticData(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimisticData() {
+        return optimistic;
+    }
+
+    /**
+     * @return the reason code (see TorCircuit.STREAM_ERRORS) from the exit's END cell, 0 if it hasn't sent one
+     */
+    public int getEndReason() {
+        return endReason;
+    }
+
+    /**
+     * @return true if the exit ended the stream without connecting it, e.g. refused by its exit policy
+     */
+    public boolean isBeginFailed() {
+        return beginFailed;
+    }
+
+    /**
+     * Opens a stream whose BEGIN failed again on another circuit, to the same host and port.  Whatever this stream
+     * had sent or queued before it failed is sent on the new stream, straight after its BEGIN.
+     *
+     * @param other Circuit to try
+     * @param list  A listener for the new stream's events
+     * @return the new stream
+     */
+    public TorStream retryOn(TorCircuit other, TorStreamListener list) throws IOException {
+        if (!beginFailed)
+            throw new IllegalStateException("Stream " + streamId + " didn't fail to connect");
+        List<byte[]> data;
+        synchronized (circ) {
+            data = unconfirmed;
+            unconfirmed = new ArrayList<>();
+        }
+        TorStream st = other.createStream(host, port, list);
+        st.setOptimisticData(optimistic);
+        synchronized (st.sendQueue) {
+            st.sendQueue.addAll(data);
+        }
+        st.schedule();
+        return st;
+    }
 
     public TorInputStream getInputStream() {
         return in;
@@ -62,11 +202,84 @@ public class TorStream {
         out = new TorOutputStream(this);
     }
 
+    public STATES getState() {
+        return state;
+    }
+
     public void setState(STATES newState) {
+        ArrayList<CompletableFuture<TorStream>> completed;
+        ArrayList<CompletableFuture<TorStream>> failed = new ArrayList<>();
         synchronized (this) {
             state = newState;
             this.notifyAll();
+
+            completed = stateFutures.remove(newState);
+            if (newState == STATES.DESTROYED) {
+                for (ArrayList<CompletableFuture<TorStream>> l : stateFutures.values())
+                    failed.addAll(l);
+                stateFutures.clear();
+            }
+        }
+
+        if (completed != null)
+            for (CompletableFuture<TorStream> f : completed)
+                f.complete(this);
+        for (CompletableFuture<TorStream> f : failed)
+            f.completeExceptionally(new IOException("Stream destroyed"));
+        wake();
+    }
+
+    /**
+     * Sets something to run whenever the stream may have become readable (data arrived or the stream ended) or
+     * writable (a non-blocking send() that was turned away can now go ahead) - see TorStreamChannel.  It runs on
+     * whichever thread made the change, often with locks held, so it must return quickly and not block.
+     */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    private void wake() {
+        Runnable r = wakeup;
+        if (r != null)
+            r.run();
+    }
+
+    /**
+     * @return true if recv() would return without blocking: data is buffered or the stream has ended
+     */
+    public synchronized boolean isReadable() {
+        return !recvBuffer.isEmpty() || state == STATES.DESTROYED;
+    }
+
+    /**
+     * @return true if a non-blocking send() would take at least some data, or fail because the stream has ended
+     */
+    public boolean isWritable() {
+        synchronized (sendQueue) {
+            return sendQueue.size() < MAX_QUEUED_CELLS || state == STATES.DESTROYED;
+        }
+    }
+
+    /**
+     * Returns a future completed when the stream enters (or is already in) a state.  Completion happens on the
+     * socket's receive thread, so dependent stages must not block.
+     *
+     * @param desired State to wait for
+     * @return future completed with this stream, or exceptionally if the stream is destroyed first
+     */
+    public synchronized CompletableFuture<TorStream> stateFuture(STATES desired) {
+        CompletableFuture<TorStream> f = new CompletableFuture<>();
+        if (state == desired)
+            f.complete(this);
+        else if (state == STATES.DESTROYED)
+            f.completeExceptionally(new IOException("Stream destroyed"));
+        else {
+            ArrayList<CompletableFuture<TorStream>> l = stateFutures.get(desired);
+            if (l == null)
+                stateFutures.put(desired, l = new ArrayList<>());
+            l.add(f);
         }
+        return f;
     }
 
     public void sendHTTPGETRequest(String url, String host) throws IOException {
@@ -74,18 +287,30 @@ public class TorStream {
     }
 
     public void waitForState(STATES desired) throws IOException {
-        while (true) {
-            synchronized (this) {
-                try {
-                    this.wait(1000);
-                    if (state == STATES.DESTROYED && desired != STATES.DESTROYED)
-                        throw new IOException("Waiting for unreachable state - circuit destroyed");
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        waitForState(desired, 0);
+    }
+
+    /**
+     * Waits for the stream to reach a state
+     *
+     * @param desired       State to wait for
+     * @param timeoutMillis Give up after this long (0 waits forever)
+     * @throws IOException if the stream is destroyed or the timeout expires
+     */
+    public synchronized void waitForState(STATES desired, long timeoutMillis) throws IOException {
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        while (state != desired) {
+            if (state == STATES.DESTROYED)
+                throw new IOException("Waiting for unreachable state - stream destroyed");
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new IOException("Timed out waiting for stream state " + desired);
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for stream state " + desired);
             }
-            if (state.equals(desired))
-                return;
         }
     }
 
@@ -97,50 +322,365 @@ public class TorStream {
      * @return bytes received
      * @throws IOException
      */
-    public synchronized int recv(byte output[], boolean block) throws IOException {
-        if (block) {
-            synchronized (this) {
-                while (recvBuffer.isEmpty() && state != STATES.DESTROYED) {
-                    try {
-                        wait(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+    public int recv(byte output[], boolean block) throws IOException {
+        return recv(output, 0, output.length, block);
+    }
+
+    /**
+     * Reads from the receive buffer straight into the caller's array
+     *
+     * @param block Wait until at least one byte is available
+     * @return bytes received, 0 if not blocking and nothing is buffered, or -1 at the end of the stream
+     */
+    public synchronized int recv(byte output[], int off, int len, boolean block) throws IOException {
+        if (!awaitData(block))
+            return -1;
+        int n = recvBuffer.get(output, off, len);
+        drained();
+        return n;
+    }
+
+    /**
+     * Reads from the receive buffer straight into dst, as recv(byte[], int, int, boolean)
+     */
+    public synchronized int recv(ByteBuffer dst, boolean block) throws IOException {
+        if (!awaitData(block))
+            return -1;
+        int n = recvBuffer.get(dst);
+        drained();
+        return n;
+    }
+
+    // waits (if blocking) for data, returning false at the end of the stream - caller holds this
+    private boolean awaitData(boolean block) throws IOException {
+        while (block && recvBuffer.isEmpty() && state != STATES.DESTROYED) {
+            try {
+                wait(); // woken by _putRecved, setState and release
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for stream data");
             }
         }
 
-        if (recvBuffer.isEmpty() && state == STATES.DESTROYED)
-            return -1;
+        if (recvBuffer.isEmpty() && state == STATES.DESTROYED) {
+            release(); // drained, nothing more will arrive
+            return false;
+        }
+        return true;
+    }
 
-        byte out[] = recvBuffer.get(output.length);
-        System.arraycopy(out, 0, output, 0, out.length);
-        return out.length;
+    // lets the exit send more now that the reader has taken some - caller holds this
+    private void drained() throws IOException {
+        if (state == STATES.DESTROYED)
+            return;
+        if (xoffSent && recvBuffer.available() <= XON_BYTES) {
+            xoffSent = false;
+            circ.send(new byte[]{0, 0, 0, 0, 0}, TorCircuit.RELAY_XON, false, (short) streamId); // version 0, no rate limit
+        }
+        sendWindowUpdates();
     }
 
+    // with fixed windows, sends the stream SENDMEs that are due unless the reader is behind, in which case they are
+    // held until recv() has drained the buffer below its limit and the exit is paused by its window
+    private void sendWindowUpdates() throws IOException {
+        while (recvWindow <= 500 - recvWindowIncrement && !recvBuffer.isFull() && !circ.usesCongestionControl()) {
+            circ.send(null, TorCircuit.RELAY_SENDME, false, (short) streamId);
+            recvWindow += recvWindowIncrement;
+        }
+    }
 
     /**
-     * Send bytes down this stream
+     * Sets how much may be buffered for the reader before stream SENDMEs are held back (RECV_BUFFER_BYTES by
+     * default).  Raising it sends any that were held.  The exit may still send what its window allows, so up to a
+     * window beyond the limit can arrive.  Circuits using congestion control pause the exit at XOFF_BYTES instead.
+     */
+    public synchronized void setReceiveLimit(int bytes) throws IOException {
+        recvBuffer.setLimit(bytes);
+        drained();
+    }
+
+    /**
+     * @return stream SENDMEs that were held back because the reader had fallen behind
+     */
+    public synchronized long getSendmesHeld() {
+        return sendmesHeld;
+    }
+
+    /**
+     * Send bytes down this stream.  The data is split into cells and handed to the circuit's scheduler, which sends
+     * them as the stream and circuit windows allow.  Blocks while more than MAX_QUEUED_CELLS are waiting.
      *
      * @param b Bytes to send
      */
     public void send(byte b[]) throws IOException {
+        send(b, 0, b.length);
+    }
+
+    /**
+     * Sends len bytes from b, as send(byte[]).  Every call sends at least one cell, so small writes are best
+     * gathered first - see TorOutputStream.setFlushDelay().
+     */
+    public void send(byte b[], int off, int len) throws IOException {
         if (state == STATES.DESTROYED)
             throw new IOException("stream destroyed");
 
-        final int maxDataLen = 509 - 1 - 2 - 2 - 4 - 2;
-        for (int i = 0; i < Math.ceil(b.length / (double) maxDataLen) * maxDataLen; i += maxDataLen) {
-            byte data[] = Arrays.copyOfRange(b, i, Math.min(b.length, i + maxDataLen));
-            circ.send(data, TorCircuit.RELAY_DATA, false, (short) streamId);
+        synchronized (sendQueue) {
+            for (int i = off; i < off + len; i += MAX_DATA_LEN)
+                sendQueue.add(Arrays.copyOfRange(b, i, Math.min(off + len, i + MAX_DATA_LEN)));
         }
+        schedule();
+        waitForQueue();
     }
 
+    /**
+     * Sends the remaining bytes of src, each cell's worth read straight from the buffer into its payload.
+     *
+     * @param block If false, only takes what fits below MAX_QUEUED_CELLS (see setWakeup() for when more will fit)
+     * @return bytes taken from src
+     */
+    public int send(ByteBuffer src, boolean block) throws IOException {
+        if (state == STATES.DESTROYED)
+            throw new IOException("stream destroyed");
+
+        int taken = 0;
+        synchronized (sendQueue) {
+            while (src.hasRemaining() && (block || sendQueue.size() < MAX_QUEUED_CELLS)) {
+                byte data[] = new byte[Math.min(src.remaining(), MAX_DATA_LEN)];
+                src.get(data);
+                sendQueue.add(data);
+                taken += data.length;
+            }
+            if (src.hasRemaining())
+                sendBlocked = true;
+        }
+        if (taken > 0)
+            schedule();
+        if (block)
+            waitForQueue();
+        return taken;
+    }
+
+    public long transferTo(WritableByteChannel out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Writes received data to a channel, such as a FileChannel, until the stream ends or count bytes have been
+     * written.  Data is gathered for up to TRANSFER_LINGER_MILLIS, then everything buffered is taken at once (up to
+     * TRANSFER_BATCH_BYTES) and handed to the channel in one gathering write straight from the cells it arrived in.
+     * The channel must be blocking.
+     *
+     * @param progress told after each batch, or null
+     * @return bytes written
+     */
+    public long transferTo(WritableByteChannel out, long count, TransferListener progress) throws IOException {
+        ByteBuffer batch[] = new ByteBuffer[TRANSFER_BATCH_BYTES / MAX_DATA_LEN + 1];
+        long done = 0;
+        long start = System.nanoTime();
+        while (done < count) {
+            int n;
+            synchronized (this) {
+                if (!awaitData(true))
+                    break;
+                lingerFor(Math.min(count - done, TRANSFER_BATCH_BYTES / 4));
+                n = recvBuffer.take(batch, Math.min(count - done, TRANSFER_BATCH_BYTES));
+                drained(); // the exit can send the next batch while this one is written
+            }
+            if (out instanceof GatheringByteChannel) {
+                for (int first = 0; first < n; ) {
+                    done += ((GatheringByteChannel) out).write(batch, first, n - first);
+                    while (first < n && !batch[first].hasRemaining())
+                        first++;
+                }
+            } else {
+                for (int i = 0; i < n; i++)
+                    while (batch[i].hasRemaining())
+                        done += out.write(batch[i]);
+            }
+            Arrays.fill(batch, 0, n, null);
+            if (progress != null)
+                progress.transferred(done, done * 1e9 / (System.nanoTime() - start));
+        }
+        return done;
+    }
+
+    // waits briefly for want bytes to be buffered, unless the stream ends or the exit is being held back - caller
+    // holds this
+    private void lingerFor(long want) throws IOException {
+        long deadline = System.currentTimeMillis() + TRANSFER_LINGER_MILLIS;
+        wakeReaderAt = (int) want; // rather than for every cell
+        try {
+            while (recvBuffer.available() < want && !recvBuffer.isFull() && state != STATES.DESTROYED) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for stream data");
+                }
+            }
+        } finally {
+            wakeReaderAt = 1;
+        }
+    }
+
+    public long transferFrom(ReadableByteChannel in) throws IOException {
+        return transferFrom(in, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Sends data read from a channel, such as a FileChannel, until it ends or count bytes have been sent.  Reads
+     * are TRANSFER_BATCH_BYTES at a time, each copied once, into cell payloads.  The channel must be blocking.
+     *
+     * @param progress told after each batch, or null
+     * @return bytes sent
+     */
+    public long transferFrom(ReadableByteChannel in, long count, TransferListener progress) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BATCH_BYTES);
+        long done = 0;
+        long start = System.nanoTime();
+        while (done < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - done));
+            int n = in.read(buf);
+            if (n < 0)
+                break;
+            buf.flip();
+            send(buf, true);
+            done += n;
+            if (progress != null)
+                progress.transferred(done, done * 1e9 / (System.nanoTime() - start));
+        }
+        return done;
+    }
+
+    // blocks while more than MAX_QUEUED_CELLS are parked
+    private void waitForQueue() throws IOException {
+        // the receive thread delivers the SENDMEs we'd be waiting for, so it mustn't block
+        if (circ.sock.isReceiveThread())
+            return;
+        synchronized (sendQueue) {
+            while (sendQueue.size() > MAX_QUEUED_CELLS && state != STATES.DESTROYED) {
+                try {
+                    sendQueue.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for stream window");
+                }
+            }
+        }
+    }
+
+    // tells the scheduler that there is data parked
+    void schedule() throws IOException {
+        if (conflux != null)
+            conflux.streamReady(this);
+        else
+            circ.streamReady(this);
+    }
+
+    /**
+     * @return DATA cells waiting for the stream or circuit window to open
+     */
+    public int getQueuedCells() {
+        synchronized (sendQueue) {
+            return sendQueue.size();
+        }
+    }
+
+    /**
+     * @return DATA cells sent so far (each carries up to MAX_DATA_LEN bytes)
+     */
+    public long getCellsSent() {
+        return cellsSent;
+    }
+
+    /**
+     * @return bytes of data sent so far, so getCellsSent() * MAX_DATA_LEN - getBytesSent() were wasted as padding
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return DATA cells which may be sent before the next stream SENDME
+     */
+    public int getPackageWindow() {
+        return packageWindow;
+    }
+
+    // next parked DATA payload, or null - called by the circuit's scheduler
+    byte[] pollPending() {
+        boolean writable = false;
+        byte data[];
+        synchronized (sendQueue) {
+            data = sendQueue.poll();
+            if (sendQueue.size() <= MAX_QUEUED_CELLS)
+                sendQueue.notifyAll();
+            if (sendBlocked && sendQueue.size() <= MAX_QUEUED_CELLS / 2) {
+                sendBlocked = false;
+                writable = true;
+            }
+        }
+        if (writable)
+            wake();
+        return data;
+    }
+
+    boolean hasPending() {
+        synchronized (sendQueue) {
+            return !sendQueue.isEmpty();
+        }
+    }
+
+    // puts payloads which have to be sent again ahead of the parked data
+    void requeueFirst(List<byte[]> payloads) {
+        synchronized (sendQueue) {
+            for (int i = payloads.size() - 1; i >= 0; i--)
+                sendQueue.addFirst(payloads.get(i));
+        }
+    }
+
+    // takes the parked payloads
+    List<byte[]> drainPending() {
+        synchronized (sendQueue) {
+            ArrayList<byte[]> l = new ArrayList<>(sendQueue);
+            sendQueue.clear();
+            sendQueue.notifyAll();
+            return l;
+        }
+    }
+
+    void discardPending() {
+        synchronized (sendQueue) {
+            sendQueue.clear();
+            sendQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the stream.  Data already passed to send() is still delivered before the END cell.
+     */
     public void destroy() throws IOException {
         if (state == STATES.DESTROYED)
             return; // don't redo!
         setState(STATES.DESTROYED);
-        circ.send(new byte[]{6}, TorCircuit.RELAY_END, false, (short) streamId);
-        circ.streams.remove(new Integer(streamId));
+        release();
+        if (conflux != null)
+            conflux.endStream(this);
+        else
+            circ.endStream(this);
+    }
+
+    /**
+     * Drops the receive buffer and listener of a stream we've closed, so that a caller holding on to the stream
+     * doesn't keep them alive.  Unread data is discarded.
+     */
+    void release() {
+        synchronized (this) {
+            recvBuffer.clear();
+            listener = null;
+            notifyAll();
+        }
     }
 
     /**
@@ -149,21 +689,40 @@ public class TorStream {
      * @param b Bytes
      */
     protected void _putRecved(byte b[]) {
-        recvWindow--;
-        if (recvWindow < 450) {
+        _putRecved(b, 0, b.length);
+    }
+
+    /**
+     * Adds received bytes without copying them - the stream keeps b, normally the decrypted cell, until they're read
+     */
+    void _putRecved(byte b[], int off, int len) {
+        if (state == STATES.DESTROYED)
+            return; // closed by us, still flushing parked data
+        cellsReceived++;
+        synchronized (this) {
+            if (state == STATES.DESTROYED)
+                return; // released since the check above
+            // data already in flight when we hold back SENDMEs or ask the exit to pause still has to fit
+            recvBuffer.append(b, off, len);
+            if (recvBuffer.available() >= wakeReaderAt || recvBuffer.isFull())
+                this.notifyAll();
             try {
-                //System.out.println("sent SENDME (STREAM) "+recvWindow);
-                circ.send(null, TorCircuit.RELAY_SENDME, false, (short) streamId);
+                if (circ.usesCongestionControl()) {
+                    if (!xoffSent && recvBuffer.available() >= XOFF_BYTES) {
+                        xoffSent = true;
+                        circ.send(new byte[]{0}, TorCircuit.RELAY_XOFF, false, (short) streamId);
+                    }
+                } else {
+                    recvWindow--;
+                    if ((500 - recvWindow) % recvWindowIncrement == 0 && recvBuffer.isFull())
+                        sendmesHeld++; // one more falls due while the reader is behind
+                    sendWindowUpdates();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            recvWindow += recvWindowIncrement;
-        }
-
-        recvBuffer.put(b);
-        synchronized (this) {
-            this.notifyAll();
         }
+        wake();
         if (listener != null)
             listener.dataArrived(this);
     }
@@ -180,6 +739,14 @@ public class TorStream {
             listener.connected(this);
     }
 
+    public interface TransferListener {
+        /**
+         * @param bytes          moved so far
+         * @param bytesPerSecond average since the transfer started
+         */
+        public void transferred(long bytes, double bytesPerSecond);
+    }
+
     public interface TorStreamListener {
         public void dataArrived(TorStream s);
 
@@ -0,0 +1,111 @@
+package tor.examples;
+
+import tor.CircuitBuilder;
+import tor.GuardManager;
+import tor.TorCircuit;
+import tor.TorResolver;
+import tor.TorSocket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A local DNS server (UDP) which answers A and AAAA queries by resolving through a tor exit with a TorResolver, so
+ * names are cached and never looked up locally.  Other query types get an empty answer.
+ * <p/>
+ * Usage: DNSProxy [listenPort]
+ */
+public class DNSProxy {
+    static final int TYPE_A = 1, TYPE_AAAA = 28;
+    static final int RCODE_SERVFAIL = 2, RCODE_NXDOMAIN = 3;
+
+    public static void main(String[] args) throws IOException {
+        int listenPort = args.length > 0 ? Integer.parseInt(args[0]) : 5353;
+
+        TorSocket sock = GuardManager.getDefault().connect();
+        TorCircuit circ = new CircuitBuilder(sock).build(80);
+        final TorResolver resolver = new TorResolver(circ);
+
+        final DatagramSocket server = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        System.out.println("Resolving through tor on udp " + server.getLocalSocketAddress());
+        byte buf[] = new byte[512];
+        while (true) {
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            server.receive(p);
+            final byte query[] = Arrays.copyOf(p.getData(), p.getLength());
+            final SocketAddress client = p.getSocketAddress();
+
+            // header, then one question: name labels, type, class
+            ByteBuffer in = ByteBuffer.wrap(query);
+            if (query.length < 12 || in.getShort(4) != 1)
+                continue;
+            in.position(12);
+            StringBuilder name = new StringBuilder();
+            int len;
+            while (in.hasRemaining() && (len = in.get() & 0xff) != 0 && len <= in.remaining()) {
+                if (name.length() > 0)
+                    name.append('.');
+                for (int i = 0; i < len; i++)
+                    name.append((char) in.get());
+            }
+            if (in.remaining() < 4)
+                continue;
+            final int qtype = in.getShort() & 0xffff;
+            in.getShort(); // class
+            final int questionEnd = in.position();
+            final String host = name.toString();
+
+            if (qtype != TYPE_A && qtype != TYPE_AAAA) {
+                reply(server, client, query, questionEnd, 0, new InetAddress[0], 0);
+                continue;
+            }
+            resolver.resolveAsync(host).whenComplete((addrs, e) -> {
+                try {
+                    if (e != null) {
+                        boolean unknown = e instanceof UnknownHostException || e.getCause() instanceof UnknownHostException;
+                        reply(server, client, query, questionEnd, unknown ? RCODE_NXDOMAIN : RCODE_SERVFAIL, new InetAddress[0], 0);
+                        return;
+                    }
+                    List<InetAddress> matching = new ArrayList<>();
+                    for (InetAddress a : addrs)
+                        if (a.getAddress().length == (qtype == TYPE_A ? 4 : 16))
+                            matching.add(a);
+                    reply(server, client, query, questionEnd, 0, matching.toArray(new InetAddress[matching.size()]),
+                            resolver.getRemainingTtl(host));
+                } catch (IOException e1) {
+                    System.out.println("Failed to answer " + client + ": " + e1);
+                }
+            });
+        }
+    }
+
+    // echoes the query's header and question, with the answers appended
+    static void reply(DatagramSocket server, SocketAddress client, byte query[], int questionEnd, int rcode,
+                      InetAddress answers[], long ttl) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(questionEnd + answers.length * 28);
+        out.put(query, 0, questionEnd);
+        out.putShort(2, (short) (0x8080 | (query[2] & 0x01) << 8 | rcode)); // response, recursion available, RD echoed
+        out.putShort(6, (short) answers.length);
+        out.putShort(8, (short) 0);
+        out.putShort(10, (short) 0);
+        for (InetAddress a : answers) {
+            byte addr[] = a.getAddress();
+            out.putShort((short) 0xC00C); // the name in the question
+            out.putShort((short) (addr.length == 4 ? TYPE_A : TYPE_AAAA));
+            out.putShort((short) 1); // IN
+            out.putInt((int) ttl);
+            out.putShort((short) addr.length);
+            out.put(addr);
+        }
+        server.send(new DatagramPacket(out.array(), out.position(), client));
+    }
+}
@@ -27,8 +27,7 @@ import java.io.InputStreamReader;
 public class HiddenServiceExample {
 
     public static void main(String[] args) throws IOException {
-        Consensus con = Consensus.getConsensus();
-        TorSocket sock = new TorSocket(con.getRouterByName("turtles"));
+        TorSocket sock = GuardManager.getDefault().connect();
 
         // setup rendezvous circuit
         TorCircuit rendz = sock.createCircuit(true); //true means circuit calls should block until success
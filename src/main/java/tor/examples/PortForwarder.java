@@ -1,27 +1,27 @@
 package tor.examples;
 
 import tor.Consensus;
+import tor.GuardManager;
 import tor.TorCircuit;
 import tor.TorSocket;
 import tor.TorStream;
+import tor.util.ChannelSplice;
+import tor.util.TorSelector;
+import tor.util.TorStreamChannel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
 
 /**
  * Created by gho on 08/08/14.
+ * <p/>
+ * One thread serves every client: each client socket is spliced to its stream, and a TorSelector waits on both.
  */
 public class PortForwarder {
-    static HashMap<SocketChannel,PortFwdClient> clients = new HashMap<>();
-
     public static void main(String[] args) throws IOException {
         if(args.length != 3) {
             System.out.println("Usage: PortForwader listenPort remoteHost remotePort");
@@ -39,7 +39,7 @@ public class PortForwarder {
         // establish a circuit
         Consensus con = Consensus.getConsensus();
         // If you're having speed issues, try adding "Fast" to the lists of flags below.
-        TorSocket sock = new TorSocket(con.getRandomORWithFlag("Guard,Fast,Running,Valid"));
+        TorSocket sock = GuardManager.getDefault().connect();
         TorCircuit circ = sock.createCircuit(true);
         circ.create();
         circ.extend(con.getRandomORWithFlag("Exit,Fast,Valid,Running,HSDir".split(","), PORT));
@@ -49,16 +49,16 @@ public class PortForwarder {
         ServerSocketChannel serverSock = ServerSocketChannel.open();
         serverSock.socket().bind(new InetSocketAddress(LISTENPORT));
         serverSock.configureBlocking(false);
-        Selector select = Selector.open();
-        serverSock.register(select, SelectionKey.OP_ACCEPT);
+        TorSelector select = new TorSelector();
+        serverSock.register(select.getSelector(), SelectionKey.OP_ACCEPT);
 
         while(true) {
             select.select(1000);
 
-            Set keys = select.selectedKeys();
-            Iterator iterator = keys.iterator();
+            Iterator<SelectionKey> iterator = select.getSelector().selectedKeys().iterator();
             while (iterator.hasNext()) {
-                SelectionKey k = (SelectionKey) iterator.next();
+                SelectionKey k = iterator.next();
+                iterator.remove();
 
                 if (!k.isValid())
                     continue;
@@ -70,85 +70,22 @@ public class PortForwarder {
                     if(csock == null)
                         continue;
                     System.out.println("new client conn");
-                    csock.configureBlocking(false);
-                    csock.register(select, SelectionKey.OP_READ);
-                    clients.put(csock, new PortFwdClient(csock, circ, REMOTE, PORT));
-
+                    try {
+                        // establish stream
+                        TorStream stream = REMOTE.equals("DIR") ? circ.createDirStream(null) : circ.createStream(REMOTE, PORT, null);
+                        new ChannelSplice(select, csock, new TorStreamChannel(stream));
+                    } catch (IOException e) {
+                        csock.close();
+                    }
                 } else {
-                    // data on client socket
-                    PortFwdClient cl = clients.get(k.channel());
-                    if(cl!=null)
-                        cl.newClientData();
-
+                    // data on (or room in) a client socket
+                    ((ChannelSplice) k.attachment()).pump();
                 }
             }
-        }
-    }
-
-    // represents a port forward client/server pair
-    static class PortFwdClient implements TorStream.TorStreamListener {
-        SocketChannel s;
-        TorCircuit circ;
-        TorStream stream;
-
-        PortFwdClient(SocketChannel s, TorCircuit circ, String host, int port) {
-            this.s = s;
-            this.circ = circ;
-
-            try {
-                // establish stream
-                if(host.equals("DIR"))
-                    stream = circ.createDirStream(this);
-                else
-                    stream = circ.createStream(host, port, this);
-            } catch (IOException e) {
-                removeMe();
-            }
-
-        }
-
-        // data from remote host (e.g. tor endpoint)
-        @Override
-        public void dataArrived(TorStream stream) {
-            try {
-                int availBytes = stream.getInputStream().available();
-                byte buf[] = new byte[availBytes];
-                stream.getInputStream().read(buf);
-                s.write(ByteBuffer.wrap(buf));
-            } catch (IOException e) {
-                removeMe();
-            }
-        }
-
-        @Override public void connected(TorStream s) {  }
-        @Override public void disconnected(TorStream s) { removeMe();  }
-        @Override public void failure(TorStream s) { removeMe();  }
-
-        // data from client
-        public void newClientData() {
-            try {
-                ByteBuffer inbuf = ByteBuffer.allocate(16384);
-                if (s.read(inbuf) < 1)
-                    return;
-                inbuf.flip();
-                byte buf[]= new byte[inbuf.limit()];
-                inbuf.get(buf);
-                stream.send(buf);
-            } catch (IOException e) {
-                removeMe();
-            }
-        }
 
-        // tear down this pair
-        public void removeMe() {
-            try {
-                stream.destroy();
-                s.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-            clients.remove(s);
+            // data on (or room in) a stream
+            for (TorStreamChannel ch : select.selectedStreams())
+                ((ChannelSplice) ch.attachment()).pump();
         }
     }
-
 }
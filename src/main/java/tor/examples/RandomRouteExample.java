@@ -19,6 +19,7 @@
 package tor.examples;
 
 import tor.Consensus;
+import tor.GuardManager;
 import tor.TorCircuit;
 import tor.TorSocket;
 import tor.TorStream;
@@ -35,8 +36,7 @@ public class RandomRouteExample {
     public static void main(String[] args) throws IOException {
         Consensus con = Consensus.getConsensus();
         // If you're having speed issues, try adding "Fast" to the lists of flags below.
-        TorSocket sock = new TorSocket(con.getRandomORWithFlag("Guard,Running,Valid"));
-        //TorSocket sock = new TorSocket(con.getRouterByName("turtles"));
+        TorSocket sock = GuardManager.getDefault().connect();
         TorCircuit circ = sock.createCircuit(true);
 
         System.out.println("\n===================");
@@ -50,12 +50,13 @@ public class RandomRouteExample {
         System.out.println("Extending to exit");
         circ.extend(con.getRandomORWithFlag("Exit,Running,Valid".split(","), 80));
 
+        // the request goes straight after the BEGIN (optimistic data), saving a round trip
         TorStream stream = circ.createStream("ghowen.me", 80, null);
+        stream.sendHTTPGETRequest("/ip", "ghowen.me");
         stream.waitForState(TorStream.STATES.READY);
 
         System.out.println("\n====================================");
         System.out.println("Connected to remote host through Tor");
-        stream.sendHTTPGETRequest("/ip", "ghowen.me");
 
         BufferedReader rdr = new BufferedReader(new InputStreamReader(stream.getInputStream()));
 
@@ -19,31 +19,36 @@
 package tor.examples;
 
 import tor.*;
+import tor.util.ChannelSplice;
+import tor.util.TorSelector;
+import tor.util.TorStreamChannel;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by gho on 27/06/14.
+ * <p/>
+ * One thread serves every client: once its SOCKS request is read, a client's socket is spliced to its stream and a
+ * TorSelector waits on both.
  */
 public class SOCKSProxy {
     class SocksClient implements TorStream.TorStreamListener {
         SocketChannel client;
-        boolean connected;
+        volatile boolean connected;
         long lastData = 0;
         TorStream stream;
+        ChannelSplice splice;
         TorCircuit circ;
         InetAddress remoteAddr;
+        String host; // if the client gave a hostname we haven't resolved yet
         int port;
 
         SocksClient(SocketChannel c, TorCircuit circ) throws IOException {
@@ -53,130 +58,116 @@ public class SOCKSProxy {
             this.circ = circ;
         }
 
-        public void newClientData(Selector selector, SelectionKey sk) throws IOException {
-            if (!connected) {
-                ByteBuffer inbuf = ByteBuffer.allocate(16384);
-                if (client.read(inbuf) < 1)
-                    return;
-                inbuf.flip();
-                //inbufinbufinbufinb.get() final DataInputStream in = new DataInputStream(Channels.newInputStream(client));
-//                final DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
-
-                // read socks header
-                int ver = inbuf.get();
-                if (ver != 4) {
-                    throw new IOException("incorrect version" + ver);
-                }
-                int cmd = inbuf.get();
-
-                // check supported command
-                if (cmd != 1) {
-                    throw new IOException("incorrect version");
-                }
-
-                port = inbuf.getShort();
-
-                final byte ip[] = new byte[4];
-                // fetch IP
-                inbuf.get(ip);
-
-                remoteAddr = InetAddress.getByAddress(ip);
+        // reads the SOCKS request, then hands the client over to a splice with its stream
+        public void newClientData(TorSelector selector) throws IOException {
+            ByteBuffer inbuf = ByteBuffer.allocate(16384);
+            int nlen = client.read(inbuf);
+            if (nlen == -1)
+                throw new IOException("disconnected");
+            if (nlen < 1)
+                return;
+            inbuf.flip();
+
+            // read socks header
+            int ver = inbuf.get();
+            if (ver != 4) {
+                throw new IOException("incorrect version" + ver);
+            }
+            int cmd = inbuf.get();
 
-                while ((inbuf.get()) != 0) ; // username
+            // check supported command
+            if (cmd != 1) {
+                throw new IOException("incorrect version");
+            }
 
-                // hostname provided, not IP
-                if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0) { // host provided
-                    String host = "";
-                    byte b;
-                    while ((b = inbuf.get()) != 0) {
-                        host += b;
-                    }
-                    remoteAddr = InetAddress.getByName(host);
-                    System.out.println(host + remoteAddr);
+            port = inbuf.getShort();
+
+            final byte ip[] = new byte[4];
+            // fetch IP
+            inbuf.get(ip);
+
+            remoteAddr = InetAddress.getByAddress(ip);
+
+            while ((inbuf.get()) != 0) ; // username
+
+            // hostname provided, not IP
+            String target = remoteAddr.getHostAddress();
+            if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0) { // host provided
+                StringBuilder name = new StringBuilder();
+                byte b;
+                while ((b = inbuf.get()) != 0)
+                    name.append((char) b);
+                // if an exit has told us the address, go straight there; otherwise the exit resolves it
+                InetAddress cached = resolver.getCached(name.toString());
+                if (cached != null) {
+                    remoteAddr = cached;
+                    target = cached.getHostAddress();
+                } else {
+                    host = name.toString();
+                    target = host;
                 }
-
-                stream = circ.createStream(remoteAddr.getHostAddress(), port, this);
-            } else {
-                ByteBuffer buf = ByteBuffer.allocate(4096);
-                int nlen = 0;
-                if ((nlen = client.read(buf)) == -1)
-                    throw new IOException("disconnected");
-                lastData = System.currentTimeMillis();
-                buf.flip();
-                byte b[] = new byte[nlen];
-                buf.get(b);
-                stream.send(b);
             }
+
+            // with optimistic data, anything the client sends before our reply follows the BEGIN without waiting
+            stream = circ.createStream(target, port, this);
+            splice = new ChannelSplice(selector, client, new TorStreamChannel(stream));
+            if (inbuf.hasRemaining()) // the client didn't wait for our reply
+                stream.send(inbuf, false);
         }
 
+        // data is passed on by the splice
         @Override
         public void dataArrived(TorStream s) {
-            try {
-                if (!client.isConnected())
-                    removeClient(this);
-
-                int availBytes = s.getInputStream().available();
-                byte buf[] = new byte[availBytes];
-                s.getInputStream().read(buf);
-                client.write(ByteBuffer.wrap(buf));
-            } catch (IOException e) {
-                try {
-                    //System.out.println(e);
-                    removeClient(this);
-                } catch (IOException e1) {
-                    //e1.printStackTrace();
-                }
-                //e.printStackTrace();
-            }
-            lastData = System.currentTimeMillis();
-
         }
 
         @Override
         public void connected(TorStream s) {
+            if (host != null) {
+                resolver.learn(s);
+                if (s.getConnectedAddress() != null && s.getConnectedAddress().getAddress().length == 4)
+                    remoteAddr = s.getConnectedAddress();
+            }
+            reply((byte) 0x5a);
+        }
+
+        // answers the SOCKS request, once the exit has: 0x5a granted or 0x5b rejected
+        synchronized void reply(byte status) {
+            if (connected)
+                return;
             ByteBuffer out = ByteBuffer.allocate(20);
             out.put((byte) 0);
-            out.put((byte) (0x5a));
+            out.put(status);
             out.putShort((short) port);
             out.put(remoteAddr.getAddress());
             out.flip();
             try {
                 client.write(out);
             } catch (IOException e) {
-                try {
-                    removeClient(this);
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
+                removeClient(this);
                 System.out.println(e);
             }
 
             connected = true;
         }
 
+        // the splice sees the stream end; if the exit refused it, the client is told so first
         @Override
         public void disconnected(TorStream s) {
-            try {
-                removeClient(this);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
+            if (s.isBeginFailed())
+                reply((byte) 0x5b);
         }
 
         @Override
         public void failure(TorStream s) {
-            disconnected(s);
-            try {
-                removeClient(this);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        }
 
+        long getLastData() {
+            return splice != null ? splice.getLastActivity() : lastData;
         }
     }
 
-    static HashMap<SocketChannel, SocksClient> clients = new HashMap<>();
+    // touched by the select loop and by stream listeners on the socket's receive thread
+    static ConcurrentHashMap<SocketChannel, SocksClient> clients = new ConcurrentHashMap<>();
 
     // utility function
     public SocksClient addClient(SocketChannel s, TorCircuit circ) {
@@ -191,18 +182,28 @@ public class SOCKSProxy {
         return cl;
     }
 
-    public void removeClient(SocksClient c) throws IOException {
-        c.client.close();
-        c.stream.destroy();
+    public void removeClient(SocksClient c) {
         clients.remove(c.client);
+        if (c.splice != null) {
+            c.splice.close();
+            return;
+        }
+        try {
+            c.client.close();
+            if (c.stream != null)
+                c.stream.destroy();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     long lastTimeoutCheck = 0;
+    // addresses exits have connected us to, so hostnames aren't looked up locally (which would leak them)
+    TorResolver resolver;
 
     public SOCKSProxy() throws IOException {
         // connect through a guard
-        OnionRouter guard = Consensus.getConsensus().getRouterByName("southsea0");
-        TorSocket sock = new TorSocket(guard);
+        TorSocket sock = GuardManager.getDefault().connect();
 
         // establish a circuit
         TorCircuit circ = sock.createCircuit(false);
@@ -210,22 +211,23 @@ public class SOCKSProxy {
         circ.waitForState(TorCircuit.STATES.READY, false);
 
         System.out.println("READY!!");
+        resolver = new TorResolver(circ);
 
         ServerSocketChannel serverSock = ServerSocketChannel.open();
         serverSock.socket().bind(new InetSocketAddress(9050));
         serverSock.configureBlocking(false);
-        Selector select = Selector.open();
-        serverSock.register(select, SelectionKey.OP_ACCEPT);
+        TorSelector select = new TorSelector();
+        serverSock.register(select.getSelector(), SelectionKey.OP_ACCEPT);
 
         int lastClients = clients.size();
         // select loop
         while (true) {
             select.select(1000);
 
-            Set keys = select.selectedKeys();
-            Iterator iterator = keys.iterator();
+            Iterator<SelectionKey> iterator = select.getSelector().selectedKeys().iterator();
             while (iterator.hasNext()) {
-                SelectionKey k = (SelectionKey) iterator.next();
+                SelectionKey k = iterator.next();
+                iterator.remove();
 
                 if (!k.isValid())
                     continue;
@@ -236,33 +238,34 @@ public class SOCKSProxy {
                     SocketChannel csock = serverSock.accept();
                     if (csock == null)
                         continue;
-                    addClient(csock, circ);
-                    csock.register(select, SelectionKey.OP_READ);
+                    SocksClient cl = addClient(csock, circ);
+                    if (cl != null)
+                        csock.register(select.getSelector(), SelectionKey.OP_READ, cl);
+                } else if (k.attachment() instanceof ChannelSplice) {
+                    // data on (or room in) a client socket
+                    ((ChannelSplice) k.attachment()).pump();
                 } else if (k.isReadable()) {
-                    // new data on a client/remote socket
-                    SocksClient cl = clients.get(k.channel());
+                    // SOCKS request from a new client
+                    SocksClient cl = (SocksClient) k.attachment();
                     try {
-                        cl.newClientData(select, k);
+                        cl.newClientData(select);
                     } catch (IOException e) { // error occurred - remove client
-                        cl.client.close();
                         k.cancel();
-                        clients.remove(cl);
-                        //System.out.println(e);
+                        removeClient(cl);
                     }
-
                 }
             }
 
+            // data on (or room in) a stream
+            for (TorStreamChannel ch : select.selectedStreams())
+                ((ChannelSplice) ch.attachment()).pump();
+
             // client timeout check
             if (System.currentTimeMillis() - lastTimeoutCheck > 15000) {
                 lastTimeoutCheck = System.currentTimeMillis();
-                Collection<SocksClient> clientsTmp = clients.values();
-                for (SocksClient cl : clientsTmp) {
-                    if ((System.currentTimeMillis() - cl.lastData) > 30000L) {
-                        cl.stream.destroy();
-                        cl.client.close();
-                        clients.remove(cl);
-                    }
+                for (SocksClient cl : clients.values()) {
+                    if ((cl.splice != null && cl.splice.isClosed()) || (System.currentTimeMillis() - cl.getLastData()) > 30000L)
+                        removeClient(cl);
                 }
                 if (clients.size() != lastClients) {
                     System.out.println(clients.size());
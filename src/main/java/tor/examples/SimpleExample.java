@@ -19,6 +19,7 @@
 package tor.examples;
 
 import tor.Consensus;
+import tor.GuardManager;
 import tor.TorCircuit;
 import tor.TorSocket;
 import tor.TorStream;
@@ -33,7 +34,7 @@ import java.io.InputStreamReader;
 public class SimpleExample {
     public static void main(String[] args) throws IOException {
         Consensus con = Consensus.getConsensus();
-        TorSocket sock = new TorSocket(con.getRouterByName("turtles"));
+        TorSocket sock = GuardManager.getDefault().connect();
         TorCircuit circ = sock.createCircuit(true);
 
         // use createRoute as below, or you can use create() followed by extend() manually
@@ -0,0 +1,115 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+/**
+ * Draws indexes with probability proportional to fixed weights in constant time, using Vose's alias method.
+ * Building the tables is O(n); after that a draw is two array reads and allocates nothing.  Immutable, so a
+ * sampler can be shared between threads.
+ */
+public class AliasSampler {
+    // column i is kept with probability prob[i] / 2^32, otherwise it gives way to alias[i]
+    private final long prob[];
+    private final int alias[];
+    private final double total;
+
+    /**
+     * @param weights Non-negative weights, one per index.  If they are all zero every index is equally likely.
+     */
+    public AliasSampler(double weights[]) {
+        int n = weights.length;
+        if (n == 0)
+            throw new IllegalArgumentException("no weights");
+        prob = new long[n];
+        alias = new int[n];
+
+        double sum = 0;
+        for (double w : weights) {
+            if (w < 0 || Double.isNaN(w) || Double.isInfinite(w))
+                throw new IllegalArgumentException("bad weight " + w);
+            sum += w;
+        }
+        total = sum;
+
+        // scale so the average column is 1, then pair each short column with a long one
+        double scaled[] = new double[n];
+        for (int i = 0; i < n; i++)
+            scaled[i] = sum > 0 ? weights[i] * n / sum : 1;
+        int small[] = new int[n], large[] = new int[n];
+        int ns = 0, nl = 0;
+        for (int i = 0; i < n; i++) {
+            if (scaled[i] < 1)
+                small[ns++] = i;
+            else
+                large[nl++] = i;
+        }
+        while (ns > 0 && nl > 0) {
+            int s = small[--ns], l = large[--nl];
+            prob[s] = (long) (scaled[s] * (1L << 32));
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1;
+            if (scaled[l] < 1)
+                small[ns++] = l;
+            else
+                large[nl++] = l;
+        }
+        // whatever is left is full, give or take rounding
+        while (nl > 0) {
+            int l = large[--nl];
+            prob[l] = 1L << 32;
+            alias[l] = l;
+        }
+        while (ns > 0) {
+            int s = small[--ns];
+            prob[s] = 1L << 32;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * @param randomBits 64 uniformly random bits, e.g. from SecureRandom.nextLong()
+     * @return an index, chosen in proportion to its weight
+     */
+    public int sample(long randomBits) {
+        int col = (int) (((randomBits >>> 32) * prob.length) >>> 32);
+        return (randomBits & 0xFFFFFFFFL) < prob[col] ? col : alias[col];
+    }
+
+    /**
+     * @return number of indexes
+     */
+    public int size() {
+        return prob.length;
+    }
+
+    /**
+     * @return sum of the weights the sampler was built from
+     */
+    public double getTotalWeight() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "AliasSampler{" +
+                "size=" + prob.length +
+                ", total=" + total +
+                '}';
+    }
+}
@@ -0,0 +1,137 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Joins a SocketChannel to a TorStreamChannel, copying data both ways from a TorSelector's loop without blocking.
+ * Each direction has one buffer: while it is full the side filling it isn't read (so a slow socket holds back the
+ * stream's SENDMEs, and a full send queue stops reads from the socket).  Tor streams can't be half closed, so when
+ * the socket's input ends the stream is kept open and its data still written to the socket, until the stream ends
+ * (and what was read from it has been written) or writing to the socket fails.
+ * <p/>
+ * Both channels are registered with this splice as their attachment; call pump() whenever either is selected.
+ */
+public class ChannelSplice {
+    public static int BUFFER_BYTES = 16384;
+
+    private final SocketChannel socket;
+    private final TorStreamChannel stream;
+    private final SelectionKey key;
+    // socket to stream, and stream to socket, both left ready for filling
+    private final ByteBuffer up = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ByteBuffer down = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private boolean socketEnded = false, streamEnded = false;
+    private boolean closed = false;
+    private long lastActivity = System.currentTimeMillis();
+
+    public ChannelSplice(TorSelector selector, SocketChannel socket, TorStreamChannel stream) throws IOException {
+        this.socket = socket;
+        this.stream = stream;
+        socket.configureBlocking(false);
+        stream.configureBlocking(false);
+        key = socket.register(selector.getSelector(), SelectionKey.OP_READ, this);
+        selector.register(stream, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Moves what it can in both directions, then sets which events to wait for
+     */
+    public void pump() {
+        if (closed)
+            return;
+        try {
+            int moved = 0;
+            if (!socketEnded && !streamEnded) {
+                int n = socket.read(up);
+                socketEnded = n < 0;
+                moved += Math.max(n, 0);
+            }
+            up.flip();
+            if (up.hasRemaining() && !streamEnded)
+                moved += stream.write(up);
+            up.compact();
+
+            // a stream can't be half closed, so once the socket has ended the exit's reply keeps coming
+            if (!streamEnded) {
+                int n = stream.read(down);
+                streamEnded = n < 0;
+                moved += Math.max(n, 0);
+            }
+            down.flip();
+            if (down.hasRemaining())
+                moved += socket.write(down);
+            down.compact();
+
+            // once the stream has ended, finish passing on what came from it, then close
+            if (streamEnded && down.position() == 0) {
+                close();
+                return;
+            }
+            if (moved > 0)
+                lastActivity = System.currentTimeMillis();
+            key.interestOps((!socketEnded && !streamEnded && up.hasRemaining() ? SelectionKey.OP_READ : 0)
+                    | (down.position() > 0 ? SelectionKey.OP_WRITE : 0));
+            stream.interestOps((!streamEnded && down.hasRemaining() ? SelectionKey.OP_READ : 0)
+                    | (!streamEnded && up.position() > 0 ? SelectionKey.OP_WRITE : 0));
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        key.cancel();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return when data last moved in either direction
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+
+    public TorStreamChannel getStream() {
+        return stream;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * CompletableFuture helpers missing from Java 8.  Timeouts share one daemon timer thread, so thousands of pending
+ * operations don't need a thread each.
+ */
+public class Futures {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Futures-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @return a future already completed with the exception
+     */
+    public static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    /**
+     * Completes the future with a TimeoutException if it hasn't completed within timeoutMillis.
+     *
+     * @param f             Future
+     * @param timeoutMillis Timeout, 0 for none
+     * @param message       Message for the TimeoutException
+     * @return f
+     */
+    public static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> f, long timeoutMillis, final String message) {
+        if (timeoutMillis <= 0 || f.isDone())
+            return f;
+
+        final ScheduledFuture<?> task = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                f.completeExceptionally(new TimeoutException(message));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        f.whenComplete((v, e) -> task.cancel(false));
+        return f;
+    }
+
+    /**
+     * Runs a task on the shared timer thread.  The task must not block.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
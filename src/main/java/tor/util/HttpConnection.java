@@ -0,0 +1,369 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import tor.TorStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A persistent HTTP/1.1 connection over a TorStream.  Each request is written as soon as it is made, so several can
+ * be in flight at once (pipelining), and the responses are read back in the same order: asking for a response reads
+ * any before it whose bodies haven't been read yet into memory.  Bodies are framed by chunked transfer coding,
+ * Content-Length or the end of the stream, and are streamed from the receive buffer as they're read.
+ * <p/>
+ * The connection stays open until a response says Connection: close (or has no length), and requests already
+ * pipelined behind that one fail with an IOException.  Thread safe.
+ */
+public class HttpConnection implements Closeable {
+    public static int MAX_HEADER_BYTES = 64 * 1024;
+
+    private final TorStream stream;
+    private final String host;
+    private final InputStream in;
+    // requests sent whose responses haven't been started, in the order they were sent
+    private final ConcurrentLinkedQueue<HttpResponse> unanswered = new ConcurrentLinkedQueue<>();
+    private final Object sendLock = new Object();
+    final Object readLock = new Object();
+    // response whose body is being read, guarded by readLock
+    private volatile HttpResponse reading;
+    // set once a response has said the connection will close after it
+    private volatile boolean closing = false;
+    private volatile IOException failure;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile int requests = 0;
+
+    /**
+     * @param host sent as the Host header
+     */
+    public HttpConnection(TorStream stream, String host) {
+        this.stream = stream;
+        this.host = host;
+        in = new BufferedInputStream(stream.getInputStream(), 16384);
+    }
+
+    public HttpResponse get(String path) throws IOException {
+        return request("GET", path, null, null);
+    }
+
+    /**
+     * Sends a request without waiting for earlier responses
+     *
+     * @param headers extra headers, or null
+     * @param body    sent with a Content-Length, or null
+     * @return the response, whose head is read when first asked for
+     */
+    public HttpResponse request(String method, String path, Map<String, String> headers, byte body[]) throws IOException {
+        StringBuilder req = new StringBuilder();
+        req.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+        if (headers != null)
+            for (Map.Entry<String, String> h : headers.entrySet())
+                req.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        if (body != null)
+            req.append("Content-Length: ").append(body.length).append("\r\n");
+        req.append("\r\n");
+        byte head[] = req.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (body != null) {
+            byte all[] = new byte[head.length + body.length];
+            System.arraycopy(head, 0, all, 0, head.length);
+            System.arraycopy(body, 0, all, head.length, body.length);
+            head = all;
+        }
+
+        HttpResponse resp = new HttpResponse(this, method);
+        synchronized (sendLock) {
+            if (!isOpen())
+                throw new IOException("HTTP connection to " + host + " is closed");
+            unanswered.add(resp);
+            requests++;
+            lastUsed = System.currentTimeMillis();
+            stream.send(head);
+        }
+        return resp;
+    }
+
+    /**
+     * @return true if requests can still be sent
+     */
+    public boolean isOpen() {
+        return !closing && failure == null && stream.getState() != TorStream.STATES.DESTROYED;
+    }
+
+    /**
+     * @return requests sent whose responses haven't been read to the end
+     */
+    public int getOutstanding() {
+        return unanswered.size() + (reading != null ? 1 : 0);
+    }
+
+    /**
+     * @return when a request was last sent or a response finished
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return requests sent on this connection
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    public TorStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        stream.destroy();
+    }
+
+    // reads responses up to and including resp's head, keeping the bodies of any before it - caller holds readLock
+    void readUntil(HttpResponse resp) throws IOException {
+        while (!resp.headRead) {
+            if (failure != null)
+                throw new IOException("HTTP connection to " + host + " failed", failure);
+            if (reading != null)
+                reading.body.spill();
+            if (closing)
+                throw new IOException("HTTP connection to " + host + " closed before the response");
+            try {
+                readHead(unanswered.poll());
+            } catch (IOException e) {
+                failure = e;
+                stream.destroy();
+                throw e;
+            }
+        }
+    }
+
+    private void readHead(HttpResponse resp) throws IOException {
+        String status[];
+        Map<String, String> headers;
+        int code;
+        do {
+            String line = readLine();
+            if (line == null)
+                throw new EOFException("HTTP connection to " + host + " closed before the response");
+            status = line.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].matches("\\d{3}"))
+                throw new IOException("Bad HTTP status line: " + line);
+            code = Integer.parseInt(status[1]);
+            headers = readHeaders();
+        } while (code >= 100 && code < 200); // interim responses, such as 100 Continue
+
+        String connection = headers.containsKey("connection") ? headers.get("connection").toLowerCase(Locale.ROOT) : "";
+        boolean keepAlive = status[0].equals("HTTP/1.0") ? connection.contains("keep-alive") : !connection.contains("close");
+        String te = headers.get("transfer-encoding");
+        String cl = headers.get("content-length");
+        long length;
+        boolean chunked = false;
+        if (resp.method.equals("HEAD") || code == 204 || code == 304)
+            length = 0;
+        else if (te != null && te.toLowerCase(Locale.ROOT).contains("chunked")) {
+            chunked = true;
+            length = 0; // of the first chunk, not yet read
+        } else if (cl != null) {
+            try {
+                length = Long.parseLong(cl.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length: " + cl);
+            }
+        } else {
+            length = -1; // until the end of the stream
+            keepAlive = false;
+        }
+        if (!keepAlive)
+            closing = true;
+
+        resp.body = new Body(resp, chunked, length);
+        resp.setHead(status[0], code, status.length > 2 ? status[2] : "", headers);
+        reading = resp;
+        if (!chunked && length == 0)
+            resp.body.finish();
+    }
+
+    // one line of the head, without its CRLF, or null at the end of the stream - caller holds readLock
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (line.length() == 0)
+                    return null;
+                throw new EOFException("HTTP connection to " + host + " closed mid line");
+            }
+            if (line.length() >= MAX_HEADER_BYTES)
+                throw new IOException("HTTP header line too long");
+            line.append((char) c);
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+            line.setLength(line.length() - 1);
+        return line.toString();
+    }
+
+    // header fields up to the blank line, names lower cased and repeats joined with commas
+    private Map<String, String> readHeaders() throws IOException {
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+        String line, last = null;
+        int bytes = 0;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            bytes += line.length();
+            if (bytes > MAX_HEADER_BYTES)
+                throw new IOException("HTTP headers too long");
+            if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && last != null) {
+                headers.put(last, headers.get(last) + " " + line.trim()); // folded onto the line before
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new IOException("Bad HTTP header: " + line);
+            last = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            headers.put(last, headers.containsKey(last) ? headers.get(last) + ", " + value : value);
+        }
+        if (line == null)
+            throw new EOFException("HTTP connection to " + host + " closed in the headers");
+        return headers;
+    }
+
+    /**
+     * A response body, read straight from the stream as the caller reads it, or from memory if a later response was
+     * asked for first
+     */
+    class Body extends InputStream {
+        private final HttpResponse resp;
+        private final boolean chunked;
+        // left in the body, or the current chunk if chunked; -1 if it runs to the end of the stream
+        private long remaining;
+        private boolean done = false;
+        private ByteArrayInputStream spilled;
+        private final byte one[] = new byte[1];
+
+        Body(HttpResponse resp, boolean chunked, long length) {
+            this.resp = resp;
+            this.chunked = chunked;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            synchronized (readLock) {
+                if (spilled != null)
+                    return spilled.read(b, off, len);
+                if (done)
+                    return -1;
+                if (len == 0)
+                    return 0;
+                if (chunked && remaining == 0) {
+                    String size = readLine();
+                    if (size == null)
+                        throw new EOFException("HTTP connection to " + host + " closed in a chunked body");
+                    int semi = size.indexOf(';'); // chunk extensions are ignored
+                    try {
+                        remaining = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad chunk size: " + size);
+                    }
+                    if (remaining == 0) {
+                        readHeaders(); // trailers
+                        finish();
+                        return -1;
+                    }
+                }
+
+                int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+                if (n < 0) {
+                    if (remaining < 0) {
+                        finish();
+                        return -1;
+                    }
+                    throw new EOFException("HTTP connection to " + host + " closed in a response body");
+                }
+                if (remaining > 0) {
+                    remaining -= n;
+                    if (remaining == 0) {
+                        if (!chunked)
+                            finish();
+                        else if (!"".equals(readLine()))
+                            throw new IOException("Chunk not followed by CRLF");
+                    }
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (readLock) {
+                if (spilled != null)
+                    return spilled.available();
+                return done ? 0 : (int) Math.min(in.available(), remaining < 0 ? Integer.MAX_VALUE : remaining);
+            }
+        }
+
+        /**
+         * Skips the rest of the body, so that the connection can go on to the next response
+         */
+        @Override
+        public void close() throws IOException {
+            byte skip[] = new byte[4096];
+            while (read(skip, 0, skip.length) >= 0)
+                ;
+        }
+
+        // reads the rest into memory - caller holds readLock
+        void spill() throws IOException {
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            byte buf[] = new byte[4096];
+            int n;
+            while ((n = read(buf, 0, buf.length)) >= 0)
+                rest.write(buf, 0, n);
+            spilled = new ByteArrayInputStream(rest.toByteArray());
+        }
+
+        // the whole body has been read from the stream - caller holds readLock
+        void finish() throws IOException {
+            done = true;
+            if (reading == resp)
+                reading = null;
+            lastUsed = System.currentTimeMillis();
+            if (closing)
+                stream.destroy(); // anything pipelined behind this fails
+        }
+    }
+}
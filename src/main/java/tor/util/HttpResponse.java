@@ -0,0 +1,116 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The response to a request sent on an HttpConnection.  Its head is read when first asked for, blocking until it
+ * arrives; the body is then read through getBody().  Close it (or read the body to the end) so that the connection
+ * can go on to the next response without keeping this one's body in memory.
+ */
+public class HttpResponse implements Closeable {
+    private final HttpConnection conn;
+    final String method;
+    volatile boolean headRead = false;
+    private String version, reason;
+    private int status;
+    private Map<String, String> headers;
+    HttpConnection.Body body;
+
+    HttpResponse(HttpConnection conn, String method) {
+        this.conn = conn;
+        this.method = method;
+    }
+
+    void setHead(String version, int status, String reason, Map<String, String> headers) {
+        this.version = version;
+        this.status = status;
+        this.reason = reason;
+        this.headers = Collections.unmodifiableMap(headers);
+        headRead = true;
+    }
+
+    // reads the head, and any responses before it, if that hasn't been done
+    private void awaitHead() throws IOException {
+        if (!headRead) {
+            synchronized (conn.readLock) {
+                conn.readUntil(this);
+            }
+        }
+    }
+
+    public int getStatus() throws IOException {
+        awaitHead();
+        return status;
+    }
+
+    public String getReason() throws IOException {
+        awaitHead();
+        return reason;
+    }
+
+    public String getVersion() throws IOException {
+        awaitHead();
+        return version;
+    }
+
+    /**
+     * @return the header's value (repeated headers joined with commas), or null
+     */
+    public String getHeader(String name) throws IOException {
+        awaitHead();
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return header fields by lower case name
+     */
+    public Map<String, String> getHeaders() throws IOException {
+        awaitHead();
+        return headers;
+    }
+
+    /**
+     * @return the body, decoded from any chunked coding, ending when the response does
+     */
+    public InputStream getBody() throws IOException {
+        awaitHead();
+        return body;
+    }
+
+    public byte[] readBody() throws IOException {
+        return IOUtils.toByteArray(getBody());
+    }
+
+    /**
+     * Skips whatever of the body hasn't been read
+     */
+    @Override
+    public void close() throws IOException {
+        getBody().close();
+    }
+}
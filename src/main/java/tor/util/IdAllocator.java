@@ -0,0 +1,121 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free allocator for integer IDs (stream IDs, circuit IDs) in the range [min, max].
+ * <p/>
+ * IDs in use are kept in a bitmap which is updated with compare-and-set.  Allocation carries on from where the
+ * previous one stopped, so a freed ID is only handed out again once the rest of the range has been cycled through -
+ * this gives cells still in flight for a closed stream or circuit time to drain before the ID is reused.
+ * <p/>
+ * That is why callers free an ID as soon as they send or receive END or DESTROY: neither is acknowledged by the
+ * other side, so there is nothing to wait for, and the cursor already has to pass every other free ID (tens of
+ * thousands of allocations when few are in use) before it comes back round to this one.  Tor allocates stream IDs
+ * the same way.  The exception is a range that is nearly exhausted, where the next ID free may be the one just
+ * freed; at that point a late cell reaching the wrong stream or circuit is the lesser problem.
+ */
+public class IdAllocator {
+    private final int min, max;
+    private final AtomicLongArray used;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    public IdAllocator(int min, int max) {
+        if (min < 0 || max < min)
+            throw new IllegalArgumentException("invalid ID range " + min + "-" + max);
+        this.min = min;
+        this.max = max;
+        used = new AtomicLongArray(((max - min) >> 6) + 1);
+    }
+
+    /**
+     * @return a free ID, or -1 if every ID in the range is in use
+     */
+    public int allocate() {
+        int range = max - min + 1;
+        int start = (int) ((cursor.getAndIncrement() & 0xFFFFFFFFL) % range);
+
+        for (int i = 0; i < range; i++) {
+            int off = start + i;
+            if (off >= range)
+                off -= range;
+
+            int word = off >> 6;
+            long bit = 1L << (off & 63);
+            long cur = used.get(word);
+
+            // skip full words quickly
+            if (cur == -1L && (off & 63) == 0 && i + 64 <= range) {
+                i += 63;
+                continue;
+            }
+
+            while ((cur & bit) == 0) {
+                if (used.compareAndSet(word, cur, cur | bit)) {
+                    cursor.set(off + 1);
+                    inUse.incrementAndGet();
+                    return min + off;
+                }
+                cur = used.get(word);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an ID to the pool.  Freeing an ID that isn't allocated does nothing.
+     *
+     * @param id ID from allocate()
+     */
+    public void free(int id) {
+        if (id < min || id > max)
+            return;
+
+        int off = id - min;
+        int word = off >> 6;
+        long bit = 1L << (off & 63);
+        while (true) {
+            long cur = used.get(word);
+            if ((cur & bit) == 0)
+                return;
+            if (used.compareAndSet(word, cur, cur & ~bit)) {
+                inUse.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    public boolean isAllocated(int id) {
+        if (id < min || id > max)
+            return false;
+        int off = id - min;
+        return (used.get(off >> 6) & (1L << (off & 63))) != 0;
+    }
+
+    /**
+     * @return number of IDs currently allocated
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+}
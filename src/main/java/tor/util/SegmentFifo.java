@@ -0,0 +1,197 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Byte queue made of cell sized segments, so that it grows a segment at a time and moves data with
+ * System.arraycopy rather than byte by byte.  append() queues a slice of the caller's array without copying it, so
+ * a received cell's data is only copied once, by get(); put() copies into segments of our own, which are reused
+ * once drained.
+ * <p/>
+ * Neither refuses data: the limit is a high water mark for flow control (see isFull()), since bytes already in
+ * flight when the sender is told to slow down still have to be stored.  Not thread safe - the owner locks.
+ */
+public class SegmentFifo {
+    public final static int SEGMENT_SIZE = 498; // RELAY_DATA payload
+    // drained segments kept for reuse
+    public static int MAX_SPARE_SEGMENTS = 16;
+
+    // unread bytes buf[start..end)
+    private static class Segment {
+        final byte buf[];
+        int start, end;
+        final boolean owned; // one of ours, which put() may fill and get() recycle
+
+        Segment(byte buf[], int start, int end, boolean owned) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+            this.owned = owned;
+        }
+    }
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+    private volatile int count = 0;
+    private int limit;
+
+    /**
+     * @param limit Bytes held before isFull()
+     */
+    public SegmentFifo(int limit) {
+        this.limit = limit;
+    }
+
+    public int available() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return true once the buffer holds its limit or more, and the sender should be held back
+     */
+    public boolean isFull() {
+        return count >= limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public void put(byte b[]) {
+        put(b, 0, b.length);
+    }
+
+    /**
+     * Appends a copy of bytes, filling the last segment before starting another
+     */
+    public void put(byte b[], int off, int len) {
+        while (len > 0) {
+            Segment last = segments.peekLast();
+            if (last == null || !last.owned || last.end == last.buf.length) {
+                byte buf[] = spare.poll();
+                segments.add(last = new Segment(buf != null ? buf : new byte[SEGMENT_SIZE], 0, 0, true));
+            }
+            int n = Math.min(len, last.buf.length - last.end);
+            System.arraycopy(b, off, last.buf, last.end, n);
+            last.end += n;
+            off += n;
+            len -= n;
+            count += n;
+        }
+    }
+
+    /**
+     * Appends a slice of b without copying it.  The caller must not change b afterwards.
+     */
+    public void append(byte b[], int off, int len) {
+        if (len <= 0)
+            return;
+        segments.add(new Segment(b, off, off + len, false));
+        count += len;
+    }
+
+    /**
+     * Takes up to len bytes
+     *
+     * @return bytes copied into dst, 0 if empty
+     */
+    public int get(byte dst[], int off, int len) {
+        return get(ByteBuffer.wrap(dst, off, len));
+    }
+
+    /**
+     * Takes as many bytes as dst has room for
+     *
+     * @return bytes put into dst, 0 if empty
+     */
+    public int get(ByteBuffer dst) {
+        int copied = 0;
+        while (dst.hasRemaining() && count > 0) {
+            Segment seg = segments.peek();
+            int n = Math.min(dst.remaining(), seg.end - seg.start);
+            dst.put(seg.buf, seg.start, n);
+            seg.start += n;
+            copied += n;
+            count -= n;
+            if (seg.start == seg.end) {
+                segments.poll();
+                if (seg.owned && spare.size() < MAX_SPARE_SEGMENTS)
+                    spare.add(seg.buf);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Takes data without copying it, as buffers over the segments' arrays (the last one possibly split).  Segments
+     * taken this way aren't reused.
+     *
+     * @return number of buffers put in dst from index 0, holding at most maxBytes between them
+     */
+    public int take(ByteBuffer dst[], long maxBytes) {
+        int n = 0;
+        while (n < dst.length && maxBytes > 0 && count > 0) {
+            Segment seg = segments.peek();
+            int len = (int) Math.min(maxBytes, seg.end - seg.start);
+            dst[n++] = ByteBuffer.wrap(seg.buf, seg.start, len);
+            seg.start += len;
+            count -= len;
+            maxBytes -= len;
+            if (seg.start == seg.end)
+                segments.poll();
+        }
+        return n;
+    }
+
+    // bytes = -1 for everything
+    public byte[] get(int bytes) {
+        byte buf[] = new byte[bytes == -1 ? count : Math.min(count, bytes)];
+        get(buf, 0, buf.length);
+        return buf;
+    }
+
+    /**
+     * Discards the contents and the spare segments
+     */
+    public void clear() {
+        segments.clear();
+        spare.clear();
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentFifo{" +
+                "available=" + count +
+                ", segments=" + segments.size() +
+                ", limit=" + limit +
+                '}';
+    }
+}
@@ -11,6 +11,7 @@ import java.io.InputStream;
 public class TorInputStream extends InputStream {
 
     TorStream hostStream;
+    private final byte one[] = new byte[1];
 
     public TorInputStream(TorStream st) {
         hostStream = st;
@@ -28,10 +29,10 @@ public class TorInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        byte bytes[] = new byte[1];
-        int received = hostStream.recv(bytes, true);
-
-        return bytes[0];
+        int received = hostStream.recv(one, true);
+        if (received == -1)
+            return -1;
+        return one[0] & 0xff;
     }
 
     @Override
@@ -41,11 +42,8 @@ public class TorInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        byte buf[] = new byte[len];
-        int received = hostStream.recv(buf, true);
-        if (received == -1)
-            return -1;
-        System.arraycopy(buf, 0, b, off, received);
-        return received;
+        if (len == 0)
+            return 0;
+        return hostStream.recv(b, off, len, true);
     }
 }
@@ -4,32 +4,196 @@ import tor.TorStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by gho on 29/07/14.
+ * <p/>
+ * By default every write is sent straight away, which costs at least one cell per write.  With setFlushDelay()
+ * writes are gathered into full cells instead: a full cell goes as soon as it fills, and a partly filled one on
+ * flush(), close(), or (like Nagle's algorithm) once its first byte has waited the delay.  The delayed flush runs on a
+ * timer thread shared by every stream, so it never waits: if the stream's queue is full or a writer is busy it tries
+ * again after another delay.
  */
 public class TorOutputStream extends OutputStream {
+    // flush delay for new streams, -1 for unbuffered
+    public static long FLUSH_DELAY_MILLIS = -1;
+
+    private static ScheduledExecutorService flushTimer;
+
     private TorStream hostStream;
+    private long flushDelay = FLUSH_DELAY_MILLIS;
+    private final byte cell[] = new byte[TorStream.MAX_DATA_LEN];
+    private int buffered = 0;
+    private boolean flushScheduled = false;
+    // held by writers, who may block in send(); the flush timer only ever tries it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Runnable delayedFlush = new Runnable() {
+        @Override
+        public void run() {
+            delayedFlush();
+        }
+    };
 
     public TorOutputStream(TorStream host) {
         hostStream = host;
     }
 
+    /**
+     * Sets how writes are sent
+     *
+     * @param millis -1 to send each write at once (flushing anything buffered), 0 to gather writes until a cell is
+     *               full or flush() is called, more than 0 to also send a partly filled cell after this long
+     */
+    public void setFlushDelay(long millis) throws IOException {
+        lock.lock();
+        try {
+            flushDelay = millis;
+            if (millis < 0)
+                flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFlushDelay() {
+        lock.lock();
+        try {
+            return flushDelay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void write(int i) throws IOException {
-        hostStream.send(new byte[]{(byte) i});
+        lock.lock();
+        try {
+            if (flushDelay < 0) {
+                hostStream.send(new byte[]{(byte) i});
+                return;
+            }
+            cell[buffered++] = (byte) i;
+            filled();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        hostStream.send(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        hostStream.send(Arrays.copyOfRange(b, off, off + len));
+        lock.lock();
+        try {
+            if (flushDelay < 0) {
+                hostStream.send(b, off, len);
+                return;
+            }
+            if (buffered > 0) { // top up the partly filled cell first
+                int n = Math.min(len, cell.length - buffered);
+                System.arraycopy(b, off, cell, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                filled();
+            }
+            int whole = len - len % cell.length;
+            if (whole > 0) { // the cell is empty, so full cells can go straight from b
+                hostStream.send(b, off, whole);
+                off += whole;
+                len -= whole;
+            }
+            if (len > 0) {
+                System.arraycopy(b, off, cell, 0, len);
+                buffered = len;
+                filled();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // sends the cell if full, otherwise makes sure it will be sent within the delay - caller holds lock
+    private void filled() throws IOException {
+        if (buffered == cell.length)
+            flush();
+        else
+            scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (buffered > 0 && flushDelay > 0 && !flushScheduled) {
+            flushScheduled = true;
+            getFlushTimer().schedule(delayedFlush, flushDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // on the timer thread: sends what fits in the stream's queue without blocking, and leaves the rest for next time
+    private void delayedFlush() {
+        if (!lock.tryLock()) { // a writer is sending, perhaps waiting for room in the queue
+            getFlushTimer().schedule(delayedFlush, Math.max(flushDelay, 1), TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            flushScheduled = false;
+            if (buffered == 0)
+                return;
+            ByteBuffer pending = ByteBuffer.wrap(cell, 0, buffered);
+            hostStream.send(pending, false);
+            buffered = pending.remaining();
+            System.arraycopy(cell, pending.position(), cell, 0, buffered);
+            scheduleFlush();
+        } catch (IOException e) {
+            buffered = 0; // stream gone, nowhere to send it
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Sends any partly filled cell
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (buffered == 0)
+                return;
+            int n = buffered;
+            buffered = 0;
+            hostStream.send(cell, 0, n);
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /**
+     * Flushes, leaving the stream open (see TorStream.destroy())
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private static synchronized ScheduledExecutorService getFlushTimer() {
+        if (flushTimer == null)
+            flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TorOutputStream flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return flushTimer;
+    }
 }
@@ -0,0 +1,112 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lets one thread wait on both SocketChannels and TorStreamChannels.  Sockets are registered with getSelector() as
+ * usual; streams with register().  A stream that becomes ready (on the socket's receive thread, or the circuit's
+ * scheduler) queues itself here and wakes the selector, so select() returns for either.
+ * <p/>
+ * <pre>
+ * while (true) {
+ *     sel.select(1000);
+ *     for (SelectionKey k : sel.getSelector().selectedKeys()) ...
+ *     sel.getSelector().selectedKeys().clear();
+ *     for (TorStreamChannel ch : sel.selectedStreams()) ...
+ * }
+ * </pre>
+ * Like a Selector, streams are reported for as long as they are ready for an operation they're interested in.
+ */
+public class TorSelector implements Closeable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<TorStreamChannel> woken = new ConcurrentLinkedQueue<>();
+    // returned last time, checked again before the next select in case they're still ready
+    private List<TorStreamChannel> lastSelected = new ArrayList<>();
+
+    public TorSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * @return the selector to register SocketChannels (and anything else selectable) with
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @param ops SelectionKey.OP_READ and/or OP_WRITE
+     */
+    public void register(TorStreamChannel ch, int ops, Object attachment) {
+        ch.register(this, ops, attachment);
+    }
+
+    void woken(TorStreamChannel ch) {
+        woken.add(ch);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits until a socket or stream is ready, the timeout expires or wakeup() is called
+     *
+     * @return number of sockets selected (see getSelector().selectedKeys()) - streams are found by selectedStreams()
+     */
+    public int select(long timeoutMillis) throws IOException {
+        for (TorStreamChannel ch : lastSelected)
+            if (ch.isOpen() && (ch.readyOps() & ch.interestOps()) != 0)
+                ch.wake();
+        lastSelected.clear();
+
+        if (!woken.isEmpty())
+            return selector.selectNow();
+        return selector.select(timeoutMillis);
+    }
+
+    /**
+     * @return streams ready for an operation they're interested in, each ready op still having to be checked with
+     * readyOps() (or by reading and writing until they return 0)
+     */
+    public List<TorStreamChannel> selectedStreams() {
+        List<TorStreamChannel> ready = new ArrayList<>();
+        TorStreamChannel ch;
+        while ((ch = woken.poll()) != null) {
+            ch.queued.set(false);
+            if (ch.isOpen() && (ch.readyOps() & ch.interestOps()) != 0)
+                ready.add(ch);
+        }
+        lastSelected = new ArrayList<>(ready);
+        return ready;
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import tor.TorStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A TorStream as a ByteChannel: reads go from the receive buffer straight into the ByteBuffer, writes from the
+ * ByteBuffer straight into cell payloads.  In non-blocking mode reads return 0 when nothing is buffered and writes
+ * take only what fits in the stream's send queue, and the channel can be registered with a TorSelector to be told
+ * when that changes, alongside ordinary SocketChannels.
+ * <p/>
+ * Closing the channel closes the stream.
+ */
+public class TorStreamChannel implements ByteChannel {
+    private final TorStream stream;
+    private volatile boolean blocking = true;
+    private volatile boolean open = true;
+
+    private TorSelector selector;
+    private volatile int interestOps = 0;
+    private volatile Object attachment;
+    // already queued on the selector, so that a burst of cells wakes it once
+    final AtomicBoolean queued = new AtomicBoolean();
+
+    public TorStreamChannel(TorStream stream) {
+        this.stream = stream;
+    }
+
+    public TorStream getStream() {
+        return stream;
+    }
+
+    public TorStreamChannel configureBlocking(boolean block) {
+        blocking = block;
+        return this;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @return bytes read, 0 if non-blocking and nothing is buffered, -1 once the stream has ended
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return stream.recv(dst, blocking);
+    }
+
+    /**
+     * @return bytes taken from src, which when non-blocking may be fewer than it holds (or 0)
+     * @throws IOException if the stream has ended
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return stream.send(src, blocking);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        interestOps = 0;
+        stream.setWakeup(null);
+        stream.destroy();
+    }
+
+    /**
+     * @return SelectionKey.OP_READ and/or OP_WRITE if a read or write would not block.  Both are set once the
+     * stream has ended, so that the caller finds out.
+     */
+    public int readyOps() {
+        return (stream.isReadable() ? SelectionKey.OP_READ : 0) | (stream.isWritable() ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Registers with a selector, which will return this channel from selectedStreams() while it is ready for one of
+     * ops.  Normally done by TorSelector.register().
+     */
+    void register(TorSelector selector, int ops, Object attachment) {
+        this.selector = selector;
+        this.attachment = attachment;
+        stream.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                wake();
+            }
+        });
+        interestOps(ops);
+    }
+
+    public int interestOps() {
+        return interestOps;
+    }
+
+    /**
+     * Sets which of OP_READ and OP_WRITE the selector should report
+     */
+    public void interestOps(int ops) {
+        interestOps = ops;
+        if ((readyOps() & ops) != 0)
+            wake();
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    // hands the channel to its selector to check, unless it's already waiting there
+    void wake() {
+        TorSelector sel = selector;
+        if (sel != null && open && queued.compareAndSet(false, true))
+            sel.woken(this);
+    }
+}
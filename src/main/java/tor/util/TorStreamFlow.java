@@ -0,0 +1,284 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor.util;
+
+import tor.TorStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TorStream as a Flow.Publisher of the data received and a Flow.Subscriber of data to send.
+ * <p/>
+ * Received data is published in ByteBuffers of up to ITEM_BYTES, only as the subscriber requests them.  The stream's
+ * receive limit follows the outstanding demand, so stream SENDMEs go to the exit only while the subscriber has asked
+ * for more: with no demand the exit stops once its window is used, so at most a window beyond what was asked for
+ * is ever buffered.  Cancelling the subscription closes the stream; the end of the stream completes it.  One
+ * subscriber is allowed.
+ * <p/>
+ * Subscribed to a publisher, items are sent without blocking and the next requested once the stream's send queue
+ * has taken the last, so a fast publisher is held to the pace of the circuit.  An error from the publisher closes
+ * the stream.  Completion leaves it open, as Tor streams can't be half closed - close it by cancelling or
+ * TorStream.destroy() once the reply is in.
+ * <p/>
+ * Signals to the subscriber are made from the executor (the common ForkJoinPool by default), never from the socket's
+ * threads.  Takes over the stream's wakeup, so it can't be used with a TorStreamChannel at the same time.
+ */
+public class TorStreamFlow implements Flow.Publisher<ByteBuffer>, Flow.Subscriber<ByteBuffer> {
+    public static int ITEM_BYTES = TorStream.MAX_DATA_LEN;
+
+    private final TorStream stream;
+    private final Executor executor;
+    private final int itemBytes;
+    // signals owed to drain(), so that one runs at a time and none is missed
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // stream to subscriber
+    private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private boolean finished = false; // only touched by drain()
+    private final ByteBuffer none = ByteBuffer.allocate(0);
+
+    // publisher to stream
+    private final Object outLock = new Object();
+    private Flow.Subscription upstream; // guarded by outLock
+    private ByteBuffer pending; // guarded by outLock
+
+    public TorStreamFlow(TorStream stream) {
+        this(stream, ForkJoinPool.commonPool(), ITEM_BYTES);
+    }
+
+    /**
+     * @param itemBytes largest ByteBuffer to publish
+     */
+    public TorStreamFlow(TorStream stream, Executor executor, int itemBytes) {
+        this.stream = stream;
+        this.executor = executor;
+        this.itemBytes = itemBytes;
+        stream.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                signal();
+            }
+        });
+    }
+
+    public TorStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> s) {
+        synchronized (this) {
+            if (subscriber != null) {
+                s.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                s.onError(new IllegalStateException("TorStreamFlow allows one subscriber"));
+                return;
+            }
+            subscriber = s;
+        }
+        try {
+            stream.setReceiveLimit(0); // nothing requested yet
+        } catch (IOException e) {
+            failure = e;
+        }
+        s.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0)
+                    failure = new IllegalArgumentException("request(" + n + ")");
+                else {
+                    long d, next;
+                    do {
+                        d = demand.get();
+                        next = d + n < 0 ? Long.MAX_VALUE : d + n;
+                    } while (!demand.compareAndSet(d, next));
+                }
+                signal();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                try {
+                    stream.destroy();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        });
+        signal();
+    }
+
+    // runs drain() on the executor unless it's already running, in which case it goes round again
+    private void signal() {
+        if (wip.getAndIncrement() == 0) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                wip.set(0);
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            Flow.Subscriber<? super ByteBuffer> s = subscriber;
+            if (s != null && !finished && !cancelled)
+                deliver(s);
+            writePending();
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    // passes on what has been received and requested, then sets the receive limit to what's still wanted
+    private void deliver(Flow.Subscriber<? super ByteBuffer> s) {
+        try {
+            while (failure == null && !cancelled && stream.isReadable()) {
+                boolean wanted = demand.get() > 0;
+                ByteBuffer item = wanted ? ByteBuffer.allocate(itemBytes) : none; // with none, only looks for the end
+                int n = stream.recv(item, false);
+                if (n < 0) {
+                    finished = true;
+                    if (stream.isBeginFailed())
+                        s.onError(new IOException("Stream failed, end reason " + stream.getEndReason()));
+                    else
+                        s.onComplete();
+                    return;
+                }
+                if (n == 0)
+                    break;
+                item.flip();
+                if (demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+                s.onNext(item);
+            }
+            if (failure != null) {
+                finished = true;
+                stream.destroy();
+                s.onError(failure);
+                return;
+            }
+            if (!cancelled)
+                stream.setReceiveLimit((int) Math.min(TorStream.RECV_BUFFER_BYTES / itemBytes, demand.get()) * itemBytes);
+        } catch (IOException e) {
+            finished = true;
+            cancelled = true;
+            s.onError(e);
+        } catch (RuntimeException e) {
+            // the subscriber broke the rules by throwing, so it's treated as cancelled
+            finished = true;
+            cancelled = true;
+            try {
+                stream.destroy();
+            } catch (IOException e2) {
+                // closing anyway
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        synchronized (outLock) {
+            if (upstream != null || stream.getState() == TorStream.STATES.DESTROYED) {
+                s.cancel();
+                return;
+            }
+            upstream = s;
+        }
+        s.request(1);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        synchronized (outLock) {
+            pending = item;
+        }
+        writePending();
+    }
+
+    // queues as much of the pending item as fits, and once it's all taken asks for the next
+    private void writePending() {
+        Flow.Subscription up;
+        boolean more;
+        synchronized (outLock) {
+            if (pending == null)
+                return;
+            try {
+                stream.send(pending, false);
+                more = !pending.hasRemaining();
+            } catch (IOException e) {
+                more = false; // stream has ended, so stop the publisher
+                pending = null;
+            }
+            if (more)
+                pending = null;
+            else if (pending != null)
+                return; // woken when the queue drains
+            up = upstream;
+            if (!more)
+                upstream = null;
+        }
+        if (up != null) {
+            if (more)
+                up.request(1);
+            else
+                up.cancel();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (outLock) {
+            upstream = null;
+            pending = null;
+        }
+        try {
+            stream.destroy();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (outLock) {
+            upstream = null; // a pending item is still sent
+        }
+    }
+}
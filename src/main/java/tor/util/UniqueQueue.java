@@ -21,124 +21,59 @@ package tor.util;
 import java.util.*;
 
 /**
- * Thread unsafe implementation of UniqueQueue.
+ * Thread unsafe implementation of UniqueQueue.  A FIFO queue which holds each element at most once - adding an
+ * element already queued leaves it in its current position.
  */
-public class UniqueQueue<T> implements Queue<T> {
-    private final Queue<T> queue = new LinkedList<T>();
-    private final Set<T> set = new HashSet<T>();
+public class UniqueQueue<T> extends AbstractQueue<T> {
+    private final LinkedHashSet<T> set = new LinkedHashSet<T>();
 
-    public boolean add(T t) {
+    @Override
+    public boolean offer(T t) {
+        if (t == null)
+            throw new NullPointerException();
         // Only add element to queue if the set does not contain the specified element.
-        if (set.add(t)) {
-            queue.add(t);
-        }
-
+        set.add(t);
         return true; // Must always return true as per API def.
     }
 
-    public T remove() throws NoSuchElementException {
-        T ret = queue.remove();
-        set.remove(ret);
+    @Override
+    public T poll() {
+        Iterator<T> it = set.iterator();
+        if (!it.hasNext())
+            return null;
+        T ret = it.next();
+        it.remove();
         return ret;
     }
 
     @Override
-    public boolean isEmpty() {
-        // TODO Auto-generated method stub
-        return set.isEmpty();
+    public T peek() {
+        Iterator<T> it = set.iterator();
+        return it.hasNext() ? it.next() : null;
     }
 
-    // WARNING - following not implemented
     @Override
-    public boolean addAll(Collection<? extends T> arg0) {
-        // TODO Auto-generated method stub
-        return false;
+    public boolean contains(Object o) {
+        return set.contains(o);
     }
 
     @Override
-    public void clear() {
-        // TODO Auto-generated method stub
-
+    public boolean remove(Object o) {
+        return set.remove(o);
     }
 
     @Override
-    public boolean contains(Object arg0) {
-        // TODO Auto-generated method stub
-        return false;
+    public void clear() {
+        set.clear();
     }
 
-    @Override
-    public boolean containsAll(Collection<?> arg0) {
-        // TODO Auto-generated method stub
-        return false;
-    }
-
-
     @Override
     public Iterator<T> iterator() {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    @Override
-    public boolean remove(Object arg0) {
-        // TODO Auto-generated method stub
-        return false;
-    }
-
-    @Override
-    public boolean removeAll(Collection<?> arg0) {
-        // TODO Auto-generated method stub
-        return false;
-    }
-
-    @Override
-    public boolean retainAll(Collection<?> arg0) {
-        // TODO Auto-generated method stub
-        return false;
+        return set.iterator();
     }
 
     @Override
     public int size() {
-        // TODO Auto-generated method stub
-        return 0;
+        return set.size();
     }
-
-    @Override
-    public Object[] toArray() {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    @Override
-    public <U> U[] toArray(U[] arg0) {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    @Override
-    public T element() {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    @Override
-    public boolean offer(T arg0) {
-        // TODO Auto-generated method stub
-        return false;
-    }
-
-    @Override
-    public T peek() {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    @Override
-    public T poll() {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    // TODO: Implement other Queue methods.
-}
\ No newline at end of file
+}
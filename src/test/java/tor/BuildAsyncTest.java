@@ -0,0 +1,99 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Builds circuits through the stand-in relay with buildAsync(): one that completes and carries a stream, one whose
+ * exit never answers the EXTEND and so times out, and one whose exit's onion key can't be had.  Checks that an
+ * unknown onion key is fetched in the calling thread, before anything is sent, rather than on the receive thread.
+ */
+public class BuildAsyncTest extends StandInRelayFixture {
+    private LocalRelaySocket sock;
+
+    @Before
+    public void connect() throws IOException {
+        sock = standIn(3, 10);
+    }
+
+    @Test(timeout = 30000)
+    public void buildsAndCarriesAStream() throws Exception {
+        TorCircuit circ = track(sock.createCircuit(false));
+        TorCircuit built = circ.buildAsync(sock.getRouter(1), sock.getRouter(2)).get(10, TimeUnit.SECONDS);
+        assertSame(circ, built);
+        assertEquals(TorCircuit.STATES.READY, circ.state);
+        circ.setBlocking(true);
+        TorStream st = circ.createStream("chargen", 19, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        assertTrue(isChargen(readFully(st.getInputStream(), 10000), 0));
+    }
+
+    @Test(timeout = 30000)
+    public void unansweredExtendFails() throws Exception {
+        sock.setRouterDown(2, true);
+        TorCircuit circ = track(sock.createCircuit(false));
+        circ.setBuildTimeout(300);
+        CompletableFuture<TorCircuit> f = circ.buildAsync(sock.getRouter(1), sock.getRouter(2));
+        try {
+            f.get(10, TimeUnit.SECONDS);
+            fail("build through an unreachable exit succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void unknownOnionKeyIsFetchedByTheCaller() throws Exception {
+        LazyRouter exit = new LazyRouter(2);
+        TorCircuit circ = track(sock.createCircuit(false));
+        CompletableFuture<TorCircuit> f = circ.buildAsync(sock.getRouter(1), exit);
+        assertSame("onion key wasn't fetched before buildAsync() returned", Thread.currentThread(), exit.fetchedBy);
+        assertSame(circ, f.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void onionKeyThatCantBeFetchedFailsBeforeSending() throws Exception {
+        LazyRouter exit = new LazyRouter(2);
+        exit.unavailable = true;
+        TorCircuit circ = track(sock.createCircuit(false));
+        CompletableFuture<TorCircuit> f = circ.buildAsync(sock.getRouter(1), exit);
+        assertTrue("failure wasn't immediate", f.isCompletedExceptionally());
+        assertEquals("CREATE was sent for a path that can't be built", TorCircuit.STATES.NONE, circ.state);
+    }
+
+    /**
+     * The stand-in's router i, but with its onion key to be fetched, as for a router whose descriptor hasn't been
+     * downloaded.  Records the thread that fetched it.
+     */
+    private class LazyRouter extends OnionRouter {
+        private final int i;
+        volatile Thread fetchedBy;
+        volatile boolean unavailable = false;
+
+        LazyRouter(int i) throws IOException {
+            super("lazy" + i, sock.getRouter(i).identityhash, "127.0.0.1", 9001 + i, 0);
+            this.i = i;
+        }
+
+        @Override
+        public PublicKey getOnionKey() throws IOException {
+            if (fetchedBy == null)
+                fetchedBy = Thread.currentThread();
+            if (unavailable)
+                throw new IOException("no descriptor for " + name);
+            return sock.getRouter(i).getOnionKey();
+        }
+    }
+}
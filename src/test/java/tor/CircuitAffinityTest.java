@@ -0,0 +1,86 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens streams to a few destinations through the stand-in relay, whose exits each refuse one of them with
+ * REASON_EXITPOLICY although their policy summaries accept every port.  CircuitAffinity should stop sending
+ * destinations to exits that refused them, and stop building circuits once it has learned where everything goes.
+ */
+public class CircuitAffinityTest extends StandInRelayFixture {
+    static final String HOSTS[] = {"echo", "discard", "chargen"};
+    static final int PORTS[] = {7, 9, 19};
+    static final int REQUESTS = 60;
+
+    private LocalRelaySocket sock;
+    private CircuitBuilder builder;
+    private int failedBegins = 0;
+
+    @Before
+    public void connect() throws IOException {
+        sock = standIn(5, 10);
+        sock.setRejectedPorts(1, 7);
+        sock.setRejectedPorts(2, 9);
+        sock.setRejectedPorts(3, 19);
+        builder = new CircuitBuilder(sock, new CircuitBuildTimeout(null));
+    }
+
+    @Test
+    public void learnsWhereEachDestinationGoes() throws IOException {
+        // new circuits exit through routers 1 to 4 in turn
+        final AtomicInteger builds = new AtomicInteger();
+        CircuitAffinity affinity = new CircuitAffinity(port -> track(builder.build(sock.getRouter(1 + builds.getAndIncrement() % 4))), 64);
+        int halfwayFailed = 0, halfwayBuilds = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (i == REQUESTS / 2) {
+                halfwayFailed = failedBegins;
+                halfwayBuilds = builds.get();
+            }
+            int d = i % HOSTS.length;
+            TorStream st = affinity.createStream(HOSTS[d], PORTS[d], null);
+            while (!connected(st))
+                st = affinity.retry(st, null);
+            st.destroy();
+        }
+        System.out.println("affinity: " + failedBegins + " failed BEGINs, " + builds.get() + " circuits, " + affinity);
+
+        assertTrue("destinations refused more than once: " + failedBegins, failedBegins <= HOSTS.length);
+        assertEquals("repeat destinations still refused", halfwayFailed, failedBegins);
+        assertEquals("repeat destinations needed new circuits", halfwayBuilds, builds.get());
+        assertEquals("refusals not all remembered", failedBegins, affinity.getRejections());
+    }
+
+    @Test
+    public void randomCircuitsKeepGettingRefused() throws IOException {
+        // whatever circuit the caller has to hand, for comparison
+        TorCircuit circs[] = {circuit(sock, sock.getRouter(1)), circuit(sock, sock.getRouter(2)), circuit(sock, sock.getRouter(3))};
+        for (int i = 0; i < REQUESTS; i++) {
+            int d = i % HOSTS.length;
+            TorStream st = circs[TorCrypto.rnd.nextInt(circs.length)].createStream(HOSTS[d], PORTS[d], null);
+            while (!connected(st))
+                st = st.retryOn(circs[TorCrypto.rnd.nextInt(circs.length)], null);
+            st.destroy();
+        }
+        System.out.println("random circuit: " + failedBegins + " failed BEGINs");
+        assertTrue("expected repeated refusals without affinity, got " + failedBegins, failedBegins > 2 * HOSTS.length);
+    }
+
+    private boolean connected(TorStream st) throws IOException {
+        try {
+            st.waitForState(TorStream.STATES.READY, 10000);
+            return true;
+        } catch (IOException e) {
+            if (!st.isBeginFailed() || st.getEndReason() != TorCircuit.REASON_EXITPOLICY)
+                throw e;
+            failedBegins++;
+            return false;
+        }
+    }
+}
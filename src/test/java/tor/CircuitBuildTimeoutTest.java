@@ -0,0 +1,141 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds CircuitBuildTimeout build times drawn from a known Pareto distribution and checks that the timeout lands
+ * near its QUANTILE_CUTOFF, then learns a timeout from real builds through the stand-in relay and abandons a build
+ * through a relay made slow.  Also covers the default before enough builds, the reset when nearly every recent
+ * build times out, and the saved histogram.
+ */
+public class CircuitBuildTimeoutTest extends StandInRelayFixture {
+    static final double XM = 100, ALPHA = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random rnd = new Random(7);
+
+    @After
+    public void restoreTunables() {
+        CircuitBuildTimeout.MIN_CIRCUITS_TO_OBSERVE = 100;
+        CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS = 60000;
+    }
+
+    @Test
+    public void timeoutIsTheQuantileOfParetoBuildTimes() {
+        CircuitBuildTimeout cbt = new CircuitBuildTimeout(null);
+        long times[] = new long[CircuitBuildTimeout.NCIRCUITS_TO_OBSERVE];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = pareto();
+            cbt.addBuildTime(times[i]);
+        }
+        long timeout = cbt.getTimeoutMillis();
+        double expected = XM / Math.pow(1 - CircuitBuildTimeout.QUANTILE_CUTOFF, 1 / ALPHA);
+        int within = 0;
+        for (long t : times)
+            if (t <= timeout)
+                within++;
+        System.out.printf("Pareto(%.0f, %.0f): timeout %dms, expected %.0fms, %.1f%% of builds within it%n", XM, ALPHA,
+                timeout, expected, 100.0 * within / times.length);
+        assertEquals(expected, timeout, expected * 0.2);
+        assertEquals(CircuitBuildTimeout.QUANTILE_CUTOFF, within / (double) times.length, 0.05);
+    }
+
+    @Test
+    public void defaultUntilEnoughBuildsAreSeen() {
+        CircuitBuildTimeout cbt = new CircuitBuildTimeout(null);
+        for (int i = 1; i < CircuitBuildTimeout.MIN_CIRCUITS_TO_OBSERVE; i++)
+            cbt.addBuildTime(pareto());
+        assertEquals(CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS, cbt.getTimeoutMillis());
+        cbt.addBuildTime(pareto());
+        assertTrue(cbt.getTimeoutMillis() < CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void abandonedBuildsLengthenTheTimeout() {
+        CircuitBuildTimeout quick = new CircuitBuildTimeout(null), censored = new CircuitBuildTimeout(null);
+        for (int i = 0; i < 200; i++) {
+            long t = pareto();
+            quick.addBuildTime(t);
+            censored.addBuildTime(t);
+            if (i % 5 == 0)
+                censored.addTimeout(); // counted at the slowest build seen, not ignored
+        }
+        assertTrue(censored + " vs " + quick, censored.getTimeoutMillis() > quick.getTimeoutMillis());
+    }
+
+    @Test
+    public void nearlyAllRecentTimeoutsResetTheHistory() {
+        CircuitBuildTimeout cbt = new CircuitBuildTimeout(null);
+        for (int i = 0; i < CircuitBuildTimeout.MIN_CIRCUITS_TO_OBSERVE; i++)
+            cbt.addBuildTime(pareto());
+        long learned = cbt.getTimeoutMillis();
+        assertTrue(learned < CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS);
+        for (int i = 0; i < CircuitBuildTimeout.MAX_RECENT_TIMEOUT_COUNT; i++)
+            cbt.addTimeout();
+        assertEquals(CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS, cbt.getTimeoutMillis());
+        assertEquals(0, cbt.getObservationCount());
+    }
+
+    @Test
+    public void savedHistogramIsLoadedAgain() throws IOException {
+        File state = new File(folder.getRoot(), "circuit-build-times");
+        CircuitBuildTimeout cbt = new CircuitBuildTimeout(state);
+        for (int i = 0; i < 500; i++)
+            cbt.addBuildTime(pareto());
+        cbt.addTimeout();
+        cbt.save();
+        CircuitBuildTimeout loaded = new CircuitBuildTimeout(state);
+        assertEquals(501, loaded.getObservationCount());
+        // times are saved at their bin's midpoint, so the fit moves a little
+        assertEquals(cbt.getTimeoutMillis(), loaded.getTimeoutMillis(), cbt.getTimeoutMillis() * 0.1);
+    }
+
+    @Test(timeout = 60000)
+    public void learnsFromBuildsThroughTheStandIn() throws IOException {
+        CircuitBuildTimeout.MIN_CIRCUITS_TO_OBSERVE = 30;
+        LocalRelaySocket sock = standIn(4, 5);
+        CircuitBuildTimeout cbt = new CircuitBuildTimeout(null);
+        CircuitBuilder builder = new CircuitBuilder(sock, cbt);
+        long millis[] = new long[CircuitBuildTimeout.MIN_CIRCUITS_TO_OBSERVE];
+        for (int i = 0; i < millis.length; i++) {
+            long start = System.currentTimeMillis();
+            builder.build(sock.getRouter(1 + i % 3), sock.getRouter(1 + (i + 1) % 3)).destroy();
+            millis[i] = System.currentTimeMillis() - start;
+        }
+        Arrays.sort(millis);
+        long timeout = cbt.getTimeoutMillis();
+        System.out.println("stand-in builds: median " + millis[millis.length / 2] + "ms, max " + millis[millis.length - 1]
+                + "ms, " + cbt);
+        assertTrue("timeout not learned", timeout < CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS);
+        assertTrue("timeout below the median build", timeout >= millis[millis.length / 2] - CircuitBuildTimeout.BIN_WIDTH);
+
+        // a relay far slower than anything seen gets its build abandoned, and counted
+        sock.setRouterLatency(3, 20 * Math.max(timeout, 10));
+        try {
+            builder.build(sock.getRouter(1), sock.getRouter(3));
+            fail("build through the slow relay wasn't abandoned");
+        } catch (IOException e) {
+            // abandoned at the learned timeout
+        }
+        assertEquals(millis.length + 1, cbt.getObservationCount());
+    }
+
+    // inverse transform sampling of Pareto(XM, ALPHA)
+    private long pareto() {
+        return Math.round(XM / Math.pow(1 - rnd.nextDouble(), 1 / ALPHA));
+    }
+}
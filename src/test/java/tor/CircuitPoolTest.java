@@ -0,0 +1,140 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Keeps a pool of circuits through the stand-in relay for port 80 (predicted from the start): it should fill in the
+ * background, serve take() from stock and top itself up again, drop circuits that are destroyed while pooled, and on
+ * shutdown destroy what it holds, including a build that finishes afterwards.
+ */
+public class CircuitPoolTest extends StandInRelayFixture {
+    static final int PER_PORT = 2;
+
+    private LocalRelaySocket relay;
+    private CircuitPool pool;
+    // every circuit the pool's builder made, so that the test can see what became of them
+    private final List<TorCircuit> built = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startPool() throws IOException {
+        CircuitPool.REPLENISH_INTERVAL_MILLIS = 100;
+        relay = standIn(4, 5);
+        pool = new CircuitPool(relay, new StandInBuilder(), PER_PORT, PER_PORT);
+    }
+
+    @After
+    public void stopPool() {
+        pool.shutdown();
+        for (TorCircuit circ : built)
+            track(circ);
+        CircuitPool.REPLENISH_INTERVAL_MILLIS = 1000;
+    }
+
+    @Test(timeout = 30000)
+    public void takeIsServedFromStockAndToppedUp() throws IOException, InterruptedException {
+        pool.start();
+        waitForReady(80, PER_PORT);
+        TorCircuit circ = track(pool.take(80));
+        assertEquals(TorCircuit.STATES.READY, circ.state);
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        waitForReady(80, PER_PORT);
+        assertEquals(PER_PORT + 1, pool.getBuildCount());
+
+        // a port with no stock is built for in the caller's thread, then stocked
+        track(pool.take(443));
+        assertEquals(1, pool.getMisses());
+        waitForReady(443, PER_PORT);
+        System.out.println(pool);
+    }
+
+    @Test(timeout = 30000)
+    public void destroyedCircuitIsDroppedAndReplaced() throws IOException, InterruptedException {
+        TorCircuit circ = circuit(relay);
+        assertTrue(pool.offer(80, circ));
+        circ.destroy();
+        // replenish() drops it and starts a build, then the timer tops up the rest
+        pool.replenish();
+        pool.start();
+        waitForReady(80, PER_PORT);
+        for (int i = 0; i < PER_PORT; i++)
+            assertFalse(track(pool.take(80)).isDestroyed());
+        assertEquals(PER_PORT, pool.getHits());
+    }
+
+    @Test(timeout = 30000)
+    public void shutdownDestroysPooledCircuits() throws IOException {
+        TorCircuit a = circuit(relay), b = circuit(relay);
+        assertTrue(pool.offer(80, a));
+        assertTrue(pool.offer(80, b));
+        pool.shutdown();
+        assertEquals(0, pool.getReadyCount(80));
+        assertTrue(a.isDestroyed());
+        assertTrue(b.isDestroyed());
+        assertFalse("a shut down pool took a circuit", pool.offer(80, circuit(relay)));
+    }
+
+    @Test(timeout = 30000)
+    public void buildFinishingAfterShutdownIsDestroyed() throws IOException, InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        pool = new CircuitPool(relay, new StandInBuilder() {
+            @Override
+            public TorCircuit build(int exitPort) throws IOException {
+                started.countDown();
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // shutdownNow() - carry on as a build in progress would
+                    }
+                }
+                return super.build(exitPort);
+            }
+        }, 1, 1);
+        pool.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((built.isEmpty() || !built.get(0).isDestroyed()) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, built.size());
+        assertTrue("build that finished after shutdown was kept", built.get(0).isDestroyed());
+        assertEquals(0, pool.getReadyCount(80));
+    }
+
+    private void waitForReady(int port, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getReadyCount(port) < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals("pool didn't fill for port " + port, count, pool.getReadyCount(port));
+    }
+
+    // builds through the stand-in's routers 1 and 2 rather than from the consensus
+    private class StandInBuilder extends CircuitBuilder {
+        StandInBuilder() {
+            super(relay, new CircuitBuildTimeout(null));
+        }
+
+        @Override
+        public TorCircuit build(int exitPort) throws IOException {
+            Thread.interrupted(); // a build interrupted by shutdownNow() still finishes
+            TorCircuit circ = build(relay.getRouter(1), relay.getRouter(2));
+            built.add(circ);
+            return circ;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races circuits over three stand-in guard links, with relays being slow at random, against building one at a time,
+ * and checks that losers can be donated to a CircuitPool.  Times include retrying builds abandoned at the learned
+ * timeout.
+ */
+public class CircuitRacerTest extends StandInRelayFixture {
+    static final int ROUTERS = 8;
+    static final int CANDIDATES = 3;
+    static final double SLOW_CHANCE = 0.15;
+    static final long SLOW_MILLIS = 300;
+
+    private List<LocalRelaySocket> guards;
+    private CircuitBuildTimeout timeout;
+    private CircuitRacer racer;
+
+    @Before
+    public void connect() throws IOException {
+        guards = Arrays.asList(standIn(ROUTERS, 15), standIn(ROUTERS, 20), standIn(ROUTERS, 25));
+        timeout = new CircuitBuildTimeout(null);
+        racer = new CircuitRacer(new ArrayList<TorSocket>(guards), timeout, CANDIDATES) {
+            @Override
+            protected OnionRouter[] choosePath(TorSocket guard, int exitPort) {
+                return randomPath((LocalRelaySocket) guard);
+            }
+        };
+    }
+
+    @Test
+    public void racingCutsTheTail() throws IOException {
+        int trials = 30;
+        CircuitBuilder single = new CircuitBuilder(guards.get(0), timeout);
+        long singleMillis[] = new long[trials];
+        long raceMillis[] = new long[trials];
+        for (int i = 0; i < trials; i++) {
+            jitter();
+            long start = System.currentTimeMillis();
+            TorCircuit circ = null;
+            while (circ == null) {
+                try {
+                    circ = single.build(randomPath(guards.get(0)));
+                } catch (IOException e) {
+                    // abandoned at the learned timeout, try another path as CircuitBuilder.build(port) would
+                }
+            }
+            singleMillis[i] = System.currentTimeMillis() - start;
+            circ.destroy();
+
+            jitter();
+            start = System.currentTimeMillis();
+            circ = null;
+            while (circ == null) {
+                try {
+                    circ = racer.race(80);
+                } catch (IOException e) {
+                    // every candidate abandoned
+                }
+            }
+            raceMillis[i] = System.currentTimeMillis() - start;
+            circ.destroy();
+        }
+        Arrays.sort(singleMillis);
+        Arrays.sort(raceMillis);
+        System.out.println("single: " + percentiles(singleMillis) + ", race " + CANDIDATES + ": " + percentiles(raceMillis));
+        System.out.println(racer);
+        assertTrue("racing didn't improve p90", raceMillis[trials * 9 / 10] < singleMillis[trials * 9 / 10]);
+    }
+
+    @Test
+    public void losersGoToThePool() throws IOException, InterruptedException {
+        CircuitPool pool = new CircuitPool(guards.get(0), CANDIDATES);
+        racer.setPool(pool);
+        TorCircuit winner = track(racer.race(80));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getReadyCount(80) < CANDIDATES - 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(CANDIDATES - 1, pool.getReadyCount(80));
+        assertEquals(CANDIDATES - 1, racer.getDonated());
+        TorCircuit pooled = track(pool.take(80));
+        assertNotSame(winner, pooled);
+        assertFalse(pooled.isDestroyed());
+        pool.shutdown();
+    }
+
+    // each relay is slow, on every link, with probability SLOW_CHANCE
+    private void jitter() {
+        for (LocalRelaySocket g : guards)
+            for (int r = 1; r < ROUTERS; r++)
+                g.setRouterLatency(r, TorCrypto.rnd.nextDouble() < SLOW_CHANCE ? SLOW_MILLIS : 0);
+    }
+
+    private static OnionRouter[] randomPath(LocalRelaySocket sock) {
+        List<Integer> hops = new ArrayList<>();
+        for (int r = 1; r < ROUTERS; r++)
+            hops.add(r);
+        Collections.shuffle(hops, TorCrypto.rnd);
+        return new OnionRouter[]{sock.getRouter(hops.get(0)), sock.getRouter(hops.get(1))};
+    }
+
+    private static String percentiles(long sorted[]) {
+        int n = sorted.length;
+        return String.format("p50=%dms p90=%dms max=%dms", sorted[n / 2], sorted[n * 9 / 10], sorted[n - 1]);
+    }
+}
@@ -0,0 +1,56 @@
+package tor;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lets a CircuitSelector place a series of echo requests on circuits of different latency through the stand-in
+ * relay, and checks that it learns to favour the fastest.
+ */
+public class CircuitSelectorTest extends StandInRelayFixture {
+    static final long ROUTER_LATENCY[] = {0, 40, 5, 20};
+
+    @Test
+    public void favoursTheFastestCircuit() throws IOException {
+        int requests = 30, size = 20000;
+        LocalRelaySocket sock = standIn(ROUTER_LATENCY.length, 5);
+        CircuitSelector selector = new CircuitSelector();
+        TorCircuit fastest = null;
+        for (int i = 1; i < ROUTER_LATENCY.length; i++) {
+            sock.setRouterLatency(i, ROUTER_LATENCY[i]);
+            TorCircuit circ = circuit(sock, sock.getRouter(i));
+            selector.add(circ);
+            if (ROUTER_LATENCY[i] == 5)
+                fastest = circ;
+        }
+
+        byte msg[] = new byte[size];
+        TorCrypto.rnd.nextBytes(msg);
+        byte reply[] = new byte[size];
+        Map<TorCircuit, Integer> chosen = new HashMap<>();
+        for (int i = 0; i < requests; i++) {
+            TorCircuit circ = selector.select(size);
+            chosen.put(circ, chosen.containsKey(circ) ? chosen.get(circ) + 1 : 1);
+
+            TorStream st = circ.createStream("echo", 7, null);
+            st.waitForState(TorStream.STATES.READY, 10000);
+            st.send(msg);
+            new DataInputStream(st.getInputStream()).readFully(reply);
+            st.destroy();
+            assertArrayEquals(msg, reply);
+        }
+
+        for (TorCircuit c : selector.getCircuits())
+            System.out.printf("circuit %d: chosen %d times, predicted %.1fms, %s%n", c.getCircId(),
+                    chosen.containsKey(c) ? chosen.get(c) : 0, c.predictCompletionMillis(size), c.getStats());
+        assertTrue("fastest circuit chosen only " + chosen.get(fastest) + " times",
+                chosen.containsKey(fastest) && chosen.get(fastest) > requests / 2);
+    }
+}
@@ -0,0 +1,95 @@
+package tor;
+
+import org.junit.Test;
+import tor.util.TorCircuitException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak test for circuit and stream cleanup.  Builds circuits through the stand-in relay, pushes data over a few echo
+ * streams on each and tears them down - half destroyed by us, half by the relay - for SOAK_SECONDS.  Builds
+ * abandoned for exceeding the learned build timeout are counted and must be reclaimed as well.
+ * <p/>
+ * Every CHECK_INTERVAL_MILLIS, and at the end, it forces a GC and checks that no circuits are left behind on either
+ * side of the link and that the heap hasn't grown more than HEAP_SLACK_BYTES past its size at the first check.  For a
+ * long soak: mvn test -Dtest=CircuitSoakTest -Dsoak.seconds=7200
+ */
+public class CircuitSoakTest extends StandInRelayFixture {
+    public static long SOAK_SECONDS = Long.getLong("soak.seconds", 15);
+    public static long CHECK_INTERVAL_MILLIS = 5000;
+    public static long HEAP_SLACK_BYTES = 32 * 1024 * 1024;
+    public static int STREAMS_PER_CIRCUIT = 3;
+    public static int BYTES_PER_STREAM = 8000; // stays within TorStream's receive buffer
+
+    private LocalRelaySocket sock;
+    private long baseline = -1;
+
+    @Test
+    public void circuitsAndStreamsAreReclaimed() throws IOException, InterruptedException {
+        sock = standIn(3, 0);
+        CircuitBuilder builder = new CircuitBuilder(sock, new CircuitBuildTimeout(null));
+
+        byte msg[] = new byte[BYTES_PER_STREAM];
+        TorCrypto.rnd.nextBytes(msg);
+        byte reply[] = new byte[msg.length];
+
+        long start = System.currentTimeMillis();
+        long end = start + SOAK_SECONDS * 1000;
+        long nextCheck = start + CHECK_INTERVAL_MILLIS;
+        long circuits = 0, streams = 0, abandoned = 0;
+
+        while (System.currentTimeMillis() < end) {
+            TorCircuit circ;
+            try {
+                circ = builder.build(sock.getRouter(1), sock.getRouter(2));
+            } catch (TorCircuitException e) {
+                abandoned++; // over the learned build timeout - these need reclaiming too
+                continue;
+            }
+
+            for (int i = 0; i < STREAMS_PER_CIRCUIT; i++) {
+                TorStream st = circ.createStream("echo", 7, null);
+                st.waitForState(TorStream.STATES.READY, 10000);
+                st.send(msg);
+                new DataInputStream(st.getInputStream()).readFully(reply);
+                assertArrayEquals("echoed data", msg, reply);
+                st.destroy();
+                streams++;
+            }
+
+            if (circuits++ % 2 == 0) {
+                circ.destroy();
+            } else {
+                sock.destroyFromRelay(circ, 9); // FINISHED
+                circ.waitForState(TorCircuit.STATES.DESTROYED, false);
+            }
+
+            if (System.currentTimeMillis() >= nextCheck) {
+                nextCheck += CHECK_INTERVAL_MILLIS;
+                check();
+            }
+        }
+        check();
+        assertTrue("no circuit was built", circuits > 0);
+        System.out.printf("%d circuits (%d abandoned), %d streams in %ds%n", circuits, abandoned, streams,
+                (System.currentTimeMillis() - start) / 1000);
+    }
+
+    private void check() throws InterruptedException {
+        Thread.sleep(100); // the relay may still be processing our last DESTROY
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        if (baseline < 0)
+            baseline = used;
+
+        assertEquals("circuits left behind by the client", 0, sock.getCircuitCount());
+        assertEquals("circuits left behind by the relay", 0, sock.getRelayCircuitCount());
+        assertTrue("heap grew from " + baseline / 1024 + "KB to " + used / 1024 + "KB", used <= baseline + HEAP_SLACK_BYTES);
+    }
+}
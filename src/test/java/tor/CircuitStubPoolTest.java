@@ -0,0 +1,99 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Extends pre-built stubs through the stand-in relay, comparing with building three hop circuits from scratch, and
+ * drives a burst of demand at the pool to check that its stock grows to cover it and shrinks afterwards.
+ */
+public class CircuitStubPoolTest extends StandInRelayFixture {
+    static final long LATENCY_MILLIS = 20;
+
+    private LocalRelaySocket sock;
+    private CircuitBuildTimeout timeout;
+    private CircuitStubPool stubs;
+
+    @Before
+    public void start() throws IOException {
+        sock = standIn(5, LATENCY_MILLIS);
+        for (int r = 1; r < 5; r++)
+            sock.setRouterLatency(r, LATENCY_MILLIS);
+        timeout = new CircuitBuildTimeout(null);
+        final OnionRouter middle = sock.getRouter(1);
+
+        CircuitStubPool.REPLENISH_INTERVAL_MILLIS = 200;
+        stubs = new CircuitStubPool(sock, timeout, 1, 8, 4) {
+            @Override
+            protected OnionRouter chooseMiddle() {
+                return middle;
+            }
+
+            @Override
+            protected OnionRouter chooseExit(int port) {
+                return randomExit();
+            }
+        };
+        stubs.start();
+    }
+
+    @After
+    public void shutdown() {
+        stubs.shutdown();
+        CircuitStubPool.REPLENISH_INTERVAL_MILLIS = 1000;
+    }
+
+    @Test
+    public void extendingAStubCostsOneHandshake() throws IOException, InterruptedException {
+        int circuits = 10;
+        CircuitBuilder builder = new CircuitBuilder(sock, timeout);
+        double scratch = 0;
+        for (int i = 0; i < circuits; i++) {
+            long start = System.nanoTime();
+            TorCircuit circ = builder.build(sock.getRouter(1), randomExit());
+            scratch += (System.nanoTime() - start) / 1e6;
+            circ.destroy();
+        }
+
+        double extended = 0;
+        for (int i = 0; i < circuits; i++) {
+            while (stubs.getStubCount() == 0)
+                Thread.sleep(5);
+            long start = System.nanoTime();
+            TorCircuit circ = track(stubs.take(7));
+            extended += (System.nanoTime() - start) / 1e6;
+            TorStream st = circ.createStream("echo", 7, null);
+            st.waitForState(TorStream.STATES.READY, 10000);
+            circ.destroy();
+        }
+        System.out.printf("circuit ready after: from scratch %.1fms, from a stub %.1fms%n", scratch / circuits, extended / circuits);
+        assertTrue("extending a stub should cost one handshake, not three", extended < scratch * 0.6);
+    }
+
+    @Test
+    public void stockFollowsDemand() throws IOException, InterruptedException {
+        // a burst of takes back to back, then nothing
+        int peak = 0;
+        for (int i = 0; i < 60; i++) {
+            track(stubs.take(80)).destroy();
+            peak = Math.max(peak, stubs.getTargetStubs());
+            Thread.sleep(20);
+        }
+        System.out.println("during burst: peak target " + peak + ", " + stubs);
+        assertTrue("stock didn't grow with demand", peak > 1);
+
+        Thread.sleep(20 * CircuitStubPool.REPLENISH_INTERVAL_MILLIS);
+        assertEquals("stock didn't shrink once demand stopped", 1, stubs.getTargetStubs());
+        assertTrue(stubs.getStubCount() <= 1);
+    }
+
+    private OnionRouter randomExit() {
+        return sock.getRouter(2 + TorCrypto.rnd.nextInt(3));
+    }
+}
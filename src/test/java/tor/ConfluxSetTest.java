@@ -0,0 +1,78 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tor.util.TorCircuitException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Links two circuits of different latency to the same exit into a conflux set, and checks that data sent both ways
+ * over the set comes out intact and in order while the legs are switched between, and that circuits without
+ * congestion control are refused as legs.
+ */
+public class ConfluxSetTest extends StandInRelayFixture {
+    static final long FAST_LEG_MILLIS = 10, SLOW_LEG_MILLIS = 40;
+
+    private ConfluxSet set;
+
+    @Before
+    public void link() throws IOException {
+        // router 0 is the guard, 1 and 2 the middles, 3 the shared exit
+        LocalRelaySocket sock = standIn(4, 5);
+        sock.setRouterLatency(1, FAST_LEG_MILLIS);
+        sock.setRouterLatency(2, SLOW_LEG_MILLIS);
+        set = new ConfluxSet(circuit(sock, sock.getRouter(1), sock.getRouter(3)),
+                circuit(sock, sock.getRouter(2), sock.getRouter(3)));
+        set.link();
+        assertEquals(2, set.getLegs().size());
+    }
+
+    @After
+    public void close() {
+        set.close();
+    }
+
+    @Test
+    public void echoComesBackInOrder() throws IOException {
+        byte msg[] = new byte[200000];
+        TorCrypto.rnd.nextBytes(msg);
+        byte reply[] = new byte[msg.length];
+        TorStream echo = set.createStream("echo", 7, null);
+        echo.waitForState(TorStream.STATES.READY, 10000);
+        echo.send(msg);
+        new DataInputStream(echo.getInputStream()).readFully(reply);
+        echo.destroy();
+        assertArrayEquals(msg, reply);
+    }
+
+    @Test
+    public void downloadOverBothLegsIsReordered() throws IOException {
+        TorStream chargen = set.createStream("chargen", 19, null);
+        chargen.waitForState(TorStream.STATES.READY, 10000);
+        InputStream in = chargen.getInputStream();
+        long offset = 0;
+        while (offset < 4 * 1024 * 1024) {
+            byte data[] = readFully(in, 65536);
+            assertTrue("chargen data out of order at offset " + offset, isChargen(data, offset));
+            offset += data.length;
+        }
+        chargen.destroy();
+        assertTrue("cells only came over one leg: " + set, set.getReordered() > 0);
+    }
+
+    @Test(expected = TorCircuitException.class)
+    public void fixedWindowCircuitIsRefused() throws IOException {
+        // as every circuit over a real link is, for now
+        LocalRelaySocket sock = standIn(3, 0);
+        sock.setCongestionControl(false);
+        new ConfluxSet(circuit(sock));
+    }
+}
@@ -0,0 +1,87 @@
+package tor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bulk downloads through the stand-in relay with fixed windows and with congestion control, over a path whose
+ * bandwidth-delay product is well beyond the fixed 1000 cell circuit window.
+ */
+public class CongestionControlTest extends StandInRelayFixture {
+    static final long LATENCY_MILLIS = 50;
+    static final long BANDWIDTH = 10 * 1024 * 1024;
+    static final long BYTES = 6 * 1024 * 1024;
+
+    @Test
+    public void outrunsFixedWindowsOnALongFatPath() throws IOException, InterruptedException {
+        double fixed = download(false), cc = download(true);
+        System.out.printf("fixed windows %.2f MB/s, congestion control %.2f MB/s%n", fixed, cc);
+        assertTrue("congestion control only reached " + cc + " MB/s against " + fixed, cc > 1.5 * fixed);
+    }
+
+    @Test
+    public void notUsedWhenDisabled() throws IOException {
+        CongestionControl.ENABLED = false;
+        try {
+            assertFalse(circuit(standIn(3, 0)).usesCongestionControl());
+        } finally {
+            CongestionControl.ENABLED = true;
+        }
+    }
+
+    @Test
+    public void notNegotiatedOverARealLink() throws IOException {
+        // without ntor v3 there is nothing to agree it with
+        assertEquals(0, new TorSocket().negotiateSendmeInc(standIn(1, 0).getRouter(0)));
+    }
+
+    // MB/s downloading BYTES from chargen, drained on the receive thread
+    private double download(boolean congestionControl) throws IOException, InterruptedException {
+        LocalRelaySocket sock = standIn(3, LATENCY_MILLIS);
+        sock.setBandwidth(BANDWIDTH);
+        sock.setCongestionControl(congestionControl);
+        TorCircuit circ = circuit(sock);
+        assertEquals(congestionControl, circ.usesCongestionControl());
+
+        final AtomicLong received = new AtomicLong();
+        TorStream stream = circ.createStream("chargen", 19, new TorStream.TorStreamListener() {
+            byte buf[] = new byte[65536];
+
+            @Override
+            public void dataArrived(TorStream s) {
+                try {
+                    while (s.getInputStream().available() > 0)
+                        received.addAndGet(s.getInputStream().read(buf));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                synchronized (received) {
+                    received.notifyAll();
+                }
+            }
+
+            @Override public void connected(TorStream s) { }
+            @Override public void disconnected(TorStream s) { }
+            @Override public void failure(TorStream s) { }
+        });
+        stream.waitForState(TorStream.STATES.READY, 10000);
+
+        long start = System.currentTimeMillis();
+        synchronized (received) {
+            while (received.get() < BYTES && System.currentTimeMillis() - start < 60000)
+                received.wait(1000);
+        }
+        long millis = System.currentTimeMillis() - start;
+        stream.destroy();
+
+        assertTrue("download stalled at " + received.get(), received.get() >= BYTES);
+        assertEquals("SENDME authentication failures", 0, sock.getSendmeFailures());
+        return received.get() / 1024.0 / 1024.0 / (millis / 1000.0);
+    }
+}
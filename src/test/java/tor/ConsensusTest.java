@@ -0,0 +1,135 @@
+package tor;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses a small consensus - router, flags, bandwidth and exit policy lines, and a footer with bwweightscale and
+ * bandwidth-weights - and checks what was read, the weight each router gets in each position, and that routers are
+ * chosen in proportion to those weights.
+ */
+public class ConsensusTest {
+    static final int DRAWS = 30000;
+    static final double TOLERANCE = 0.02;
+
+    // ORPorts from 9000, in the order the routers are listed
+    private static int port = 9000;
+
+    static final String DOC = "network-status-version 3\n" +
+            "valid-until 2026-10-18 12:00:00\n" +
+            router("guard", 1000, "Fast Guard Running Valid", "reject 1-65535") +
+            router("exit", 3000, "Exit Fast Running Valid", "accept 80,443") +
+            router("middle", 2000, "Fast Running Valid", "reject 1-65535") +
+            router("both", 500, "Exit Fast Guard Running Valid", "accept 1-65535") +
+            router("bad", 4000, "BadExit Exit Fast Running Valid", "accept 80") +
+            router("slow", 9000, "Running Valid", "reject 1-65535") +
+            "params CircuitPriorityHalflifeMsec=30000 bwweightscale=1000\n" +
+            "directory-footer\n" +
+            "bandwidth-weights Wbd=0 Wbe=0 Wbg=0 Wbm=1000 Wdb=1000 Web=1000 Wed=500 Wee=1000 Weg=500 Wem=1000 " +
+            "Wgb=1000 Wgd=300 Wgg=600 Wgm=600 Wmb=1000 Wmd=0 Wme=200 Wmg=400 Wmm=1000\n";
+
+    private Consensus con;
+
+    @Before
+    public void parse() throws IOException, ParseException {
+        con = Consensus.parse(new BufferedReader(new StringReader(DOC)));
+    }
+
+    @Test
+    public void readsRoutersAndTheirLines() {
+        assertEquals(6, con.routers.size());
+        OnionRouter exit = con.getRouterByName("exit");
+        assertEquals(3000, exit.bandwidth);
+        assertEquals("127.0.0.1", exit.ip.getHostAddress());
+        assertEquals(9001, exit.orport);
+        assertTrue(exit.flags.contains("Exit"));
+        assertFalse(exit.flags.contains("Guard"));
+        assertTrue(exit.acceptsIPv4ExitPort(443));
+        assertFalse(exit.acceptsIPv4ExitPort(22));
+        assertEquals(500, con.getRouterByName("both").bandwidth);
+        assertEquals(1792324800000L, con.consensusValidUntil.getTime()); // 2026-10-18 12:00:00 GMT
+    }
+
+    @Test
+    public void readsTheBandwidthWeights() {
+        assertEquals(1000, con.bandwidthWeightScale);
+        assertEquals(19, con.bandwidthWeights.size());
+        assertEquals(600, (int) con.bandwidthWeights.get("Wgg"));
+        assertEquals(200, (int) con.bandwidthWeights.get("Wme"));
+        assertEquals(0, (int) con.bandwidthWeights.get("Wbd"));
+    }
+
+    @Test
+    public void weighsEachRouterForItsPosition() {
+        OnionRouter guard = con.getRouterByName("guard"), exit = con.getRouterByName("exit"),
+                both = con.getRouterByName("both"), bad = con.getRouterByName("bad");
+        assertEquals(400, con.getBandwidthWeight(Consensus.Position.MIDDLE, guard), 1e-9);
+        assertEquals(600, con.getBandwidthWeight(Consensus.Position.GUARD, guard), 1e-9);
+        assertEquals(600, con.getBandwidthWeight(Consensus.Position.MIDDLE, exit), 1e-9);
+        assertEquals(0, con.getBandwidthWeight(Consensus.Position.MIDDLE, both), 1e-9);
+        assertEquals(250, con.getBandwidthWeight(Consensus.Position.EXIT, both), 1e-9);
+        // a BadExit is weighed as a middle
+        assertEquals(4000, con.getBandwidthWeight(Consensus.Position.MIDDLE, bad), 1e-9);
+    }
+
+    @Test
+    public void middlesAreChosenByTheirWeights() {
+        // guard 400, exit 600, middle 2000, both 0, and bad excluded as a BadExit
+        Map<String, Double> expected = new HashMap<>();
+        expected.put("guard", 400 / 3000.0);
+        expected.put("exit", 600 / 3000.0);
+        expected.put("middle", 2000 / 3000.0);
+        check(expected, "Running,Valid,Fast", 0);
+    }
+
+    @Test
+    public void exitsAreChosenByTheirWeights() {
+        // exit 3000 * 1000, both 500 * 500
+        Map<String, Double> expected = new HashMap<>();
+        expected.put("exit", 3000 / 3250.0);
+        expected.put("both", 250 / 3250.0);
+        check(expected, "Exit,Running,Valid,Fast", 80);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void flagNoRouterHasIsRefused() {
+        con.getRandomORWithFlag("HSDir,Running");
+    }
+
+    private void check(Map<String, Double> expected, String flags, int exitPort) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < DRAWS; i++) {
+            String name = con.getRandomORWithFlag(flags, exitPort).name;
+            Integer n = counts.get(name);
+            counts.put(name, n == null ? 1 : n + 1);
+        }
+        assertEquals("chose " + counts, expected.keySet(), counts.keySet());
+        for (Map.Entry<String, Double> e : expected.entrySet())
+            assertEquals(e.getKey(), e.getValue(), counts.get(e.getKey()) / (double) DRAWS, TOLERANCE);
+    }
+
+    private static String router(String name, long bandwidth, String flags, String policy) {
+        byte ident[] = new byte[TorCrypto.HASH_LEN];
+        TorCrypto.rnd.nextBytes(ident);
+        String id = new String(Base64.encodeBase64(ident)).replace("=", "");
+        String digest = Hex.encodeHexString(ident).substring(0, 27);
+        return "r " + name + " " + id + " " + digest + " 2026-10-18 09:00:00 127.0.0.1 " + port++ + " 0\n" +
+                "s " + flags + "\n" +
+                "v Tor 0.4.8.12\n" +
+                "w Bandwidth=" + bandwidth + (bandwidth > 5000 ? " Unmeasured=1" : "") + "\n" +
+                "p " + policy + "\n";
+    }
+}
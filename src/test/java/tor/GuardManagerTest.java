@@ -0,0 +1,162 @@
+package tor;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs sessions (connect, build a circuit, download) through four stand-in guards - slow, medium, fast and
+ * unreachable - and checks that GuardManager measures each, then settles on the fast one, and that a manager
+ * loaded from the saved state picks it straight away.  Each test gives its managers their own RouterHealth.
+ */
+public class GuardManagerTest extends StandInRelayFixture {
+    static final long LATENCY[] = {80, 40, 10, -1}; // -1 for unreachable
+    static final long BANDWIDTH[] = {512 * 1024, 1024 * 1024, 2048 * 1024, 0};
+    static final int SESSIONS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, Integer> guards = new HashMap<>();
+    private final List<OnionRouter> routers = new ArrayList<>();
+    // the manager's own, so that backoffs don't carry over from other tests
+    private final RouterHealth health = new RouterHealth();
+
+    @Before
+    public void sampleGuards() throws IOException {
+        standIn(1, 0).close(); // generate the stand-in's keys before anything is timed
+        for (int i = 0; i < LATENCY.length; i++) {
+            byte ident[] = new byte[TorCrypto.HASH_LEN];
+            TorCrypto.rnd.nextBytes(ident);
+            OnionRouter r = new OnionRouter("guard" + i, Hex.encodeHexString(ident), "127.0.0.1", 9101 + i, 0);
+            guards.put(r.identityhash, i);
+            routers.add(r);
+        }
+        Collections.shuffle(routers, TorCrypto.rnd);
+        GuardManager.NUM_GUARDS = LATENCY.length;
+    }
+
+    @After
+    public void restoreGuards() {
+        GuardManager.NUM_GUARDS = 3;
+    }
+
+    @Test
+    public void settlesOnTheFastGuard() throws IOException {
+        File state = folder.newFile("guards");
+        GuardManager mgr = new StandInGuards(state, health);
+        String used[] = new String[SESSIONS];
+        for (int s = 0; s < SESSIONS; s++) {
+            long start = System.currentTimeMillis();
+            used[s] = session((LocalRelaySocket) mgr.connect());
+            System.out.println("session " + s + ": " + used[s] + ", " + (System.currentTimeMillis() - start) + "ms");
+        }
+        mgr.save();
+        System.out.println(mgr);
+        assertEquals("last session didn't use the fast guard", "guard2", used[SESSIONS - 1]);
+
+        String best = new StandInGuards(state, health).choose(new ArrayList<GuardManager.Guard>()).getName();
+        assertEquals("restarted manager didn't choose the fast guard first", "guard2", best);
+    }
+
+    @Test
+    public void failedGuardIsRankedOnceItsBackoffEnds() throws IOException {
+        // the live guards measured, the dead one tried once and its backoff since over
+        GuardManager mgr = new StandInGuards(null, health);
+        GuardManager.Guard dead = null;
+        for (OnionRouter r : routers) {
+            GuardManager.Guard g = mgr.add(r);
+            int i = guards.get(r.identityhash);
+            if (LATENCY[i] < 0) {
+                g.connectFailures = 1;
+                dead = g;
+            } else {
+                g.connects = GuardManager.MIN_CONNECTS;
+                g.connectMillis = 4 * LATENCY[i];
+                g.throughput = BANDWIDTH[i];
+            }
+        }
+        assertTrue(health.isUsable(routerOf(dead)));
+        assertTrue("a failed connect should count as measurement", dead.isMeasured());
+        assertEquals("guard2", mgr.choose(new ArrayList<GuardManager.Guard>()).getName());
+    }
+
+    private OnionRouter routerOf(GuardManager.Guard g) {
+        for (OnionRouter r : routers)
+            if (r.identityhash.equals(g.getFingerprint()))
+                return r;
+        return null;
+    }
+
+    // builds a circuit and downloads from chargen, so that the guard's throughput is measured when it closes
+    private String session(LocalRelaySocket sock) throws IOException {
+        try {
+            TorCircuit circ = sock.createCircuit(true);
+            circ.create();
+            circ.extend(sock.getRouter(1));
+            TorStream st = circ.createStream("chargen", 19, null);
+            st.waitForState(TorStream.STATES.READY, 10000);
+            InputStream in = st.getInputStream();
+            readFully(in, 768 * 1024);
+            circ.destroy();
+        } finally {
+            sock.close();
+        }
+        return sock.toString();
+    }
+
+    private class StandInGuards extends GuardManager {
+        StandInGuards(File state, RouterHealth health) {
+            super(state, health);
+        }
+
+        @Override
+        protected TorSocket open(OnionRouter guard) throws IOException {
+            final int i = guards.get(guard.identityhash);
+            if (LATENCY[i] < 0)
+                throw new ConnectException("Connection refused");
+            try {
+                Thread.sleep(4 * LATENCY[i]); // TCP and TLS handshakes, VERSIONS and NETINFO
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            LocalRelaySocket sock = new LocalRelaySocket(2, LATENCY[i]) {
+                @Override
+                public String toString() {
+                    return "guard" + i;
+                }
+            };
+            sock.setBandwidth(BANDWIDTH[i]);
+            return sock;
+        }
+
+        @Override
+        protected OnionRouter lookup(String fingerprint) {
+            for (OnionRouter r : routers)
+                if (r.identityhash.equals(fingerprint))
+                    return r;
+            return null;
+        }
+
+        @Override
+        protected OnionRouter sampleGuard() {
+            return routers.get(TorCrypto.rnd.nextInt(routers.size()));
+        }
+    }
+}
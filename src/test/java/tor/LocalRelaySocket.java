@@ -0,0 +1,1070 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TorSocket connected to an in-process stand-in for the tor network instead of a real relay, for tests that need
+ * repeatable conditions.
+ * <p/>
+ * Every hop of every circuit is simulated with real TAP handshakes, relay crypto and digests, so TorCircuit and
+ * TorStream run unmodified.  Use getRouter(i) to build paths (router 0 is the first hop).  Any hop will act as an
+ * exit, offering services chosen by the hostname in the BEGIN cell:
+ * <ul>
+ * <li>echo - sends back whatever it receives</li>
+ * <li>discard - swallows whatever it receives</li>
+ * <li>chargen - sends a repeating pattern of printable characters as fast as flow control allows until the stream
+ * is closed</li>
+ * <li>http - a keep-alive HTTP/1.1 server, also reached by BEGIN_DIR.  GET /bytes/n answers with n bytes of the
+ * chargen pattern and a Content-Length, GET /chunked/n the same in chunks; anything else is a 404.  Requests may be
+ * pipelined.</li>
+ * </ul>
+ * Any other hostname is refused with REASON_RESOLVEFAILED.  The services also answer RESOLVE, as 127.0.0.x where x is
+ * their well known port (echo 127.0.0.7, discard 127.0.0.9, chargen 127.0.0.19, http 127.0.0.80), and those addresses
+ * may be used in BEGIN in place of the names.  setResolveTtl() sets the TTL given with the addresses, and setRejectedPorts() gives a
+ * router an exit policy.
+ * <p/>
+ * The stand-ins follow tor's flow control: fixed circuit and stream windows with authenticated SENDMEs, or congestion
+ * control (Vegas, with XON/XOFF for streams) while setCongestionControl() is on, as it is by default.
+ * Circuits with congestion control can be linked into conflux sets, with streams multiplexed across them.
+ * <p/>
+ * Cells are delivered after a configurable one way latency by a single "wire" thread, which also plays the part of
+ * the socket's receive thread.  setBandwidth() adds a bottleneck: cells then queue to be serialised onto the link.
+ * setRouterLatency() adds latency to circuits through a given router, so paths can be made to differ.
+ */
+public class LocalRelaySocket extends TorSocket {
+    final static Logger log = LogManager.getLogger();
+
+    // generating RSA keys is slow, so all stand-in routers share one onion key
+    private static KeyPair onionKeys;
+    // TAP_ONIONSKIN_CHALLENGE_LEN
+    private static final int ONIONSKIN_LEN = TorCrypto.PK_PAD_LEN + TorCrypto.KEY_LEN + TorCrypto.DH_LEN;
+    // chargen output is the 95 printable characters over and over, so any cell boundary is a slice of this
+    private static final int CHARGEN_PERIOD = 95;
+    private static final byte CHARGEN[] = new byte[498 + CHARGEN_PERIOD];
+
+    static {
+        for (int i = 0; i < CHARGEN.length; i++)
+            CHARGEN[i] = (byte) (' ' + i % CHARGEN_PERIOD);
+    }
+
+    /**
+     * @param offset Offset into a chargen stream
+     * @return the byte a chargen stream sends at that offset
+     */
+    public static byte chargenAt(long offset) {
+        return CHARGEN[(int) (offset % CHARGEN_PERIOD)];
+    }
+
+    private final DelayQueue<WireEvent> wire = new DelayQueue<>();
+    private final AtomicLong wireSeq = new AtomicLong();
+    // latest delivery time in each direction, so cells never overtake each other when the latency drops
+    private long lastDueToRelay, lastDueToClient;
+    // when the link is next free in each direction, with a bandwidth limit
+    private long departToRelay, departToClient;
+    private volatile long latencyMillis;
+    // extra one way latency of circuits through each router, guarded by this
+    private final long routerLatencyMillis[];
+    private volatile long bytesPerSecond = 0;
+    private final AtomicInteger sendmeFailures = new AtomicInteger();
+    private final AtomicInteger resolves = new AtomicInteger();
+    private final AtomicInteger httpRequests = new AtomicInteger();
+    // stream ID of each DATA cell discard has swallowed, in the order they arrived
+    private final List<Integer> discarded = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile int resolveTtl = 60;
+    private volatile boolean congestionControl = true;
+    // ports each router's exit policy refuses
+    private final ConcurrentHashMap<Integer, Set<Integer>> rejectedPorts = new ConcurrentHashMap<>();
+    private final Set<Integer> unreachable = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private OnionRouter routers[];
+
+    // relay side circuit state, only touched by the wire thread
+    private final HashMap<Long, RelayCircuit> relayCircuits = new HashMap<>();
+    private final HashMap<String, RelayConflux> confluxSets = new HashMap<>();
+
+    /**
+     * @param routerCount   Number of stand-in routers to make available through getRouter()
+     * @param latencyMillis One way latency between us and the stand-in relay
+     */
+    public LocalRelaySocket(int routerCount, long latencyMillis) throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        this.latencyMillis = latencyMillis;
+        PROTOCOL_VERSION = 4;
+
+        synchronized (LocalRelaySocket.class) {
+            if (onionKeys == null) {
+                try {
+                    KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+                    gen.initialize(1024, TorCrypto.rnd);
+                    onionKeys = gen.generateKeyPair();
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        routers = new OnionRouter[routerCount];
+        routerLatencyMillis = new long[routerCount];
+        for (int i = 0; i < routerCount; i++) {
+            byte ident[] = new byte[TorCrypto.HASH_LEN];
+            TorCrypto.rnd.nextBytes(ident);
+            routers[i] = new OnionRouter("standin" + i, Hex.encodeHexString(ident), "127.0.0.1", 9001 + i, 0);
+            routers[i].onionKey = onionKeys.getPublic();
+            routers[i].flags.addAll(Arrays.asList("Running", "Valid", "Fast", "Guard", "Exit"));
+            routers[i].consensusIPv4ExitPortSummary = "accept 1-65535"; // but see setRejectedPorts()
+        }
+        firstHop = routers[0];
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                wireLoop();
+            }
+        }, "LocalRelaySocket");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @param i Router number, 0 being the first hop
+     * @return stand-in router, suitable for extend()
+     */
+    public OnionRouter getRouter(int i) {
+        return routers[i];
+    }
+
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Adds one way latency to every circuit through a router, on top of the link latency.  Cells on different
+     * circuits may then overtake each other; cells on one circuit never do.
+     *
+     * @param i             Router number
+     * @param latencyMillis Extra latency
+     */
+    public synchronized void setRouterLatency(int i, long latencyMillis) {
+        routerLatencyMillis[i] = latencyMillis;
+    }
+
+    /**
+     * Limits the link to the stand-in relay, in each direction
+     *
+     * @param bytesPerSecond Bandwidth, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sets whether the stand-in routers use congestion control, which both ends take as agreed through
+     * negotiateSendmeInc() rather than in the handshake.  Affects circuits built afterwards.
+     */
+    public void setCongestionControl(boolean enabled) {
+        congestionControl = enabled;
+    }
+
+    @Override
+    protected int negotiateSendmeInc(OnionRouter r) {
+        return congestionControl ? CongestionControl.SENDME_INC : 0;
+    }
+
+    /**
+     * @return number of circuit SENDMEs from us which failed authentication at the stand-in relay
+     */
+    public int getSendmeFailures() {
+        return sendmeFailures.get();
+    }
+
+    /**
+     * Sets the TTL the stand-in exits give with addresses, in RESOLVED and CONNECTED
+     */
+    public void setResolveTtl(int seconds) {
+        resolveTtl = seconds;
+    }
+
+    /**
+     * Makes a router refuse BEGINs to some ports with REASON_EXITPOLICY, as if its exit policy rejected them
+     *
+     * @param i     Router number
+     * @param ports Ports to refuse (none to accept everything again)
+     */
+    public void setRejectedPorts(int i, int... ports) {
+        Set<Integer> set = new HashSet<>();
+        for (int p : ports)
+            set.add(p);
+        rejectedPorts.put(i, set);
+    }
+
+    /**
+     * Makes EXTENDs to a router go unanswered, as if it had vanished and the previous hop's connection attempt hung
+     *
+     * @param i    Router number
+     * @param down true to drop EXTENDs to it, false to answer them again
+     */
+    public void setRouterDown(int i, boolean down) {
+        if (down)
+            unreachable.add(i);
+        else
+            unreachable.remove(i);
+    }
+
+    /**
+     * @return number of RESOLVE cells the stand-in relay has answered
+     */
+    public int getResolves() {
+        return resolves.get();
+    }
+
+    /**
+     * @return number of requests the http service has answered
+     */
+    public int getHttpRequests() {
+        return httpRequests.get();
+    }
+
+    /**
+     * @return stream IDs of the DATA cells the discard service has received, in the order they arrived
+     */
+    public List<Integer> getDiscarded() {
+        synchronized (discarded) {
+            return new ArrayList<>(discarded);
+        }
+    }
+
+    // the address a service answers to, or null if there is no such service
+    private static byte[] serviceAddress(String name) {
+        switch (name) {
+            case "echo":
+            case "127.0.0.7":
+                return new byte[]{127, 0, 0, 7};
+            case "discard":
+            case "127.0.0.9":
+                return new byte[]{127, 0, 0, 9};
+            case "chargen":
+            case "127.0.0.19":
+                return new byte[]{127, 0, 0, 19};
+            case "http":
+            case "127.0.0.80":
+                return new byte[]{127, 0, 0, 80};
+            default:
+                return null;
+        }
+    }
+
+    private static String serviceName(byte addr[]) {
+        return addr[3] == 7 ? "echo" : addr[3] == 9 ? "discard" : addr[3] == 80 ? "http" : "chargen";
+    }
+
+    /**
+     * Stops the wire thread.  Circuits are marked destroyed as if the connection had dropped.
+     */
+    public void close() {
+        running = false;
+        wire.add(new WireEvent(null, false, 0));
+    }
+
+    /**
+     * @return number of circuits the stand-in relay still holds state for
+     */
+    public int getRelayCircuitCount() {
+        synchronized (relayCircuits) {
+            return relayCircuits.size();
+        }
+    }
+
+    /**
+     * Makes the stand-in relay destroy a circuit, as a real relay might
+     *
+     * @param circ   Circuit
+     * @param reason Reason code, see TorCircuit.DESTROY_ERRORS
+     */
+    public void destroyFromRelay(final TorCircuit circ, final int reason) {
+        wire.add(new WireEvent(null, true, 0) {
+            @Override
+            void run() {
+                RelayCircuit rc;
+                synchronized (relayCircuits) {
+                    rc = relayCircuits.get(circ.circId);
+                }
+                if (rc != null)
+                    rc.destroy(reason);
+            }
+        });
+    }
+
+    /**
+     * Makes a stand-in relay drop the rest of a circuit and send TRUNCATED, as a relay does when its connection to
+     * the next hop fails
+     *
+     * @param circ   Circuit
+     * @param keep   Index of the last hop to keep (0 is the first hop)
+     * @param reason Reason code, see TorCircuit.DESTROY_ERRORS
+     */
+    public void truncateFromRelay(final TorCircuit circ, final int keep, final int reason) {
+        wire.add(new WireEvent(null, true, 0) {
+            @Override
+            void run() {
+                RelayCircuit rc;
+                synchronized (relayCircuits) {
+                    rc = relayCircuits.get(circ.circId);
+                }
+                if (rc != null)
+                    rc.truncate(keep, reason);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void sendCell(Cell c) throws IOException {
+        if (!running)
+            throw new IOException("stand-in relay closed");
+        log.trace("Sending {}", c);
+        RelayCircuit rc;
+        synchronized (relayCircuits) {
+            rc = relayCircuits.get(c.circId);
+        }
+        wire.add(new WireEvent(c, true, latencyMillis, rc));
+    }
+
+    private void toClient(Cell c, RelayCircuit rc) {
+        wire.add(new WireEvent(c, false, latencyMillis, rc));
+    }
+
+    /**
+     * Works out when a cell will arrive: after it has queued for the link (with a bandwidth limit) and crossed it,
+     * plus the latency of the circuit's routers.  Cells on a circuit never overtake each other, even when the latency
+     * drops; cells without a circuit keep their order among themselves.
+     */
+    private synchronized long arrivalTime(boolean toRelay, boolean isCell, long delayMillis, RelayCircuit rc) {
+        long now = System.nanoTime();
+        long cellNanos = isCell && bytesPerSecond > 0 ? 514L * 1000000000L / bytesPerSecond : 0;
+        if (rc != null)
+            for (int i : rc.path)
+                delayMillis += routerLatencyMillis[i];
+        long delay = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long due;
+        if (toRelay) {
+            departToRelay = Math.max(departToRelay, now) + cellNanos;
+            due = departToRelay + delay;
+        } else {
+            departToClient = Math.max(departToClient, now) + cellNanos;
+            due = departToClient + delay;
+        }
+        if (rc == null) {
+            if (toRelay)
+                return lastDueToRelay = Math.max(lastDueToRelay, due);
+            return lastDueToClient = Math.max(lastDueToClient, due);
+        }
+        if (toRelay)
+            return rc.lastDueToRelay = Math.max(rc.lastDueToRelay, due);
+        return rc.lastDueToClient = Math.max(rc.lastDueToClient, due);
+    }
+
+    private void wireLoop() {
+        receiveThread = Thread.currentThread();
+        while (running) {
+            WireEvent ev;
+            try {
+                ev = wire.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                ev.run();
+            } catch (IOException | RuntimeException e) {
+                log.error("Stand-in relay error: " + e, e);
+            }
+        }
+        closeAllCircuits();
+    }
+
+    /**
+     * Handles a cell arriving at the stand-in first hop
+     */
+    private void relayReceive(Cell c) throws IOException {
+        RelayCircuit rc;
+        synchronized (relayCircuits) {
+            rc = relayCircuits.get(c.circId);
+        }
+
+        switch (c.cmdId) {
+            case Cell.CREATE:
+                rc = new RelayCircuit(c.circId);
+                byte created[] = rc.handshake(c.payload, 0);
+                synchronized (relayCircuits) {
+                    relayCircuits.put(c.circId, rc);
+                }
+                toClient(new Cell(c.circId, Cell.CREATED, created), rc);
+                break;
+
+            case Cell.RELAY:
+            case Cell.RELAY_EARLY:
+                if (rc != null)
+                    rc.receiveRelay(c.payload);
+                break;
+
+            case Cell.DESTROY:
+                if (rc != null)
+                    rc.closed();
+                break;
+
+            default:
+                log.debug("Stand-in relay ignoring cell " + c.cmdId);
+        }
+    }
+
+    // one hop of a circuit, as seen by the relay
+    private static class RelayHop {
+        Cipher kf, kb;
+        MessageDigest df, db;
+        int sendmeInc = 0; // congestion control negotiated if > 0
+        int router;
+    }
+
+    private static class RelayStream {
+        int id;
+        String service;
+        int packageWindow = TorStream.STREAM_WINDOW_START;
+        int dataCellsReceived = 0;
+        boolean xoff = false;
+        long chargenOffset = 0;
+        ArrayDeque<byte[]> out = new ArrayDeque<>();
+        StringBuilder httpIn = new StringBuilder(); // request bytes not yet answered
+
+        RelayStream(int id, String service) {
+            this.id = id;
+            this.service = service;
+        }
+    }
+
+    // relay side of one circuit - all hops are simulated together, the last one acting as the exit
+    private class RelayCircuit {
+        long circId;
+        ArrayList<RelayHop> hops = new ArrayList<>();
+        TreeMap<Integer, RelayStream> streams = new TreeMap<>();
+        // routers of the hops, read by arrivalTime() on other threads
+        volatile int path[] = new int[0];
+        // guarded by the socket
+        long lastDueToRelay, lastDueToClient;
+
+        // flow control towards the client, reset whenever a hop is added
+        CongestionControl cc;
+        int packageWindow;
+        long dataCellsSent, dataCellsReceived;
+        ArrayDeque<byte[]> sendmeDigests = new ArrayDeque<>();
+
+        // conflux set this circuit is a leg of, and the leg's view of the sequence
+        RelayConflux conflux;
+        long lastSeqSent, lastSeqRecv;
+        long linkedSentNanos;
+        double linkRttMillis;
+
+        RelayCircuit(long circId) {
+            this.circId = circId;
+        }
+
+        /**
+         * Server side of the TAP handshake.  Adds a hop and returns the CREATED payload.
+         *
+         * @param payload Hybrid encrypted g^x
+         * @param router  Number of the router playing this hop
+         */
+        byte[] handshake(byte payload[], int router) throws IOException {
+            int skinLen = ONIONSKIN_LEN;
+            try {
+                Cipher rsa = Cipher.getInstance("RSA/None/OAEPWithSHA1AndMGF1Padding", "BC");
+                rsa.init(Cipher.DECRYPT_MODE, onionKeys.getPrivate());
+                byte m1[] = rsa.doFinal(payload, 0, TorCrypto.PK_ENC_LEN);
+
+                Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+                aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(m1, 0, TorCrypto.KEY_LEN, "AES"), new IvParameterSpec(new byte[16]));
+                byte m2[] = aes.doFinal(payload, TorCrypto.PK_ENC_LEN, skinLen - TorCrypto.PK_ENC_LEN);
+
+                ByteBuffer gx = ByteBuffer.allocate(m1.length - TorCrypto.KEY_LEN + m2.length);
+                gx.put(m1, TorCrypto.KEY_LEN, m1.length - TorCrypto.KEY_LEN);
+                gx.put(m2);
+
+                byte ybytes[] = new byte[TorCrypto.DH_SEC_LEN];
+                TorCrypto.rnd.nextBytes(ybytes);
+                BigInteger y = TorCrypto.byteToBN(ybytes);
+                BigInteger secret = TorCrypto.byteToBN(gx.array()).modPow(y, TorCrypto.DH_P);
+                byte kdf[] = TorCrypto.torKDF(TorCrypto.BNtoByte(secret, TorCrypto.DH_LEN), 3 * TorCrypto.HASH_LEN + 2 * TorCrypto.KEY_LEN);
+
+                RelayHop hop = new RelayHop();
+                hop.df = TorCrypto.getSHA1();
+                hop.df.update(kdf, TorCrypto.HASH_LEN, TorCrypto.HASH_LEN);
+                hop.db = TorCrypto.getSHA1();
+                hop.db.update(kdf, 2 * TorCrypto.HASH_LEN, TorCrypto.HASH_LEN);
+                hop.kf = Cipher.getInstance("AES/CTR/NoPadding");
+                hop.kf.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kdf, 3 * TorCrypto.HASH_LEN, TorCrypto.KEY_LEN, "AES"), new IvParameterSpec(new byte[16]));
+                hop.kb = Cipher.getInstance("AES/CTR/NoPadding");
+                hop.kb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kdf, 3 * TorCrypto.HASH_LEN + TorCrypto.KEY_LEN, TorCrypto.KEY_LEN, "AES"), new IvParameterSpec(new byte[16]));
+
+                // as the client decides
+                if (CongestionControl.ENABLED)
+                    hop.sendmeInc = negotiateSendmeInc(routers[router]);
+
+                hop.router = router;
+                hops.add(hop);
+                path = ArrayUtils.add(path, router);
+                lastHopChanged();
+
+                // CREATED: g^y padded to DH_LEN, then KH
+                byte created[] = new byte[TorCrypto.DH_LEN + TorCrypto.HASH_LEN];
+                byte gy[] = TorCrypto.BNtoByte(TorCrypto.DH_G.modPow(y, TorCrypto.DH_P));
+                System.arraycopy(gy, 0, created, TorCrypto.DH_LEN - gy.length, gy.length);
+                System.arraycopy(kdf, 0, created, TorCrypto.DH_LEN, TorCrypto.HASH_LEN);
+                return created;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("stand-in handshake failed", e);
+            }
+        }
+
+        // flow control restarts with a new last hop
+        void lastHopChanged() {
+            RelayHop hop = hops.get(hops.size() - 1);
+            cc = hop.sendmeInc > 0 ? new CongestionControl(hop.sendmeInc) : null;
+            packageWindow = TorCircuit.CIRCUIT_WINDOW_START;
+            dataCellsSent = dataCellsReceived = 0;
+            sendmeDigests.clear();
+        }
+
+        /**
+         * Drops the hops after keep, as when the next relay's connection fails, and tells the client
+         */
+        void truncate(int keep, int reason) {
+            if (keep >= hops.size() - 1 || conflux != null)
+                return;
+            while (hops.size() > keep + 1)
+                hops.remove(hops.size() - 1);
+            path = Arrays.copyOf(path, keep + 1);
+            streams.clear(); // they were at the exit
+            lastHopChanged();
+            sendRelay(keep, TorCircuit.RELAY_TRUNCATED, 0, new byte[]{(byte) reason});
+        }
+
+        /**
+         * Peels onion layers until a hop recognises the cell, then handles it at that hop
+         */
+        void receiveRelay(byte payload[]) throws IOException {
+            for (int i = 0; i < hops.size(); i++) {
+                RelayHop hop = hops.get(i);
+                payload = hop.kf.update(payload);
+                if (payload[1] != 0 || payload[2] != 0)
+                    continue;
+
+                byte zeroed[] = payload.clone();
+                Arrays.fill(zeroed, 5, 9, (byte) 0);
+                byte digest[] = digestWith(hop.df, zeroed);
+                if (!Arrays.equals(Arrays.copyOfRange(payload, 5, 9), Arrays.copyOf(digest, 4)))
+                    continue;
+
+                hop.df.update(zeroed);
+                ByteBuffer buf = ByteBuffer.wrap(payload);
+                int cmd = buf.get() & 0xff;
+                buf.getShort();
+                int streamId = buf.getShort() & 0xffff;
+                buf.getInt();
+                int length = buf.getShort() & 0xffff;
+                handleRelay(i, cmd, streamId, Arrays.copyOfRange(payload, 11, 11 + length));
+                return;
+            }
+            log.warn("Stand-in relay couldn't recognise cell on circuit " + circId);
+        }
+
+        void handleRelay(int hop, int cmd, int streamId, byte data[]) throws IOException {
+            // acknowledge as a relay would: authenticated circuit SENDMEs on every leg, as cells arrive
+            RelayHop h = hops.get(hop);
+            if (cmd == TorCircuit.RELAY_DATA) {
+                int inc = h.sendmeInc > 0 ? h.sendmeInc : TorCircuit.CIRCUIT_WINDOW_INCREMENT;
+                if (++dataCellsReceived % inc == 0)
+                    sendRelay(hop, TorCircuit.RELAY_SENDME, 0, sendmeV1(digestWith(h.df, null)));
+            }
+            if (conflux != null && ConfluxSet.isSequenced(cmd))
+                conflux.received(this, hop, cmd, streamId, data);
+            else
+                dispatchRelay(hop, cmd, streamId, data);
+        }
+
+        void dispatchRelay(int hop, int cmd, int streamId, byte data[]) throws IOException {
+            RelayHop h = hops.get(hop);
+            RelayStream st = streams.get(streamId);
+
+            switch (cmd) {
+                case TorCircuit.RELAY_EXTEND:
+                    if (hop != hops.size() - 1) {
+                        log.warn("Stand-in relay: EXTEND not from last hop");
+                        return;
+                    }
+                    // address and port, then the onionskin; identity follows it
+                    byte skin[] = Arrays.copyOfRange(data, 6, data.length);
+                    int router = (((data[4] & 0xff) << 8) | (data[5] & 0xff)) - 9001;
+                    if (unreachable.contains(router))
+                        break;
+                    byte created[] = handshake(Arrays.copyOf(skin, ONIONSKIN_LEN),
+                            router >= 0 && router < routers.length ? router : 0);
+                    sendRelay(hop, TorCircuit.RELAY_EXTENDED, 0, created);
+                    break;
+
+                case TorCircuit.RELAY_BEGIN:
+                case TorCircuit.RELAY_BEGIN_DIR:
+                    String service = "http"; // directory requests
+                    if (cmd == TorCircuit.RELAY_BEGIN) {
+                        int end = 0;
+                        while (end < data.length && data[end] != 0)
+                            end++;
+                        String target = new String(data, 0, end, "UTF-8");
+                        service = target.substring(0, target.lastIndexOf(':'));
+                        Set<Integer> rejected = rejectedPorts.get(h.router);
+                        if (rejected != null && rejected.contains(Integer.parseInt(target.substring(target.lastIndexOf(':') + 1)))) {
+                            sendStreamCell(hop, TorCircuit.RELAY_END, streamId, new byte[]{4}); // REASON_EXITPOLICY
+                            return;
+                        }
+                    }
+                    byte addr[] = serviceAddress(service);
+                    if (addr == null) {
+                        sendStreamCell(hop, TorCircuit.RELAY_END, streamId, new byte[]{2}); // REASON_RESOLVEFAILED
+                        return;
+                    }
+                    streams.put(streamId, new RelayStream(streamId, serviceName(addr)));
+                    sendStreamCell(hop, TorCircuit.RELAY_CONNECTED, streamId,
+                            ByteBuffer.allocate(8).put(addr).putInt(resolveTtl).array());
+                    pump();
+                    break;
+
+                case TorCircuit.RELAY_RESOLVE:
+                    int end = 0;
+                    while (end < data.length && data[end] != 0)
+                        end++;
+                    byte answer[] = serviceAddress(new String(data, 0, end, "UTF-8"));
+                    resolves.incrementAndGet();
+                    ByteBuffer resolved = ByteBuffer.allocate(10);
+                    if (answer != null)
+                        resolved.put((byte) TorResolver.TYPE_IPV4).put((byte) 4).put(answer);
+                    else
+                        resolved.put((byte) TorResolver.TYPE_ERROR_NONTRANSIENT).put((byte) 4).putInt(0);
+                    resolved.putInt(resolveTtl);
+                    sendRelay(hop, TorCircuit.RELAY_RESOLVED, streamId, resolved.array());
+                    break;
+
+                case TorCircuit.RELAY_DATA:
+                    // stream SENDMEs too without congestion control
+                    if (st == null)
+                        return;
+                    if (h.sendmeInc == 0 && ++st.dataCellsReceived % TorStream.STREAM_WINDOW_INCREMENT == 0)
+                        sendRelay(hop, TorCircuit.RELAY_SENDME, streamId, null);
+
+                    if (st.service.equals("echo")) {
+                        st.out.add(data);
+                        pump();
+                    } else if (st.service.equals("discard")) {
+                        discarded.add(streamId);
+                    } else if (st.service.equals("http")) {
+                        st.httpIn.append(new String(data, StandardCharsets.ISO_8859_1));
+                        serveHttp(st);
+                        pump();
+                    }
+                    break;
+
+                case TorCircuit.RELAY_SENDME:
+                    if (streamId == 0) {
+                        byte expected[] = sendmeDigests.poll();
+                        if (data.length < 3 || data[0] != 1 || expected == null
+                                || !Arrays.equals(expected, Arrays.copyOfRange(data, 3, data.length))) {
+                            sendmeFailures.incrementAndGet();
+                            log.warn("Stand-in relay: unauthenticated SENDME on circuit " + circId);
+                            destroy(1); // PROTOCOL
+                            return;
+                        }
+                        if (cc != null)
+                            cc.sendmeReceived();
+                        else
+                            packageWindow += TorCircuit.CIRCUIT_WINDOW_INCREMENT;
+                    } else if (st != null) {
+                        st.packageWindow += TorStream.STREAM_WINDOW_INCREMENT;
+                    }
+                    pump();
+                    break;
+
+                case TorCircuit.RELAY_XOFF:
+                case TorCircuit.RELAY_XON:
+                    if (st != null) {
+                        st.xoff = cmd == TorCircuit.RELAY_XOFF;
+                        pump();
+                    }
+                    break;
+
+                case TorCircuit.RELAY_END:
+                    streams.remove(streamId);
+                    break;
+
+                case TorCircuit.RELAY_CONFLUX_LINK:
+                    if (cc == null || data.length < 33) {
+                        log.warn("Stand-in relay: conflux LINK on circuit " + circId + " without congestion control");
+                        destroy(1); // PROTOCOL
+                        return;
+                    }
+                    String nonce = Hex.encodeHexString(Arrays.copyOfRange(data, 1, 33));
+                    RelayConflux set = confluxSets.get(nonce);
+                    if (set == null)
+                        confluxSets.put(nonce, set = new RelayConflux(nonce));
+                    set.add(this);
+                    linkedSentNanos = System.nanoTime();
+                    sendRelay(hop, TorCircuit.RELAY_CONFLUX_LINKED, 0, data);
+                    break;
+
+                case TorCircuit.RELAY_CONFLUX_LINKED_ACK:
+                    linkRttMillis = (System.nanoTime() - linkedSentNanos) / 1e6;
+                    break;
+
+                case TorCircuit.RELAY_CONFLUX_SWITCH:
+                    if (data.length >= 4)
+                        lastSeqRecv += ByteBuffer.wrap(data).getInt() & 0xFFFFFFFFL;
+                    break;
+
+                case TorCircuit.RELAY_DROP:
+                    break;
+
+                default:
+                    log.debug("Stand-in relay ignoring relay cell " + cmd);
+            }
+        }
+
+        /**
+         * Sends queued stream data (and chargen output) round-robin while the windows allow
+         */
+        void pump() {
+            if (conflux != null) {
+                conflux.pump();
+                return;
+            }
+            if (hops.isEmpty())
+                return;
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (RelayStream st : streams.values()) {
+                    if (!canSendData())
+                        return;
+                    if (st.xoff || (cc == null && st.packageWindow <= 0))
+                        continue;
+
+                    byte data[] = nextData(st);
+                    if (data == null)
+                        continue;
+                    sendData(st, data);
+                    progress = true;
+                }
+            }
+        }
+
+        boolean canSendData() {
+            return !hops.isEmpty() && (cc != null ? cc.canSend() : packageWindow > 0);
+        }
+
+        void sendData(RelayStream st, byte data[]) {
+            byte digest[] = conflux != null ? conflux.sendSequenced(this, TorCircuit.RELAY_DATA, st.id, data)
+                    : sendRelay(hops.size() - 1, TorCircuit.RELAY_DATA, st.id, data);
+            st.packageWindow--;
+            packageWindow--;
+            if (cc != null ? cc.dataSent() : ++dataCellsSent % TorCircuit.CIRCUIT_WINDOW_INCREMENT == 0)
+                sendmeDigests.add(digest);
+        }
+
+        // CONNECTED and END, which a conflux set sequences along with the data
+        void sendStreamCell(int hop, int cmd, int streamId, byte data[]) throws IOException {
+            if (conflux != null)
+                conflux.sendSequenced(conflux.pick(false), cmd, streamId, data);
+            else
+                sendRelay(hop, cmd, streamId, data);
+        }
+
+        double rttMillis() {
+            return cc != null && cc.getRttMillis() > 0 ? cc.getRttMillis() : linkRttMillis;
+        }
+
+        void destroy(int reason) {
+            closed();
+            toClient(new Cell(circId, Cell.DESTROY, new byte[]{(byte) reason}), this);
+        }
+
+        // forgets the circuit, whichever end destroyed it
+        void closed() {
+            synchronized (relayCircuits) {
+                relayCircuits.remove(circId);
+            }
+            if (conflux != null)
+                conflux.remove(this);
+        }
+
+        /**
+         * Sends a relay cell to the client as if originated by the given hop
+         *
+         * @return the hop's running backward digest after this cell
+         */
+        byte[] sendRelay(int fromHop, int cmd, int streamId, byte data[]) {
+            byte cell[] = new byte[509];
+            ByteBuffer buf = ByteBuffer.wrap(cell);
+            buf.put((byte) cmd);
+            buf.putShort((short) 0);
+            buf.putShort((short) streamId);
+            buf.putInt(0);
+            if (data != null) {
+                buf.putShort((short) data.length);
+                buf.put(data);
+            } else {
+                buf.putShort((short) 0);
+            }
+
+            RelayHop origin = hops.get(fromHop);
+            origin.db.update(cell);
+            byte digest[] = digestWith(origin.db, null);
+            System.arraycopy(digest, 0, cell, 5, 4);
+
+            for (int i = fromHop; i >= 0; i--)
+                cell = hops.get(i).kb.update(cell);
+            toClient(new Cell(circId, Cell.RELAY, cell), this);
+            return digest;
+        }
+    }
+
+    // answers the complete requests received on an http stream, in order
+    private void serveHttp(RelayStream st) {
+        int end;
+        while ((end = st.httpIn.indexOf("\r\n\r\n")) >= 0) {
+            String request[] = st.httpIn.substring(0, st.httpIn.indexOf("\r\n")).split(" ");
+            st.httpIn.delete(0, end + 4);
+            httpRequests.incrementAndGet();
+
+            // chargen is printable ASCII, so the whole response can be built as a string
+            String path[] = request.length > 1 ? request[1].split("/") : new String[0];
+            StringBuilder head = new StringBuilder(), body = new StringBuilder();
+            if (path.length == 3 && (path[1].equals("bytes") || path[1].equals("chunked")) && path[2].matches("\\d{1,9}")) {
+                int n = Integer.parseInt(path[2]);
+                boolean chunked = path[1].equals("chunked");
+                head.append("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n");
+                head.append(chunked ? "Transfer-Encoding: chunked\r\n\r\n" : "Content-Length: " + n + "\r\n\r\n");
+                for (int off = 0; off < n; off += 1000) {
+                    int len = Math.min(1000, n - off);
+                    if (chunked)
+                        body.append(Integer.toHexString(len)).append("\r\n");
+                    for (int i = 0; i < len; i++)
+                        body.append((char) chargenAt(off + i));
+                    if (chunked)
+                        body.append("\r\n");
+                }
+                if (chunked)
+                    body.append("0\r\n\r\n");
+            } else {
+                head.append("HTTP/1.1 404 Not Found\r\nContent-Length: 10\r\n\r\n");
+                body.append("not found\n");
+            }
+            if (!request[0].equals("HEAD"))
+                head.append(body);
+
+            byte out[] = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            for (int off = 0; off < out.length; off += 498)
+                st.out.add(Arrays.copyOfRange(out, off, Math.min(out.length, off + 498)));
+        }
+    }
+
+    // next cell of output for a stream, or null if it has nothing to send
+    private static byte[] nextData(RelayStream st) {
+        byte data[] = st.out.poll();
+        if (data == null && st.service.equals("chargen")) {
+            int off = (int) (st.chargenOffset % CHARGEN_PERIOD);
+            data = Arrays.copyOfRange(CHARGEN, off, off + 498);
+            st.chargenOffset += data.length;
+        }
+        return data;
+    }
+
+    // exit side of a conflux set: legs share the streams, and stream cells are sequenced across them
+    private class RelayConflux {
+        final String nonce;
+        final ArrayList<RelayCircuit> legs = new ArrayList<>();
+        final TreeMap<Integer, RelayStream> streams = new TreeMap<>();
+        final TreeMap<Long, Object[]> held = new TreeMap<>();
+        long seqSent, seqDelivered;
+
+        RelayConflux(String nonce) {
+            this.nonce = nonce;
+        }
+
+        void add(RelayCircuit leg) {
+            leg.conflux = this;
+            leg.streams = streams;
+            legs.add(leg);
+        }
+
+        void remove(RelayCircuit leg) {
+            legs.remove(leg);
+            if (legs.isEmpty())
+                confluxSets.remove(nonce);
+        }
+
+        // lowest RTT leg, only among those with room for data if asked
+        RelayCircuit pick(boolean needWindow) {
+            RelayCircuit best = null;
+            for (RelayCircuit leg : legs)
+                if ((!needWindow || leg.canSendData()) && (best == null || leg.rttMillis() < best.rttMillis()))
+                    best = leg;
+            return best;
+        }
+
+        byte[] sendSequenced(RelayCircuit leg, int cmd, int streamId, byte data[]) {
+            int exit = leg.hops.size() - 1;
+            if (leg.lastSeqSent != seqSent)
+                leg.sendRelay(exit, TorCircuit.RELAY_CONFLUX_SWITCH, 0,
+                        ByteBuffer.allocate(4).putInt((int) (seqSent - leg.lastSeqSent)).array());
+            byte digest[] = leg.sendRelay(exit, cmd, streamId, data);
+            leg.lastSeqSent = ++seqSent;
+            return digest;
+        }
+
+        void received(RelayCircuit leg, int hop, int cmd, int streamId, byte data[]) throws IOException {
+            long seq = ++leg.lastSeqRecv;
+            if (seq != seqDelivered + 1) {
+                held.put(seq, new Object[]{leg, hop, cmd, streamId, data});
+                return;
+            }
+            seqDelivered++;
+            leg.dispatchRelay(hop, cmd, streamId, data);
+            Object next[];
+            while ((next = held.remove(seqDelivered + 1)) != null) {
+                seqDelivered++;
+                ((RelayCircuit) next[0]).dispatchRelay((Integer) next[1], (Integer) next[2], (Integer) next[3], (byte[]) next[4]);
+            }
+        }
+
+        void pump() {
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (RelayStream st : streams.values()) {
+                    RelayCircuit leg = pick(true);
+                    if (leg == null)
+                        return;
+                    if (st.xoff)
+                        continue;
+
+                    byte data[] = nextData(st);
+                    if (data == null)
+                        continue;
+                    leg.sendData(st, data);
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    // digest of the running hash (plus data, if given) without disturbing it
+    private static byte[] digestWith(MessageDigest md, byte data[]) {
+        try {
+            MessageDigest c = (MessageDigest) md.clone();
+            return data == null ? c.digest() : c.digest(data);
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] sendmeV1(byte digest[]) {
+        ByteBuffer buf = ByteBuffer.allocate(3 + digest.length);
+        buf.put((byte) 1);
+        buf.putShort((short) digest.length);
+        buf.put(digest);
+        return buf.array();
+    }
+
+    // a cell in flight in either direction, or (when subclassed) an action for the wire thread
+    private class WireEvent implements Delayed {
+        final Cell cell;
+        final boolean toRelay;
+        final long due;
+        final long seq = wireSeq.incrementAndGet();
+
+        WireEvent(Cell cell, boolean toRelay, long delayMillis) {
+            this(cell, toRelay, delayMillis, null);
+        }
+
+        WireEvent(Cell cell, boolean toRelay, long delayMillis, RelayCircuit rc) {
+            this.cell = cell;
+            this.toRelay = toRelay;
+            this.due = arrivalTime(toRelay, cell != null, delayMillis, rc);
+        }
+
+        void run() throws IOException {
+            if (cell == null)
+                return;
+            if (toRelay)
+                relayReceive(cell);
+            else
+                handleCircuitCell(cell);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            WireEvent other = (WireEvent) o;
+            if (due != other.due)
+                return due < other.due ? -1 : 1;
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
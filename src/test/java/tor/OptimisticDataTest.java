@@ -0,0 +1,81 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Short request/response exchanges through the stand-in relay with and without optimistic data (the request sent
+ * straight after BEGIN rather than after CONNECTED), and replay of a request sent on a stream the exit refuses.
+ */
+public class OptimisticDataTest extends StandInRelayFixture {
+    static final long LATENCY_MILLIS = 20;
+    static final byte REQUEST[] = "GET / HTTP/1.1\r\nHost: echo\r\n\r\n".getBytes();
+
+    private LocalRelaySocket sock;
+    private TorCircuit circ;
+
+    @Before
+    public void build() throws IOException {
+        sock = standIn(3, LATENCY_MILLIS);
+        circ = circuit(sock);
+    }
+
+    @Test
+    public void savesARoundTrip() throws IOException {
+        int requests = 10;
+        double waiting = 0, optimistic = 0, held = 0;
+        for (int i = 0; i < requests; i++) {
+            waiting += timeToFirstByte(true, true);
+            optimistic += timeToFirstByte(false, true);
+            held += timeToFirstByte(false, false);
+        }
+        System.out.printf("time to first byte: waiting for CONNECTED %.1fms, optimistic %.1fms, held by the stream %.1fms%n",
+                waiting / requests, optimistic / requests, held / requests);
+        assertTrue("optimistic data didn't save a round trip", optimistic / requests < waiting / requests - LATENCY_MILLIS);
+        assertTrue("held data went before CONNECTED", held / requests > optimistic / requests + LATENCY_MILLIS);
+    }
+
+    @Test
+    public void refusedRequestIsReplayedOnRetry() throws IOException {
+        // the exit through router 1 refuses port 7: the request is kept and sent again on a circuit through router 2
+        sock.setRejectedPorts(1, 7);
+        TorStream st = circuit(sock, sock.getRouter(1)).createStream("echo", 7, null);
+        st.send(REQUEST);
+        try {
+            st.waitForState(TorStream.STATES.READY, 10000);
+            fail("stream to a rejected port connected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(st.isBeginFailed());
+        assertEquals(TorCircuit.REASON_EXITPOLICY, st.getEndReason());
+
+        TorStream retried = st.retryOn(circ, null);
+        byte reply[] = new byte[REQUEST.length];
+        new DataInputStream(retried.getInputStream()).readFully(reply);
+        retried.destroy();
+        assertArrayEquals(REQUEST, reply);
+    }
+
+    // millis from opening a stream to the first byte of the echoed request
+    private double timeToFirstByte(boolean waitForConnected, boolean optimistic) throws IOException {
+        long start = System.nanoTime();
+        TorStream st = circ.createStream("echo", 7, null);
+        st.setOptimisticData(optimistic);
+        if (waitForConnected)
+            st.waitForState(TorStream.STATES.READY, 10000);
+        st.send(REQUEST);
+        assertTrue("stream closed", st.getInputStream().read() >= 0);
+        double millis = (System.nanoTime() - start) / 1e6;
+        st.destroy();
+        return millis;
+    }
+}
@@ -0,0 +1,77 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from chargen through a three hop stand-in circuit and checks how many bytes the client allocates per
+ * byte of stream data, split between handling cells (decrypting, checking the digest and handing the data to the
+ * stream) and reading from the stream.  With a new array for every intermediate copy cell handling allocated about
+ * eight bytes per byte; passing the data along as a slice of the decrypted cell leaves only per cell state, mostly
+ * the SHA-1 state cloned to check its digest.  Cells reach the stand-in's client already in their own arrays, so the
+ * copy out of the link isn't counted, and the relay gets a millisecond of latency so that its work happens outside
+ * the calls measured.
+ */
+public class ReceiveCopyTest extends StandInRelayFixture {
+    static final long BYTES = 8 * 1024 * 1024;
+    static final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private volatile long cellAllocated = 0;
+    private volatile boolean measuring = false;
+    private LocalRelaySocket sock;
+
+    @After
+    public void closeStandIn() {
+        if (sock != null)
+            sock.close();
+    }
+
+    @Test
+    public void receivedDataIsNotCopiedAlongTheWay() throws IOException {
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        sock = new LocalRelaySocket(4, 1) {
+            @Override
+            protected void handleCircuitCell(Cell c) throws IOException {
+                if (!measuring) {
+                    super.handleCircuitCell(c);
+                    return;
+                }
+                long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                super.handleCircuitCell(c);
+                cellAllocated += mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            }
+        };
+        sock.setCongestionControl(false);
+        TorCircuit circ = track(new CircuitBuilder(sock, new CircuitBuildTimeout(null))
+                .build(sock.getRouter(1), sock.getRouter(2), sock.getRouter(3)));
+        TorStream st = circ.createStream("chargen", 19, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        InputStream in = st.getInputStream();
+
+        byte buf[] = new byte[65536];
+        for (long got = 0; got < 2 * 1024 * 1024; ) // warm up
+            got += in.read(buf);
+
+        measuring = true;
+        long readAllocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long got = 0;
+        while (got < BYTES)
+            got += in.read(buf, 0, buf.length);
+        readAllocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - readAllocated;
+        measuring = false;
+        circ.destroy();
+
+        // cells handled while measuring carried roughly what was read
+        double perByteCells = (double) cellAllocated / got, perByteRead = (double) readAllocated / got;
+        System.out.printf("bytes allocated per byte: handling cells %.2f, reading %.2f%n", perByteCells, perByteRead);
+        assertTrue("cell handling copies data: " + perByteCells + " bytes allocated per byte", perByteCells < 3);
+        assertTrue("reading copies data: " + perByteRead + " bytes allocated per byte", perByteRead < 0.5);
+    }
+}
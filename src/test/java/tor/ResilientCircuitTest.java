@@ -0,0 +1,98 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Breaks a ResilientCircuit through the stand-in relay - truncating it at the middle and destroying it outright -
+ * and checks which streams survive each repair.
+ */
+public class ResilientCircuitTest extends StandInRelayFixture {
+    static final long LATENCY_MILLIS = 20;
+
+    private LocalRelaySocket sock;
+    private ResilientCircuit rc;
+    private final byte msg[] = new byte[2000];
+
+    @Before
+    public void build() throws IOException {
+        sock = standIn(3, LATENCY_MILLIS);
+        rc = new ResilientCircuit(new CircuitBuilder(sock, new CircuitBuildTimeout(null)), sock.getRouter(1), sock.getRouter(2));
+        rc.setStreamPolicy(ResilientCircuit.StreamPolicy.RETRY_UNACKNOWLEDGED);
+        TorCrypto.rnd.nextBytes(msg);
+    }
+
+    @After
+    public void close() throws IOException {
+        rc.close();
+    }
+
+    @Test
+    public void truncateDisconnectsUsedStreamsAndMovesIdleOnes() throws IOException {
+        TorStream used = ready(rc.createStream("echo", 7, null));
+        echo(used);
+        TorStream idle = ready(rc.createStream("echo", 7, null));
+
+        // the middle loses its connection to the exit: re-extended from the middle
+        sock.truncateFromRelay(rc.getCircuit(), 1, 8); // CHANNEL_CLOSED
+        used.waitForState(TorStream.STATES.DESTROYED, 10000);
+        echo(idle);
+        assertEquals(1, rc.getRepairs());
+        assertEquals(0, rc.getRebuilds());
+    }
+
+    @Test
+    public void rebuildReplaysUnacknowledgedRequestsAndHoldsNewStreams() throws IOException, InterruptedException {
+        TorStream idle = ready(rc.createStream("echo", 7, null));
+        TorStream inFlight = ready(rc.createStream("echo", 7, null));
+        inFlight.send(msg);
+
+        // the whole circuit goes while a request is in flight: rebuilt, and the request replayed
+        sock.destroyFromRelay(rc.getCircuit(), 9); // FINISHED
+        Thread.sleep(LATENCY_MILLIS + 5);
+        TorStream during = rc.createStream("echo", 7, null);
+        read(inFlight);
+        echo(ready(during));
+        echo(idle);
+        assertEquals(1, rc.getRebuilds());
+    }
+
+    @Test
+    public void survivesRepeatedBreaks() throws IOException, InterruptedException {
+        int rounds = 5;
+        for (int round = 0; round < rounds; round++) {
+            sock.truncateFromRelay(rc.getCircuit(), 1, 8);
+            Thread.sleep(LATENCY_MILLIS + 5);
+            echo(ready(rc.createStream("echo", 7, null)));
+            sock.destroyFromRelay(rc.getCircuit(), 9);
+            Thread.sleep(LATENCY_MILLIS + 5);
+            echo(ready(rc.createStream("echo", 7, null)));
+        }
+        assertEquals(2 * rounds, rc.getRepairs());
+        assertEquals(rounds, rc.getRebuilds());
+        assertEquals(0, rc.getFailedRepairs());
+    }
+
+    private static TorStream ready(TorStream st) throws IOException {
+        st.waitForState(TorStream.STATES.READY, 10000);
+        return st;
+    }
+
+    private void echo(TorStream st) throws IOException {
+        st.send(msg);
+        read(st);
+    }
+
+    private void read(TorStream st) throws IOException {
+        byte reply[] = new byte[msg.length];
+        new DataInputStream(st.getInputStream()).readFully(reply);
+        assertArrayEquals(msg, reply);
+    }
+}
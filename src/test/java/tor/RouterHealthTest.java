@@ -0,0 +1,80 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds circuits through the stand-in relay while one of its four exits is unreachable, choosing exits at random
+ * with and without consulting RouterHealth (as Consensus.getRandomORWithFlag does), and compares how many builds
+ * are lost to timeouts on the dead exit.
+ */
+public class RouterHealthTest extends StandInRelayFixture {
+    static final int DEAD = 3;
+    static final int CIRCUITS = 20;
+
+    private LocalRelaySocket sock;
+    private CircuitBuilder builder;
+    private RouterHealth health = RouterHealth.getDefault();
+
+    @Before
+    public void connect() throws IOException {
+        CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS = 500; // as if learned
+        sock = standIn(6, 10);
+        sock.setRouterDown(DEAD, true);
+        builder = new CircuitBuilder(sock, new CircuitBuildTimeout(null));
+        health.clear();
+    }
+
+    @After
+    public void restore() {
+        CircuitBuildTimeout.DEFAULT_TIMEOUT_MILLIS = 60000;
+        health.clear();
+    }
+
+    @Test
+    public void deadExitIsAvoidedAfterItsFirstFailure() throws IOException {
+        int blindTimeouts = build(false);
+        System.out.println("random exit: " + blindTimeouts + " timeouts, dead exit: " + health.get(sock.getRouter(DEAD)));
+
+        health.clear();
+        int healthTimeouts = build(true);
+        System.out.println("healthy exit: " + healthTimeouts + " timeouts, " + health);
+
+        assertFalse("dead exit wasn't backed off", health.isUsable(sock.getRouter(DEAD)));
+        assertTrue("live exit has no success recorded", health.get(sock.getRouter(2)).getLastSuccess() != 0);
+        assertTrue("consulting RouterHealth didn't avoid the dead exit: " + healthTimeouts + " timeouts against " + blindTimeouts,
+                healthTimeouts < blindTimeouts && healthTimeouts <= 2);
+    }
+
+    // builds circuits, retrying failed builds on another exit, and returns the number that timed out
+    private int build(boolean useHealth) throws IOException {
+        int timeouts = 0;
+        for (int i = 0; i < CIRCUITS; i++) {
+            while (true) {
+                try {
+                    builder.build(sock.getRouter(1), chooseExit(useHealth)).destroy();
+                    break;
+                } catch (IOException e) {
+                    timeouts++;
+                }
+            }
+        }
+        return timeouts;
+    }
+
+    private OnionRouter chooseExit(boolean useHealth) {
+        List<OnionRouter> exits = new ArrayList<>();
+        for (int r = 2; r < 6; r++)
+            if (!useHealth || health.isUsable(sock.getRouter(r)))
+                exits.add(sock.getRouter(r));
+        return exits.get(TorCrypto.rnd.nextInt(exits.size()));
+    }
+}
@@ -0,0 +1,80 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a circuit's outbound scheduler shares the circuit window between streams round-robin.  Two bulk
+ * streams use up the fixed circuit window, then three more streams and one of the bulk ones park data while it is
+ * closed; once SENDMEs reopen it, the discard service should see the three newcomers' cells interleaved with the
+ * bulk stream's, rather than queued behind it.
+ */
+public class SchedulerFairnessTest extends StandInRelayFixture {
+    static final int LATE_CELLS = 100, BULK_MORE_CELLS = 200;
+
+    private TorCircuit circ;
+    private LocalRelaySocket sock;
+
+    @Before
+    public void build() throws IOException {
+        sock = standIn(3, 100);
+        sock.setCongestionControl(false);
+        circ = circuit(sock);
+    }
+
+    @Test(timeout = 60000)
+    public void parkedStreamsShareTheReopenedWindow() throws IOException, InterruptedException {
+        TorStream bulk = open(), other = open(), late[] = {open(), open(), open()};
+        bulk.send(cells(TorStream.STREAM_WINDOW_START));
+        other.send(cells(TorCircuit.CIRCUIT_WINDOW_START - TorStream.STREAM_WINDOW_START));
+        assertEquals("circuit window should be used up", 0, circ.sendWindow);
+
+        // parked while the window is closed: the bulk stream first, so a FIFO would send all of it first
+        bulk.send(cells(BULK_MORE_CELLS));
+        for (TorStream st : late)
+            st.send(cells(LATE_CELLS));
+
+        int total = TorCircuit.CIRCUIT_WINDOW_START + BULK_MORE_CELLS + late.length * LATE_CELLS;
+        List<Integer> order = sock.getDiscarded();
+        for (long deadline = System.currentTimeMillis() + 30000; order.size() < total && System.currentTimeMillis() < deadline; ) {
+            Thread.sleep(20);
+            order = sock.getDiscarded();
+        }
+        assertEquals(total, order.size());
+
+        // after the first window: each newcomer's share of the first 4 * LATE_CELLS cells, and where the last one ends
+        List<Integer> after = order.subList(TorCircuit.CIRCUIT_WINDOW_START, total);
+        int lastLate = 0;
+        for (TorStream st : late) {
+            int share = 0;
+            for (int i = 0; i < after.size(); i++) {
+                if (after.get(i) == st.streamId) {
+                    if (i < 4 * LATE_CELLS)
+                        share++;
+                    lastLate = Math.max(lastLate, i);
+                }
+            }
+            System.out.println("stream " + st.streamId + ": " + share + " of the first " + 4 * LATE_CELLS
+                    + " cells after the window reopened");
+            assertTrue("stream " + st.streamId + " got " + share + " cells of " + 4 * LATE_CELLS, share >= LATE_CELLS / 2);
+        }
+        assertTrue("newcomers waited behind the bulk stream: last cell at " + lastLate,
+                lastLate < after.size() - BULK_MORE_CELLS / 2);
+    }
+
+    private TorStream open() throws IOException {
+        TorStream st = circ.createStream("discard", 9, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        return st;
+    }
+
+    private static byte[] cells(int n) {
+        return new byte[n * TorStream.MAX_DATA_LEN];
+    }
+}
@@ -0,0 +1,85 @@
+package tor;
+
+import org.junit.After;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for tests run against the in-process stand-in relay (LocalRelaySocket).  Stand-ins and circuits made through
+ * it are torn down after each test.
+ */
+public abstract class StandInRelayFixture {
+    private final List<LocalRelaySocket> standIns = new ArrayList<>();
+    private final List<TorCircuit> circuits = new ArrayList<>();
+
+    /**
+     * @param routers       Routers played by the stand-in, the first being the guard
+     * @param latencyMillis One way latency of the link
+     * @return stand-in relay, closed after the test
+     */
+    protected LocalRelaySocket standIn(int routers, long latencyMillis) throws IOException {
+        LocalRelaySocket sock = new LocalRelaySocket(routers, latencyMillis);
+        standIns.add(sock);
+        return sock;
+    }
+
+    /**
+     * @return READY three hop circuit through the stand-in's routers 0, 1 and 2, destroyed after the test
+     */
+    protected TorCircuit circuit(LocalRelaySocket sock) throws IOException {
+        return circuit(sock, sock.getRouter(1), sock.getRouter(2));
+    }
+
+    /**
+     * @param path Routers after the stand-in's first hop
+     * @return READY circuit, destroyed after the test
+     */
+    protected TorCircuit circuit(LocalRelaySocket sock, OnionRouter... path) throws IOException {
+        return track(new CircuitBuilder(sock, new CircuitBuildTimeout(null)).build(path));
+    }
+
+    /**
+     * Destroys circ after the test, if the test hasn't
+     */
+    protected TorCircuit track(TorCircuit circ) {
+        circuits.add(circ);
+        return circ;
+    }
+
+    /**
+     * Reads until len bytes have arrived, failing if the stream ends first
+     */
+    protected static byte[] readFully(InputStream in, int len) throws IOException {
+        byte buf[] = new byte[len];
+        for (int got = 0; got < len; ) {
+            int n = in.read(buf, got, len - got);
+            if (n < 0)
+                throw new IOException("stream ended after " + got + " of " + len + " bytes");
+            got += n;
+        }
+        return buf;
+    }
+
+    /**
+     * Checks that data is the stand-in's chargen pattern from offset on
+     */
+    protected static boolean isChargen(byte data[], long offset) {
+        for (int i = 0; i < data.length; i++)
+            if (data[i] != LocalRelaySocket.chargenAt(offset + i))
+                return false;
+        return true;
+    }
+
+    @After
+    public void tearDownStandIns() {
+        for (TorCircuit circ : circuits)
+            CircuitBuilder.destroyQuietly(circ);
+        circuits.clear();
+        for (LocalRelaySocket sock : standIns)
+            sock.close();
+        standIns.clear();
+    }
+}
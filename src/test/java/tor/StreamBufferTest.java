@@ -0,0 +1,93 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from chargen through the stand-in relay with fixed windows, with a reader that keeps up and with one
+ * that sleeps between reads, checking that the data arrives intact, that the slow reader holds stream SENDMEs back
+ * so the receive buffer stays within its limit plus one window, and that a blocked reader uses no CPU.
+ */
+public class StreamBufferTest extends StandInRelayFixture {
+    static final long BOUND = TorStream.RECV_BUFFER_BYTES + TorStream.STREAM_WINDOW_START * 498;
+
+    private TorCircuit circ;
+
+    @Before
+    public void build() throws IOException {
+        LocalRelaySocket sock = standIn(3, 5);
+        sock.setCongestionControl(false);
+        circ = circuit(sock);
+    }
+
+    @Test
+    public void fastReaderGetsIntactData() throws IOException, InterruptedException {
+        download(4 * 1024 * 1024, 0);
+    }
+
+    @Test
+    public void slowReaderHoldsSendmesBack() throws IOException, InterruptedException {
+        TorStream st = download(2 * 1024 * 1024, 10);
+        assertTrue("slow reader should have held SENDMEs back", st.getSendmesHeld() > 0);
+    }
+
+    @Test
+    public void blockedReaderSleeps() throws IOException, InterruptedException {
+        final TorStream echo = circ.createStream("echo", 7, null);
+        echo.waitForState(TorStream.STATES.READY, 10000);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    echo.getInputStream().read(new byte[1]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(1000);
+        long blockedCpu = ManagementFactory.getThreadMXBean().getThreadCpuTime(reader.getId()) / 1000000;
+        long sent = System.nanoTime();
+        echo.send(new byte[]{'x'});
+        reader.join(5000);
+        System.out.printf("blocked reader: %dms CPU in 1s, woken %.1fms after sending%n", blockedCpu, (System.nanoTime() - sent) / 1e6);
+        assertFalse("blocked reader wasn't woken", reader.isAlive());
+        assertTrue("blocked reader was polling: " + blockedCpu + "ms CPU", blockedCpu < 100);
+        echo.destroy();
+    }
+
+    // reads bytes from chargen, sleeping delayMillis after each read, and checks the data and the buffer's peak
+    private TorStream download(long bytes, long delayMillis) throws IOException, InterruptedException {
+        TorStream st = circ.createStream("chargen", 19, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        InputStream in = st.getInputStream();
+        long start = System.currentTimeMillis();
+        byte buf[] = new byte[16384];
+        long got = 0;
+        int peak = 0;
+        while (got < bytes) {
+            int n = in.read(buf);
+            assertTrue("chargen closed", n >= 0);
+            assertTrue("corrupt data after offset " + got, isChargen(Arrays.copyOf(buf, n), got));
+            got += n;
+            peak = Math.max(peak, in.available());
+            if (delayMillis > 0)
+                Thread.sleep(delayMillis);
+        }
+        long millis = System.currentTimeMillis() - start;
+        System.out.printf("%s reader: %.2f MB/s, peak buffered %dKB, SENDMEs held back %d%n",
+                delayMillis > 0 ? "slow" : "fast", got / 1024.0 / 1024.0 / (millis / 1000.0), peak / 1024, st.getSendmesHeld());
+        assertTrue("receive buffer grew past its limit plus one window: " + peak, peak <= BOUND);
+        st.destroy();
+        return st;
+    }
+}
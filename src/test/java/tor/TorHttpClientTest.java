@@ -0,0 +1,111 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tor.util.HttpConnection;
+import tor.util.HttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches documents from the stand-in relay's http service - a new stream per request, sent once it has connected;
+ * one request at a time on a TorHttpClient's kept-alive connection; and all at once, pipelined through the client -
+ * checking every body and the streams opened.  Also reads pipelined responses out of order, and fetches through a
+ * directory stream.
+ */
+public class TorHttpClientTest extends StandInRelayFixture {
+    static final int REQUESTS = 16;
+    static final long LATENCY_MILLIS = 20;
+
+    private LocalRelaySocket sock;
+    private TorCircuit circ;
+    private TorHttpClient http;
+
+    @Before
+    public void build() throws IOException {
+        sock = standIn(3, LATENCY_MILLIS);
+        circ = circuit(sock);
+        http = new TorHttpClient(circ);
+    }
+
+    @After
+    public void closeClient() throws IOException {
+        http.close();
+    }
+
+    @Test
+    public void keepAliveSavesAStreamPerRequest() throws IOException {
+        // a stream per request, sent once it's connected as with sendHTTPGETRequest()
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < REQUESTS; i++) {
+            TorStream st = circ.createStream("http", 80, null);
+            st.waitForState(TorStream.STATES.READY, 10000);
+            HttpConnection c = new HttpConnection(st, "http");
+            check(c.get(path(i)), i);
+            c.close();
+        }
+        long perRequest = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < REQUESTS; i++)
+            check(http.get("http", 80, path(i)), i);
+        long keepAlive = System.currentTimeMillis() - start;
+        System.out.printf("%d requests: stream per request %dms, keep-alive %dms%n", REQUESTS, perRequest, keepAlive);
+        assertEquals("sequential requests should share one connection", 1, http.getStreamsOpened());
+        assertTrue("keep-alive wasn't faster", keepAlive < perRequest);
+    }
+
+    @Test
+    public void pipelinedRequestsStayWithinTheConnectionLimit() throws IOException {
+        ArrayList<HttpResponse> pipelined = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++)
+            pipelined.add(http.get("http", 80, path(i)));
+        for (int i = 0; i < REQUESTS; i++)
+            check(pipelined.get(i), i);
+        assertTrue("opened more connections than allowed: " + http.getStreamsOpened(),
+                http.getStreamsOpened() <= TorHttpClient.MAX_CONNECTIONS_PER_HOST);
+        assertEquals(REQUESTS, sock.getHttpRequests());
+    }
+
+    @Test
+    public void laterResponsesCanBeReadFirst() throws IOException {
+        // the earlier body is kept for when it's read
+        HttpConnection c = new HttpConnection(circ.createStream("http", 80, null), "http");
+        HttpResponse first = c.get(path(1)), head = c.request("HEAD", "/bytes/100", null, null), missing = c.get("/nothing"),
+                last = c.get(path(2));
+        check(last, 2);
+        assertEquals(200, head.getStatus());
+        assertEquals("100", head.getHeader("Content-Length"));
+        assertEquals(0, head.readBody().length);
+        assertEquals(404, missing.getStatus());
+        assertEquals(10, missing.readBody().length);
+        check(first, 1);
+        c.close();
+    }
+
+    @Test
+    public void fetchesThroughADirectoryStream() throws IOException {
+        check(http.getDirectory(path(3)), 3);
+    }
+
+    // alternately Content-Length and chunked, of varying sizes
+    private static String path(int i) {
+        return (i % 2 == 0 ? "/bytes/" : "/chunked/") + size(i);
+    }
+
+    private static int size(int i) {
+        return 1000 + i * 1537 % 20000;
+    }
+
+    private static void check(HttpResponse resp, int i) throws IOException {
+        assertEquals("request " + i, 200, resp.getStatus());
+        byte body[] = resp.readBody();
+        assertEquals("request " + i + " body length", size(i), body.length);
+        assertTrue("request " + i + " body corrupt", isChargen(body, 0));
+    }
+}
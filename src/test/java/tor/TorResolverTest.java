@@ -0,0 +1,99 @@
+package tor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Resolves names through the stand-in relay with a TorResolver and checks its cache.
+ */
+public class TorResolverTest extends StandInRelayFixture {
+    private LocalRelaySocket sock;
+    private TorCircuit circ;
+    private TorResolver resolver;
+
+    @Before
+    public void build() throws IOException {
+        sock = standIn(3, 20);
+        circ = circuit(sock);
+        resolver = new TorResolver(circ);
+    }
+
+    @After
+    public void restoreTtl() {
+        TorResolver.MIN_TTL_SECONDS = 60;
+    }
+
+    @Test
+    public void concurrentLookupsShareOneResolve() {
+        List<CompletableFuture<InetAddress[]>> lookups = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            lookups.add(resolver.resolveAsync("echo"));
+        for (CompletableFuture<InetAddress[]> f : lookups)
+            assertEquals("127.0.0.7", f.join()[0].getHostAddress());
+        assertEquals(1, sock.getResolves());
+    }
+
+    @Test
+    public void repeatedLookupsComeFromTheCache() throws IOException {
+        resolver.resolveOne("echo");
+        for (int i = 0; i < 1000; i++)
+            assertEquals("127.0.0.7", resolver.resolveOne("ECHO").getHostAddress());
+        assertEquals(1, sock.getResolves());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void unresolvableNamesFail() throws IOException {
+        resolver.resolve("nosuchhost");
+    }
+
+    @Test
+    public void entriesExpireWithTheirTtl() throws IOException, InterruptedException {
+        TorResolver.MIN_TTL_SECONDS = 1;
+        sock.setResolveTtl(1);
+        resolver.resolve("chargen");
+        assertNotNull(resolver.getCached("chargen"));
+        Thread.sleep(1100);
+        assertNull(resolver.getCached("chargen"));
+        resolver.resolve("chargen");
+        assertEquals("expired entry wasn't looked up again", 2, sock.getResolves());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        TorResolver small = new TorResolver(() -> circ, 2);
+        small.resolve("echo");
+        small.resolve("discard");
+        small.resolve("echo");
+        small.resolve("chargen");
+        assertNotNull(small.getCached("echo"));
+        assertNull(small.getCached("discard"));
+    }
+
+    @Test
+    public void learnsAddressesFromConnected() throws IOException {
+        TorStream st = circ.createStream("discard", 9, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        resolver.learn(st);
+        st.destroy();
+        InetAddress addr = resolver.getCached("discard");
+        assertNotNull("CONNECTED address not learnt", addr);
+        assertEquals("127.0.0.9", addr.getHostAddress());
+        assertEquals(0, sock.getResolves());
+
+        st = circ.createStream(addr.getHostAddress(), 9, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        st.destroy();
+    }
+}
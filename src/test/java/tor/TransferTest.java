@@ -0,0 +1,87 @@
+package tor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from chargen to a file through the stand-in relay with transferTo() straight into a FileChannel, and
+ * checks the file and that it was written in large batches.  Then sends a file to echo with transferFrom() while
+ * transferTo() writes what comes back to a second file, and checks that they match.
+ */
+public class TransferTest extends StandInRelayFixture {
+    static final int BYTES = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TorCircuit circ;
+
+    @Before
+    public void build() throws IOException {
+        circ = circuit(standIn(3, 5));
+    }
+
+    @Test(timeout = 30000)
+    public void transferToWritesInLargeBatches() throws IOException {
+        File file = folder.newFile("chargen");
+        TorStream st = circ.createStream("chargen", 19, null);
+        final long batches[] = {0};
+        long start = System.nanoTime(), got;
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            got = st.transferTo(out, BYTES, new TorStream.TransferListener() {
+                @Override
+                public void transferred(long bytes, double bytesPerSecond) {
+                    batches[0]++;
+                }
+            });
+        }
+        st.destroy();
+        System.out.printf("transferTo FileChannel: %.2f MB/s in %d batches, %dKB on average%n",
+                got / 1024.0 / 1024.0 / ((System.nanoTime() - start) / 1e9), batches[0], got / Math.max(batches[0], 1) / 1024);
+        assertEquals("transferTo stopped early", BYTES, got);
+        assertTrue("transferTo wrote in small pieces", got / Math.max(batches[0], 1) >= 16 * 1024);
+        assertTrue("corrupt data in the file", isChargen(Files.readAllBytes(file.toPath()), 0));
+    }
+
+    @Test(timeout = 30000)
+    public void echoRoundTripFileToFile() throws IOException, InterruptedException {
+        final File file = folder.newFile("sent"), copy = folder.newFile("echoed");
+        byte data[] = new byte[BYTES];
+        TorCrypto.rnd.nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        // the file goes up from one thread while the reply is written by another
+        final TorStream echo = circ.createStream("echo", 7, null);
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try (FileChannel ch = FileChannel.open(file.toPath())) {
+                    echo.transferFrom(ch);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sender.start();
+        long got;
+        try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.WRITE)) {
+            got = echo.transferTo(out, BYTES, null);
+        }
+        sender.join();
+        echo.destroy();
+        assertEquals(BYTES, got);
+        assertArrayEquals("echoed file differs", data, Files.readAllBytes(copy.toPath()));
+    }
+}
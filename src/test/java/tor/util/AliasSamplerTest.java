@@ -0,0 +1,85 @@
+package tor.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Draws many indexes from alias tables and checks that each comes up in proportion to its weight: uneven weights,
+ * zero weights that must never be drawn, and all-zero weights that are drawn uniformly.
+ */
+public class AliasSamplerTest {
+    static final int DRAWS = 400000;
+    static final double TOLERANCE = 0.005;
+
+    // seeded, so that a failure can be reproduced
+    private final Random rnd = new Random(42);
+
+    @Test
+    public void drawsInProportionToTheWeights() {
+        check(new double[]{1, 2, 3, 4, 10});
+    }
+
+    @Test
+    public void zeroWeightsAreNeverDrawn() {
+        double frequencies[] = check(new double[]{0, 5, 0, 1, 0});
+        assertEquals(0, frequencies[0], 0);
+        assertEquals(0, frequencies[2], 0);
+        assertEquals(0, frequencies[4], 0);
+    }
+
+    @Test
+    public void allZeroWeightsAreUniform() {
+        AliasSampler s = new AliasSampler(new double[4]);
+        assertEquals(0, s.getTotalWeight(), 0);
+        double frequencies[] = draw(s);
+        for (double f : frequencies)
+            assertEquals(0.25, f, TOLERANCE);
+    }
+
+    @Test
+    public void oneWeightIsAlwaysDrawn() {
+        AliasSampler s = new AliasSampler(new double[]{7});
+        for (int i = 0; i < 1000; i++)
+            assertEquals(0, s.sample(rnd.nextLong()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeightIsRefused() {
+        new AliasSampler(new double[]{1, -1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nanWeightIsRefused() {
+        new AliasSampler(new double[]{1, Double.NaN});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noWeightsAreRefused() {
+        new AliasSampler(new double[0]);
+    }
+
+    private double[] check(double weights[]) {
+        AliasSampler s = new AliasSampler(weights);
+        double total = 0;
+        for (double w : weights)
+            total += w;
+        assertEquals(total, s.getTotalWeight(), 0);
+        assertEquals(weights.length, s.size());
+        double frequencies[] = draw(s);
+        for (int i = 0; i < weights.length; i++)
+            assertEquals("index " + i, weights[i] / total, frequencies[i], TOLERANCE);
+        return frequencies;
+    }
+
+    private double[] draw(AliasSampler s) {
+        double frequencies[] = new double[s.size()];
+        for (int i = 0; i < DRAWS; i++)
+            frequencies[s.sample(rnd.nextLong())]++;
+        for (int i = 0; i < frequencies.length; i++)
+            frequencies[i] /= DRAWS;
+        return frequencies;
+    }
+}
@@ -0,0 +1,164 @@
+package tor.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tor.LocalRelaySocket;
+import tor.StandInRelayFixture;
+import tor.TorCircuit;
+import tor.TorCrypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Forwards local TCP connections to the stand-in's echo service as PortForwarder does - one thread splicing every
+ * socket to its stream through a TorSelector - while clients send random data and check that it comes back intact,
+ * and that a client which shuts down its output after writing still gets its reply, then checks that the thread
+ * sleeps once they're done.
+ */
+public class ChannelSpliceTest extends StandInRelayFixture {
+    static final int CLIENTS = 8;
+    static final int BYTES = 128 * 1024;
+
+    private TorCircuit circ;
+    private ServerSocketChannel server;
+    private TorSelector select;
+    private Thread loop;
+    private volatile boolean stopping = false;
+    private int port;
+
+    @Before
+    public void startForwarder() throws IOException {
+        LocalRelaySocket sock = standIn(3, 5);
+        circ = circuit(sock);
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        server.configureBlocking(false);
+        port = server.socket().getLocalPort();
+        select = new TorSelector();
+        server.register(select.getSelector(), SelectionKey.OP_ACCEPT);
+        loop = new Thread("forwarder") {
+            @Override
+            public void run() {
+                try {
+                    while (!stopping) {
+                        select.select(1000);
+                        Iterator<SelectionKey> it = select.getSelector().selectedKeys().iterator();
+                        while (it.hasNext()) {
+                            SelectionKey k = it.next();
+                            it.remove();
+                            if (!k.isValid())
+                                continue;
+                            if (k.channel() == server) {
+                                SocketChannel c = server.accept();
+                                if (c != null)
+                                    new ChannelSplice(select, c, new TorStreamChannel(circ.createStream("echo", 7, null)));
+                            } else
+                                ((ChannelSplice) k.attachment()).pump();
+                        }
+                        for (TorStreamChannel ch : select.selectedStreams())
+                            ((ChannelSplice) ch.attachment()).pump();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    @After
+    public void stopForwarder() throws IOException, InterruptedException {
+        stopping = true;
+        select.wakeup();
+        loop.join(5000);
+        select.close();
+        server.close();
+    }
+
+    @Test(timeout = 60000)
+    public void clientsGetTheirDataBackIntact() throws InterruptedException {
+        final AtomicInteger ok = new AtomicInteger();
+        Thread threads[] = new Thread[CLIENTS];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < CLIENTS; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Socket s = new Socket("127.0.0.1", port);
+                        final byte data[] = new byte[BYTES];
+                        TorCrypto.rnd.nextBytes(data);
+                        Thread writer = new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    OutputStream out = s.getOutputStream();
+                                    for (int off = 0; off < data.length; off += 4096)
+                                        out.write(data, off, Math.min(4096, data.length - off));
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        };
+                        writer.start();
+                        byte back[] = readFully(s.getInputStream(), BYTES);
+                        writer.join();
+                        s.close();
+                        if (Arrays.equals(data, back))
+                            ok.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        System.out.printf("%d of %d clients echoed %dKB intact through one forwarding thread in %dms%n", ok.get(),
+                CLIENTS, BYTES / 1024, System.currentTimeMillis() - start);
+        assertEquals("some echoes were lost or corrupted", CLIENTS, ok.get());
+    }
+
+    @Test(timeout = 30000)
+    public void halfClosedClientGetsItsReply() throws IOException {
+        Socket half = new Socket("127.0.0.1", port);
+        byte request[] = new byte[65536];
+        TorCrypto.rnd.nextBytes(request);
+        half.getOutputStream().write(request);
+        half.shutdownOutput();
+        byte reply[] = readFully(half.getInputStream(), request.length);
+        half.close();
+        assertArrayEquals(request, reply);
+    }
+
+    @Test(timeout = 30000)
+    public void idleForwarderSleeps() throws IOException, InterruptedException {
+        // a connection that has finished, then nothing for the loop to do
+        halfClosedClientGetsItsReply();
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpu = mx.getThreadCpuTime(loop.getId());
+        Thread.sleep(1000);
+        cpu = (mx.getThreadCpuTime(loop.getId()) - cpu) / 1000000;
+        System.out.println("forwarding thread idle: " + cpu + "ms CPU in 1s");
+        assertTrue("select loop is spinning: " + cpu + "ms CPU in 1s", cpu < 100);
+    }
+}
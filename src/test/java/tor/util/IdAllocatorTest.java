@@ -0,0 +1,123 @@
+package tor.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocates and frees IDs over the 16 bit range streams and circuits use: IDs come out in order and wrap after
+ * 0xFFFF, a freed ID waits for the cursor to come back round, a live ID is never handed out twice, a full range
+ * gives -1, and threads allocating and freeing at once never share an ID.
+ */
+public class IdAllocatorTest {
+    static final int MAX = 0xFFFF;
+
+    @Test
+    public void wrapsAroundAfterTheLastId() {
+        IdAllocator ids = new IdAllocator(1, MAX);
+        for (int i = 1; i <= MAX - 1; i++)
+            assertEquals(i, ids.allocate());
+        ids.free(3);
+        ids.free(7);
+        assertEquals(MAX, ids.allocate());
+        // back round to the lowest freed
+        assertEquals(3, ids.allocate());
+        assertEquals(7, ids.allocate());
+        assertEquals(MAX, ids.getInUse());
+    }
+
+    @Test
+    public void freedIdWaitsForTheCursor() {
+        IdAllocator ids = new IdAllocator(1, MAX);
+        for (int i = 1; i <= 100; i++)
+            ids.allocate();
+        ids.free(50);
+        assertFalse(ids.isAllocated(50));
+        for (int i = 101; i <= 1000; i++)
+            assertEquals(i, ids.allocate());
+        assertFalse("freed ID was reused before the range was cycled", ids.isAllocated(50));
+    }
+
+    @Test
+    public void liveIdIsNeverReused() {
+        IdAllocator ids = new IdAllocator(1, MAX);
+        int live = ids.allocate();
+        // round the range several times, freeing everything else as it goes
+        for (int i = 0; i < 4 * MAX; i++) {
+            int id = ids.allocate();
+            assertTrue(id != live && id != -1);
+            ids.free(id);
+        }
+        assertTrue(ids.isAllocated(live));
+        assertEquals(1, ids.getInUse());
+    }
+
+    @Test
+    public void exhaustedRangeGivesMinusOne() {
+        IdAllocator ids = new IdAllocator(1, MAX);
+        for (int i = 0; i < MAX; i++)
+            assertTrue(ids.allocate() != -1);
+        assertEquals(MAX, ids.getInUse());
+        assertEquals(-1, ids.allocate());
+        assertEquals(-1, ids.allocate());
+
+        ids.free(1234);
+        assertEquals(1234, ids.allocate());
+        assertEquals(-1, ids.allocate());
+    }
+
+    @Test
+    public void freeingAnUnallocatedIdDoesNothing() {
+        IdAllocator ids = new IdAllocator(1, MAX);
+        int id = ids.allocate();
+        ids.free(id + 1);
+        ids.free(0);
+        ids.free(MAX + 1);
+        ids.free(id);
+        ids.free(id);
+        assertEquals(0, ids.getInUse());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentAllocateAndFreeNeverShareAnId() throws InterruptedException {
+        // a small range, so that threads contend for the same words of the bitmap and may run it dry
+        final IdAllocator ids = new IdAllocator(1, 256);
+        final AtomicIntegerArray owner = new AtomicIntegerArray(257);
+        final AtomicInteger clashes = new AtomicInteger(), exhausted = new AtomicInteger();
+        Thread threads[] = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int me = t + 1;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    int held[] = new int[40];
+                    for (int round = 0; round < 5000; round++) {
+                        for (int i = 0; i < held.length; i++) {
+                            held[i] = ids.allocate();
+                            if (held[i] == -1)
+                                exhausted.incrementAndGet();
+                            else if (!owner.compareAndSet(held[i], 0, me))
+                                clashes.incrementAndGet();
+                        }
+                        for (int id : held)
+                            if (id != -1) {
+                                owner.compareAndSet(id, me, 0);
+                                ids.free(id);
+                            }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        System.out.println("concurrent allocate/free: " + exhausted.get() + " allocations found the range full");
+        assertEquals("an ID was handed to two threads at once", 0, clashes.get());
+        assertEquals(0, ids.getInUse());
+    }
+}
@@ -0,0 +1,96 @@
+package tor.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import tor.LocalRelaySocket;
+import tor.StandInRelayFixture;
+import tor.TorCircuit;
+import tor.TorStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes small records with a DataOutputStream (each field a separate write) to the stand-in's echo service,
+ * sending each write at once and then gathering writes into full cells, flushing at the end or leaving it to the
+ * flush delay, and compares the cells sent.  The echoed data is checked each time.
+ */
+public class TorOutputStreamTest extends StandInRelayFixture {
+    static final int RECORDS = 2000;
+    static final long DELAY_MILLIS = 20;
+
+    private TorCircuit circ;
+
+    @Before
+    public void build() throws IOException {
+        LocalRelaySocket sock = standIn(3, 5);
+        circ = circuit(sock);
+    }
+
+    @Test(timeout = 20000)
+    public void flushGathersWritesIntoCells() throws IOException {
+        long unbuffered = sendRecords(-1, false);
+        long buffered = sendRecords(0, true);
+        assertTrue("buffering should cut the cells sent at least tenfold: " + buffered + " against " + unbuffered,
+                buffered * 10 <= unbuffered);
+    }
+
+    @Test(timeout = 20000)
+    public void flushDelayGathersWrites() throws IOException {
+        long unbuffered = sendRecords(-1, false);
+        long delayed = sendRecords(DELAY_MILLIS, false);
+        assertTrue("buffering should cut the cells sent at least tenfold: " + delayed + " against " + unbuffered,
+                delayed * 10 <= unbuffered);
+    }
+
+    @Test(timeout = 10000)
+    public void flushDelaySendsAPartialCell() throws IOException {
+        TorStream st = echoStream();
+        TorOutputStream out = st.getOutputStream();
+        out.setFlushDelay(DELAY_MILLIS);
+        byte msg[] = "not a full cell".getBytes();
+        long start = System.currentTimeMillis();
+        out.write(msg);
+        assertArrayEquals(msg, readFully(st.getInputStream(), msg.length));
+        long millis = System.currentTimeMillis() - start;
+        assertEquals(1, st.getCellsSent());
+        assertTrue("partial cell went before the delay: " + millis + "ms", millis >= DELAY_MILLIS);
+        st.destroy();
+    }
+
+    // sends RECORDS records on a new echo stream and checks they come back, returning the cells it took
+    private long sendRecords(long flushDelay, boolean flush) throws IOException {
+        TorStream st = echoStream();
+        TorOutputStream out = st.getOutputStream();
+        out.setFlushDelay(flushDelay);
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (DataOutputStream d : new DataOutputStream[]{new DataOutputStream(out), new DataOutputStream(sent)})
+            for (int i = 0; i < RECORDS; i++) {
+                d.writeInt(i);
+                d.writeShort((int) flushDelay);
+                d.writeUTF("record");
+                d.writeLong(flushDelay);
+            }
+        if (flush)
+            out.flush(); // with a delay the last partial cell goes by itself
+        assertArrayEquals(sent.toByteArray(), readFully(st.getInputStream(), sent.size()));
+
+        long cells = st.getCellsSent();
+        System.out.printf("flush delay %dms%s: %d cells, %.2f bytes padding per byte sent%n", flushDelay,
+                flush ? " and flush()" : "", cells, (double) (cells * TorStream.MAX_DATA_LEN - st.getBytesSent()) / st.getBytesSent());
+        st.destroy();
+        return cells;
+    }
+
+    private TorStream echoStream() throws IOException {
+        TorStream st = circ.createStream("echo", 7, null);
+        st.waitForState(TorStream.STATES.READY, 10000);
+        return st;
+    }
+}
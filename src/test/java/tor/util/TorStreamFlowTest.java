@@ -0,0 +1,213 @@
+package tor.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import tor.LocalRelaySocket;
+import tor.StandInRelayFixture;
+import tor.TorCircuit;
+import tor.TorCrypto;
+import tor.TorStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses streams through the stand-in relay as reactive publishers and subscribers.  A subscriber to chargen asks for
+ * a few cells at a time, then nothing for a while, then everything: the exit should only send what was asked for
+ * (plus its window), and the data should be intact.  A publisher of random data far faster than the circuit is
+ * subscribed to an echo stream, whose own subscriber checks that it all comes back.
+ */
+public class TorStreamFlowTest extends StandInRelayFixture {
+    static final long WINDOW = TorStream.STREAM_WINDOW_START * (long) TorStream.MAX_DATA_LEN;
+
+    private TorCircuit circ;
+
+    @Before
+    public void build() throws IOException {
+        LocalRelaySocket sock = standIn(3, 5);
+        sock.setCongestionControl(false);
+        circ = circuit(sock);
+    }
+
+    @Test(timeout = 30000)
+    public void exitSendsOnlyWhatWasRequested() throws IOException, InterruptedException {
+        TorStream gen = circ.createStream("chargen", 19, null);
+        ChargenSubscriber sub = new ChargenSubscriber();
+        new TorStreamFlow(gen).subscribe(sub);
+
+        // 50 cells every 100ms, about 250KB/s
+        int peak = 0;
+        for (int i = 0; i < 10; i++) {
+            sub.subscription.get().request(TorStream.STREAM_WINDOW_INCREMENT);
+            Thread.sleep(100);
+            peak = Math.max(peak, gen.getInputStream().available());
+        }
+        System.out.printf("paced subscriber: %dKB, peak buffered %dKB, SENDMEs held back %d%n",
+                sub.got.get() / 1024, peak / 1024, gen.getSendmesHeld());
+        assertTrue("buffered more than was requested plus a window: " + peak,
+                peak <= WINDOW + TorStream.STREAM_WINDOW_INCREMENT * TorStream.MAX_DATA_LEN);
+
+        // no demand: once the window is used nothing more should arrive
+        Thread.sleep(500);
+        long before = sub.got.get() + gen.getInputStream().available();
+        Thread.sleep(1000);
+        long after = sub.got.get() + gen.getInputStream().available();
+        assertEquals("exit kept sending without demand", before, after);
+        assertNull(sub.corrupt.get());
+        gen.destroy();
+    }
+
+    @Test(timeout = 30000)
+    public void cancellingClosesTheStream() throws IOException, InterruptedException {
+        TorStream gen = circ.createStream("chargen", 19, null);
+        ChargenSubscriber sub = new ChargenSubscriber();
+        new TorStreamFlow(gen).subscribe(sub);
+        long start = System.currentTimeMillis();
+        sub.subscription.get().request(Long.MAX_VALUE);
+        while (sub.got.get() < 4 * 1024 * 1024)
+            Thread.sleep(10);
+        System.out.printf("unbounded demand: %.2f MB/s%n", sub.got.get() / 1024.0 / 1024.0 / ((System.currentTimeMillis() - start) / 1000.0));
+        sub.subscription.get().cancel();
+        assertNull(sub.corrupt.get());
+        assertEquals("cancelling didn't close the stream", TorStream.STATES.DESTROYED, gen.getState());
+    }
+
+    @Test(timeout = 60000)
+    public void fastPublisherIsHeldToTheStreamsPace() throws IOException, InterruptedException {
+        final byte data[] = new byte[1024 * 1024];
+        TorCrypto.rnd.nextBytes(data);
+        final TorStream echo = circ.createStream("echo", 7, null);
+        TorStreamFlow echoFlow = new TorStreamFlow(echo);
+        final ByteArrayOutputStream back = new ByteArrayOutputStream();
+        final CountDownLatch done = new CountDownLatch(1);
+        echoFlow.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                back.write(item.array(), item.position(), item.remaining());
+                if (back.size() >= data.length)
+                    done.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        final AtomicInteger maxQueued = new AtomicInteger();
+        new ArrayPublisher(data, 16384) {
+            @Override
+            void emitting() {
+                maxQueued.set(Math.max(maxQueued.get(), echo.getQueuedCells()));
+            }
+        }.subscribe(echoFlow);
+        done.await();
+        System.out.printf("echoed %dKB, send queue peaked at %d cells%n", back.size() / 1024, maxQueued.get());
+        assertArrayEquals("echo lost or corrupted data", data, back.toByteArray());
+        assertTrue("publisher wasn't held to the stream's pace: " + maxQueued.get() + " cells queued",
+                maxQueued.get() <= TorStream.MAX_QUEUED_CELLS + 16384 / TorStream.MAX_DATA_LEN + 1);
+        echo.destroy();
+    }
+
+    // checks what it receives against the chargen pattern, requesting only when told to
+    static class ChargenSubscriber implements Flow.Subscriber<ByteBuffer> {
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        final AtomicLong got = new AtomicLong();
+        final AtomicReference<String> corrupt = new AtomicReference<>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription.set(s);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            long off = got.get();
+            for (int i = 0; item.hasRemaining(); i++)
+                if (item.get() != LocalRelaySocket.chargenAt(off + i) && corrupt.get() == null)
+                    corrupt.set("corrupt data at offset " + (off + i));
+            got.addAndGet(item.limit());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            corrupt.set("chargen failed: " + throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    /**
+     * Publishes an array in slices as fast as they're requested, looping rather than recursing when a subscriber
+     * requests more from inside onNext()
+     */
+    static class ArrayPublisher implements Flow.Publisher<ByteBuffer> {
+        private final byte data[];
+        private final int slice;
+
+        ArrayPublisher(byte data[], int slice) {
+            this.data = data;
+            this.slice = slice;
+        }
+
+        void emitting() {
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> s) {
+            s.onSubscribe(new Flow.Subscription() {
+                int off = 0;
+                long demand = 0;
+                boolean emitting = false, cancelled = false;
+
+                @Override
+                public synchronized void request(long n) {
+                    demand += n;
+                    if (emitting)
+                        return;
+                    emitting = true;
+                    while (demand > 0 && off < data.length && !cancelled) {
+                        int len = Math.min(slice, data.length - off);
+                        demand--;
+                        emitting();
+                        s.onNext(ByteBuffer.wrap(data, off, len));
+                        off += len;
+                    }
+                    if (off == data.length && !cancelled) {
+                        cancelled = true;
+                        s.onComplete();
+                    }
+                    emitting = false;
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+}